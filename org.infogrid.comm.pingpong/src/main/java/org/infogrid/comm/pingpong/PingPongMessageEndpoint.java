@@ -14,10 +14,15 @@
 
 package org.infogrid.comm.pingpong;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import org.infogrid.comm.AbstractSendingMessageEndpoint;
 import org.infogrid.comm.BidirectionalMessageEndpoint;
 import org.infogrid.comm.MessageEndpoint;
@@ -35,7 +40,15 @@ import org.infogrid.util.logging.Log;
  *    a slight, random delta.</p>
  * <p>This class supports a regular and a low-level logger, which reflect application-developer
  *    vs. protocol-developer-centric views of logging.</p>
- * 
+ * <p>By default, there is exactly one token in flight, which is passed back and forth between the
+ *    partners. Alternatively, a windowed mode may be enabled with {@link #setWindowSize setWindowSize}:
+ *    each side then numbers its own outgoing batches, may have up to N of them unacknowledged at any
+ *    one time, and piggybacks a cumulative acknowledgement of the partner's batches on every message.
+ *    Batches that have not been acknowledged by the time the recover timer triggers are resent
+ *    individually; batches that could not be sent are resent after the resend delay.</p>
+ * <p>With {@link #setAdaptiveTiming setAdaptiveTiming}, the recover and resend delays follow the
+ *    measured round-trip time instead, and an idle partnership slows down its exchange of tokens.</p>
+ *
  * @param <T> the message type
  */
 public abstract class PingPongMessageEndpoint<T>
@@ -109,6 +122,260 @@ public abstract class PingPongMessageEndpoint<T>
             future.cancel();
             theFutureTask = null;
         }
+        TimedTask recover = theRecoverTask;
+        if( recover != null ) {
+            recover.cancel();
+            theRecoverTask = null;
+        }
+    }
+
+    /**
+     * Set the maximum number of unacknowledged token batches that may be in flight at the same time.
+     * A value of 0 selects the classic ping-pong protocol with a single token. This can only be
+     * set before communications have started, and both partners must use the same mode.
+     * The partner must not use a larger window: token batches received more than the window
+     * size ahead are dropped, and have to be recovered.
+     *
+     * @param newValue the new window size
+     * @throws IllegalArgumentException thrown if the window size is negative
+     * @throws UnsupportedOperationException thrown if the window size is positive, but this
+     *         PingPongMessageEndpoint does not support windowed mode
+     * @throws IllegalStateException thrown if communications have started already
+     * @see #supportsWindowedMode
+     */
+    public synchronized void setWindowSize(
+            int newValue )
+    {
+        if( newValue < 0 ) {
+            throw new IllegalArgumentException( "Window size must not be negative: " + newValue );
+        }
+        if( newValue > 0 && !supportsWindowedMode() ) {
+            throw new UnsupportedOperationException( "Windowed mode not supported by " + getClass().getName() );
+        }
+        if( theFutureTask != null || theLastSentToken >= 0 || theLastReceivedToken >= 0 ) {
+            throw new IllegalStateException( "Cannot change window size after communications have started: " + this );
+        }
+        theWindowSize = newValue;
+    }
+
+    /**
+     * Determine whether this PingPongMessageEndpoint supports windowed mode. Subclasses that
+     * implement {@link #sendWindowedMessage sendWindowedMessage} override this to return true.
+     *
+     * @return true if windowed mode is supported
+     */
+    protected boolean supportsWindowedMode()
+    {
+        return false;
+    }
+
+    /**
+     * Obtain the maximum number of unacknowledged token batches that may be in flight at the same time.
+     *
+     * @return the window size, or 0 if the classic ping-pong protocol is used
+     */
+    public int getWindowSize()
+    {
+        return theWindowSize;
+    }
+
+    /**
+     * Determine whether this PingPongMessageEndpoint runs in windowed mode.
+     *
+     * @return true if more than one token batch may be in flight
+     */
+    public boolean isWindowed()
+    {
+        return theWindowSize > 0;
+    }
+
+    /**
+     * <p>Enable or disable adaptive timing. If enabled, the recover and resend delays are derived from
+     *    the measured round-trip time, in the way TCP derives its retransmission timeout (RFC 6298),
+     *    and back off exponentially while the partner does not respond. The configured delays then
+     *    serve as upper bounds. Only batches that were not retransmitted are used to measure
+     *    the round-trip time.</p>
+     * <p>Also, while there is no traffic, the delay until the token is returned without a message
+     *    doubles with every idle round, up to a maximum, and snaps back as soon as there is traffic.</p>
+     * <p>A minimum timeout of 0 disables adaptive timing.</p>
+     *
+     * @param minTimeout the lower bound for the recover and resend delays, in milliseconds, or 0
+     * @param maxDeltaRespondNoMessage the upper bound for the delay until the token is returned without a message, in milliseconds
+     * @throws IllegalArgumentException thrown if a value is negative
+     */
+    public synchronized void setAdaptiveTiming(
+            long minTimeout,
+            long maxDeltaRespondNoMessage )
+    {
+        if( minTimeout < 0 ) {
+            throw new IllegalArgumentException( "Minimum timeout must not be negative: " + minTimeout );
+        }
+        if( maxDeltaRespondNoMessage < 0 ) {
+            throw new IllegalArgumentException( "Maximum respond delay must not be negative: " + maxDeltaRespondNoMessage );
+        }
+        theMinTimeout                 = minTimeout;
+        theMaxDeltaRespondNoMessage   = Math.max( maxDeltaRespondNoMessage, theDeltaRespondNoMessage );
+        theSmoothedRoundTripTime      = -1.;
+        theRoundTripTimeVariation     = 0.;
+        theRecoverBackoff             = 0;
+        theResendFailures             = 0;
+        theIdleRounds                 = 0;
+        theWindowedSendTimes.clear();
+    }
+
+    /**
+     * Determine whether adaptive timing is enabled.
+     *
+     * @return true if adaptive timing is enabled
+     */
+    public boolean isAdaptiveTiming()
+    {
+        return theMinTimeout > 0;
+    }
+
+    /**
+     * Obtain the smoothed round-trip time measured so far.
+     *
+     * @return the smoothed round-trip time, in milliseconds, or -1 if it has not been measured yet
+     */
+    public synchronized double getSmoothedRoundTripTime()
+    {
+        return theSmoothedRoundTripTime;
+    }
+
+    /**
+     * Obtain the current retransmission timeout, not counting any backoff. Without adaptive timing,
+     * or before the round-trip time has been measured, this is the configured recover delay.
+     *
+     * @return the retransmission timeout, in milliseconds
+     */
+    public synchronized long getRetransmissionTimeout()
+    {
+        if( theMinTimeout <= 0 || theSmoothedRoundTripTime < 0. ) {
+            return theDeltaRecover;
+        }
+        long ret = (long) Math.ceil( theSmoothedRoundTripTime + Math.max( 1., 4. * theRoundTripTimeVariation ));
+        ret = Math.max( ret, theMinTimeout );
+        ret = Math.min( ret, theDeltaRecover );
+        return ret;
+    }
+
+    /**
+     * Feed a round-trip time measurement into the estimator. Also resets the recover backoff,
+     * as the partner evidently responds.
+     *
+     * @param sentNanos the time the batch was sent, in System.nanoTime() format
+     */
+    protected synchronized void recordRoundTripTime(
+            long sentNanos )
+    {
+        double sample = ( System.nanoTime() - sentNanos ) / 1e6;
+        if( sample < 0. ) {
+            return;
+        }
+        if( theSmoothedRoundTripTime < 0. ) {
+            theSmoothedRoundTripTime  = sample;
+            theRoundTripTimeVariation = sample / 2.;
+        } else {
+            theRoundTripTimeVariation = 0.75 * theRoundTripTimeVariation + 0.25 * Math.abs( theSmoothedRoundTripTime - sample );
+            theSmoothedRoundTripTime  = 0.875 * theSmoothedRoundTripTime + 0.125 * sample;
+        }
+        theRecoverBackoff = 0;
+    }
+
+    /**
+     * Determine the delay until we attempt to recover. With adaptive timing, this is the
+     * retransmission timeout, backed off for each recover since the last acknowledgement,
+     * but no more than the configured recover delay.
+     * In the classic mode, the partner may hold on to the token for the current idle delay
+     * before returning it, so that is allowed for as well.
+     *
+     * @return the delay, in milliseconds
+     */
+    protected synchronized long determineDeltaRecover()
+    {
+        if( theMinTimeout <= 0 ) {
+            return theDeltaRecover;
+        }
+        long ret = Math.min( getRetransmissionTimeout() << theRecoverBackoff, theDeltaRecover );
+        if( theWindowSize == 0 && theIdleRounds > 0 ) {
+            // the partner backs off in step with us, but may be a round ahead
+            ret += Math.min( 2 * determineDeltaRespondNoMessage(), theMaxDeltaRespondNoMessage );
+        }
+        return ret;
+    }
+
+    /**
+     * Determine the delay until we retry sending after sending failed, and count the failure.
+     * With adaptive timing, this starts with the retransmission timeout and backs off
+     * exponentially while sending keeps failing, up to the configured resend delay.
+     *
+     * @return the delay, in milliseconds
+     */
+    protected synchronized long determineDeltaResend()
+    {
+        if( theMinTimeout <= 0 ) {
+            return theDeltaResend;
+        }
+        long ret = Math.max( theMinTimeout, getRetransmissionTimeout() ) << theResendFailures;
+        ret = Math.min( ret, theDeltaResend );
+        if( theResendFailures < MAX_BACKOFF ) {
+            ++theResendFailures;
+        }
+        return ret;
+    }
+
+    /**
+     * Determine the delay until we return the token if no message is in the queue. With
+     * adaptive timing, this doubles with every idle round.
+     *
+     * @return the delay, in milliseconds
+     */
+    protected synchronized long determineDeltaRespondNoMessage()
+    {
+        if( theMinTimeout <= 0 ) {
+            return theDeltaRespondNoMessage;
+        }
+        return Math.min( theDeltaRespondNoMessage << theIdleRounds, theMaxDeltaRespondNoMessage );
+    }
+
+    /**
+     * Record that a round passed without any messages being sent or received.
+     */
+    protected synchronized void idleRound()
+    {
+        if( theMinTimeout > 0 && ( theDeltaRespondNoMessage << theIdleRounds ) < theMaxDeltaRespondNoMessage && theIdleRounds < MAX_IDLE_ROUNDS ) {
+            ++theIdleRounds;
+        }
+    }
+
+    /**
+     * Record that messages were sent or received, so the idle delay snaps back.
+     */
+    protected synchronized void trafficSeen()
+    {
+        theIdleRounds = 0;
+    }
+
+    /**
+     * Append a message to the outgoing queue. This ends any idle backoff. In the classic mode,
+     * the partner has backed off as well, so if it holds the token, we ask for it back.
+     *
+     * @param msg the Message
+     */
+    @Override
+    protected void addMessageToBeSent(
+            T msg )
+    {
+        super.addMessageToBeSent( msg );
+
+        if( theIdleRounds > 0 ) {
+            trafficSeen();
+
+            if( theWindowSize == 0 && !hasToken() ) {
+                sendGrabTokenMessage();
+            }
+        }
     }
 
     /**
@@ -116,18 +383,40 @@ public abstract class PingPongMessageEndpoint<T>
      *
      * @param task the TimedTask that invokes this handler
      */
-    protected synchronized void doAction(
+    protected void doAction(
             TimedTask task )
     {
         if( logLow.isDebugEnabled() ) {
             logLow.traceMethodCallEntry( this, "doAction", task );
         }        
 
+        if( theWindowSize > 0 ) {
+            doWindowedAction( task );
+        } else {
+            doPingPongAction( task );
+        }
+    }
+
+    /**
+     * Invoked when the timer triggers in the classic ping-pong mode. The token and the messages
+     * to be sent are determined while holding the monitor, but the monitor is not held while
+     * sending or while notifying listeners, so a slow transport or listener does not block
+     * incoming messages or other callers. A resend is not started while an earlier send is still
+     * in progress, however: it could overtake a newer token, and the partner would accept it again.
+     *
+     * @param task the TimedTask that invokes this handler
+     */
+    protected void doPingPongAction(
+            TimedTask task )
+    {
+
         // determine whether this is a regular response, a resend, or a recover. Resend and regular
         // response are treated by the same code, the only difference is when it is invoked by the timer.
         
-        long    tokenToSend = -1L;
-        List<T> toBeSent    = null; // send nothing unless something is set
+        long         tokenToSend = -1L;
+        List<T>      toBeSent    = null; // send nothing unless something is set
+        int          removed     = 0;
+        EventType<T> batchEvent  = BATCH_SENT;
 
         synchronized( this ) {
             if( theLastReceivedToken < 0 ) {
@@ -154,64 +443,71 @@ public abstract class PingPongMessageEndpoint<T>
 
             if( tokenToSend == theLastSentToken ) {
                 // resend
-                toBeSent = theMessagesSentLast;
+                if( theSendsInProgress > 0 ) {
+                    // the previous send of this token has not returned yet. If we sent it again, the
+                    // second copy could arrive after the partner has moved on, and be accepted again.
+                    if( logLow.isDebugEnabled() ) {
+                        logLow.debug( this + " not resending (" + tokenToSend + "), send in progress" );
+                    }
+                    schedule( new RecoverTask( this ), determineDeltaRecover() );
+                    return;
+                }
+                toBeSent   = theMessagesSentLast;
+                batchEvent = task instanceof ResendTask ? BATCH_RESENT : BATCH_RECOVERED;
+
+                theLastSentIsTimeable = false; // Karn: the response cannot be attributed to either send
+                if( task instanceof RecoverTask && theMinTimeout > 0 && theRecoverBackoff < MAX_BACKOFF ) {
+                    ++theRecoverBackoff;
+                }
 
             } else {
                 // regular response
-                synchronized( theMessagesToBeSent ) {
-                    if( !theMessagesToBeSent.isEmpty() ) {
-                        toBeSent = new LinkedList<T>();
-                        toBeSent.addAll( theMessagesToBeSent );
-                    }
+                toBeSent = drainMessagesToBeSent();
+                if( toBeSent != null ) {
+                    removed = removeMessagesSent( toBeSent ); // from now on, theMessagesSentLast holds on to them
+                    theIdleRounds = 0;
                 }
+                theLastSentTime       = System.nanoTime();
+                theLastSentIsTimeable = toBeSent != null;
             }
 
             theLastSentToken    = tokenToSend;
             theMessagesSentLast = toBeSent;
+            ++theSendsInProgress;
+
+            schedule( new RecoverTask( this ), determineDeltaRecover() );
+                // schedule a recover event prior to sending and firing events to listeners:
+                // if the sending takes a long time, we don't want to block
         }
+        messagesRemoved( removed );
 
         // make sure we use local variables here, not member variables, in order to support concurrency
         if( logLow.isDebugEnabled() ) {
             logLow.debug( this + " doRespond: about to send message( " + toBeSent + " )" );
         }        
         try {
-            schedule( new RecoverTask( this ), theDeltaRecover );
-                // schedule a recover event prior to sending and firing events to listeners:
-                // if the sending takes a long time, we don't want to block
+            // do not reschedule the future, we stop here
 
-        } catch( RejectedExecutionException ex ) {
-            // underlying ThreadPool does not like this task
-            if( logLow.isInfoEnabled() ) {
-                logLow.info( this + " cannot schedule (" + tokenToSend + "): " + ( toBeSent != null ? toBeSent : "<empty>" ), ex );
-            }
-            
-            theListeners.fireEvent( toBeSent, new MessageEndpointIsDeadException() );
+            boolean sent = false;
+            try {
+                sendMessage( tokenToSend, toBeSent );
+                sent = true;
 
-            if( theFutureTask != null ) {
-                // this is the recover future, we don't want to recover if message send failed, but resend
-                if( logLow.isDebugEnabled() ) {
-                    logLow.debug( this + " canceling future (RejectedExecutionException)" );
+            } finally {
+                synchronized( this ) {
+                    --theSendsInProgress;
+                    if( sent ) {
+                        theResendFailures = 0;
+                    }
                 }
-                theFutureTask.cancel();
             }
-        }
-        
-        try {
-            // do not reschedule the future, we stop here
-
-            sendMessage( tokenToSend, toBeSent );
 
             if( logHigh.isDebugEnabled() ) {
                 logHigh.debug( this + " sent message (" + tokenToSend + ") successfully: " + ( toBeSent != null ? toBeSent : "<empty>" ));
             }
 
-            if( toBeSent != null ) {
-                synchronized( theMessagesToBeSent ) {
-                    theMessagesToBeSent.removeAll( toBeSent );
-                }
-            }
-
             theListeners.fireEvent( tokenToSend, TOKEN_SENT );
+            theListeners.fireEvent( toBeSent != null ? toBeSent : Collections.<T>emptyList(), batchEvent );
             if( toBeSent != null ) {
                 for( T current : toBeSent ) {
                     theListeners.fireEvent( current, MESSAGE_SENT );
@@ -223,16 +519,18 @@ public abstract class PingPongMessageEndpoint<T>
                 logHigh.info( this + " Endpoint is dead (" + tokenToSend + "): " + ( toBeSent != null ? toBeSent : "<empty>" ), ex );
             }
             
-            theListeners.fireEvent( toBeSent, ex );
-
-            if( theFutureTask != null ) {
-                // this is the recover future, we don't want to recover if message send failed, but resend
-                if( logLow.isDebugEnabled() ) {
-                    logLow.debug( this + " canceling future (MessageEndpointIsDeadException)" );
+            synchronized( this ) {
+                if( theFutureTask != null ) {
+                    // this is the recover future, we don't want to recover if message send failed, but resend
+                    if( logLow.isDebugEnabled() ) {
+                        logLow.debug( this + " canceling future (MessageEndpointIsDeadException)" );
+                    }
+                    theFutureTask.cancel();
                 }
-                theFutureTask.cancel();
             }
             
+            theListeners.fireEvent( toBeSent, ex );
+
             // do not reschedule the future, we stop here
             
         } catch( MessageSendException ex ) {
@@ -241,16 +539,18 @@ public abstract class PingPongMessageEndpoint<T>
                 logHigh.info( this + " failed to send message (" + tokenToSend + "): " + ( toBeSent != null ? toBeSent : "<empty>" ), ex );
             }
 
-            if( theFutureTask != null ) {
-                // this is the recover future, we don't want to recover if message send failed, but resend
-                if( logLow.isDebugEnabled() ) {
-                    logLow.debug( this + " canceling future (MessageSendException)" );
+            synchronized( this ) {
+                if( theFutureTask != null ) {
+                    // this is the recover future, we don't want to recover if message send failed, but resend
+                    if( logLow.isDebugEnabled() ) {
+                        logLow.debug( this + " canceling future (MessageSendException)" );
+                    }
+                    theFutureTask.cancel();
                 }
-                theFutureTask.cancel();
-            }
 
-            schedule( new ResendTask( this ), theDeltaResend );
-                // schedule a resend event prior to firing events to listeners
+                schedule( new ResendTask( this ), determineDeltaResend() );
+                    // schedule a resend event prior to firing events to listeners
+            }
 
             if( toBeSent != null ) { // can happen when endpoint is killed off
                 for( T t : toBeSent ) {
@@ -264,6 +564,191 @@ public abstract class PingPongMessageEndpoint<T>
         }
     }
 
+    /**
+     * Invoked when the timer triggers in windowed mode. The batches to be sent are determined
+     * while holding the monitor, but the monitor is not held while sending, so the partner
+     * may send to us at the same time.
+     *
+     * @param task the TimedTask that invokes this handler
+     */
+    protected void doWindowedAction(
+            TimedTask task )
+    {
+        ArrayList<Long>    tokensToSend   = new ArrayList<Long>();
+        ArrayList<List<T>> contentsToSend = new ArrayList<List<T>>();
+        long               ack;
+        int                removed        = 0;
+        int                resent;
+        EventType<T>       resendEvent    = ( task instanceof ResendTask || theResendRequired ) ? BATCH_RESENT : BATCH_RECOVERED;
+
+        synchronized( this ) {
+            ack = Math.max( theLastReceivedToken, 0L );
+
+            if( task instanceof RecoverTask || task instanceof ResendTask || theResendRequired ) {
+                // selectively resend those batches that the partner has not acknowledged yet
+                for( Map.Entry<Long,List<T>> current : theUnacknowledged.entrySet() ) {
+                    tokensToSend.add( current.getKey() );
+                    contentsToSend.add( current.getValue() );
+                }
+                theResendRequired = false;
+                theWindowedSendTimes.clear(); // Karn: the responses cannot be attributed to either send
+
+                if( task instanceof RecoverTask && !tokensToSend.isEmpty() && theMinTimeout > 0 && theRecoverBackoff < MAX_BACKOFF ) {
+                    ++theRecoverBackoff;
+                }
+            }
+            resent = tokensToSend.size();
+
+            if( theUnacknowledged.size() < theWindowSize ) {
+                List<T> batch = drainMessagesToBeSent();
+                if( batch != null ) {
+                    removed = removeMessagesSent( batch ); // from now on, theUnacknowledged holds on to them
+
+                    long tokenToSend = Math.max( theLastSentToken, 0L ) + 1;
+
+                    theUnacknowledged.put( tokenToSend, batch );
+                    theLastSentToken    = tokenToSend;
+                    theMessagesSentLast = batch;
+
+                    tokensToSend.add( tokenToSend );
+                    contentsToSend.add( batch );
+
+                    if( theMinTimeout > 0 ) {
+                        theWindowedSendTimes.put( tokenToSend, System.nanoTime() );
+                    }
+                }
+            }
+        }
+        messagesRemoved( removed );
+
+        boolean idle = tokensToSend.isEmpty();
+        if( idle ) {
+            // nothing to send: acknowledge, and let the partner know we are still here
+            tokensToSend.add( theLastSentToken );
+            contentsToSend.add( null );
+        } else {
+            trafficSeen();
+            startRecoverTimer( false );
+                // schedule a recover event prior to sending and firing events to listeners:
+                // if the sending takes a long time, we don't want to block
+        }
+
+        for( int i=0 ; i<tokensToSend.size() ; ++i ) {
+            long    tokenToSend = tokensToSend.get( i );
+            List<T> toBeSent    = contentsToSend.get( i );
+
+            try {
+                sendWindowedMessage( tokenToSend, ack, toBeSent );
+
+                if( toBeSent != null ) {
+                    if( logHigh.isDebugEnabled() ) {
+                        logHigh.debug( this + " sent message (" + tokenToSend + ", ack " + ack + ") successfully: " + toBeSent );
+                    }
+                    theListeners.fireEvent( tokenToSend, TOKEN_SENT );
+                    theListeners.fireEvent( toBeSent, i < resent ? resendEvent : BATCH_SENT );
+                    for( T current : toBeSent ) {
+                        theListeners.fireEvent( current, MESSAGE_SENT );
+                    }
+                } else {
+                    theListeners.fireEvent( Collections.<T>emptyList(), BATCH_SENT );
+                }
+
+            } catch( MessageEndpointIsDeadException ex ) {
+                if( logHigh.isInfoEnabled() ) {
+                    logHigh.info( this + " Endpoint is dead (" + tokenToSend + "): " + ( toBeSent != null ? toBeSent : "<empty>" ), ex );
+                }
+                stopCommunicating();
+
+                theListeners.fireEvent( toBeSent, ex );
+                return; // do not reschedule, we stop here
+
+            } catch( MessageSendException ex ) {
+                if( logHigh.isInfoEnabled() ) {
+                    logHigh.info( this + " failed to send message (" + tokenToSend + "): " + ( toBeSent != null ? toBeSent : "<empty>" ), ex );
+                }
+                synchronized( this ) {
+                    theResendRequired = true;
+                }
+                TimedTask t = theFutureTask;
+                if( t != null ) {
+                    t.cancel();
+                }
+                schedule( new ResendTask( this ), determineDeltaResend() );
+
+                if( toBeSent != null ) {
+                    for( T current : toBeSent ) {
+                        theListeners.fireEvent( current, MESSAGE_SENDING_FAILED );
+                    }
+                }
+                return; // the remaining batches will be sent with the resend
+
+            } catch( Throwable t ) {
+                // catch-all
+                logHigh.error( this, t );
+            }
+        }
+        if( theResendFailures > 0 ) {
+            synchronized( this ) {
+                theResendFailures = 0;
+            }
+        }
+
+        if( hasToken() && hasMessagesToBeSent() ) {
+            respondWithin( theDeltaRespondWithMessage );
+        } else {
+            if( idle ) {
+                idleRound();
+            }
+            respondWithin( determineDeltaRespondNoMessage() );
+        }
+    }
+
+    /**
+     * Make sure that a RespondTask will run no later than the specified delay. If one has been scheduled
+     * already that will run sooner, or if a resend is pending, this does nothing.
+     *
+     * @param delta the maximum number of milliseconds until the RespondTask should run
+     */
+    protected synchronized void respondWithin(
+            long delta )
+    {
+        TimedTask t = theFutureTask;
+        if( t != null && !t.isCancelled() ) {
+            if( t instanceof ResendTask ) {
+                return;
+            }
+            ScheduledFuture<?> f = t.getFuture();
+            if( f != null && f.getDelay( TimeUnit.MILLISECONDS ) <= delta ) {
+                return;
+            }
+            t.cancel();
+        }
+        schedule( new RespondTask( this ), delta );
+    }
+
+    /**
+     * Start the recover timer in windowed mode.
+     *
+     * @param restart if true, restart the timer even if it is running already
+     */
+    protected synchronized void startRecoverTimer(
+            boolean restart )
+    {
+        TimedTask t = theRecoverTask;
+        if( t != null && !t.isCancelled() ) {
+            if( !restart ) {
+                return;
+            }
+            t.cancel();
+        }
+        TimedTask recover = new RecoverTask( this );
+        if( scheduleIndependently( recover, determineDeltaRecover() )) {
+            theRecoverTask = recover;
+        } else {
+            theRecoverTask = null;
+        }
+    }
+
     /**
      * Implemented by subclasses, this performs the actual message send.
      *
@@ -292,7 +777,8 @@ public abstract class PingPongMessageEndpoint<T>
             MessageEndpointIsDeadException,
             MessageSendException
     {
-        boolean fireEvents = false;
+        boolean fireEvents   = false;
+        long    acknowledged = -1L;
 
         try {
             if( content != null && !content.isEmpty() && logHigh.isInfoEnabled() ) {
@@ -302,19 +788,34 @@ public abstract class PingPongMessageEndpoint<T>
                 logHigh.traceMethodCallEntry( this, "incomingMessage", token, content );
             }
 
-            // ignore if we received this one already
-            if( theLastReceivedToken != token ) {
-                if( theFutureTask != null ) {
-                    if( logLow.isDebugEnabled() ) {
-                        logLow.debug( this + " canceling future (regular response required)" );
+            synchronized( this ) {
+                // ignore if we received this one already
+                if( theLastReceivedToken != token ) {
+                    if( theFutureTask != null ) {
+                        if( logLow.isDebugEnabled() ) {
+                            logLow.debug( this + " canceling future (regular response required)" );
+                        }
+                        theFutureTask.cancel();
                     }
-                    theFutureTask.cancel();
-                }
-                theLastReceivedToken = token;
-                fireEvents = true;
+                    if( theLastSentToken > 0 && token == theLastSentToken + 1 ) {
+                        acknowledged = theLastSentToken;
 
-            } else {
-                logLow.warn( this + " ignoring duplicate incoming message(" + token + "): ", content, this );
+                        if( theMinTimeout > 0 ) {
+                            if( theLastSentIsTimeable ) {
+                                recordRoundTripTime( theLastSentTime );
+                            }
+                            theRecoverBackoff = 0;
+                        }
+                    }
+                    if( content != null && !content.isEmpty() ) {
+                        theIdleRounds = 0;
+                    }
+                    theLastReceivedToken = token;
+                    fireEvents = true;
+
+                } else {
+                    logLow.warn( this + " ignoring duplicate incoming message(" + token + "): ", content, this );
+                }
             }
 
         } catch( Throwable t ) {
@@ -322,16 +823,25 @@ public abstract class PingPongMessageEndpoint<T>
 
         } finally {
             boolean slow;
-            if( !theMessagesToBeSent.isEmpty() ) {
-                schedule( new RespondTask( this ), theDeltaRespondWithMessage );
-                slow = false;
+            synchronized( this ) {
+                if( hasMessagesToBeSent() ) {
+                    schedule( new RespondTask( this ), theDeltaRespondWithMessage );
+                    slow = false;
 
-            } else {
-                schedule( new RespondTask( this ), theDeltaRespondNoMessage );
-                slow = true;
+                } else {
+                    if( fireEvents && ( content == null || content.isEmpty() )) {
+                        idleRound();
+                    }
+                    schedule( new RespondTask( this ), determineDeltaRespondNoMessage() );
+                    slow = true;
+                }
             }
 
+            // do not hold the monitor while notifying listeners
             if( fireEvents ) {
+                if( acknowledged > 0 ) {
+                    theListeners.fireEvent( acknowledged, TOKEN_ACKNOWLEDGED );
+                }
                 theListeners.fireEvent( token, TOKEN_RECEIVED );
                 if( content != null ) {
                     if( content.isEmpty() ) {
@@ -342,13 +852,150 @@ public abstract class PingPongMessageEndpoint<T>
                 }
             }
 
-            if( slow && !theMessagesToBeSent.isEmpty() ) {
+            if( slow && hasMessagesToBeSent() ) {
                 // if our listeners have entered messages into the queue during callback ("response")
-                TimedTask t = theFutureTask;
-                if( t != null ) {
-                    t.cancel();
+                synchronized( this ) {
+                    TimedTask t = theFutureTask;
+                    if( t instanceof RespondTask ) {
+                        t.cancel();
+                        schedule( new RespondTask( this ), theDeltaRespondWithMessage );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Implemented by subclasses that support windowed mode, this performs the actual message send.
+     * This default implementation throws UnsupportedOperationException; it is never invoked
+     * unless {@link #supportsWindowedMode supportsWindowedMode} returns true.
+     *
+     * @param token the number of the token batch; if content is null, this is the last token batch sent
+     * @param ack the cumulative acknowledgement: all of the partner's token batches up to and including this one have been received
+     * @param content the payload, if any
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    protected void sendWindowedMessage(
+            long    token,
+            long    ack,
+            List<T> content )
+        throws
+            MessageSendException
+    {
+        throw new UnsupportedOperationException( "Windowed mode not supported by " + getClass().getName() );
+    }
+
+    /**
+     * Invoked by subclasses to provide the content of a message received in windowed mode.
+     * Token batches that arrive out of order are held back until the gap has been filled,
+     * so listeners see the messages in the order in which they were sent. Token batches
+     * further ahead than the window size are dropped, so a misbehaving partner cannot make
+     * us buffer without limit.
+     *
+     * @param token the number of the token batch
+     * @param ack the cumulative acknowledgement sent by the partner
+     * @param content the content of a received message, if any
+     * @throws MessageEndpointIsDeadException thrown if the MessageEndpoint is dead
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    protected void incomingWindowedMessage(
+            long    token,
+            long    ack,
+            List<T> content )
+        throws
+            MessageEndpointIsDeadException,
+            MessageSendException
+    {
+        if( logHigh.isTraceEnabled() ) {
+            logHigh.traceMethodCallEntry( this, "incomingWindowedMessage", token, ack, content );
+        }
+
+        ArrayList<Long>    receivedTokens   = new ArrayList<Long>();
+        ArrayList<List<T>> receivedContents = new ArrayList<List<T>>();
+        boolean            ackProgress      = false;
+        boolean            moreToAck        = false;
+
+        synchronized( this ) {
+            if( ack > theLastAcknowledgedToken ) {
+                if( theMinTimeout > 0 ) {
+                    Map.Entry<Long,Long> timed = theWindowedSendTimes.floorEntry( ack );
+                    if( timed != null ) {
+                        recordRoundTripTime( timed.getValue() );
+                    }
+                    theWindowedSendTimes.headMap( ack, true ).clear();
+                    theRecoverBackoff = 0;
+                }
+                theUnacknowledged.headMap( ack, true ).clear();
+                theLastAcknowledgedToken = ack;
+                ackProgress = true;
+                moreToAck   = !theUnacknowledged.isEmpty();
+            }
+
+            if( content != null ) {
+                long expected = Math.max( theLastReceivedToken, 0L ) + 1;
+
+                if( token == expected ) {
+                    theIdleRounds = 0;
+                    receivedTokens.add( token );
+                    receivedContents.add( content );
+                    theLastReceivedToken = token;
+
+                    List<T> next;
+                    while( ( next = theReceivedOutOfOrder.remove( theLastReceivedToken + 1 )) != null ) {
+                        ++theLastReceivedToken;
+                        receivedTokens.add( theLastReceivedToken );
+                        receivedContents.add( next );
+                    }
+
+                } else if( token - expected >= theWindowSize ) {
+                    logLow.warn( this + " dropping incoming message(" + token + ") beyond the window, expecting " + expected );
+
+                } else if( token > expected ) {
+                    if( logLow.isDebugEnabled() ) {
+                        logLow.debug( this + " holding back out-of-order message(" + token + "), expecting " + expected );
+                    }
+                    theReceivedOutOfOrder.put( token, content );
+
+                } else {
+                    logLow.warn( this + " ignoring duplicate incoming message(" + token + "): ", content, this );
                 }
-                schedule( new RespondTask( this ), theDeltaRespondWithMessage );
+            }
+        }
+
+        if( ackProgress ) {
+            theListeners.fireEvent( ack, TOKEN_ACKNOWLEDGED );
+
+            TimedTask recover = theRecoverTask;
+            if( moreToAck ) {
+                startRecoverTimer( true );
+            } else if( recover != null ) {
+                recover.cancel();
+            }
+        }
+
+        if( content != null ) {
+            // acknowledge quickly, even if this was a duplicate: our previous acknowledgement may have been lost
+            respondWithin( theDeltaRespondWithMessage );
+
+        } else if( ackProgress && hasMessagesToBeSent() ) {
+            // window may have opened
+            respondWithin( theDeltaRespondWithMessage );
+
+        } else if( theFutureTask == null ) {
+            respondWithin( determineDeltaRespondNoMessage() );
+        }
+
+        for( int i=0 ; i<receivedTokens.size() ; ++i ) {
+            List<T> current = receivedContents.get( i );
+
+            if( logHigh.isInfoEnabled() ) {
+                logHigh.info( this, "incomingWindowedMessage", receivedTokens.get( i ), current );
+            }
+            theListeners.fireEvent( receivedTokens.get( i ), TOKEN_RECEIVED );
+            if( current.isEmpty() ) {
+                logHigh.error( this, "Content should not be empty", receivedTokens.get( i ) );
+            } else {
+                theListeners.fireEvent( current, MESSAGE_RECEIVED );
             }
         }
     }
@@ -363,7 +1010,10 @@ public abstract class PingPongMessageEndpoint<T>
             T msg )
     {
         enqueueMessageForSend( msg );
-        if( !hasToken() ) {
+        if( theWindowSize > 0 ) {
+            respondWithin( theDeltaRespondWithMessage );
+
+        } else if( !hasToken() ) {
             sendGrabTokenMessage();
         }
     }
@@ -395,12 +1045,18 @@ public abstract class PingPongMessageEndpoint<T>
 
     /**
      * Determine whether this PingPongMessageEndpoint currently has the token, or
-     * whether it is waiting for the token.
+     * whether it is waiting for the token. In windowed mode, this PingPongMessageEndpoint
+     * has the token if fewer than the window size token batches are unacknowledged.
      *
      * @return true if the PingPongMessageEndpoint currently has the token
      */
     public boolean hasToken()
     {
+        if( theWindowSize > 0 ) {
+            synchronized( this ) {
+                return theUnacknowledged.size() < theWindowSize;
+            }
+        }
         TimedTask t = theFutureTask;
         if( t == null ) {
             return true;
@@ -424,14 +1080,32 @@ public abstract class PingPongMessageEndpoint<T>
                     "theName",
                     "theLastReceivedToken",
                     "theLastSentToken",
+                    "theWindowSize",
+                    "theLastAcknowledgedToken",
+                    "theUnacknowledged",
                     "theFutureTask",
+                    "theRecoverTask",
+                    "theMinTimeout",
+                    "theSmoothedRoundTripTime",
+                    "theRoundTripTimeVariation",
+                    "theRecoverBackoff",
+                    "theIdleRounds",
                     "theMessagesToBeSent"
                 },
                 new Object[] {
                     theName,
                     theLastReceivedToken,
                     theLastSentToken,
+                    theWindowSize,
+                    theLastAcknowledgedToken,
+                    theUnacknowledged.keySet(),
                     theFutureTask,
+                    theRecoverTask,
+                    theMinTimeout,
+                    theSmoothedRoundTripTime,
+                    theRoundTripTimeVariation,
+                    theRecoverBackoff,
+                    theIdleRounds,
                     theMessagesToBeSent
                 });
     }
@@ -463,6 +1137,11 @@ public abstract class PingPongMessageEndpoint<T>
      * recover.
      */
     protected List<T> theMessagesSentLast;
+
+    /**
+     * The number of sends in the classic ping-pong mode that have not returned yet.
+     */
+    protected int theSendsInProgress;
     
     /**
      * The last token that was sent, in order to be able to resend it upon recover.
@@ -470,10 +1149,104 @@ public abstract class PingPongMessageEndpoint<T>
     protected long theLastSentToken;
     
     /**
-     * The last token that was received.
+     * The last token that was received. In windowed mode, this is the last token batch
+     * received in sequence.
      */
     protected long theLastReceivedToken;
 
+    /**
+     * The maximum number of unacknowledged token batches in windowed mode. 0 indicates
+     * the classic ping-pong protocol.
+     */
+    protected int theWindowSize = 0;
+
+    /**
+     * In windowed mode, the token batches that have been sent but not been acknowledged yet, keyed by token.
+     */
+    protected final TreeMap<Long,List<T>> theUnacknowledged = new TreeMap<Long,List<T>>();
+
+    /**
+     * In windowed mode, the token batches that have been received ahead of a missing one, keyed by token.
+     */
+    protected final TreeMap<Long,List<T>> theReceivedOutOfOrder = new TreeMap<Long,List<T>>();
+
+    /**
+     * In windowed mode, the highest token acknowledged by the partner.
+     */
+    protected long theLastAcknowledgedToken = 0L;
+
+    /**
+     * In windowed mode, the recover task runs independently of theFutureTask.
+     */
+    protected TimedTask theRecoverTask;
+
+    /**
+     * In windowed mode, set if sending failed and the unacknowledged token batches need to be resent.
+     */
+    protected boolean theResendRequired;
+
+    /**
+     * With adaptive timing, the lower bound for the recover and resend delays. 0 disables adaptive timing.
+     */
+    protected long theMinTimeout = 0L;
+
+    /**
+     * With adaptive timing, the upper bound for the delay until we return the token if no message is in the queue.
+     */
+    protected long theMaxDeltaRespondNoMessage;
+
+    /**
+     * With adaptive timing, the smoothed round-trip time in milliseconds, or -1 if not measured yet.
+     */
+    protected double theSmoothedRoundTripTime = -1.;
+
+    /**
+     * With adaptive timing, the round-trip time variation in milliseconds.
+     */
+    protected double theRoundTripTimeVariation;
+
+    /**
+     * With adaptive timing, the number of times the recover delay has been doubled since the last acknowledgement.
+     */
+    protected int theRecoverBackoff;
+
+    /**
+     * With adaptive timing, the number of times the resend delay has been doubled since the last successful send.
+     */
+    protected int theResendFailures;
+
+    /**
+     * With adaptive timing, the number of idle rounds since messages were last sent or received.
+     */
+    protected int theIdleRounds;
+
+    /**
+     * In the classic mode with adaptive timing, the time the last token was sent, in System.nanoTime() format.
+     */
+    protected long theLastSentTime;
+
+    /**
+     * In the classic mode with adaptive timing, true if the last token's round-trip time can be measured:
+     * it carried messages and has not been retransmitted.
+     */
+    protected boolean theLastSentIsTimeable;
+
+    /**
+     * In windowed mode with adaptive timing, the time each unacknowledged token batch was sent, in
+     * System.nanoTime() format, keyed by token. Retransmitted token batches are not timed.
+     */
+    protected final TreeMap<Long,Long> theWindowedSendTimes = new TreeMap<Long,Long>();
+
+    /**
+     * The maximum number of times a delay is doubled.
+     */
+    protected static final int MAX_BACKOFF = 6;
+
+    /**
+     * The maximum number of idle rounds counted.
+     */
+    protected static final int MAX_IDLE_ROUNDS = 16;
+
     /**
      * Indicates that a token was sent.
      */
@@ -510,6 +1283,24 @@ public abstract class PingPongMessageEndpoint<T>
             }
     };
     
+    /**
+     * Indicates that the partner acknowledged receipt of a token.
+     */
+    protected final EventType<T> TOKEN_ACKNOWLEDGED = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof PingPongMessageEndpointInstrumentationListener ) {
+                    PingPongMessageEndpointInstrumentationListener<T> realListener = (PingPongMessageEndpointInstrumentationListener<T>) listener;
+                    PingPongMessageEndpoint<T>                        realSender   = (PingPongMessageEndpoint<T>) sender;
+                    realListener.tokenAcknowledged( realSender, (Long) event );
+                }
+            }
+    };
+
     /**
      * The recover task.
      */
@@ -0,0 +1,42 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong;
+
+import org.infogrid.comm.MessageEndpointInstrumentationListener;
+
+/**
+ * Adds more detail to MessageEndpointInstrumentationListener if it is known that
+ * the ping-pong protocol is being used.
+ *
+ * @param <T> the message type
+ */
+public interface PingPongMessageEndpointInstrumentationListener<T>
+        extends
+            PingPongMessageEndpointListener<T>,
+            MessageEndpointInstrumentationListener<T>
+{
+    /**
+     * Called when the partner has acknowledged receipt of a token. In the classic ping-pong
+     * mode, the partner does so by returning the token; in windowed mode, acknowledgements
+     * are cumulative and cover all earlier token batches, too.
+     *
+     * @param endpoint the PingPongMessageEndpoint that sent this event
+     * @param token the acknowledged token
+     */
+    public void tokenAcknowledged(
+            PingPongMessageEndpoint<T> endpoint,
+            long                       token );
+}
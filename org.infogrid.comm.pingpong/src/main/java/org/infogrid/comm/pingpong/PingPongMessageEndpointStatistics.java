@@ -0,0 +1,226 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import org.infogrid.comm.MessageEndpointStatistics;
+import org.infogrid.util.Histogram;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * Instruments a PingPongMessageEndpoint. In addition to what MessageEndpointStatistics records,
+ * this records the round-trip time of tokens: the time from sending a token until the partner
+ * acknowledges it. This includes the time the partner holds on to the token, so it shows how
+ * the respond delays play out in practice. Following Karn's algorithm, tokens that had to be
+ * sent more than once are not measured, as it is unknown which send was acknowledged.
+ *
+ * @param <T> the message type
+ */
+public class PingPongMessageEndpointStatistics<T>
+        extends
+            MessageEndpointStatistics<T>
+        implements
+            PingPongMessageEndpointInstrumentationListener<T>
+{
+    /**
+     * Factory method.
+     *
+     * @param <T> the message type
+     * @return the created PingPongMessageEndpointStatistics
+     */
+    public static <T> PingPongMessageEndpointStatistics<T> create()
+    {
+        return new PingPongMessageEndpointStatistics<T>( DEFAULT_MAX_TRACKED_AGE );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param <T> the message type
+     * @param maxTrackedAge the time, in milliseconds, after which a message that has not been sent is forgotten
+     * @return the created PingPongMessageEndpointStatistics
+     */
+    public static <T> PingPongMessageEndpointStatistics<T> create(
+            long maxTrackedAge )
+    {
+        return new PingPongMessageEndpointStatistics<T>( maxTrackedAge );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param maxTrackedAge the time, in milliseconds, after which a message that has not been sent is forgotten
+     */
+    protected PingPongMessageEndpointStatistics(
+            long maxTrackedAge )
+    {
+        super( maxTrackedAge );
+    }
+
+    /**
+     * Called when the token has been sent.
+     *
+     * @param endpoint the PingPongMessageEndpoint that sent this event
+     * @param token the sent token
+     */
+    public void tokenSent(
+            PingPongMessageEndpoint<T> endpoint,
+            long                       token )
+    {
+        long now = System.nanoTime();
+
+        synchronized( theSendTimes ) {
+            TreeMap<Long,Long> times = theSendTimes.get( endpoint );
+            if( times == null ) {
+                times = new TreeMap<Long,Long>();
+                theSendTimes.put( endpoint, times );
+            }
+            if( times.containsKey( token )) {
+                times.put( token, AMBIGUOUS );
+            } else {
+                times.put( token, now );
+                if( times.size() > MAX_TRACKED_TOKENS ) {
+                    times.pollFirstEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the token has been received.
+     *
+     * @param endpoint the PingPongMessageEndpoint that sent this event
+     * @param token the received token
+     */
+    public void tokenReceived(
+            PingPongMessageEndpoint<T> endpoint,
+            long                       token )
+    {
+        // acknowledgements are reported separately
+    }
+
+    /**
+     * Called when the partner has acknowledged receipt of a token.
+     *
+     * @param endpoint the PingPongMessageEndpoint that sent this event
+     * @param token the acknowledged token
+     */
+    public void tokenAcknowledged(
+            PingPongMessageEndpoint<T> endpoint,
+            long                       token )
+    {
+        long now = System.nanoTime();
+
+        synchronized( theSendTimes ) {
+            TreeMap<Long,Long> times = theSendTimes.get( endpoint );
+            if( times == null ) {
+                return;
+            }
+            Map<Long,Long> acknowledged = times.headMap( token, true );
+            for( Long sent : acknowledged.values() ) {
+                if( sent != AMBIGUOUS ) {
+                    theRoundTripTime.record( TimeUnit.NANOSECONDS.toMicros( now - sent ));
+                }
+            }
+            acknowledged.clear();
+        }
+    }
+
+    /**
+     * Obtain the distribution of the round-trip time of tokens, in microseconds.
+     *
+     * @return the Histogram
+     */
+    public Histogram getRoundTripTime()
+    {
+        return theRoundTripTime;
+    }
+
+    /**
+     * Reset all values. This is not atomic with respect to concurrent events.
+     */
+    @Override
+    public void reset()
+    {
+        super.reset();
+        theRoundTripTime.reset();
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    @Override
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "enqueued",
+                    "sent",
+                    "failed",
+                    "received",
+                    "resends",
+                    "recovers",
+                    "disablingErrors",
+                    "untracked",
+                    "enqueueToSent",
+                    "batchSize",
+                    "queueDepth",
+                    "roundTripTime"
+                },
+                new Object[] {
+                    getEnqueuedCount(),
+                    getSentCount(),
+                    getFailedCount(),
+                    getReceivedCount(),
+                    getResendCount(),
+                    getRecoverCount(),
+                    getDisablingErrorCount(),
+                    getUntrackedCount(),
+                    theEnqueueToSent,
+                    theBatchSize,
+                    theQueueDepth,
+                    theRoundTripTime
+                } );
+    }
+
+    /**
+     * The round-trip time of tokens, in microseconds.
+     */
+    protected final Histogram theRoundTripTime = Histogram.create( "usec" );
+
+    /**
+     * Per endpoint, the time at which the tokens that have not been acknowledged yet were sent,
+     * in System.nanoTime() format, keyed by token.
+     */
+    protected final WeakHashMap<PingPongMessageEndpoint<T>,TreeMap<Long,Long>> theSendTimes
+            = new WeakHashMap<PingPongMessageEndpoint<T>,TreeMap<Long,Long>>();
+
+    /**
+     * Marks a token that has been sent more than once.
+     */
+    protected static final long AMBIGUOUS = Long.MIN_VALUE;
+
+    /**
+     * The maximum number of unacknowledged tokens tracked per endpoint.
+     */
+    protected static final int MAX_TRACKED_TOKENS = 1024;
+}
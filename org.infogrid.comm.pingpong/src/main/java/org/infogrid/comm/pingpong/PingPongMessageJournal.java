@@ -0,0 +1,119 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong;
+
+import java.io.File;
+import java.io.IOException;
+import org.infogrid.comm.MessageCodec;
+import org.infogrid.comm.MessageJournal;
+
+/**
+ * A MessageJournal that also records the tokens sent by a PingPongMessageEndpoint, so
+ * that the endpoint can be restored with its last sent and received tokens, and the
+ * messages sent with the last token. This assumes the classic ping-pong protocol.
+ *
+ * @param <T> the message type
+ */
+public class PingPongMessageJournal<T>
+        extends
+            MessageJournal<T>
+        implements
+            PingPongMessageEndpointListener<T>
+{
+    /**
+     * Factory method. Opens the journal in this directory, recovering its content if it
+     * exists, or creates a new journal.
+     *
+     * @param directory the directory holding the segment files
+     * @param codec the MessageCodec to encode messages with
+     * @return the opened PingPongMessageJournal
+     * @throws IOException thrown if the journal could not be opened
+     * @param <T> the message type
+     */
+    public static <T> PingPongMessageJournal<T> open(
+            File            directory,
+            MessageCodec<T> codec )
+        throws
+            IOException
+    {
+        return open( directory, codec, DEFAULT_SEGMENT_SIZE );
+    }
+
+    /**
+     * Factory method. Opens the journal in this directory, recovering its content if it
+     * exists, or creates a new journal.
+     *
+     * @param directory the directory holding the segment files
+     * @param codec the MessageCodec to encode messages with
+     * @param segmentSize the size of a segment file, in bytes
+     * @return the opened PingPongMessageJournal
+     * @throws IOException thrown if the journal could not be opened
+     * @param <T> the message type
+     */
+    public static <T> PingPongMessageJournal<T> open(
+            File            directory,
+            MessageCodec<T> codec,
+            int             segmentSize )
+        throws
+            IOException
+    {
+        PingPongMessageJournal<T> ret = new PingPongMessageJournal<T>( directory, codec, segmentSize );
+        ret.recover();
+        return ret;
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param directory the directory holding the segment files
+     * @param codec the MessageCodec to encode messages with
+     * @param segmentSize the size of a segment file, in bytes
+     */
+    protected PingPongMessageJournal(
+            File            directory,
+            MessageCodec<T> codec,
+            int             segmentSize )
+    {
+        super( directory, codec, segmentSize );
+    }
+
+    /**
+     * Called when the token has been received.
+     *
+     * @param endpoint the PingPongMessageEndpoint that sent this event
+     * @param token the received token
+     */
+    public void tokenReceived(
+            PingPongMessageEndpoint<T> endpoint,
+            long                       token )
+    {
+        // no op, recorded with the next token sent
+    }
+
+    /**
+     * Called when the token has been sent.
+     *
+     * @param endpoint the PingPongMessageEndpoint that sent this event
+     * @param token the sent token
+     */
+    public void tokenSent(
+            PingPongMessageEndpoint<T> endpoint,
+            long                       token )
+    {
+        // token sent events of consecutive tokens may be delivered out of order
+        recordToken( Math.max( token, getLastSentToken() ), endpoint.getLastReceivedToken() );
+    }
+}
@@ -18,9 +18,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.ConcurrentMessageQueue;
 import org.infogrid.comm.MessageEndpointIsDeadException;
 import org.infogrid.comm.MessageSendException;
 import org.infogrid.comm.pingpong.PingPongMessageEndpoint;
+import org.infogrid.comm.pingpong.PingPongMessageJournal;
 import org.infogrid.util.ResourceHelper;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
@@ -164,6 +166,51 @@ public class MPingPongMessageEndpoint<T>
         return ret;
     }
 
+    /**
+     * Factory method that restores a MPingPongMessageEndpoint from a journal. The journal's
+     * queue becomes the outgoing message queue, and the journal listens to the created
+     * MPingPongMessageEndpoint, so it can be restored again later.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param randomVariation the random component to add to the various times
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @param journal the journal to restore from
+     * @return the created MPingPongMessageEndpoint
+     * @param <T> the message type
+     */
+    public static <T> MPingPongMessageEndpoint<T> restore(
+            String                    name,
+            long                      deltaRespondNoMessage,
+            long                      deltaRespondWithMessage,
+            long                      deltaResend,
+            long                      deltaRecover,
+            double                    randomVariation,
+            ScheduledExecutorService  exec,
+            PingPongMessageJournal<T> journal )
+    {
+        MPingPongMessageEndpoint<T> ret = restore(
+                name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                randomVariation,
+                exec,
+                journal.getLastSentToken(),
+                journal.getLastReceivedToken(),
+                journal.getMessagesSentLast(),
+                journal.getMessagesToBeSent() );
+
+        ret.addDirectMessageEndpointListener( journal );
+
+        return ret;
+    }
+
     /**
      * Constructor.
      *
@@ -195,7 +242,7 @@ public class MPingPongMessageEndpoint<T>
                 -1,
                 -1,
                 null,
-                new ArrayList<T>() );
+                ConcurrentMessageQueue.<T>create() );
     }
 
     /**
@@ -284,20 +331,43 @@ public class MPingPongMessageEndpoint<T>
         if( isGracefullyDead ) {
             throw new IllegalStateException( this + " is dead" );
         }
-        if( log.isTraceEnabled() ) {
-            log.traceMethodCallEntry( this, "enqueueMessageForSend", msg );
+        super.enqueueMessageForSend( msg );
+    }
+
+    /**
+     * Enqueue a message for which space in the outgoing queue has been obtained already,
+     * and make sure it is sent with the next ping or pong.
+     *
+     * @param msg the Message to send.
+     */
+    @Override
+    protected void enqueueAdmittedMessage(
+            T msg )
+    {
+        if( isGracefullyDead ) {
+            throw new IllegalStateException( this + " is dead" );
         }
 
-        synchronized( theMessagesToBeSent ) {
-            theMessagesToBeSent.add( msg );
+        theListeners.fireEvent( msg, MESSAGE_ENQUEUING );
+
+        addMessageToBeSent( msg );
 
+        if( theWindowSize > 0 ) {
             if( hasToken() ) {
-                // if our listeners have entered messages into the queue during callback ("response")
-                TimedTask t = theFutureTask;
-                if( t != null ) {
-                    t.cancel();
+                // do not postpone a response that has been scheduled already
+                respondWithin( theDeltaRespondWithMessage );
+            }
+
+        } else {
+            synchronized( this ) {
+                if( hasToken() ) {
+                    // if our listeners have entered messages into the queue during callback ("response")
+                    TimedTask t = theFutureTask;
+                    if( t != null ) {
+                        t.cancel();
+                    }
+                    schedule( new RespondTask( this ), theDeltaRespondWithMessage );
                 }
-                schedule( new RespondTask( this ), theDeltaRespondWithMessage );
             }
         }
 
@@ -347,6 +417,78 @@ public class MPingPongMessageEndpoint<T>
         }
     }
 
+    /**
+     * Determine whether this PingPongMessageEndpoint supports windowed mode.
+     *
+     * @return always true
+     */
+    @Override
+    protected boolean supportsWindowedMode()
+    {
+        return true;
+    }
+
+    /**
+     * Do the message send in windowed mode.
+     *
+     * @param token the number of the token batch
+     * @param ack the cumulative acknowledgement
+     * @param content the content to send.
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    @Override
+    protected void sendWindowedMessage(
+            long    token,
+            long    ack,
+            List<T> content )
+        throws
+            MessageSendException
+    {
+        if( content != null && !content.isEmpty() && log.isInfoEnabled() ) {
+            log.info( this, "sendWindowedMessage", token, ack, content );
+        } else if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "sendWindowedMessage", token, ack, content );
+        }
+
+        MPingPongMessageEndpoint<T> partner = thePartner;
+        if( partner != null ) {
+            partner.incomingWindowedMessage( token, ack, content );
+        } else {
+            throw new MessageSendException( content, "No partner MPingPongMessageEndpoint has been set" );
+        }
+    }
+
+    /**
+     * Invoked by subclasses to provide the content of a message received in windowed mode.
+     *
+     * @param token the number of the token batch
+     * @param ack the cumulative acknowledgement sent by the partner
+     * @param content the content of a received message, if any
+     * @throws MessageEndpointIsDeadException thrown if the MessageEndpoint is dead
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    @Override
+    protected void incomingWindowedMessage(
+            long    token,
+            long    ack,
+            List<T> content )
+        throws
+            MessageEndpointIsDeadException,
+            MessageSendException
+    {
+        if( isGracefullyDead ) {
+            throw new MessageEndpointIsDeadException();
+        } else {
+
+            try {
+                super.incomingWindowedMessage( token, ack, content );
+
+            } catch( RejectedExecutionException ex ) {
+                throw new MessageEndpointIsDeadException( ex );
+            }
+        }
+    }
+
     /**
      * Invoked by subclasses to provide the content of a received message.
      *
@@ -412,6 +554,10 @@ public class MPingPongMessageEndpoint<T>
             theFutureTask.cancel();
             theFutureTask = null;
         }
+        if( theRecoverTask != null ) {
+            theRecoverTask.cancel();
+            theRecoverTask = null;
+        }
     }
 
     /**
@@ -0,0 +1,879 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.ConcurrentMessageQueue;
+import org.infogrid.comm.MessageCodec;
+import org.infogrid.comm.MessageEndpointIsDeadException;
+import org.infogrid.comm.MessageSendException;
+import org.infogrid.comm.pingpong.PingPongMessageEndpoint;
+import org.infogrid.util.ByteBufferPool;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Implementation of PingPongMessageEndpoint that communicates with its partner over a
+ *    TCP connection. One side listens on a server socket, the other connects to it; after
+ *    that, the protocol is symmetric.</p>
+ * <p>Each token is sent as one frame: a 4-byte length, followed by the frame type, the token
+ *    (and, in windowed mode, the acknowledgement), the number of messages, and each message
+ *    prefixed by its own length. Messages are converted to bytes by a pluggable MessageCodec.</p>
+ * <p>If the connection breaks, sending fails, and the regular resend and recover timers of the
+ *    PingPongMessageEndpoint retry; the connecting side re-establishes the connection when that
+ *    happens, while the listening side accepts the next incoming connection.</p>
+ *
+ * @param <T> the message type
+ */
+public class TcpPingPongMessageEndpoint<T>
+        extends
+            PingPongMessageEndpoint<T>
+        implements
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( TcpPingPongMessageEndpoint.class ); // our own, private logger
+
+    /**
+     * Factory method for a TcpPingPongMessageEndpoint that listens for its partner to connect.
+     *
+     * @param localAddress the local address to listen on
+     * @param codec the MessageCodec to use
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @return the created TcpPingPongMessageEndpoint
+     * @throws IOException thrown if the server socket could not be opened
+     * @param <T> the message type
+     */
+    public static <T> TcpPingPongMessageEndpoint<T> createServer(
+            InetSocketAddress        localAddress,
+            MessageCodec<T>          codec,
+            ScheduledExecutorService exec )
+        throws
+            IOException
+    {
+        return createServer(
+                "TcpPingPongMessageEndpoint",
+                theResourceHelper.getResourceLongOrDefault(   "DeltaRespondNoMessage",   1000L ),
+                theResourceHelper.getResourceLongOrDefault(   "DeltaRespondWithMessage",   10L ),
+                theResourceHelper.getResourceLongOrDefault(   "DeltaResend",              500L ),
+                theResourceHelper.getResourceLongOrDefault(   "DeltaRecover",            5000L ),
+                theResourceHelper.getResourceDoubleOrDefault( "RandomVariation",          0.02 ),
+                localAddress,
+                codec,
+                exec );
+    }
+
+    /**
+     * Factory method for a TcpPingPongMessageEndpoint that listens for its partner to connect.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param randomVariation the random component to add to the various times
+     * @param localAddress the local address to listen on
+     * @param codec the MessageCodec to use
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @return the created TcpPingPongMessageEndpoint
+     * @throws IOException thrown if the server socket could not be opened
+     * @param <T> the message type
+     */
+    public static <T> TcpPingPongMessageEndpoint<T> createServer(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            double                   randomVariation,
+            InetSocketAddress        localAddress,
+            MessageCodec<T>          codec,
+            ScheduledExecutorService exec )
+        throws
+            IOException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+        server.bind( localAddress );
+
+        TcpPingPongMessageEndpoint<T> ret = new TcpPingPongMessageEndpoint<T>(
+                name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                randomVariation,
+                exec,
+                server,
+                null,
+                codec,
+                theDefaultBufferPool );
+
+        ret.startAccepting();
+
+        if( log.isTraceEnabled() ) {
+            log.traceConstructor( ret );
+        }
+        return ret;
+    }
+
+    /**
+     * Factory method for a TcpPingPongMessageEndpoint that connects to its partner.
+     *
+     * @param remoteAddress the address of the partner
+     * @param codec the MessageCodec to use
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @return the created TcpPingPongMessageEndpoint
+     * @param <T> the message type
+     */
+    public static <T> TcpPingPongMessageEndpoint<T> createClient(
+            InetSocketAddress        remoteAddress,
+            MessageCodec<T>          codec,
+            ScheduledExecutorService exec )
+    {
+        return createClient(
+                "TcpPingPongMessageEndpoint",
+                theResourceHelper.getResourceLongOrDefault(   "DeltaRespondNoMessage",   1000L ),
+                theResourceHelper.getResourceLongOrDefault(   "DeltaRespondWithMessage",   10L ),
+                theResourceHelper.getResourceLongOrDefault(   "DeltaResend",              500L ),
+                theResourceHelper.getResourceLongOrDefault(   "DeltaRecover",            5000L ),
+                theResourceHelper.getResourceDoubleOrDefault( "RandomVariation",          0.02 ),
+                remoteAddress,
+                codec,
+                exec );
+    }
+
+    /**
+     * Factory method for a TcpPingPongMessageEndpoint that connects to its partner.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param randomVariation the random component to add to the various times
+     * @param remoteAddress the address of the partner
+     * @param codec the MessageCodec to use
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @return the created TcpPingPongMessageEndpoint
+     * @param <T> the message type
+     */
+    public static <T> TcpPingPongMessageEndpoint<T> createClient(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            double                   randomVariation,
+            InetSocketAddress        remoteAddress,
+            MessageCodec<T>          codec,
+            ScheduledExecutorService exec )
+    {
+        TcpPingPongMessageEndpoint<T> ret = new TcpPingPongMessageEndpoint<T>(
+                name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                randomVariation,
+                exec,
+                null,
+                remoteAddress,
+                codec,
+                theDefaultBufferPool );
+
+        if( log.isTraceEnabled() ) {
+            log.traceConstructor( ret );
+        }
+        return ret;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param randomVariation the random component to add to the various times
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @param serverChannel the bound ServerSocketChannel to accept connections on, if this is the listening side
+     * @param remoteAddress the address of the partner, if this is the connecting side
+     * @param codec the MessageCodec to use
+     * @param bufferPool the pool of ByteBuffers to use
+     */
+    protected TcpPingPongMessageEndpoint(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            double                   randomVariation,
+            ScheduledExecutorService exec,
+            ServerSocketChannel      serverChannel,
+            InetSocketAddress        remoteAddress,
+            MessageCodec<T>          codec,
+            ByteBufferPool           bufferPool )
+    {
+        super(  name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                randomVariation,
+                exec,
+                -1,
+                -1,
+                null,
+                ConcurrentMessageQueue.<T>create() );
+
+        theServerChannel = serverChannel;
+        theRemoteAddress = remoteAddress;
+        theCodec         = codec;
+        theBufferPool    = bufferPool;
+    }
+
+    /**
+     * Obtain the local address on which this TcpPingPongMessageEndpoint listens.
+     *
+     * @return the local address, or null if this is the connecting side
+     * @throws IOException thrown if the address could not be determined
+     */
+    public InetSocketAddress getLocalAddress()
+        throws
+            IOException
+    {
+        if( theServerChannel == null ) {
+            return null;
+        }
+        return (InetSocketAddress) theServerChannel.getLocalAddress();
+    }
+
+    /**
+     * Determine whether a connection to the partner is currently open.
+     *
+     * @return true if a connection is open
+     */
+    public boolean isConnected()
+    {
+        SocketChannel channel = theChannel;
+        return channel != null && channel.isOpen();
+    }
+
+    /**
+     * Close the current connection, if any. If the ping-pong continues, the connection
+     * will be re-established. This is mostly useful for testing.
+     */
+    public void disconnect()
+    {
+        SocketChannel channel = theChannel;
+        if( channel != null ) {
+            connectionLost( channel, null );
+        }
+    }
+
+    /**
+     * Stop communicating, and close all connections and the server socket.
+     */
+    public void gracefulDie()
+    {
+        isGracefullyDead = true;
+
+        stopCommunicating();
+        disconnect();
+
+        if( theServerChannel != null ) {
+            try {
+                theServerChannel.close();
+            } catch( IOException ex ) {
+                log.warn( ex );
+            }
+        }
+    }
+
+    /**
+     * Send a message to the partner indicating that we'd like to have the token back as quickly as possible.
+     */
+    protected void sendGrabTokenMessage()
+    {
+        try {
+            ByteBuffer buf = theBufferPool.obtain();
+            buf.putInt( 0 ); // placeholder for length
+            buf.put( FRAME_GRAB );
+            writeFrame( buf, null );
+
+        } catch( MessageSendException ex ) {
+            if( log.isDebugEnabled() ) {
+                log.debug( this + " could not send grab token message", ex );
+            }
+        }
+    }
+
+    /**
+     * Do the message send.
+     *
+     * @param token the token of the message
+     * @param content the content to send.
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    protected void sendMessage(
+            long    token,
+            List<T> content )
+        throws
+            MessageSendException
+    {
+        if( content != null && !content.isEmpty() && log.isInfoEnabled() ) {
+            log.info( this, "sendMessage", token, content );
+        } else if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "sendMessage", token, content );
+        }
+
+        writeFrame( encodeFrame( FRAME_TOKEN, token, 0L, content ), content );
+    }
+
+    /**
+     * Determine whether this PingPongMessageEndpoint supports windowed mode.
+     *
+     * @return always true
+     */
+    @Override
+    protected boolean supportsWindowedMode()
+    {
+        return true;
+    }
+
+    /**
+     * Do the message send in windowed mode.
+     *
+     * @param token the number of the token batch
+     * @param ack the cumulative acknowledgement
+     * @param content the content to send.
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    @Override
+    protected void sendWindowedMessage(
+            long    token,
+            long    ack,
+            List<T> content )
+        throws
+            MessageSendException
+    {
+        if( content != null && !content.isEmpty() && log.isInfoEnabled() ) {
+            log.info( this, "sendWindowedMessage", token, ack, content );
+        } else if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "sendWindowedMessage", token, ack, content );
+        }
+
+        writeFrame( encodeFrame( FRAME_WINDOWED, token, ack, content ), content );
+    }
+
+    /**
+     * Encode a frame into a pooled ByteBuffer, growing the buffer if needed.
+     *
+     * @param type the frame type
+     * @param token the token
+     * @param ack the acknowledgement, in windowed mode
+     * @param content the content to send, if any
+     * @return the ByteBuffer, positioned after the end of the frame
+     * @throws MessageSendException thrown if a message could not be encoded
+     */
+    protected ByteBuffer encodeFrame(
+            byte    type,
+            long    token,
+            long    ack,
+            List<T> content )
+        throws
+            MessageSendException
+    {
+        int capacity = theBufferPool.getBufferSize();
+        while( true ) {
+            ByteBuffer buf = theBufferPool.obtain( capacity );
+            try {
+                buf.putInt( 0 ); // placeholder for length
+                buf.put( type );
+                buf.putLong( token );
+                if( type == FRAME_WINDOWED ) {
+                    buf.putLong( ack );
+                }
+                if( content == null ) {
+                    buf.putInt( -1 );
+                } else {
+                    buf.putInt( content.size() );
+                    for( T current : content ) {
+                        int lengthPosition = buf.position();
+                        buf.putInt( 0 ); // placeholder for length
+                        theCodec.encode( current, buf );
+                        buf.putInt( lengthPosition, buf.position() - lengthPosition - 4 );
+                    }
+                }
+                return buf;
+
+            } catch( BufferOverflowException ex ) {
+                theBufferPool.release( buf );
+                capacity = Math.max( capacity, buf.capacity() ) * 2;
+                if( capacity > theMaxFrameSize ) {
+                    throw new MessageSendException( content, "Frame exceeds maximum size of " + theMaxFrameSize );
+                }
+
+            } catch( IOException ex ) {
+                theBufferPool.release( buf );
+                throw new MessageSendException( content, ex );
+            }
+        }
+    }
+
+    /**
+     * Write a frame to the current connection, establishing the connection first if needed.
+     * The ByteBuffer is returned to the pool in any case.
+     *
+     * @param buf the ByteBuffer, positioned after the end of the frame
+     * @param content the content contained in the frame, if any
+     * @throws MessageSendException thrown if the frame could not be written
+     */
+    protected void writeFrame(
+            ByteBuffer buf,
+            List<T>    content )
+        throws
+            MessageSendException
+    {
+        SocketChannel channel = null;
+        try {
+            buf.putInt( 0, buf.position() - 4 );
+            buf.flip();
+
+            channel = obtainChannel();
+            synchronized( theWriteLock ) {
+                while( buf.hasRemaining() ) {
+                    channel.write( buf );
+                }
+            }
+
+        } catch( IOException ex ) {
+            if( channel != null ) {
+                connectionLost( channel, ex );
+            }
+            throw new MessageSendException( content, "Cannot write to partner of " + theName, ex );
+
+        } finally {
+            theBufferPool.release( buf );
+        }
+    }
+
+    /**
+     * Obtain the current connection. On the connecting side, establish it if needed.
+     *
+     * @return the SocketChannel
+     * @throws IOException thrown if no connection could be established
+     */
+    protected SocketChannel obtainChannel()
+        throws
+            IOException
+    {
+        SocketChannel ret = theChannel;
+        if( ret != null && ret.isOpen() ) {
+            return ret;
+        }
+        if( theRemoteAddress == null ) {
+            throw new IOException( "Partner has not connected yet" );
+        }
+        if( isGracefullyDead ) {
+            throw new ClosedChannelException();
+        }
+        synchronized( theConnectLock ) {
+            ret = theChannel;
+            if( ret != null && ret.isOpen() ) {
+                return ret;
+            }
+            ret = SocketChannel.open();
+            try {
+                ret.socket().setTcpNoDelay( true );
+                ret.socket().connect( theRemoteAddress, (int) theConnectTimeout );
+
+            } catch( IOException ex ) {
+                ret.close();
+                throw ex;
+            }
+            if( log.isInfoEnabled() ) {
+                log.info( this + " connected to " + theRemoteAddress );
+            }
+            theChannel = ret;
+            startReading( ret );
+            return ret;
+        }
+    }
+
+    /**
+     * Invoked when a connection broke.
+     *
+     * @param channel the SocketChannel of the connection
+     * @param cause the cause, if any
+     */
+    protected void connectionLost(
+            SocketChannel channel,
+            Throwable     cause )
+    {
+        synchronized( theConnectLock ) {
+            if( theChannel == channel ) {
+                theChannel = null;
+            }
+        }
+        if( channel.isOpen() ) {
+            if( log.isInfoEnabled() ) {
+                log.info( this + " closing connection", cause );
+            }
+            try {
+                channel.close();
+            } catch( IOException ex ) {
+                log.warn( ex );
+            }
+        }
+    }
+
+    /**
+     * Start the Thread that accepts incoming connections.
+     */
+    protected void startAccepting()
+    {
+        Thread acceptor = new Thread( new Runnable() {
+                public void run() {
+                    acceptConnections();
+                }
+            },
+            theName + "-accept" );
+
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    /**
+     * Accept incoming connections until the server socket is closed. A new connection
+     * replaces the current one, if any.
+     */
+    protected void acceptConnections()
+    {
+        while( theServerChannel.isOpen() ) {
+            try {
+                SocketChannel accepted = theServerChannel.accept();
+                accepted.socket().setTcpNoDelay( true );
+
+                if( log.isInfoEnabled() ) {
+                    log.info( this + " accepted connection from " + accepted.getRemoteAddress() );
+                }
+
+                SocketChannel old;
+                synchronized( theConnectLock ) {
+                    old        = theChannel;
+                    theChannel = accepted;
+                }
+                if( old != null ) {
+                    connectionLost( old, null );
+                }
+                startReading( accepted );
+
+            } catch( ClosedChannelException ex ) {
+                // server socket was closed, we are done
+
+            } catch( IOException ex ) {
+                log.warn( this + " failed to accept connection", ex );
+            }
+        }
+    }
+
+    /**
+     * Start the Thread that reads incoming frames from a connection.
+     *
+     * @param channel the SocketChannel of the connection
+     */
+    protected void startReading(
+            final SocketChannel channel )
+    {
+        Thread reader = new Thread( new Runnable() {
+                public void run() {
+                    readFrames( channel );
+                }
+            },
+            theName + "-read" );
+
+        reader.setDaemon( true );
+        reader.start();
+    }
+
+    /**
+     * Read incoming frames from a connection until it closes.
+     *
+     * @param channel the SocketChannel of the connection
+     */
+    protected void readFrames(
+            SocketChannel channel )
+    {
+        ByteBuffer lengthBuf = ByteBuffer.allocate( 4 );
+        try {
+            while( true ) {
+                lengthBuf.clear();
+                readFully( channel, lengthBuf );
+                lengthBuf.flip();
+
+                int length = lengthBuf.getInt();
+                if( length <= 0 || length > theMaxFrameSize ) {
+                    throw new IOException( "Invalid frame length: " + length );
+                }
+
+                ByteBuffer frame = theBufferPool.obtain( length );
+                try {
+                    frame.limit( length );
+                    readFully( channel, frame );
+                    frame.flip();
+
+                    processFrame( frame );
+
+                } finally {
+                    theBufferPool.release( frame );
+                }
+            }
+
+        } catch( EOFException ex ) {
+            connectionLost( channel, null );
+
+        } catch( ClosedChannelException ex ) {
+            connectionLost( channel, null );
+
+        } catch( IOException ex ) {
+            connectionLost( channel, ex );
+
+        } catch( Throwable t ) {
+            log.error( this, t );
+            connectionLost( channel, t );
+        }
+    }
+
+    /**
+     * Read from a SocketChannel until the ByteBuffer is full.
+     *
+     * @param channel the SocketChannel
+     * @param buf the ByteBuffer
+     * @throws IOException thrown if an I/O error occurred, or the connection was closed
+     */
+    protected static void readFully(
+            SocketChannel channel,
+            ByteBuffer    buf )
+        throws
+            IOException
+    {
+        while( buf.hasRemaining() ) {
+            if( channel.read( buf ) < 0 ) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Process an incoming frame.
+     *
+     * @param frame the frame, without its length prefix
+     * @throws IOException thrown if the frame could not be decoded
+     */
+    protected void processFrame(
+            ByteBuffer frame )
+        throws
+            IOException
+    {
+        byte type = frame.get();
+        if( type == FRAME_GRAB ) {
+            TimedTask t = theFutureTask;
+            if( t instanceof RespondTask ) {
+                t.cancel();
+                schedule( new RespondTask( this ), theDeltaRespondWithMessage );
+            }
+            return;
+        }
+        if( type != FRAME_TOKEN && type != FRAME_WINDOWED ) {
+            throw new IOException( "Unknown frame type: " + type );
+        }
+
+        long token = frame.getLong();
+        long ack   = type == FRAME_WINDOWED ? frame.getLong() : 0L;
+        int  count = frame.getInt();
+
+        // the counts and lengths come from the partner: check them before allocating or slicing
+        if( count < -1 || count > frame.remaining() / 4 ) {
+            throw new IOException( "Invalid message count: " + count );
+        }
+        List<T> content = null;
+        if( count >= 0 ) {
+            content = new ArrayList<T>( count );
+            int limit = frame.limit();
+            for( int i=0 ; i<count ; ++i ) {
+                int length = frame.getInt();
+                if( length < 0 || length > frame.remaining() ) {
+                    throw new IOException( "Invalid message length: " + length );
+                }
+                int end = frame.position() + length;
+
+                frame.limit( end );
+                content.add( theCodec.decode( frame ));
+                frame.limit( limit );
+                frame.position( end );
+            }
+        }
+
+        if( isGracefullyDead ) {
+            return;
+        }
+        try {
+            if( type == FRAME_WINDOWED ) {
+                incomingWindowedMessage( token, ack, content );
+            } else {
+                incomingMessage( token, content );
+            }
+
+        } catch( MessageEndpointIsDeadException ex ) {
+            log.warn( this, ex );
+        } catch( MessageSendException ex ) {
+            log.warn( this, ex );
+        } catch( RejectedExecutionException ex ) {
+            log.warn( this, ex );
+        }
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    @Override
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theName",
+                    "isGracefullyDead",
+                    "theLastReceivedToken",
+                    "theLastSentToken",
+                    "theFutureTask",
+                    "theMessagesToBeSent",
+                    "theRemoteAddress",
+                    "theServerChannel",
+                    "theChannel"
+                },
+                new Object[] {
+                    theName,
+                    isGracefullyDead,
+                    theLastReceivedToken,
+                    theLastSentToken,
+                    theFutureTask,
+                    theMessagesToBeSent,
+                    theRemoteAddress,
+                    theServerChannel,
+                    theChannel
+                });
+    }
+
+    /**
+     * The ServerSocketChannel on which we accept connections, if this is the listening side.
+     */
+    protected final ServerSocketChannel theServerChannel;
+
+    /**
+     * The address of the partner, if this is the connecting side.
+     */
+    protected final InetSocketAddress theRemoteAddress;
+
+    /**
+     * The current connection to the partner, if any.
+     */
+    protected volatile SocketChannel theChannel;
+
+    /**
+     * Converts messages to bytes and back.
+     */
+    protected final MessageCodec<T> theCodec;
+
+    /**
+     * The pool of ByteBuffers for encoding and decoding frames.
+     */
+    protected final ByteBufferPool theBufferPool;
+
+    /**
+     * Guards the establishment and replacement of the connection.
+     */
+    protected final Object theConnectLock = new Object();
+
+    /**
+     * Makes sure frames are written to the connection one at a time.
+     */
+    protected final Object theWriteLock = new Object();
+
+    /**
+     * If this is true, the MessageEndpoint is dead.
+     */
+    protected volatile boolean isGracefullyDead = false;
+
+    /**
+     * Frame type for a token in the classic ping-pong protocol.
+     */
+    protected static final byte FRAME_TOKEN = 1;
+
+    /**
+     * Frame type for a token batch in windowed mode.
+     */
+    protected static final byte FRAME_WINDOWED = 2;
+
+    /**
+     * Frame type for a request to return the token as quickly as possible.
+     */
+    protected static final byte FRAME_GRAB = 3;
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( TcpPingPongMessageEndpoint.class );
+
+    /**
+     * The number of milliseconds to wait for a connection to be established.
+     */
+    protected static final long theConnectTimeout = theResourceHelper.getResourceLongOrDefault( "ConnectTimeout", 5000L );
+
+    /**
+     * The maximum size of a frame, in bytes.
+     */
+    protected static final int theMaxFrameSize = theResourceHelper.getResourceIntegerOrDefault( "MaxFrameSize", 16 * 1024 * 1024 );
+
+    /**
+     * The pool of ByteBuffers shared by all TcpPingPongMessageEndpoints created with the factory methods.
+     */
+    protected static final ByteBufferPool theDefaultBufferPool = ByteBufferPool.create(
+            theResourceHelper.getResourceIntegerOrDefault( "BufferSize",       8192 ),
+            theResourceHelper.getResourceIntegerOrDefault( "MaxPooledBuffers",   32 ),
+            true );
+}
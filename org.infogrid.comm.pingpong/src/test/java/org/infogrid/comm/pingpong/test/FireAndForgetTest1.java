@@ -0,0 +1,373 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.comm.AbstractFireAndForgetSendingMessageEndpoint;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.MessageSendException;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests concurrent, rate-limited dispatch with per-message backoff in
+ * AbstractFireAndForgetSendingMessageEndpoint, using an artificially slow sender.
+ */
+public class FireAndForgetTest1
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Throwable
+    {
+        log.info( "Serial vs. parallel" );
+
+        long serial           = sendAll( 1,           0., SLOW );
+        int  serialConcurrent = lastMaxConcurrent;
+
+        long parallel           = sendAll( MAX_SENDERS, 0., SLOW );
+        int  parallelConcurrent = lastMaxConcurrent;
+
+        log.info( "Time for " + N + " messages: serial: " + serial + ", parallel: " + parallel );
+
+        Assert.assertTrue( "serial too fast: " + serial, serial >= N * SLOW );
+        Assert.assertEquals( "serial sends overlapped", 1, serialConcurrent );
+        Assert.assertTrue( "parallel sends did not overlap: " + parallelConcurrent, parallelConcurrent > 1 );
+
+        log.info( "Rate limit" );
+
+        long limited = sendAll( MAX_SENDERS, RATE, 0L );
+        long minimum = (long) (( N - BURST ) * 1000. / RATE );
+
+        log.info( "Time for " + N + " rate-limited messages: " + limited + ", minimum: " + minimum );
+
+        Assert.assertTrue( "rate limit not enforced: " + limited, limited >= minimum * 9 / 10 );
+
+        log.info( "Backoff" );
+
+        SlowEndpoint ep = new SlowEndpoint( "backoff", exec, 0L );
+        ep.setBackoff( 10000L, 0. );
+
+        Counter counter = new Counter();
+        ep.addDirectMessageEndpointListener( counter );
+
+        ep.enqueueMessageForSend( "fail-" + FAILURES );
+        ep.enqueueMessageForSend( "ok" );
+
+        for( int i=0 ; i<50 && counter.theSent.get() < 2 ; ++i ) {
+            sleepFor( 100L );
+        }
+        Assert.assertEquals( "wrong number of messages sent",   2,        counter.theSent.get() );
+        Assert.assertEquals( "wrong number of failed attempts", FAILURES, counter.theFailed.get() );
+        Assert.assertEquals( "wrong number of attempts",        FAILURES+1, ep.theAttempts.size() );
+
+        for( int i=1 ; i<ep.theAttempts.size() ; ++i ) {
+            long gap      = ep.theAttempts.get( i ) - ep.theAttempts.get( i-1 );
+            long expected = DELTA_RESEND << ( i-1 );
+
+            log.info( "Gap before attempt " + i + ": " + gap + ", expected: " + expected );
+
+            Assert.assertTrue( "gap too short: " + gap, gap >= expected * 9 / 10 );
+        }
+        Assert.assertTrue( "still queued",      ep.messagesToBeSent().isEmpty() );
+        Assert.assertEquals( "still dispatching", 0, ep.getDispatchingCount() );
+
+        log.info( "Same message enqueued twice" );
+
+        ep = new SlowEndpoint( "twice", exec, 0L );
+
+        counter = new Counter();
+        ep.addDirectMessageEndpointListener( counter );
+
+        String twice = "fail-1"; // the first attempt fails, the second one succeeds
+        ep.enqueueMessageForSend( twice );
+        ep.enqueueMessageForSend( twice );
+
+        for( int i=0 ; i<50 && counter.theSent.get() < 2 ; ++i ) {
+            sleepFor( 100L );
+        }
+        Assert.assertEquals( "wrong number of messages sent",   2, counter.theSent.get() );
+        Assert.assertEquals( "wrong number of failed attempts", 1, counter.theFailed.get() );
+        Assert.assertEquals( "still dispatching",               0, ep.getDispatchingCount() );
+    }
+
+    /**
+     * Send N messages through a new endpoint, and measure how long it takes until all have been sent.
+     * Also records the maximum number of concurrent sends in lastMaxConcurrent.
+     *
+     * @param maxSenders the maximum number of concurrent senders
+     * @param rate the maximum number of messages per second, or 0 for no limit
+     * @param delay the time each send takes, in milliseconds
+     * @return the elapsed time, in milliseconds
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    protected long sendAll(
+            int    maxSenders,
+            double rate,
+            long   delay )
+        throws
+            Exception
+    {
+        SlowEndpoint ep = new SlowEndpoint( "send-" + maxSenders, exec, delay );
+        ep.setSendExecutor( sendExec, maxSenders );
+        ep.setRateLimit( rate, BURST );
+
+        Counter counter = new Counter();
+        ep.addDirectMessageEndpointListener( counter );
+
+        long start = System.currentTimeMillis();
+        for( int i=0 ; i<N ; ++i ) {
+            ep.enqueueMessageForSend( "msg-" + i );
+        }
+        for( int i=0 ; i<1000 && counter.theSent.get() < N ; ++i ) {
+            sleepFor( 10L );
+        }
+        long ret = System.currentTimeMillis() - start;
+
+        Assert.assertEquals( "wrong number of messages sent", N, counter.theSent.get() );
+        Assert.assertEquals( "messages failed", 0, counter.theFailed.get() );
+        Assert.assertTrue( "too many concurrent sends: " + ep.theMaxConcurrent.get(), ep.theMaxConcurrent.get() <= maxSenders );
+        Assert.assertEquals( "still dispatching", 0, ep.getDispatchingCount() );
+
+        lastMaxConcurrent = ep.theMaxConcurrent.get();
+
+        return ret;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        exec     = createThreadPool( 1 );
+        sendExec = Executors.newFixedThreadPool( MAX_SENDERS );
+    }
+
+    /**
+     * Cleanup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @After
+    public void cleanup()
+        throws
+            Exception
+    {
+        exec.shutdown();
+        sendExec.shutdown();
+    }
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 100;
+
+    /**
+     * The time an artificially slow send takes, in milliseconds.
+     */
+    protected static final long SLOW = 20L;
+
+    /**
+     * The maximum number of concurrent senders.
+     */
+    protected static final int MAX_SENDERS = 10;
+
+    /**
+     * The rate limit, in messages per second.
+     */
+    protected static final double RATE = 200.;
+
+    /**
+     * The burst of the rate limit.
+     */
+    protected static final int BURST = 10;
+
+    /**
+     * The time until the first resend, in milliseconds.
+     */
+    protected static final long DELTA_RESEND = 50L;
+
+    /**
+     * The number of times the failing message fails before it is sent.
+     */
+    protected static final int FAILURES = 3;
+
+    /**
+     * The maximum number of sends in progress at the same time during the last invocation of sendAll.
+     */
+    protected int lastMaxConcurrent;
+
+    /**
+     * Schedules timed tasks.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Runs the senders.
+     */
+    protected ExecutorService sendExec;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( FireAndForgetTest1.class );
+
+    /**
+     * An endpoint whose sends take a while. Messages named "fail-n" fail n times before they are sent.
+     */
+    static class SlowEndpoint
+            extends
+                AbstractFireAndForgetSendingMessageEndpoint<String>
+    {
+        /**
+         * Constructor.
+         *
+         * @param name the name of the endpoint
+         * @param exec the ScheduledExecutorService to schedule timed tasks
+         * @param delay the time each send takes, in milliseconds
+         */
+        public SlowEndpoint(
+                String                   name,
+                ScheduledExecutorService exec,
+                long                     delay )
+        {
+            super( name, DELTA_RESEND, 0., exec, new ArrayList<String>() );
+
+            theDelay = delay;
+        }
+
+        /**
+         * Send a message, slowly.
+         *
+         * @param msg the message
+         * @throws MessageSendException thrown if the message is supposed to fail
+         */
+        protected void sendMessage(
+                String msg )
+            throws
+                MessageSendException
+        {
+            int concurrent = theConcurrent.incrementAndGet();
+            try {
+                int max;
+                while( concurrent > ( max = theMaxConcurrent.get() ) && !theMaxConcurrent.compareAndSet( max, concurrent )) {}
+
+                if( theDelay > 0L ) {
+                    try {
+                        Thread.sleep( theDelay );
+                    } catch( InterruptedException ex ) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if( msg.startsWith( "fail-" )) {
+                    theAttempts.add( System.currentTimeMillis() );
+
+                    int failures = Integer.parseInt( msg.substring( 5 ));
+                    if( theAttempts.size() <= failures ) {
+                        throw new MessageSendException( Collections.singletonList( msg ));
+                    }
+                }
+            } finally {
+                theConcurrent.decrementAndGet();
+            }
+        }
+
+        /**
+         * The time each send takes, in milliseconds.
+         */
+        protected final long theDelay;
+
+        /**
+         * The number of sends currently in progress.
+         */
+        protected final AtomicInteger theConcurrent = new AtomicInteger();
+
+        /**
+         * The maximum number of sends in progress at the same time.
+         */
+        protected final AtomicInteger theMaxConcurrent = new AtomicInteger();
+
+        /**
+         * The times at which the failing message was attempted.
+         */
+        protected final List<Long> theAttempts = Collections.synchronizedList( new ArrayList<Long>() );
+    }
+
+    /**
+     * Counts sent and failed messages.
+     */
+    static class Counter
+            implements
+                MessageEndpointListener<String>
+    {
+        public void messageReceived(
+                ReceivingMessageEndpoint<String> endpoint,
+                List<String>                     msgs )
+        {}
+
+        public void messageSent(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            theSent.incrementAndGet();
+        }
+
+        public void messageEnqueued(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {}
+
+        public void messageSendingFailed(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            theFailed.incrementAndGet();
+        }
+
+        public void disablingError(
+                MessageEndpoint<String> endpoint,
+                List<String>            msg,
+                Throwable               t )
+        {}
+
+        /**
+         * The number of sent messages.
+         */
+        AtomicInteger theSent = new AtomicInteger();
+
+        /**
+         * The number of failed messages.
+         */
+        AtomicInteger theFailed = new AtomicInteger();
+    }
+}
@@ -0,0 +1,268 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.comm.MessageSendException;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+
+/**
+ * An MPingPongMessageEndpoint that simulates a link with latency, and optionally drops
+ * every n-th message carrying content.
+ *
+ * @param <T> the message type
+ */
+public class LatencyMPingPongMessageEndpoint<T>
+        extends
+            MPingPongMessageEndpoint<T>
+{
+    private static final Log log = Log.getLogInstance( LatencyMPingPongMessageEndpoint.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param latency the number of milliseconds it takes for a message to arrive at the partner
+     * @param dropEvery drop every n-th message carrying content, or 0 if no message shall be dropped
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @return the created LatencyMPingPongMessageEndpoint
+     * @param <T> the message type
+     */
+    public static <T> LatencyMPingPongMessageEndpoint<T> create(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            long                     latency,
+            int                      dropEvery,
+            ScheduledExecutorService exec )
+    {
+        return new LatencyMPingPongMessageEndpoint<T>(
+                name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                latency,
+                dropEvery,
+                exec );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param latency the number of milliseconds it takes for a message to arrive at the partner
+     * @param dropEvery drop every n-th message carrying content, or 0 if no message shall be dropped
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     */
+    protected LatencyMPingPongMessageEndpoint(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            long                     latency,
+            int                      dropEvery,
+            ScheduledExecutorService exec )
+    {
+        super(  name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                0.,
+                exec );
+
+        theLatency   = latency;
+        theDropEvery = dropEvery;
+    }
+
+    /**
+     * Do the message send, after the latency has passed.
+     *
+     * @param token the token of the message
+     * @param content the content to send.
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    @Override
+    protected void sendMessage(
+            final long    token,
+            final List<T> content )
+        throws
+            MessageSendException
+    {
+        final MPingPongMessageEndpoint<T> partner = thePartner;
+        if( partner == null ) {
+            throw new MessageSendException( content, "No partner MPingPongMessageEndpoint has been set" );
+        }
+        if( isDropped( content )) {
+            return;
+        }
+        theExecutorService.schedule( new Runnable() {
+                public void run() {
+                    try {
+                        deliver( partner, token, content );
+                    } catch( Throwable t ) {
+                        log.warn( t );
+                    }
+                }
+            },
+            theLatency,
+            TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Do the message send in windowed mode, after the latency has passed.
+     *
+     * @param token the number of the token batch
+     * @param ack the cumulative acknowledgement
+     * @param content the content to send.
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    @Override
+    protected void sendWindowedMessage(
+            final long    token,
+            final long    ack,
+            final List<T> content )
+        throws
+            MessageSendException
+    {
+        final MPingPongMessageEndpoint<T> partner = thePartner;
+        if( partner == null ) {
+            throw new MessageSendException( content, "No partner MPingPongMessageEndpoint has been set" );
+        }
+        if( isDropped( content )) {
+            return;
+        }
+        theExecutorService.schedule( new Runnable() {
+                public void run() {
+                    try {
+                        deliverWindowed( partner, token, ack, content );
+                    } catch( Throwable t ) {
+                        log.warn( t );
+                    }
+                }
+            },
+            theLatency,
+            TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Determine whether this message is being dropped.
+     *
+     * @param content the content of the message
+     * @return true if the message shall be dropped
+     */
+    protected boolean isDropped(
+            List<T> content )
+    {
+        if( theDropEvery <= 0 || content == null ) {
+            return false;
+        }
+        if( theSentCounter.incrementAndGet() % theDropEvery == 0 ) {
+            log.debug( this, "dropping", content );
+            theDroppedCounter.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Obtain the number of messages that were dropped.
+     *
+     * @return the number of dropped messages
+     */
+    public int getDroppedCount()
+    {
+        return theDroppedCounter.get();
+    }
+
+    /**
+     * Hand a message to the partner. This is a static method so we can invoke the protected
+     * method on the partner.
+     *
+     * @param partner the partner
+     * @param token the token of the message
+     * @param content the content
+     * @throws Exception thrown if the partner could not process the message
+     * @param <T> the message type
+     */
+    protected static <T> void deliver(
+            MPingPongMessageEndpoint<T> partner,
+            long                        token,
+            List<T>                     content )
+        throws
+            Exception
+    {
+        ((LatencyMPingPongMessageEndpoint<T>) partner).incomingMessage( token, content );
+    }
+
+    /**
+     * Hand a message to the partner in windowed mode.
+     *
+     * @param partner the partner
+     * @param token the number of the token batch
+     * @param ack the cumulative acknowledgement
+     * @param content the content
+     * @throws Exception thrown if the partner could not process the message
+     * @param <T> the message type
+     */
+    protected static <T> void deliverWindowed(
+            MPingPongMessageEndpoint<T> partner,
+            long                        token,
+            long                        ack,
+            List<T>                     content )
+        throws
+            Exception
+    {
+        ((LatencyMPingPongMessageEndpoint<T>) partner).incomingWindowedMessage( token, ack, content );
+    }
+
+    /**
+     * The simulated latency of the link, in milliseconds.
+     */
+    protected long theLatency;
+
+    /**
+     * Drop every n-th message carrying content, or 0 if none shall be dropped.
+     */
+    protected int theDropEvery;
+
+    /**
+     * Counts the messages carrying content that have been sent.
+     */
+    protected final AtomicInteger theSentCounter = new AtomicInteger();
+
+    /**
+     * Counts the messages that have been dropped.
+     */
+    protected final AtomicInteger theDroppedCounter = new AtomicInteger();
+}
@@ -0,0 +1,263 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.infogrid.comm.ChannelMessage;
+import org.infogrid.comm.ChannelMessageCodec;
+import org.infogrid.comm.MessageCodec;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.comm.VarIntMessageCodec;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the VarIntMessageCodec, and compares it with Java serialization.
+ */
+public class MessageCodecTest1
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 1024 );
+
+        //
+
+        log.info( "Variable-length integers" );
+
+        long [] values = { 0L, 1L, -1L, 63L, 64L, -64L, -65L, 127L, 128L, 300L, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+        for( long current : values ) {
+            buf.clear();
+            VarIntMessageCodec.putVarLong( buf, current );
+            int signedSize = buf.position();
+            VarIntMessageCodec.putUnsignedVarLong( buf, current );
+            Assert.assertEquals( "Wrong unsigned size", buf.position() - signedSize, VarIntMessageCodec.unsignedVarLongSize( current ));
+            buf.flip();
+            Assert.assertEquals( "Wrong signed value",   current, VarIntMessageCodec.getVarLong( buf ));
+            Assert.assertEquals( "Wrong unsigned value", current, VarIntMessageCodec.getUnsignedVarLong( buf ));
+            Assert.assertFalse( "Bytes left over", buf.hasRemaining() );
+        }
+        buf.clear();
+        VarIntMessageCodec.putVarLong( buf, -1L );
+        VarIntMessageCodec.putVarLong( buf, 63L );
+        Assert.assertEquals( "Small values not compact", 2, buf.position() );
+
+        //
+
+        log.info( "Bytes" );
+
+        buf.clear();
+        VarIntMessageCodec.putBytes( buf, null );
+        VarIntMessageCodec.putBytes( buf, ByteBuffer.wrap( new byte[] { 1, 2, 3 } ));
+        buf.flip();
+        Assert.assertNull( "Wrong null bytes", VarIntMessageCodec.getBytes( buf ));
+        byte [] bytes = VarIntMessageCodec.getBytes( buf );
+        Assert.assertFalse( "Bytes left over", buf.hasRemaining() );
+
+        buf.clear();
+        while( buf.hasRemaining() ) {
+            buf.put( (byte) 0x55 ); // reuse the buffer, as transports do
+        }
+        Assert.assertArrayEquals( "Decoded bytes share the buffer", new byte[] { 1, 2, 3 }, bytes );
+
+        //
+
+        log.info( "Strings" );
+
+        String [] strings = { null, "", "abc", "Grüße", "€100", "😀 smile" };
+        for( String current : strings ) {
+            buf.clear();
+            VarIntMessageCodec.putString( buf, current );
+            buf.flip();
+            Assert.assertEquals( "Wrong String", current, VarIntMessageCodec.getString( buf ));
+            Assert.assertFalse( "Bytes left over", buf.hasRemaining() );
+        }
+
+        //
+
+        log.info( "Messages" );
+
+        TestMessageCodec varint = new TestMessageCodec();
+        MessageCodec<TestMessage> serializing = SerializingMessageCodec.create();
+
+        TestMessage msg = new TestMessage( 4711L );
+        msg.setRequestId( 12L );
+        msg.setResponseId( 11L );
+
+        buf.clear();
+        varint.encode( msg, buf );
+        int varintSize = buf.position();
+        buf.flip();
+        TestMessage decoded = varint.decode( buf );
+
+        Assert.assertEquals( "Wrong payload",     msg.getPayload(),    decoded.getPayload() );
+        Assert.assertEquals( "Wrong request id",  msg.getRequestId(),  decoded.getRequestId() );
+        Assert.assertEquals( "Wrong response id", msg.getResponseId(), decoded.getResponseId() );
+
+        buf.clear();
+        serializing.encode( msg, buf );
+        int serializedSize = buf.position();
+
+        log.info( "Encoded size: varint " + varintSize + " bytes, serialization " + serializedSize + " bytes" );
+        Assert.assertTrue( "Not compact: " + varintSize, varintSize <= 6 );
+        Assert.assertTrue( "Not more compact than serialization", varintSize < serializedSize );
+
+        ChannelMessageCodec<TestMessage> channels = ChannelMessageCodec.create( new SizedTestMessageCodec() );
+        ChannelMessage<TestMessage>      onChannel = new ChannelMessage<TestMessage>( 300L, msg );
+
+        buf.clear();
+        channels.encode( onChannel, buf );
+        Assert.assertEquals( "Unknown size reported", -1, varint.encodedSize( msg ));
+        Assert.assertEquals( "Wrong channel message size", buf.position(), channels.encodedSize( onChannel ));
+
+        buf.clear();
+        buf.put( (byte) 0x80 ); // truncated
+        buf.flip();
+        try {
+            varint.decode( buf );
+            Assert.fail( "Truncated message decoded" );
+        } catch( IOException ex ) {
+            // expected
+        }
+
+        //
+
+        log.info( "Benchmark (reported only, not asserted)" );
+
+        long varintTime      = 0L;
+        long serializingTime = 0L;
+        for( int round=0 ; round<2 ; ++round ) { // first round is warm-up
+            varintTime      = time( varint,      buf );
+            serializingTime = time( serializing, buf );
+        }
+        log.info( "Average encode+decode time: varint " + varintTime + " ns, serialization " + serializingTime + " ns" );
+    }
+
+    /**
+     * Encode and decode N messages, reusing the same ByteBuffer.
+     *
+     * @param codec the MessageCodec to use
+     * @param buf the ByteBuffer to use
+     * @return the average time per message, in nanoseconds
+     * @throws IOException thrown if encoding or decoding failed
+     */
+    protected long time(
+            MessageCodec<TestMessage> codec,
+            ByteBuffer                buf )
+        throws
+            IOException
+    {
+        long sum   = 0L;
+        long start = System.nanoTime();
+        for( int i=0 ; i<N ; ++i ) {
+            TestMessage msg = new TestMessage( i * 31L );
+            msg.setRequestId( i );
+            msg.setResponseId( i-1 );
+
+            buf.clear();
+            codec.encode( msg, buf );
+            buf.flip();
+            sum += codec.decode( buf ).getPayload();
+        }
+        long ret = ( System.nanoTime() - start ) / N;
+
+        Assert.assertTrue( "Wrong checksum", sum > 0 );
+        return ret;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( MessageCodecTest1.class );
+
+    /**
+     * The number of messages per benchmark round.
+     */
+    protected static final int N = 50000;
+
+    /**
+     * The codec for TestMessages.
+     */
+    static class TestMessageCodec
+            extends
+                VarIntMessageCodec<TestMessage>
+    {
+        /**
+         * Encode the payload of a message.
+         *
+         * @param message the message
+         * @param buf the ByteBuffer to write into
+         */
+        protected void encodePayload(
+                TestMessage message,
+                ByteBuffer  buf )
+        {
+            putVarLong( buf, message.getPayload() );
+        }
+
+        /**
+         * Decode the payload of a message and instantiate the message.
+         *
+         * @param buf the ByteBuffer to read from
+         * @return the decoded message
+         * @throws IOException thrown if the payload could not be decoded
+         */
+        protected TestMessage decodePayload(
+                ByteBuffer buf )
+            throws
+                IOException
+        {
+            return new TestMessage( getVarLong( buf ));
+        }
+    }
+
+    /**
+     * A codec for TestMessages that knows the size of the encoded messages.
+     */
+    static class SizedTestMessageCodec
+            extends
+                TestMessageCodec
+    {
+        /**
+         * Determine the number of bytes of an encoded message.
+         *
+         * @param message the message
+         * @return the number of bytes
+         */
+        @Override
+        public int encodedSize(
+                TestMessage message )
+        {
+            return varLongSize( message.getRequestId() ) + varLongSize( message.getResponseId() ) + varLongSize( message.getPayload() );
+        }
+
+        /**
+         * Determine the number of bytes putVarLong writes for a value.
+         *
+         * @param value the value
+         * @return the number of bytes
+         */
+        protected static int varLongSize(
+                long value )
+        {
+            return unsignedVarLongSize( ( value << 1 ) ^ ( value >> 63 ));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.AbstractMessageEndpointListener;
+import org.infogrid.comm.ConcurrentMessageQueue;
+import org.infogrid.comm.MessageJournal;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.comm.pingpong.PingPongMessageJournal;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the MessageJournal: recovery of pending messages, segment rollover,
+ * torn records, and restoring an MPingPongMessageEndpoint.
+ */
+public class MessageJournalTest1
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        File dir1 = new File( theTempDir, "journal1" );
+
+        //
+
+        log.info( "Enqueuing and sending, with small segments" );
+
+        MessageJournal<String>         journal = MessageJournal.open( dir1, SerializingMessageCodec.<String>create(), 2048 );
+        ConcurrentMessageQueue<String> queue   = journal.getMessagesToBeSent();
+
+        Assert.assertTrue( "New journal not empty", queue.isEmpty() );
+
+        for( int i=0 ; i<100 ; ++i ) {
+            queue.add( "message-" + i );
+        }
+        List<String> batch = queue.drainBatch( 60 );
+        queue.acknowledge( batch );
+        for( String sent : batch ) {
+            journal.messageSent( null, sent );
+        }
+        Assert.assertEquals( "Wrong number pending", 40, journal.getPendingCount() );
+        journal.close();
+
+        Assert.assertEquals( "Old segments not deleted", 1, dir1.listFiles().length );
+
+        //
+
+        log.info( "Recovering" );
+
+        journal = MessageJournal.open( dir1, SerializingMessageCodec.<String>create(), 2048 );
+        queue   = journal.getMessagesToBeSent();
+
+        Assert.assertEquals( "Wrong number of recovered messages", 40, queue.size() );
+        for( int i=0 ; i<40 ; ++i ) {
+            Assert.assertEquals( "Wrong recovered message", "message-" + ( 60+i ), queue.get( i ));
+        }
+
+        queue.add( "last" );
+        journal.close();
+
+        //
+
+        log.info( "Tearing the last record" );
+
+        File [] segments = dir1.listFiles();
+        Assert.assertEquals( "Wrong number of segments", 1, segments.length );
+
+        RandomAccessFile raf = new RandomAccessFile( segments[0], "rw" );
+        long last = raf.length()-1;
+        while( last >= 0 ) {
+            raf.seek( last );
+            if( raf.read() != 0 ) {
+                break;
+            }
+            --last;
+        }
+        raf.seek( last );
+        raf.write( 0x55 );
+        raf.close();
+
+        journal = MessageJournal.open( dir1, SerializingMessageCodec.<String>create(), 2048 );
+        queue   = journal.getMessagesToBeSent();
+
+        Assert.assertEquals( "Torn record not ignored", 40, queue.size() );
+        Assert.assertEquals( "Wrong last message", "message-99", queue.get( 39 ));
+        journal.close();
+
+        //
+
+        log.info( "Restoring a ping-pong endpoint" );
+
+        File dir2 = new File( theTempDir, "journal2" );
+
+        PingPongMessageJournal<String>   journal2 = PingPongMessageJournal.open( dir2, SerializingMessageCodec.<String>create() );
+        MPingPongMessageEndpoint<String> ep1      = MPingPongMessageEndpoint.restore( "ep1", 100L, 10L, 50L, 500L, 0., exec, journal2 );
+
+        for( int i=0 ; i<5 ; ++i ) {
+            ep1.enqueueMessageForSend( "lost-" + i ); // no partner: cannot be sent
+        }
+        sleepFor( 100L );
+        ep1.gracefulDie();
+        journal2.close();
+
+        journal2 = PingPongMessageJournal.open( dir2, SerializingMessageCodec.<String>create() );
+        Assert.assertEquals( "Wrong number of recovered messages", 5, journal2.getPendingCount() );
+
+        MPingPongMessageEndpoint<String> ep1b = MPingPongMessageEndpoint.restore( "ep1b", 100L, 10L, 50L, 500L, 0., exec, journal2 );
+        MPingPongMessageEndpoint<String> ep2  = MPingPongMessageEndpoint.create(  "ep2",  100L, 10L, 50L, 500L, 0., exec );
+
+        final List<String> received = new ArrayList<String>();
+        ep2.addDirectMessageEndpointListener( new AbstractMessageEndpointListener<String>() {
+                @Override
+                public void messageReceived(
+                        ReceivingMessageEndpoint<String> endpoint,
+                        List<String>                     msgs )
+                {
+                    synchronized( received ) {
+                        received.addAll( msgs );
+                    }
+                }
+        });
+
+        ep1b.setPartnerAndInitiateCommunications( ep2 );
+
+        sleepFor( 1000L );
+
+        ep1b.stopCommunicating();
+        ep2.stopCommunicating();
+
+        synchronized( received ) {
+            Assert.assertEquals( "Wrong number of messages received", 5, received.size() );
+            for( int i=0 ; i<5 ; ++i ) {
+                Assert.assertEquals( "Wrong message received", "lost-" + i, received.get( i ));
+            }
+        }
+        Assert.assertEquals( "Sent messages not truncated", 0, journal2.getPendingCount() );
+        Assert.assertTrue( "No token recorded", journal2.getLastSentToken() > 0 );
+
+        journal2.close();
+    }
+
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        exec       = createThreadPool( 1 );
+        theTempDir = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+    }
+
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+
+        delete( theTempDir );
+    }
+
+    /**
+     * Recursively delete a directory.
+     *
+     * @param file the File to delete
+     */
+    protected static void delete(
+            File file )
+    {
+        File [] children = file.listFiles();
+        if( children != null ) {
+            for( File current : children ) {
+                delete( current );
+            }
+        }
+        file.delete();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( MessageJournalTest1.class );
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Temporary directory for the journals.
+     */
+    protected File theTempDir;
+}
@@ -0,0 +1,209 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageCodec;
+import org.infogrid.comm.MessageJournal;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that threads enqueuing into an endpoint with a MessageJournal concurrently share
+ * the forces to disk, i.e. that the endpoint does not hold a lock while the journal commits.
+ */
+public class MessageJournalTest2
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        SlowCommitMessageJournal<String> journal = SlowCommitMessageJournal.open(
+                new File( theTempDir, "journal" ),
+                SerializingMessageCodec.<String>create() );
+
+        final MPingPongMessageEndpoint<String> ep = MPingPongMessageEndpoint.restore(
+                "ep", 100L, 10L, 50L, 500L, 0., exec,
+                journal.getLastSentToken(),
+                journal.getLastReceivedToken(),
+                journal.getMessagesSentLast(),
+                journal.getMessagesToBeSent() ); // no partner: messages stay in the journal
+        ep.addDirectMessageEndpointListener( journal );
+
+        log.info( "Enqueuing from " + THREADS + " threads" );
+
+        final CyclicBarrier barrier = new CyclicBarrier( THREADS );
+        final List<Throwable> errors = new ArrayList<Throwable>();
+
+        Thread [] threads = new Thread[ THREADS ];
+        for( int i=0 ; i<THREADS ; ++i ) {
+            final int index = i;
+            threads[i] = new Thread( "adder-" + i ) {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            barrier.await();
+                            for( int j=0 ; j<PER_THREAD ; ++j ) {
+                                ep.enqueueMessageForSend( "message-" + index + "-" + j );
+                            }
+                        } catch( Throwable t ) {
+                            synchronized( errors ) {
+                                errors.add( t );
+                            }
+                        }
+                    }
+            };
+            threads[i].start();
+        }
+        for( Thread current : threads ) {
+            current.join();
+        }
+
+        Assert.assertTrue( "Errors: " + errors, errors.isEmpty() );
+        Assert.assertEquals( "Wrong number pending", THREADS * PER_THREAD, journal.getPendingCount() );
+
+        long forces = journal.getForceCount();
+        log.info( "Forced " + forces + " times for " + ( THREADS * PER_THREAD ) + " messages" );
+
+        // every add waits COMMIT_DELAY before committing; if the adders were serialized, there
+        // would be one force per message
+        Assert.assertTrue( "Adders did not share forces: " + forces, forces <= THREADS * PER_THREAD / 2 );
+
+        ep.gracefulDie();
+        journal.close();
+    }
+
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        exec       = createThreadPool( 1 );
+        theTempDir = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+    }
+
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+
+        MessageJournalTest1.delete( theTempDir );
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( MessageJournalTest2.class );
+
+    /**
+     * The number of threads enqueuing messages.
+     */
+    protected static final int THREADS = 8;
+
+    /**
+     * The number of messages enqueued by each thread.
+     */
+    protected static final int PER_THREAD = 25;
+
+    /**
+     * The time, in milliseconds, that each commit is delayed, so adders overlap.
+     */
+    protected static final long COMMIT_DELAY = 5L;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Temporary directory for the journal.
+     */
+    protected File theTempDir;
+
+    /**
+     * A MessageJournal that waits a little before each commit, as a slow disk would.
+     *
+     * @param <T> the message type
+     */
+    public static class SlowCommitMessageJournal<T>
+            extends
+                MessageJournal<T>
+    {
+        /**
+         * Factory method.
+         *
+         * @param directory the directory holding the segment files
+         * @param codec the MessageCodec to encode messages with
+         * @return the opened SlowCommitMessageJournal
+         * @throws IOException thrown if the journal could not be opened
+         * @param <T> the message type
+         */
+        public static <T> SlowCommitMessageJournal<T> open(
+                File            directory,
+                MessageCodec<T> codec )
+            throws
+                IOException
+        {
+            SlowCommitMessageJournal<T> ret = new SlowCommitMessageJournal<T>( directory, codec );
+            ret.recover();
+            return ret;
+        }
+
+        /**
+         * Constructor, use factory method.
+         *
+         * @param directory the directory holding the segment files
+         * @param codec the MessageCodec to encode messages with
+         */
+        protected SlowCommitMessageJournal(
+                File            directory,
+                MessageCodec<T> codec )
+        {
+            super( directory, codec, DEFAULT_SEGMENT_SIZE );
+        }
+
+        /**
+         * Wait, then commit.
+         *
+         * @param position the logical position
+         */
+        @Override
+        protected void commit(
+                long position )
+        {
+            try {
+                Thread.sleep( COMMIT_DELAY );
+            } catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+            super.commit( position );
+        }
+    }
+}
@@ -0,0 +1,117 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.infogrid.comm.ReturnSynchronizerEndpoint;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.ReturnSynchronizer;
+import org.infogrid.util.ReturnSynchronizerException;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the results of many ReturnSynchronizer transactions can be aggregated
+ * without blocking a thread per transaction.
+ */
+public class PingPongReturnSynchronizerTest3
+        extends
+            AbstractPingPongRpcTest
+{
+    @Test
+    public void run()
+            throws
+                Throwable
+    {
+        MPingPongMessageEndpoint<TestMessage> ep1 = MPingPongMessageEndpoint.create( "ep1", 100L, 100L, 500L, 10000L, 0.f, exec );
+        MPingPongMessageEndpoint<TestMessage> ep2 = MPingPongMessageEndpoint.create( "ep2", 100L, 100L, 500L, 10000L, 0.f, exec );
+
+        PingPongRpcTest3.SquaringResponder l2 = new PingPongRpcTest3.SquaringResponder( ep2, this );
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        ReturnSynchronizer<Long,TestMessage>    synchronizer = ReturnSynchronizer.create();
+        ReturnSynchronizerEndpoint<TestMessage> client       = ReturnSynchronizerEndpoint.create( synchronizer, ep1 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        log.info( "Aggregating " + N_TRANSACTIONS + " transactions" );
+
+        List<CompletableFuture<Map<Long,TestMessage>>> futures = new ArrayList<CompletableFuture<Map<Long,TestMessage>>>( N_TRANSACTIONS );
+        List<List<TestMessage>>                        sent    = new ArrayList<List<TestMessage>>( N_TRANSACTIONS );
+
+        for( int i=0 ; i<N_TRANSACTIONS ; ++i ) {
+            List<TestMessage> messages = new ArrayList<TestMessage>( N_CALLS );
+            for( int j=0 ; j<N_CALLS ; ++j ) {
+                messages.add( new TestMessage( i*N_CALLS + j ));
+            }
+            sent.add( messages );
+            futures.add( client.callAll( messages ));
+        }
+        Assert.assertNull( "transaction bound to thread", synchronizer.getTransaction( Thread.currentThread() ));
+
+        CompletableFuture.allOf( futures.toArray( new CompletableFuture<?>[ futures.size() ] )).get( 30L, TimeUnit.SECONDS );
+
+        for( int i=0 ; i<N_TRANSACTIONS ; ++i ) {
+            Map<Long,TestMessage> results = futures.get( i ).get();
+
+            Assert.assertEquals( "wrong number of results for transaction " + i, N_CALLS, results.size() );
+            for( TestMessage current : sent.get( i )) {
+                TestMessage response = results.get( current.getRequestId() );
+
+                Assert.assertNotNull( "no response for " + current.getPayload(), response );
+                Assert.assertEquals( "wrong result", current.getPayload() * current.getPayload(), response.getPayload() );
+            }
+        }
+        Assert.assertTrue( "transactions not ended", synchronizer.areAllQueriesComplete() );
+
+        log.info( "Disabling error" );
+
+        ReturnSynchronizer<Long,TestMessage>.Transaction tx = synchronizer.createTransaction();
+        client.call( tx, new TestMessage( -1L )); // will not be answered
+
+        CompletableFuture<Map<Long,TestMessage>> future = tx.toCompletableFuture();
+        Assert.assertFalse( "completed prematurely", future.isDone() );
+
+        synchronizer.disablingError( null );
+
+        try {
+            future.get( 1000L, TimeUnit.MILLISECONDS );
+            Assert.fail( "should have completed exceptionally" );
+
+        } catch( ExecutionException ex ) {
+            Assert.assertTrue( "wrong cause", ex.getCause() instanceof ReturnSynchronizerException.Disabled );
+        }
+        tx.endTransaction();
+    }
+
+    /**
+     * The number of transactions.
+     */
+    protected static final int N_TRANSACTIONS = 200;
+
+    /**
+     * The number of calls per transaction.
+     */
+    protected static final int N_CALLS = 5;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongReturnSynchronizerTest3.class );
+}
@@ -0,0 +1,237 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.WaitForResponseEndpoint;
+import org.infogrid.comm.pingpong.PingPongMessageEndpoint;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.RemoteQueryTimeoutException;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that many asynchronous remote procedure calls can be ongoing at the same time
+ * without a thread each, that they time out unless the timeout is 0, that calls abandoned
+ * by the caller are forgotten, and that failures to send are reported to the caller.
+ */
+public class PingPongRpcTest3
+        extends
+            AbstractPingPongRpcTest
+{
+    @Test
+    public void run()
+            throws
+                Throwable
+    {
+        MPingPongMessageEndpoint<TestMessage> ep1 = MPingPongMessageEndpoint.create( "ep1", 100L, 100L, 500L, 10000L, 0.f, exec );
+        MPingPongMessageEndpoint<TestMessage> ep2 = MPingPongMessageEndpoint.create( "ep2", 100L, 100L, 500L, 10000L, 0.f, exec );
+
+        SquaringResponder l2 = new SquaringResponder( ep2, this );
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        WaitForResponseEndpoint<TestMessage> client = WaitForResponseEndpoint.create( ep1 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        //
+
+        log.info( "Fanning out " + N_CALLS + " calls" );
+
+        List<CompletableFuture<TestMessage>> futures = new ArrayList<CompletableFuture<TestMessage>>( N_CALLS );
+        for( int i=0 ; i<N_CALLS ; ++i ) {
+            futures.add( client.callAsync( new TestMessage( i ), 10000L ));
+        }
+
+        for( int i=0 ; i<N_CALLS ; ++i ) {
+            TestMessage response = futures.get( i ).get();
+
+            Assert.assertEquals( "wrong result for i=" + i, (long) i*i, response.getPayload() );
+            Assert.assertFalse( "still waiting for i=" + i, client.isCallWaitingFor( response.getResponseId() ));
+        }
+
+        //
+
+        log.info( "Asynchronous call that times out" );
+
+        TestMessage                   unanswered = new TestMessage( -1L );
+        CompletableFuture<TestMessage> future    = client.callAsync( unanswered, 300L );
+
+        Assert.assertTrue( "not waiting", client.isCallWaitingFor( unanswered.getRequestId() ));
+        try {
+            future.get();
+            Assert.fail( "No timeout" );
+
+        } catch( ExecutionException ex ) {
+            Assert.assertTrue( "wrong cause: " + ex.getCause(), ex.getCause() instanceof RemoteQueryTimeoutException );
+        }
+        Assert.assertFalse( "still waiting", client.isCallWaitingFor( unanswered.getRequestId() ));
+
+        //
+
+        log.info( "Synchronous call that times out" );
+
+        long start = System.currentTimeMillis();
+        try {
+            client.call( new TestMessage( -2L ), 300L );
+            Assert.fail( "No timeout" );
+
+        } catch( RemoteQueryTimeoutException ex ) {
+            // expected
+        }
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertTrue( "timed out too early: " + duration, duration >= 250L );
+        Assert.assertTrue( "timed out too late: " + duration, duration < 1000L );
+
+        //
+
+        log.info( "Synchronous call that succeeds" );
+
+        TestMessage response = client.call( new TestMessage( 7L ));
+        Assert.assertEquals( "wrong result", 49L, response.getPayload() );
+
+        //
+
+        log.info( "Calls without timeout" );
+
+        response = client.call( new TestMessage( 5L ), 0L );
+        Assert.assertEquals( "wrong result", 25L, response.getPayload() );
+
+        unanswered = new TestMessage( -3L );
+        future     = client.callAsync( unanswered, 0L );
+
+        sleepFor( 500L );
+        Assert.assertFalse( "timed out", future.isDone() );
+        Assert.assertTrue( "not waiting", client.isCallWaitingFor( unanswered.getRequestId() ));
+
+        //
+
+        log.info( "Calls abandoned by the caller" );
+
+        future.cancel( false );
+        Assert.assertFalse( "still waiting after cancel", client.isCallWaitingFor( unanswered.getRequestId() ));
+
+        unanswered = new TestMessage( -4L );
+        future     = client.callAsync( unanswered, 10000L );
+
+        Assert.assertTrue( "not waiting", client.isCallWaitingFor( unanswered.getRequestId() ));
+        future.complete( null );
+        Assert.assertFalse( "still waiting after complete", client.isCallWaitingFor( unanswered.getRequestId() ));
+
+        //
+
+        log.info( "Calls through a dead endpoint" );
+
+        ep1.gracefulDie();
+
+        TestMessage undeliverable = new TestMessage( 8L );
+        try {
+            client.call( undeliverable );
+            Assert.fail( "Call through dead endpoint succeeded" );
+
+        } catch( IllegalStateException ex ) {
+            // expected: thrown by the endpoint, not wrapped
+        }
+        Assert.assertFalse( "still waiting", client.isCallWaitingFor( undeliverable.getRequestId() ));
+
+        future = client.callAsync( new TestMessage( 9L ));
+        try {
+            future.get();
+            Assert.fail( "Asynchronous call through dead endpoint succeeded" );
+
+        } catch( ExecutionException ex ) {
+            Assert.assertTrue( "wrong cause: " + ex.getCause(), ex.getCause() instanceof IllegalStateException );
+        }
+    }
+
+    /**
+     * The number of concurrent calls.
+     */
+    protected static final int N_CALLS = 1000;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongRpcTest3.class );
+
+    /**
+     * Responds to each incoming message with the square of its payload, but does not
+     * respond to negative payloads.
+     */
+    static class SquaringResponder
+            extends
+                AbstractPingPongListener
+    {
+        /**
+         * Constructor.
+         *
+         * @param end the endpoint where this listener listens
+         * @param test the test currently being run
+         */
+        public SquaringResponder(
+                PingPongMessageEndpoint<TestMessage> end,
+                Object                               test )
+        {
+            super( end, test );
+        }
+
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<TestMessage> endpoint,
+                List<TestMessage>                     msgs )
+        {
+            for( TestMessage msg : msgs ) {
+                long payload = msg.getPayload();
+                if( payload < 0 ) {
+                    continue;
+                }
+                TestMessage returnMessage = new TestMessage( payload * payload );
+                returnMessage.setResponseId( msg.getRequestId() );
+
+                theEndpoint.enqueueMessageForSend( returnMessage );
+            }
+        }
+
+        /**
+         * Called when the token has been received.
+         *
+         * @param endpoint the PingPongMessageEndpoint that sent this event
+         * @param token the received token
+         */
+        public void tokenReceived(
+                PingPongMessageEndpoint<TestMessage> endpoint,
+                long                                 token )
+        {
+            // ignore
+        }
+
+        /**
+          * Tell this object that we don't need it any more.
+          */
+        public void die()
+        {
+            // nothing
+        }
+    }
+}
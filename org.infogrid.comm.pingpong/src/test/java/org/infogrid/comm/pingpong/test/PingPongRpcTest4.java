@@ -0,0 +1,127 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.infogrid.comm.WaitForResponseEndpoint;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that a large number of Threads can make blocking remote procedure calls at the same
+ * time. Where the JDK supports virtual Threads, each call runs on its own virtual Thread;
+ * otherwise, the calls run on a large pool of platform Threads.
+ */
+public class PingPongRpcTest4
+        extends
+            AbstractPingPongRpcTest
+{
+    @Test
+    public void run()
+            throws
+                Throwable
+    {
+        MPingPongMessageEndpoint<TestMessage> ep1 = MPingPongMessageEndpoint.create( "ep1", 20L, 1L, 500L, 10000L, 0.f, exec );
+        MPingPongMessageEndpoint<TestMessage> ep2 = MPingPongMessageEndpoint.create( "ep2", 20L, 1L, 500L, 10000L, 0.f, exec );
+
+        PingPongRpcTest3.SquaringResponder l2 = new PingPongRpcTest3.SquaringResponder( ep2, this );
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        final WaitForResponseEndpoint<TestMessage> client = WaitForResponseEndpoint.create( ep1 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        //
+
+        ExecutorService callers = createCallerExecutor();
+
+        log.info( "Making " + N_CALLS + " blocking calls on " + callers );
+
+        final AtomicInteger              succeeded = new AtomicInteger();
+        final AtomicReference<Throwable> failure   = new AtomicReference<Throwable>();
+
+        long start = startClock();
+        for( int i=0 ; i<N_CALLS ; ++i ) {
+            final long payload = i % 10000;
+
+            callers.execute( new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            TestMessage response = client.call( new TestMessage( payload ), 60000L );
+                            if( response.getPayload() == payload * payload ) {
+                                succeeded.incrementAndGet();
+                            } else {
+                                failure.compareAndSet( null, new AssertionError( "wrong result for " + payload + ": " + response.getPayload() ));
+                            }
+                        } catch( Throwable t ) {
+                            failure.compareAndSet( null, t );
+                        }
+                    }
+            });
+        }
+        callers.shutdown();
+        Assert.assertTrue( "calls did not complete", callers.awaitTermination( 120L, TimeUnit.SECONDS ));
+
+        log.info( "Completed " + N_CALLS + " calls in " + ( System.currentTimeMillis() - start ) + " msec" );
+
+        if( failure.get() != null ) {
+            throw failure.get();
+        }
+        Assert.assertEquals( "wrong number of successful calls", N_CALLS, succeeded.get() );
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+    }
+
+    /**
+     * Create the ExecutorService on which the calls run: one virtual Thread per call if the
+     * JDK supports it, otherwise a large pool of platform Threads.
+     *
+     * @return the ExecutorService
+     */
+    protected ExecutorService createCallerExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+
+        } catch( NoSuchMethodException ex ) {
+            // no virtual Threads on this JDK
+        } catch( Exception ex ) {
+            log.warn( "Cannot create virtual Threads", ex );
+        }
+        return Executors.newFixedThreadPool( N_PLATFORM_THREADS );
+    }
+
+    /**
+     * The number of calls.
+     */
+    protected static final int N_CALLS = 100000;
+
+    /**
+     * The number of platform Threads making calls at the same time, if virtual Threads are not supported.
+     */
+    protected static final int N_PLATFORM_THREADS = 1000;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongRpcTest4.class );
+}
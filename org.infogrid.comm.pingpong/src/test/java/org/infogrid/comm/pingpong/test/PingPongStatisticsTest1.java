@@ -0,0 +1,155 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.pingpong.PingPongMessageEndpointStatistics;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.ToStringDumper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that PingPongMessageEndpointStatistics records latencies, batch sizes, round-trip
+ * times and recovers, in the classic ping-pong protocol and in windowed mode, over a link
+ * that drops messages.
+ */
+public class PingPongStatisticsTest1
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        for( int windowSize : new int[] { 0, 4 } ) {
+            log.info( "Running with window size " + windowSize );
+
+            PingPongMessageEndpointStatistics<Long> stats = runOnce( windowSize );
+
+            ToStringDumper d = ToStringDumper.create();
+            d.dump( stats );
+            String dumped = d.getBuffer();
+
+            log.info( dumped );
+
+            Assert.assertEquals( "wrong number of enqueued messages", N, stats.getEnqueuedCount() );
+            Assert.assertTrue( "too few sent messages", stats.getSentCount() >= N ); // resent messages count again
+            Assert.assertEquals( "wrong number of latencies",         N, stats.getEnqueueToSentLatency().getCount() );
+            Assert.assertEquals( "nothing received expected",         0, stats.getReceivedCount() );
+            Assert.assertTrue( "no recovers despite drops",  stats.getRecoverCount() > 0 );
+            Assert.assertTrue( "no batches",                 stats.getBatchSize().getCount() > 0 );
+            Assert.assertTrue( "batches too large",          stats.getBatchSize().getMax() <= N );
+            Assert.assertTrue( "no queue depth",             stats.getQueueDepth().getCount() >= N );
+            Assert.assertTrue( "no round trips",             stats.getRoundTripTime().getCount() > 0 );
+            Assert.assertTrue(
+                    "round trip faster than the link: " + stats.getRoundTripTime(),
+                    stats.getRoundTripTime().getMin() >= 2 * LATENCY * 1000L * 9 / 10 );
+            Assert.assertTrue(
+                    "round trip slower than the recover delay: " + stats.getRoundTripTime(),
+                    stats.getRoundTripTime().getPercentile( 0.5 ) < DELTA_RECOVER * 1000L );
+            Assert.assertTrue( "histograms not dumped", dumped.contains( "roundTripTime" ) && dumped.contains( "p99" ));
+
+            stats.reset();
+            Assert.assertEquals( "not reset", 0, stats.getRoundTripTime().getCount() );
+            Assert.assertEquals( "not reset", 0, stats.getSentCount() );
+        }
+    }
+
+    /**
+     * Send N messages from one endpoint to the other, and collect statistics on the sending side.
+     *
+     * @param windowSize the window size, or 0 for classic ping-pong
+     * @return the statistics
+     * @throws Exception all sorts of things may go wrong in a test
+     */
+    protected PingPongMessageEndpointStatistics<Long> runOnce(
+            int windowSize )
+        throws
+            Exception
+    {
+        LatencyMPingPongMessageEndpoint<Long> ep1 = LatencyMPingPongMessageEndpoint.create( "ep1", 50L, 5L, 100L, DELTA_RECOVER, LATENCY, 5, exec );
+        LatencyMPingPongMessageEndpoint<Long> ep2 = LatencyMPingPongMessageEndpoint.create( "ep2", 50L, 5L, 100L, DELTA_RECOVER, LATENCY, 5, exec );
+        ep1.setWindowSize( windowSize );
+        ep2.setWindowSize( windowSize );
+
+        PingPongMessageEndpointStatistics<Long> stats = PingPongMessageEndpointStatistics.create();
+        ep1.addDirectMessageEndpointListener( stats );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        for( long i=0 ; i<N ; ++i ) {
+            ep1.enqueueMessageForSend( i );
+            sleepFor( 5L );
+        }
+
+        // the endpoints keep ping-ponging and dropping, so wait for everything we assert on
+        // rather than for a fixed time
+        long deadline = System.currentTimeMillis() + 20000L;
+        while(    (    stats.getEnqueueToSentLatency().getCount() < N
+                    || stats.getRecoverCount() == 0
+                    || stats.getRoundTripTime().getCount() == 0 )
+               && System.currentTimeMillis() < deadline )
+        {
+            sleepFor( 100L );
+        }
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+        ep1.gracefulDie();
+        ep2.gracefulDie();
+
+        return stats;
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 2 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongStatisticsTest1.class );
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 100;
+
+    /**
+     * The simulated one-way latency of the link, in milliseconds.
+     */
+    protected static final long LATENCY = 20L;
+
+    /**
+     * The recover delay, in milliseconds.
+     */
+    protected static final long DELTA_RECOVER = 300L;
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+}
@@ -0,0 +1,122 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.infogrid.comm.MessageEndpointStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that MessageEndpointStatistics keeps its latency bookkeeping straight regardless of
+ * the order of events, and that messages which are never sent do not stay tracked.
+ */
+public class PingPongStatisticsTest2
+{
+    /**
+     * A concurrent sender may report a message as sent before its enqueue has been reported.
+     */
+    @Test
+    public void sentBeforeEnqueued()
+    {
+        MessageEndpointStatistics<Object> stats = MessageEndpointStatistics.create();
+
+        Object msg = new Object();
+        stats.messageEnqueuing( null, msg );
+        stats.messageSent(      null, msg );
+        stats.messageEnqueued(  null, msg );
+
+        Assert.assertEquals( "latency not recorded", 1, stats.getEnqueueToSentLatency().getCount() );
+        Assert.assertEquals( "message still tracked", 0, stats.getTrackedCount() );
+
+        stats.messageSent( null, msg ); // a resend
+        Assert.assertEquals( "resend recorded as latency", 1, stats.getEnqueueToSentLatency().getCount() );
+    }
+
+    /**
+     * Messages still queued when the endpoint dies are forgotten.
+     */
+    @Test
+    public void droppedOnDie()
+    {
+        MessageEndpointStatistics<Object> stats = MessageEndpointStatistics.create();
+
+        List<Object> queued = new ArrayList<Object>();
+        for( int i=0 ; i<10 ; ++i ) {
+            Object msg = new Object();
+            stats.messageEnqueuing( null, msg );
+            stats.messageEnqueued(  null, msg );
+            queued.add( msg );
+        }
+        Assert.assertEquals( "not tracked", queued.size(), stats.getTrackedCount() );
+
+        stats.disablingError( null, queued, new RuntimeException( "dead" ));
+
+        Assert.assertEquals( "message still tracked", 0, stats.getTrackedCount() );
+        Assert.assertEquals( "no latency expected",   0, stats.getEnqueueToSentLatency().getCount() );
+    }
+
+    /**
+     * Messages that are never sent are counted as untracked once the cap is hit, and
+     * are forgotten once they are older than the maximum tracked age.
+     *
+     * @throws Exception all sorts of things may go wrong in a test
+     */
+    @Test
+    public void neverSent()
+        throws
+            Exception
+    {
+        MessageEndpointStatistics<Object> stats = MessageEndpointStatistics.create( 1L );
+
+        List<Object> keep = new ArrayList<Object>( 2*N );
+        for( int i=0 ; i<N ; ++i ) {
+            Object msg = new Object();
+            keep.add( msg ); // so identity hash codes stay distinct
+            stats.messageEnqueuing( null, msg );
+        }
+        Thread.sleep( 10L );
+        for( int i=0 ; i<N ; ++i ) {
+            Object msg = new Object();
+            keep.add( msg );
+            stats.messageEnqueuing( null, msg );
+        }
+
+        Assert.assertTrue( "nothing expired", stats.getExpiredCount() > 0 );
+        Assert.assertTrue( "tracking without limit", stats.getTrackedCount() < N );
+
+        MessageEndpointStatistics<Object> capped = MessageEndpointStatistics.create();
+        for( Object msg : keep ) {
+            capped.messageEnqueuing( null, msg );
+        }
+        Assert.assertTrue( "cap not signaled", capped.getUntrackedCount() > 0 );
+        Assert.assertEquals( "nothing should expire", 0, capped.getExpiredCount() );
+        Assert.assertEquals( "lost messages", keep.size(), capped.getTrackedCount() + capped.getUntrackedCount() );
+
+        capped.disablingError( null, keep, new RuntimeException( "dead" ));
+        Assert.assertEquals( "message still tracked", 0, capped.getTrackedCount() );
+
+        capped.disablingError( null, Collections.emptyList(), null );
+    }
+
+    /**
+     * The number of messages per round, more than can be tracked.
+     */
+    protected static final int N = 100000;
+}
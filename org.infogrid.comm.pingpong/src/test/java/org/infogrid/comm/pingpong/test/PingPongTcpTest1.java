@@ -0,0 +1,340 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.comm.pingpong.tcp.TcpPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests TcpPingPongMessageEndpoints over loopback, including the re-establishment of a
+ * broken connection, and windowed mode with messages larger than the pooled buffers.
+ */
+public class PingPongTcpTest1
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        InetSocketAddress loopback = new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 );
+
+        //
+
+        log.info( "Classic ping-pong over TCP" );
+
+        TcpPingPongMessageEndpoint<String> server = TcpPingPongMessageEndpoint.createServer(
+                "server", 200L, 10L, 100L, 1000L, 0., loopback, SerializingMessageCodec.<String>create(), exec );
+        TcpPingPongMessageEndpoint<String> client = TcpPingPongMessageEndpoint.createClient(
+                "client", 200L, 10L, 100L, 1000L, 0., server.getLocalAddress(), SerializingMessageCodec.<String>create(), exec );
+
+        MyListener l1 = new MyListener( server, "s" );
+        MyListener l2 = new MyListener( client, "c" );
+        server.addDirectMessageEndpointListener( l1 );
+        client.addDirectMessageEndpointListener( l2 );
+
+        client.startCommunicating();
+        client.enqueueMessageForSend( "seed" );
+
+        sleepFor( 1500L );
+
+        Assert.assertTrue( "Client not connected", client.isConnected() );
+        Assert.assertTrue( "Server received too few messages: " + l1.received.size(), l1.received.size() >= 3 );
+        Assert.assertTrue( "Client received too few messages: " + l2.received.size(), l2.received.size() >= 3 );
+        Assert.assertEquals( "Wrong first message", "seed", l1.received.get( 0 ));
+        Assert.assertEquals( "Wrong second message", "sseed", l2.received.get( 0 ));
+
+        log.info( "Breaking the connection" );
+
+        int before = l1.received.size();
+        client.disconnect();
+
+        sleepFor( 3000L );
+
+        Assert.assertTrue( "Client did not reconnect", client.isConnected() );
+        Assert.assertTrue( "Server received no more messages after reconnect: " + l1.received.size(), l1.received.size() > before );
+
+        String last = l1.received.get( l1.received.size()-1 );
+        Assert.assertTrue( "Messages lost: " + last, last.length() >= 2 * ( l1.received.size() - 1 ) + 4 );
+
+        client.gracefulDie();
+        server.gracefulDie();
+
+        //
+
+        log.info( "Windowed mode over TCP" );
+
+        TcpPingPongMessageEndpoint<String> server2 = TcpPingPongMessageEndpoint.createServer(
+                "server2", 200L, 5L, 100L, 1000L, 0., loopback, SerializingMessageCodec.<String>create(), exec );
+        TcpPingPongMessageEndpoint<String> client2 = TcpPingPongMessageEndpoint.createClient(
+                "client2", 200L, 5L, 100L, 1000L, 0., server2.getLocalAddress(), SerializingMessageCodec.<String>create(), exec );
+        server2.setWindowSize( 4 );
+        client2.setWindowSize( 4 );
+
+        MyListener l3 = new MyListener( server2, null );
+        server2.addDirectMessageEndpointListener( l3 );
+
+        client2.startCommunicating();
+
+        StringBuilder big = new StringBuilder();
+        for( int i=0 ; i<20000 ; ++i ) {
+            big.append( (char) ( 'a' + i % 26 ));
+        }
+        for( int i=0 ; i<N ; ++i ) {
+            client2.enqueueMessageForSend( i == N/2 ? big.toString() : String.valueOf( i ));
+            if( i % 10 == 0 ) {
+                sleepFor( 5L );
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while( l3.received.size() < N && System.currentTimeMillis() < deadline ) {
+            sleepFor( 50L );
+        }
+
+        client2.gracefulDie();
+        server2.gracefulDie();
+
+        Assert.assertEquals( "Wrong number of messages received", N, l3.received.size() );
+        for( int i=0 ; i<N ; ++i ) {
+            Assert.assertEquals( "Wrong message received", i == N/2 ? big.toString() : String.valueOf( i ), l3.received.get( i ));
+        }
+    }
+
+    @Test
+    public void hostileFrames()
+            throws
+                Exception
+    {
+        FrameProcessor ep = new FrameProcessor( exec );
+
+        ByteBuffer frame = ByteBuffer.allocate( 20 );
+        frame.put( (byte) 1 ); // FRAME_TOKEN
+        frame.putLong( 1L );
+        frame.putInt( Integer.MAX_VALUE ); // message count
+        frame.flip();
+
+        try {
+            ep.processFrame( frame );
+            Assert.fail( "Message count accepted" );
+
+        } catch( IOException ex ) {
+            log.debug( "Expected", ex );
+        }
+
+        frame.clear();
+        frame.put( (byte) 1 );
+        frame.putLong( 1L );
+        frame.putInt( 1 );
+        frame.putInt( 1000 ); // message length
+        frame.flip();
+
+        try {
+            ep.processFrame( frame );
+            Assert.fail( "Message length accepted" );
+
+        } catch( IOException ex ) {
+            log.debug( "Expected", ex );
+        }
+
+        ep.gracefulDie();
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 2 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTcpTest1.class );
+
+    /**
+     * The number of messages to send in windowed mode.
+     */
+    protected static final int N = 100;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Gives access to the decoding of incoming frames, without a connection.
+     */
+    static class FrameProcessor
+            extends
+                TcpPingPongMessageEndpoint<String>
+    {
+        public FrameProcessor(
+                ScheduledExecutorService exec )
+        {
+            super( "frames", 200L, 10L, 100L, 1000L, 0., exec, null, null, SerializingMessageCodec.<String>create(), theDefaultBufferPool );
+        }
+
+        @Override
+        public void processFrame(
+                ByteBuffer frame )
+            throws
+                IOException
+        {
+            super.processFrame( frame );
+        }
+    }
+
+    /**
+     * Listener.
+     */
+    class MyListener
+            implements
+                MessageEndpointListener<String>
+    {
+        /**
+         * Constructor.
+         *
+         * @param end the endpoint to respond through
+         * @param prefix the String to prepend to a received message before responding, or null if no response
+         */
+        public MyListener(
+                TcpPingPongMessageEndpoint<String> end,
+                String                             prefix )
+        {
+            theEndpoint = end;
+            thePrefix   = prefix;
+        }
+
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<String> endpoint,
+                List<String>                     msgs )
+        {
+            log.traceMethodCallEntry( this, "messageReceived", msgs );
+
+            synchronized( received ) {
+                received.addAll( msgs );
+            }
+            if( thePrefix != null ) {
+                theEndpoint.enqueueMessageForSend( thePrefix + msgs.get( msgs.size()-1 ));
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageSent", endpoint, msg );
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageEnqueued", endpoint, msg );
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageSendingFailed", endpoint, msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<String> endpoint,
+                List<String>            msg,
+                Throwable               t )
+        {
+            if( !done ) {
+                Assert.fail( "Receiving endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * The endpoint through which we respond.
+         */
+        protected TcpPingPongMessageEndpoint<String> theEndpoint;
+
+        /**
+         * String to prepend to message before responding.
+         */
+        protected String thePrefix;
+
+        /**
+         * The messages received so far.
+         */
+        protected final List<String> received = new ArrayList<String>();
+    }
+}
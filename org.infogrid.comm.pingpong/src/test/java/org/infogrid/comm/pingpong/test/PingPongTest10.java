@@ -0,0 +1,234 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test with a slow transport: the two endpoints exchange request and response messages
+ * as fast as they can. Compares the number of exchanges when the endpoint's monitor is held
+ * while sending with the number when it is not.
+ */
+public class PingPongTest10
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        log.info( "Running while holding the monitor" );
+
+        int holding = runOnce( true );
+
+        log.info( "Running without holding the monitor" );
+
+        int notHolding = runOnce( false );
+
+        log.info( "exchanges while holding the monitor: " + holding + ", without: " + notHolding );
+
+        Assert.assertTrue( "Too few exchanges while holding the monitor: " + holding, holding > 0 );
+        Assert.assertTrue(
+                "Not holding the monitor is not faster: " + notHolding + " vs. " + holding,
+                notHolding > 2 * holding );
+    }
+
+    /**
+     * Let the endpoints exchange messages for a while.
+     *
+     * @param holdMonitor if true, hold the monitor while sending
+     * @return the number of completed exchanges
+     * @throws Exception all sorts of things may go wrong in a test
+     */
+    protected int runOnce(
+            boolean holdMonitor )
+        throws
+            Exception
+    {
+        SlowMPingPongMessageEndpoint<Long> ep1 = SlowMPingPongMessageEndpoint.create( "ep1", 100L, 1L, 100L, 10000L, SLOWNESS, holdMonitor, exec );
+        SlowMPingPongMessageEndpoint<Long> ep2 = SlowMPingPongMessageEndpoint.create( "ep2", 100L, 1L, 100L, 10000L, SLOWNESS, holdMonitor, exec );
+
+        MyListener l1 = new MyListener( ep1 ); // receives the responses, sends the next request
+        MyListener l2 = new MyListener( ep2 ); // receives the requests, sends the response
+        ep1.addDirectMessageEndpointListener( l1 );
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+        ep1.enqueueMessageForSend( 0L );
+
+        sleepFor( DURATION );
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+        ep1.gracefulDie();
+        ep2.gracefulDie();
+
+        sleepFor( 2 * SLOWNESS ); // let the last sends return
+
+        return l1.received;
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 32 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest10.class );
+
+    /**
+     * The number of milliseconds it takes for a send to return.
+     */
+    protected static final long SLOWNESS = 20L;
+
+    /**
+     * The duration of each run, in milliseconds.
+     */
+    protected static final long DURATION = 2000L;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Listener that responds to each received message with a new message.
+     */
+    class MyListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        /**
+         * Constructor.
+         *
+         * @param endpoint the endpoint to respond through
+         */
+        public MyListener(
+                SlowMPingPongMessageEndpoint<Long> endpoint )
+        {
+            theEndpoint = endpoint;
+        }
+
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            for( Long current : msgs ) {
+                synchronized( this ) {
+                    ++received;
+                }
+                if( !done ) {
+                    theEndpoint.enqueueMessageForSend( current + 1 );
+                }
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageSent", endpoint, msg );
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageEnqueued", endpoint, msg );
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {
+            // the run ends with a dead endpoint
+        }
+
+        /**
+         * The endpoint to respond through.
+         */
+        protected SlowMPingPongMessageEndpoint<Long> theEndpoint;
+
+        /**
+         * The number of messages received.
+         */
+        protected int received;
+    }
+}
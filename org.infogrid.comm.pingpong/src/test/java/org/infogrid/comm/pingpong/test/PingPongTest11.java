@@ -0,0 +1,387 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.infogrid.comm.AbstractSendingMessageEndpoint.OverflowPolicy;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageQueueFullException;
+import org.infogrid.comm.MessageQueueWatermarkListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests limits on the batch size, the bounded outgoing queue with its overflow policies,
+ * and the watermark events.
+ */
+public class PingPongTest11
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        SerializingMessageCodec<String> codec = SerializingMessageCodec.create();
+
+        //
+
+        log.info( "Limiting the batch size" );
+
+        MPingPongMessageEndpoint<String> ep1 = MPingPongMessageEndpoint.create( "ep1", 100L, 5L, 500L, 10000L, 0.f, exec );
+        MPingPongMessageEndpoint<String> ep2 = MPingPongMessageEndpoint.create( "ep2", 100L, 5L, 500L, 10000L, 0.f, exec );
+        ep1.setMaxBatchCount( MAX_BATCH_COUNT );
+        ep1.setMaxBatchBytes( MAX_BATCH_BYTES, codec );
+
+        MyListener l2 = new MyListener();
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        for( int i=0 ; i<N ; ++i ) {
+            StringBuilder buf = new StringBuilder();
+            buf.append( i ).append( '-' );
+            for( int j=0 ; j<i%7 ; ++j ) {
+                buf.append( "padding" );
+            }
+            ep1.enqueueMessageForSend( buf.toString() );
+        }
+
+        l2.waitFor( N );
+
+        Assert.assertEquals( "Wrong number of messages received", N, l2.received.size() );
+        for( int i=0 ; i<N ; ++i ) {
+            Assert.assertTrue( "Wrong message received", l2.received.get( i ).startsWith( i + "-" ));
+        }
+        Assert.assertTrue( "Too few batches: " + l2.batches.size(), l2.batches.size() >= N / MAX_BATCH_COUNT );
+        for( List<String> batch : l2.batches ) {
+            Assert.assertTrue( "Batch has too many messages: " + batch.size(), batch.size() <= MAX_BATCH_COUNT );
+
+            int bytes = 0;
+            for( String current : batch ) {
+                ByteBuffer encoded = ByteBuffer.allocate( 1024 );
+                codec.encode( current, encoded );
+                bytes += encoded.position();
+            }
+            Assert.assertTrue( "Batch has too many bytes: " + bytes, batch.size() == 1 || bytes <= MAX_BATCH_BYTES );
+        }
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+
+        //
+
+        log.info( "Failing when the queue is full" );
+
+        MPingPongMessageEndpoint<String> ep3 = MPingPongMessageEndpoint.create( "ep3", 100L, 5L, 500L, 10000L, 0.f, exec );
+        ep3.setMaxQueueSize( MAX_QUEUE, OverflowPolicy.FAIL );
+
+        for( int i=0 ; i<MAX_QUEUE ; ++i ) {
+            ep3.enqueueMessageForSend( "fail-" + i );
+        }
+        try {
+            ep3.enqueueMessageForSend( "too many" );
+            Assert.fail( "Full queue accepted message" );
+
+        } catch( MessageQueueFullException ex ) {
+            // expected
+            Assert.assertEquals( "Wrong message in exception", "too many", ex.getMessageToSend() );
+        }
+        Assert.assertEquals( "Wrong queue size", MAX_QUEUE, ep3.messagesToBeSent().size() );
+
+        //
+
+        log.info( "Blocking when the queue is full, with watermarks" );
+
+        final MPingPongMessageEndpoint<String> ep4 = MPingPongMessageEndpoint.create( "ep4", 100L, 5L, 500L, 10000L, 0.f, exec );
+        MPingPongMessageEndpoint<String>       ep5 = MPingPongMessageEndpoint.create( "ep5", 100L, 5L, 500L, 10000L, 0.f, exec );
+        ep4.setMaxQueueSize( MAX_QUEUE, OverflowPolicy.BLOCK );
+        ep4.setMaxBatchCount( MAX_BATCH_COUNT );
+        ep4.setQueueWatermarks( LOW, HIGH );
+
+        MyListener l4 = new MyListener();
+        MyListener l5 = new MyListener();
+        ep4.addDirectMessageEndpointListener( l4 );
+        ep5.addDirectMessageEndpointListener( l5 );
+
+        // the first delivery blocks the sending thread of ep4 until the gate opens
+        CountDownLatch gate = new CountDownLatch( 1 );
+        l5.theGate = gate;
+
+        ep4.setPartnerAndInitiateCommunications( ep5 );
+
+        Thread producer = new Thread( "producer" ) {
+                @Override
+                public void run()
+                {
+                    for( int i=0 ; i<N ; ++i ) {
+                        ep4.enqueueMessageForSend( "block-" + i );
+                    }
+                }
+        };
+        producer.start();
+
+        sleepFor( 200L );
+
+        Assert.assertTrue( "Producer did not block", producer.isAlive() );
+        Assert.assertEquals( "Wrong queue size", MAX_QUEUE, ep4.messagesToBeSent().size() );
+        Assert.assertEquals( "Wrong number of high watermark events", 1, l4.highCount );
+        Assert.assertEquals( "Wrong number of low watermark events", 0, l4.lowCount );
+
+        CompletableFuture<String> future = ep4.enqueueMessageForSendAsync( "async" );
+        Assert.assertFalse( "Future completed although queue is full", future.isDone() );
+
+        gate.countDown();
+
+        producer.join( 20000L );
+        Assert.assertFalse( "Producer still blocked", producer.isAlive() );
+        Assert.assertEquals( "Wrong future result", "async", future.get( 10L, TimeUnit.SECONDS ));
+
+        l5.waitFor( N+1 );
+
+        Assert.assertEquals( "Wrong number of messages received", N+1, l5.received.size() );
+        Assert.assertTrue( "Async message not received", l5.received.contains( "async" ));
+        Assert.assertTrue( "No low watermark event", l4.lowCount >= 1 );
+        Assert.assertTrue( "Unbalanced watermark events: " + l4.highCount + " vs. " + l4.lowCount,
+                l4.highCount == l4.lowCount || l4.highCount == l4.lowCount + 1 );
+
+        ep4.stopCommunicating();
+        ep5.stopCommunicating();
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 4 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest11.class );
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 200;
+
+    /**
+     * The maximum number of messages per batch.
+     */
+    protected static final int MAX_BATCH_COUNT = 10;
+
+    /**
+     * The maximum number of bytes per batch.
+     */
+    protected static final int MAX_BATCH_BYTES = 500;
+
+    /**
+     * The maximum number of messages in the outgoing queue.
+     */
+    protected static final int MAX_QUEUE = 20;
+
+    /**
+     * The low watermark.
+     */
+    protected static final int LOW = 5;
+
+    /**
+     * The high watermark.
+     */
+    protected static final int HIGH = 15;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Listener.
+     */
+    static class MyListener
+            implements
+                MessageQueueWatermarkListener<String>
+    {
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<String> endpoint,
+                List<String>                     msgs )
+        {
+            CountDownLatch gate = theGate;
+            if( gate != null ) {
+                try {
+                    gate.await();
+                } catch( InterruptedException ex ) {
+                    log.error( ex );
+                }
+            }
+            synchronized( this ) {
+                received.addAll( msgs );
+                batches.add( msgs );
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<String> endpoint,
+                String                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<String> endpoint,
+                List<String>            msg,
+                Throwable               t )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when the outgoing queue has reached the high watermark.
+         *
+         * @param endpoint the SendingMessageEndpoint that sent this event
+         * @param size the number of messages in the outgoing queue
+         */
+        public synchronized void highWatermarkReached(
+                SendingMessageEndpoint<String> endpoint,
+                int                            size )
+        {
+            ++highCount;
+        }
+
+        /**
+         * Called when the outgoing queue has drained to the low watermark.
+         *
+         * @param endpoint the SendingMessageEndpoint that sent this event
+         * @param size the number of messages in the outgoing queue
+         */
+        public synchronized void lowWatermarkReached(
+                SendingMessageEndpoint<String> endpoint,
+                int                            size )
+        {
+            ++lowCount;
+        }
+
+        /**
+         * Wait until a number of messages have been received, or a timeout has passed.
+         *
+         * @param n the number of messages
+         * @throws InterruptedException thrown if interrupted while waiting
+         */
+        public void waitFor(
+                int n )
+            throws
+                InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 20000L;
+            while( System.currentTimeMillis() < deadline ) {
+                synchronized( this ) {
+                    if( received.size() >= n ) {
+                        return;
+                    }
+                }
+                Thread.sleep( 50L );
+            }
+        }
+
+        /**
+         * If given, delivery of received messages waits until this latch has been released.
+         */
+        protected volatile CountDownLatch theGate;
+
+        /**
+         * The messages received so far, in sequence.
+         */
+        protected final List<String> received = new ArrayList<String>();
+
+        /**
+         * The batches received so far, in sequence.
+         */
+        protected final List<List<String>> batches = new ArrayList<List<String>>();
+
+        /**
+         * The number of high watermark events.
+         */
+        protected int highCount;
+
+        /**
+         * The number of low watermark events.
+         */
+        protected int lowCount;
+    }
+}
@@ -0,0 +1,249 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.comm.HashedWheelScheduledExecutor;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the HashedWheelScheduledExecutor, first by itself, then by running many pairs
+ * of ping-pong endpoints on it.
+ */
+public class PingPongTest12
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        log.info( "Scheduling and canceling " + N_CANCELED + " tasks" );
+
+        final AtomicInteger fired = new AtomicInteger();
+        Runnable count = new Runnable() {
+                public void run()
+                {
+                    fired.incrementAndGet();
+                }
+        };
+
+        ScheduledFuture<?> [] futures = new ScheduledFuture<?>[ N_CANCELED ];
+        for( int i=0 ; i<N_CANCELED ; ++i ) {
+            futures[i] = exec.schedule( count, 2000L + i % 1000, TimeUnit.MILLISECONDS );
+        }
+        for( int i=0 ; i<N_CANCELED ; ++i ) {
+            Assert.assertTrue( "Could not cancel " + i, futures[i].cancel( false ));
+        }
+        Assert.assertEquals( "Tasks still pending", 0, exec.getPendingCount() );
+
+        log.info( "One-shot and periodic tasks" );
+
+        long               start    = System.nanoTime();
+        ScheduledFuture<?> oneShot  = exec.schedule( count, 100L, TimeUnit.MILLISECONDS );
+        ScheduledFuture<?> periodic = exec.scheduleAtFixedRate( count, 0L, 50L, TimeUnit.MILLISECONDS );
+
+        oneShot.get();
+        long took = ( System.nanoTime() - start ) / 1000000L;
+
+        Assert.assertTrue( "Ran too early: " + took, took >= 100L );
+        Assert.assertTrue( "Ran too late: " + took, took < 300L );
+
+        sleepFor( 500L );
+        periodic.cancel( false );
+        sleepFor( 100L );
+
+        int afterCancel = fired.get();
+        Assert.assertTrue( "Periodic task did not repeat: " + afterCancel, afterCancel >= 6 );
+
+        sleepFor( 200L );
+        Assert.assertEquals( "Periodic task still running", afterCancel, fired.get() );
+
+        log.info( "Running " + N_PAIRS + " pairs of endpoints" );
+
+        MyListener listener = new MyListener();
+
+        @SuppressWarnings( "unchecked" )
+        MPingPongMessageEndpoint<Long> [] senders = new MPingPongMessageEndpoint[ N_PAIRS ];
+        @SuppressWarnings( "unchecked" )
+        MPingPongMessageEndpoint<Long> [] receivers = new MPingPongMessageEndpoint[ N_PAIRS ];
+        for( int i=0 ; i<N_PAIRS ; ++i ) {
+            MPingPongMessageEndpoint<Long> ep1 = MPingPongMessageEndpoint.create( "ep1-" + i, 100L, 10L, 500L, 10000L, 0.2f, exec );
+            MPingPongMessageEndpoint<Long> ep2 = MPingPongMessageEndpoint.create( "ep2-" + i, 100L, 10L, 500L, 10000L, 0.2f, exec );
+
+            ep2.addDirectMessageEndpointListener( listener );
+            ep1.setPartnerAndInitiateCommunications( ep2 );
+            senders[i]   = ep1;
+            receivers[i] = ep2;
+        }
+        for( int m=0 ; m<N_MESSAGES ; ++m ) {
+            for( int i=0 ; i<N_PAIRS ; ++i ) {
+                senders[i].enqueueMessageForSend( (long) m );
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 20000L;
+        while( listener.theReceived.get() < N_PAIRS * N_MESSAGES && System.currentTimeMillis() < deadline ) {
+            sleepFor( 100L );
+        }
+
+        Assert.assertEquals( "Wrong number of messages received", N_PAIRS * N_MESSAGES, listener.theReceived.get() );
+
+        for( int i=0 ; i<N_PAIRS ; ++i ) {
+            senders[i].stopCommunicating();
+            receivers[i].stopCommunicating();
+        }
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = HashedWheelScheduledExecutor.create( getClass().getName(), 2, 5L, 512 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+
+        Assert.assertEquals( "Tasks still pending after shutdown", 0, exec.getPendingCount() );
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest12.class );
+
+    /**
+     * The number of tasks that are scheduled and then canceled.
+     */
+    protected static final int N_CANCELED = 100000;
+
+    /**
+     * The number of pairs of endpoints.
+     */
+    protected static final int N_PAIRS = 500;
+
+    /**
+     * The number of messages sent by each pair.
+     */
+    protected static final int N_MESSAGES = 10;
+
+    /**
+     * Our ThreadPool
+     */
+    protected HashedWheelScheduledExecutor exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Listener.
+     */
+    class MyListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            theReceived.addAndGet( msgs.size() );
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {
+            if( !done ) {
+                Assert.fail( "Receiving endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * The number of messages received so far.
+         */
+        protected final AtomicInteger theReceived = new AtomicInteger();
+    }
+}
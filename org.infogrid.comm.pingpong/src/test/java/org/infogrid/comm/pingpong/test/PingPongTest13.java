@@ -0,0 +1,406 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.comm.ChannelMessage;
+import org.infogrid.comm.ChannelMessageCodec;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.MessageMultiplexer;
+import org.infogrid.comm.MessageMultiplexerListener;
+import org.infogrid.comm.MultiplexedMessageEndpoint;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.comm.pingpong.PingPongMessageEndpoint;
+import org.infogrid.comm.pingpong.PingPongMessageEndpointListener;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that many logical channels can be multiplexed over one pair of ping-pong endpoints,
+ * and that their messages share tokens.
+ */
+public class PingPongTest13
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        log.info( "ChannelMessageCodec" );
+
+        ChannelMessageCodec<Long> codec = ChannelMessageCodec.create( SerializingMessageCodec.<Long>create() );
+        ByteBuffer                buf   = ByteBuffer.allocate( 1024 );
+
+        codec.encode( new ChannelMessage<Long>( 300L, 42L ), buf );
+        buf.flip();
+        ChannelMessage<Long> decoded = codec.decode( buf );
+
+        Assert.assertEquals( "Wrong channel", 300L, decoded.getChannelId() );
+        Assert.assertEquals( "Wrong payload", 42L, (long) decoded.getPayload() );
+
+        //
+
+        log.info( "Multiplexing " + N_CHANNELS + " channels" );
+
+        MPingPongMessageEndpoint<ChannelMessage<Long>> ep1 = MPingPongMessageEndpoint.create( "ep1", 100L, 10L, 500L, 10000L, 0.f, exec );
+        MPingPongMessageEndpoint<ChannelMessage<Long>> ep2 = MPingPongMessageEndpoint.create( "ep2", 100L, 10L, 500L, 10000L, 0.f, exec );
+
+        TokenCounter counter = new TokenCounter();
+        ep1.addDirectMessageEndpointListener( counter );
+
+        MessageMultiplexer<Long> client = MessageMultiplexer.create( ep1 );
+        MessageMultiplexer<Long> server = MessageMultiplexer.create( ep2 );
+
+        EchoingOpener opener = new EchoingOpener();
+        server.addDirectMessageMultiplexerListener( opener );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        ChannelListener [] listeners = new ChannelListener[ N_CHANNELS ];
+        for( int i=0 ; i<N_CHANNELS ; ++i ) {
+            MultiplexedMessageEndpoint<Long> channel = client.obtainChannel( i );
+            listeners[i] = new ChannelListener();
+            channel.addDirectMessageEndpointListener( listeners[i] );
+        }
+        for( long m=0 ; m<N_MESSAGES ; ++m ) {
+            for( int i=0 ; i<N_CHANNELS ; ++i ) {
+                client.getChannel( i ).enqueueMessageForSend( i * 1000L + m );
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 20000L;
+        while( System.currentTimeMillis() < deadline ) {
+            int total = 0;
+            for( ChannelListener current : listeners ) {
+                total += current.size();
+            }
+            if( total >= N_CHANNELS * N_MESSAGES ) {
+                break;
+            }
+            sleepFor( 100L );
+        }
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+
+        Assert.assertEquals( "Wrong number of channels opened", N_CHANNELS, opener.theOpened.get() );
+        Assert.assertEquals( "Wrong number of server channels", N_CHANNELS, server.getChannelCount() );
+
+        for( int i=0 ; i<N_CHANNELS ; ++i ) {
+            List<Long> received = listeners[i].theReceived;
+            Assert.assertEquals( "Wrong number of responses on channel " + i, N_MESSAGES, received.size() );
+            for( int m=0 ; m<N_MESSAGES ; ++m ) {
+                Assert.assertEquals( "Wrong response on channel " + i, -( i * 1000L + m ), (long) received.get( m ));
+            }
+        }
+
+        int tokens = counter.theTokensSent.get();
+        log.info( "tokens sent: " + tokens + " for " + N_CHANNELS * N_MESSAGES + " messages" );
+
+        Assert.assertTrue( "Messages were not coalesced: " + tokens + " tokens", tokens * 100 < N_CHANNELS * N_MESSAGES );
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 2 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest13.class );
+
+    /**
+     * The number of logical channels.
+     */
+    protected static final int N_CHANNELS = 1000;
+
+    /**
+     * The number of messages sent on each channel.
+     */
+    protected static final int N_MESSAGES = 5;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Counts the tokens sent by the physical endpoint.
+     */
+    class TokenCounter
+            implements
+                PingPongMessageEndpointListener<ChannelMessage<Long>>
+    {
+        /**
+         * Called when the token has been received.
+         *
+         * @param endpoint the PingPongMessageEndpoint that sent this event
+         * @param token the received token
+         */
+        public void tokenReceived(
+                PingPongMessageEndpoint<ChannelMessage<Long>> endpoint,
+                long                                          token )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when the token has been sent.
+         *
+         * @param endpoint the PingPongMessageEndpoint that sent this event
+         * @param token the sent token
+         */
+        public void tokenSent(
+                PingPongMessageEndpoint<ChannelMessage<Long>> endpoint,
+                long                                          token )
+        {
+            theTokensSent.incrementAndGet();
+        }
+
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<ChannelMessage<Long>> endpoint,
+                List<ChannelMessage<Long>>                     msgs )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<ChannelMessage<Long>> endpoint,
+                ChannelMessage<Long>                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<ChannelMessage<Long>> endpoint,
+                ChannelMessage<Long>                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<ChannelMessage<Long>> endpoint,
+                ChannelMessage<Long>                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<ChannelMessage<Long>> endpoint,
+                List<ChannelMessage<Long>>            msg,
+                Throwable                             t )
+        {
+            if( !done ) {
+                Assert.fail( "Receiving endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * The number of tokens sent.
+         */
+        protected final AtomicInteger theTokensSent = new AtomicInteger();
+    }
+
+    /**
+     * Makes each channel opened by the partner respond to every message with its negative.
+     */
+    class EchoingOpener
+            implements
+                MessageMultiplexerListener<Long>
+    {
+        /**
+         * Called when the partner has opened a logical channel.
+         *
+         * @param multiplexer the MessageMultiplexer that sent this event
+         * @param channel the new logical channel
+         */
+        public void channelOpened(
+                MessageMultiplexer<Long>         multiplexer,
+                MultiplexedMessageEndpoint<Long> channel )
+        {
+            theOpened.incrementAndGet();
+            channel.addDirectMessageEndpointListener( new ChannelListener() {
+                    @Override
+                    public void messageReceived(
+                            ReceivingMessageEndpoint<Long> endpoint,
+                            List<Long>                     msgs )
+                    {
+                        for( Long current : msgs ) {
+                            ((SendingMessageEndpoint<Long>) endpoint).enqueueMessageForSend( -current );
+                        }
+                    }
+            });
+        }
+
+        /**
+         * The number of channels opened.
+         */
+        protected final AtomicInteger theOpened = new AtomicInteger();
+    }
+
+    /**
+     * Listens to one logical channel.
+     */
+    class ChannelListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            synchronized( theReceived ) {
+                theReceived.addAll( msgs );
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the physical endpoint has been disabled.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {
+            if( !done ) {
+                Assert.fail( "Physical endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * Obtain the number of messages received so far.
+         *
+         * @return the number of messages
+         */
+        public int size()
+        {
+            synchronized( theReceived ) {
+                return theReceived.size();
+            }
+        }
+
+        /**
+         * The messages received so far, in sequence.
+         */
+        protected final List<Long> theReceived = new ArrayList<Long>();
+    }
+}
@@ -0,0 +1,247 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.pingpong.PingPongMessageEndpointStatistics;
+import org.infogrid.util.Histogram;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests adaptive timing, in the classic ping-pong protocol and in windowed mode, over a link
+ * that drops messages: lost messages must be recovered well before the configured recover
+ * delay, and an idle partnership must exchange considerably fewer tokens.
+ */
+public class PingPongTest14
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        for( int windowSize : new int[] { 0, 4 } ) {
+            log.info( "Running with window size " + windowSize + ", fixed timing" );
+            Result fixed = runOnce( windowSize, false );
+
+            log.info( "Running with window size " + windowSize + ", adaptive timing" );
+            Result adaptive = runOnce( windowSize, true );
+
+            log.info( "Window size " + windowSize + ": fixed " + fixed + ", adaptive " + adaptive );
+
+            Assert.assertTrue(
+                    "adaptive recover not faster: " + adaptive + " vs. " + fixed,
+                    adaptive.theLatency.getMax() * 2 < fixed.theLatency.getMax() );
+            Assert.assertTrue(
+                    "adaptive recover not below configured delay: " + adaptive,
+                    adaptive.theLatency.getMax() < DELTA_RECOVER / 2 );
+            Assert.assertTrue(
+                    "idle chatter not reduced: " + adaptive + " vs. " + fixed,
+                    adaptive.theIdleBatches * 3 < fixed.theIdleBatches );
+            Assert.assertTrue( "no round-trip time measured", adaptive.theRoundTripTime > 0. );
+        }
+    }
+
+    /**
+     * Send N messages from one endpoint to the other over a link that drops messages, then let
+     * the partnership idle. Each run uses its own thread pool, so the timers of the previous
+     * run cannot delay this one.
+     *
+     * @param windowSize the window size, or 0 for classic ping-pong
+     * @param adaptive if true, use adaptive timing
+     * @return the Result
+     * @throws Exception all sorts of things may go wrong in a test
+     */
+    protected Result runOnce(
+            int     windowSize,
+            boolean adaptive )
+        throws
+            Exception
+    {
+        ScheduledExecutorService exec = createThreadPool( 2 );
+
+        LatencyMPingPongMessageEndpoint<Long> ep1 = LatencyMPingPongMessageEndpoint.create( "ep1", 50L, 5L, 100L, DELTA_RECOVER, LATENCY, 5, exec );
+        LatencyMPingPongMessageEndpoint<Long> ep2 = LatencyMPingPongMessageEndpoint.create( "ep2", 50L, 5L, 100L, DELTA_RECOVER, LATENCY, 5, exec );
+        ep1.setWindowSize( windowSize );
+        ep2.setWindowSize( windowSize );
+        if( adaptive ) {
+            ep1.setAdaptiveTiming( MIN_TIMEOUT, MAX_IDLE );
+            ep2.setAdaptiveTiming( MIN_TIMEOUT, MAX_IDLE );
+        }
+
+        PingPongMessageEndpointStatistics<Long> stats = PingPongMessageEndpointStatistics.create();
+        ep1.addDirectMessageEndpointListener( stats );
+
+        LatencyListener latency = new LatencyListener();
+        ep2.addDirectMessageEndpointListener( latency );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        for( int i=0 ; i<N ; ++i ) {
+            ep1.enqueueMessageForSend( System.currentTimeMillis() );
+            sleepFor( 20L );
+        }
+
+        long deadline = System.currentTimeMillis() + 30000L;
+        while( latency.theLatency.getCount() < N && System.currentTimeMillis() < deadline ) {
+            sleepFor( 100L );
+        }
+        Assert.assertEquals( "not all messages received", N, latency.theLatency.getCount() );
+
+        sleepFor( MAX_IDLE ); // let the backoff set in
+        stats.reset();
+        sleepFor( IDLE );
+
+        Result ret = new Result( latency.theLatency, stats.getBatchSize().getCount(), ep1.getSmoothedRoundTripTime() );
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+        ep1.gracefulDie();
+        ep2.gracefulDie();
+        exec.shutdown();
+
+        return ret;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest14.class );
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 30;
+
+    /**
+     * The simulated one-way latency of the link, in milliseconds.
+     */
+    protected static final long LATENCY = 10L;
+
+    /**
+     * The configured recover delay, in milliseconds.
+     */
+    protected static final long DELTA_RECOVER = 1000L;
+
+    /**
+     * The minimum timeout with adaptive timing, in milliseconds.
+     */
+    protected static final long MIN_TIMEOUT = 20L;
+
+    /**
+     * The maximum delay until the token is returned without a message with adaptive timing, in milliseconds.
+     */
+    protected static final long MAX_IDLE = 800L;
+
+    /**
+     * The duration of the idle period during which the batches are counted, in milliseconds.
+     */
+    protected static final long IDLE = 2000L;
+
+    /**
+     * Records the time from enqueuing to receiving a message. The messages are their enqueue times.
+     */
+    static class LatencyListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            long now = System.currentTimeMillis();
+            for( Long current : msgs ) {
+                theLatency.record( now - current );
+            }
+        }
+
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {}
+
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {}
+
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {}
+
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {}
+
+        /**
+         * The latencies, in milliseconds.
+         */
+        final Histogram theLatency = Histogram.create( "ms" );
+    }
+
+    /**
+     * The result of one run.
+     */
+    static class Result
+    {
+        /**
+         * Constructor.
+         *
+         * @param latency the latencies from enqueuing to receiving
+         * @param idleBatches the number of batches sent while idle
+         * @param roundTripTime the smoothed round-trip time
+         */
+        Result(
+                Histogram latency,
+                long      idleBatches,
+                double    roundTripTime )
+        {
+            theLatency       = latency;
+            theIdleBatches   = idleBatches;
+            theRoundTripTime = roundTripTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "max latency: " + theLatency.getMax() + " ms, idle batches: " + theIdleBatches + ", rtt: " + theRoundTripTime;
+        }
+
+        /**
+         * The latencies from enqueuing to receiving.
+         */
+        final Histogram theLatency;
+
+        /**
+         * The number of batches sent while idle.
+         */
+        final long theIdleBatches;
+
+        /**
+         * The smoothed round-trip time.
+         */
+        final double theRoundTripTime;
+    }
+}
@@ -0,0 +1,159 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageSendException;
+import org.infogrid.comm.pingpong.PingPongMessageEndpoint;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that windowed mode can only be enabled on endpoints that support it, and that
+ * token batches further ahead than the window are not held back.
+ */
+public class PingPongTest15
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void windowedModeRequiresSupport()
+    {
+        ClassicPingPongMessageEndpoint ep = new ClassicPingPongMessageEndpoint( exec );
+
+        ep.setWindowSize( 0 );
+        try {
+            ep.setWindowSize( 4 );
+            Assert.fail( "Windowed mode accepted" );
+
+        } catch( UnsupportedOperationException ex ) {
+            // expected
+        }
+        Assert.assertFalse( "Windowed", ep.isWindowed() );
+    }
+
+    @Test
+    public void farAheadTokensAreDropped()
+        throws
+            Exception
+    {
+        WindowedTestEndpoint ep = new WindowedTestEndpoint( exec );
+        ep.setWindowSize( 4 );
+
+        List<String> content = Collections.singletonList( "x" );
+
+        ep.receive( 3L, content ); // expecting 1, within the window
+        Assert.assertEquals( "not held back", 1, ep.getHeldBackCount() );
+
+        ep.receive( 5L, content ); // beyond the window
+        ep.receive( Long.MAX_VALUE, content );
+        Assert.assertEquals( "held back beyond the window", 1, ep.getHeldBackCount() );
+
+        ep.receive( 4L, content );
+        Assert.assertEquals( "not held back", 2, ep.getHeldBackCount() );
+
+        ep.gracefulDie();
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 1 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+    }
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * A PingPongMessageEndpoint that only implements the classic protocol.
+     */
+    static class ClassicPingPongMessageEndpoint
+            extends
+                PingPongMessageEndpoint<String>
+    {
+        public ClassicPingPongMessageEndpoint(
+                ScheduledExecutorService exec )
+        {
+            this( exec, new ArrayList<String>() );
+        }
+
+        public ClassicPingPongMessageEndpoint(
+                ScheduledExecutorService exec,
+                List<String>             messagesToBeSent )
+        {
+            super( "classic", 100L, 10L, 50L, 500L, 0., exec, -1, -1, null, messagesToBeSent );
+        }
+
+        @Override
+        protected void sendMessage(
+                long         token,
+                List<String> content )
+            throws
+                MessageSendException
+        {
+            throw new MessageSendException( content, "not connected" );
+        }
+
+        @Override
+        protected void sendGrabTokenMessage()
+        {
+            // no op
+        }
+    }
+
+    /**
+     * Exposes the receiving side of windowed mode.
+     */
+    static class WindowedTestEndpoint
+            extends
+                MPingPongMessageEndpoint<String>
+    {
+        public WindowedTestEndpoint(
+                ScheduledExecutorService exec )
+        {
+            super( "windowed", 100L, 10L, 50L, 500L, 0., exec, -1, -1, null, new ArrayList<String>() );
+        }
+
+        public void receive(
+                long         token,
+                List<String> content )
+            throws
+                Exception
+        {
+            incomingWindowedMessage( token, 0L, content );
+        }
+
+        public synchronized int getHeldBackCount()
+        {
+            return theReceivedOutOfOrder.size();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that removing sent Messages from a plain outgoing queue does not remove Messages
+ * that were enqueued after the batch was taken, even if the queue has the same size as the batch.
+ */
+public class PingPongTest16
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void sameSizeIsNotSameContent()
+    {
+        ArrayList<String> queue = new ArrayList<String>();
+        QueueTestEndpoint ep    = new QueueTestEndpoint( exec, queue );
+
+        ep.enqueueMessageForSend( "a" );
+        ep.enqueueMessageForSend( "b" );
+
+        List<String> batch = ep.drain();
+        Assert.assertEquals( "wrong batch", Arrays.asList( "a", "b" ), batch );
+
+        synchronized( queue ) {
+            queue.remove( 0 ); // as if a subclass had withdrawn "a"
+        }
+        ep.enqueueMessageForSend( "c" );
+
+        Assert.assertEquals( "wrong number removed", 1, ep.remove( batch ));
+        Assert.assertEquals( "wrong remaining", Arrays.asList( "c" ), queue );
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 1 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+    }
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Exposes the outgoing queue operations.
+     */
+    static class QueueTestEndpoint
+            extends
+                PingPongTest15.ClassicPingPongMessageEndpoint
+    {
+        public QueueTestEndpoint(
+                ScheduledExecutorService exec,
+                List<String>             queue )
+        {
+            super( exec, queue );
+        }
+
+        public List<String> drain()
+        {
+            return drainMessagesToBeSent();
+        }
+
+        public int remove(
+                List<String> sent )
+        {
+            return removeMessagesSent( sent );
+        }
+    }
+}
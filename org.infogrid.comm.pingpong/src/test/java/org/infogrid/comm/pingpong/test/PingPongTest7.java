@@ -0,0 +1,208 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the windowed mode with a link that drops messages: all messages must arrive,
+ * in order, and exactly once.
+ */
+public class PingPongTest7
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        LatencyMPingPongMessageEndpoint<Long> ep1 = LatencyMPingPongMessageEndpoint.create( "ep1", 200L, 5L, 100L, 300L, 20L, 7, exec );
+        LatencyMPingPongMessageEndpoint<Long> ep2 = LatencyMPingPongMessageEndpoint.create( "ep2", 200L, 5L, 100L, 300L, 20L, 5, exec );
+        ep1.setWindowSize( 4 );
+        ep2.setWindowSize( 4 );
+
+        MyListener l1 = new MyListener();
+        MyListener l2 = new MyListener();
+        ep1.addDirectMessageEndpointListener( l1 );
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        log.info( "Starting to send in windowed mode" );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        for( long i=0 ; i<N ; ++i ) {
+            ep1.enqueueMessageForSend( i );
+            if( i % 2 == 0 ) {
+                ep2.enqueueMessageForSend( i );
+            }
+            sleepFor( 3L );
+        }
+
+        log.info( "Waiting for all messages to arrive" );
+
+        long deadline = System.currentTimeMillis() + 20000L;
+        while( ( l1.received.size() < N/2 || l2.received.size() < N ) && System.currentTimeMillis() < deadline ) {
+            sleepFor( 100L );
+        }
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+
+        log.info( "Dropped messages: " + ep1.getDroppedCount() + " / " + ep2.getDroppedCount() );
+
+        Assert.assertTrue( "No messages were dropped by ep1", ep1.getDroppedCount() > 0 );
+        Assert.assertTrue( "No messages were dropped by ep2", ep2.getDroppedCount() > 0 );
+
+        Assert.assertEquals( "Wrong number of messages received by ep2", N, l2.received.size() );
+        for( int i=0 ; i<N ; ++i ) {
+            Assert.assertEquals( "Wrong message received by ep2", (long) i, (long) l2.received.get( i ));
+        }
+        Assert.assertEquals( "Wrong number of messages received by ep1", N/2, l1.received.size() );
+        for( int i=0 ; i<N/2 ; ++i ) {
+            Assert.assertEquals( "Wrong message received by ep1", (long) 2*i, (long) l1.received.get( i ));
+        }
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 2 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest7.class );
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 200;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Listener.
+     */
+    class MyListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            log.traceMethodCallEntry( this, "messageReceived", msgs );
+
+            synchronized( received ) {
+                received.addAll( msgs );
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageSent", endpoint, msg );
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageEnqueued", endpoint, msg );
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {
+            if( !done ) {
+                Assert.fail( "Receiving endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * The messages received so far, in sequence.
+         */
+        protected final List<Long> received = new ArrayList<Long>();
+    }
+}
@@ -0,0 +1,269 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the throughput and delivery latency of the classic ping-pong protocol with
+ * the windowed mode over a link with high latency.
+ */
+public class PingPongTest8
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        log.info( "Running classic ping-pong" );
+
+        MyListener strict = runOnce( 0 );
+
+        log.info( "Running windowed mode" );
+
+        MyListener windowed = runOnce( WINDOW );
+
+        log.info( "classic ping-pong: " + strict.received + " messages, "
+                  + strict.getThroughput() + " msg/s, average latency " + strict.getAverageLatency() + " msec" );
+        log.info( "windowed mode:     " + windowed.received + " messages, "
+                  + windowed.getThroughput() + " msg/s, average latency " + windowed.getAverageLatency() + " msec" );
+
+        Assert.assertEquals( "Not all messages received in classic ping-pong", N, strict.received );
+        Assert.assertEquals( "Not all messages received in windowed mode",     N, windowed.received );
+        Assert.assertTrue(
+                "Windowed mode not faster: " + windowed.getAverageLatency() + " vs. " + strict.getAverageLatency(),
+                windowed.getAverageLatency() < strict.getAverageLatency() );
+    }
+
+    /**
+     * Send N messages at a steady rate from one endpoint to the other.
+     *
+     * @param windowSize the window size, or 0 for classic ping-pong
+     * @return the listener on the receiving side
+     * @throws Exception all sorts of things may go wrong in a test
+     */
+    protected MyListener runOnce(
+            int windowSize )
+        throws
+            Exception
+    {
+        LatencyMPingPongMessageEndpoint<Long> ep1 = LatencyMPingPongMessageEndpoint.create( "ep1", 100L, 10L, 100L, 2000L, LATENCY, 0, exec );
+        LatencyMPingPongMessageEndpoint<Long> ep2 = LatencyMPingPongMessageEndpoint.create( "ep2", 100L, 10L, 100L, 2000L, LATENCY, 0, exec );
+        ep1.setWindowSize( windowSize );
+        ep2.setWindowSize( windowSize );
+
+        MyListener l2 = new MyListener();
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        l2.start = System.currentTimeMillis();
+        for( int i=0 ; i<N ; ++i ) {
+            ep1.enqueueMessageForSend( System.currentTimeMillis() );
+            sleepFor( 15L );
+        }
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while( l2.received < N && System.currentTimeMillis() < deadline ) {
+            sleepFor( 50L );
+        }
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+        ep1.gracefulDie();
+        ep2.gracefulDie();
+
+        return l2;
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 2 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest8.class );
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 100;
+
+    /**
+     * The window size in windowed mode.
+     */
+    protected static final int WINDOW = 16;
+
+    /**
+     * The simulated one-way latency of the link, in milliseconds.
+     */
+    protected static final long LATENCY = 50L;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Listener that measures how long it took messages to arrive.
+     */
+    class MyListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            long now = System.currentTimeMillis();
+            synchronized( this ) {
+                for( Long current : msgs ) {
+                    totalLatency += now - current;
+                    ++received;
+                }
+                end = now;
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageSent", endpoint, msg );
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            log.traceMethodCallEntry( this, "messageEnqueued", endpoint, msg );
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {
+            if( !done ) {
+                Assert.fail( "Receiving endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * Obtain the average time between enqueuing and receiving a message.
+         *
+         * @return the average latency, in milliseconds
+         */
+        public synchronized long getAverageLatency()
+        {
+            return received > 0 ? totalLatency / received : -1L;
+        }
+
+        /**
+         * Obtain the number of messages received per second.
+         *
+         * @return the throughput
+         */
+        public synchronized long getThroughput()
+        {
+            return end > start ? received * 1000L / ( end - start ) : -1L;
+        }
+
+        /**
+         * The number of messages received so far.
+         */
+        protected int received;
+
+        /**
+         * The sum of the latencies of all received messages.
+         */
+        protected long totalLatency;
+
+        /**
+         * Time the first message was enqueued.
+         */
+        protected long start;
+
+        /**
+         * Time the last message was received.
+         */
+        protected long end;
+    }
+}
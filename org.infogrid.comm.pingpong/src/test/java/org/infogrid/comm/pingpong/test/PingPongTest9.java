@@ -0,0 +1,249 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.ConcurrentMessageQueue;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ConcurrentMessageQueue: several threads enqueue messages concurrently while
+ * the endpoint sends; every message must arrive exactly once, and the messages of each
+ * thread in the sequence in which they were enqueued.
+ */
+public class PingPongTest9
+        extends
+            AbstractPingPongTest
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        // the queue itself
+        ConcurrentMessageQueue<Long> queue = ConcurrentMessageQueue.create();
+        queue.add( 1L );
+        queue.add( 2L );
+
+        List<Long> batch1 = queue.drainBatch();
+        queue.add( 3L );
+        List<Long> batch2 = queue.drainBatch();
+
+        Assert.assertEquals( "Wrong first batch", 2, batch1.size() );
+        Assert.assertEquals( "Wrong second batch", 3, batch2.size() );
+        Assert.assertEquals( "First batch was modified", 2, batch1.size() );
+
+        queue.acknowledge( batch2 );
+        Assert.assertTrue( "Queue not empty", queue.isEmpty() );
+        Assert.assertNull( "Batch returned from empty queue", queue.drainBatch() );
+
+        // the endpoints
+        final MPingPongMessageEndpoint<Long> ep1 = MPingPongMessageEndpoint.create( "ep1", 100L, 5L, 500L, 10000L, 0.f, exec );
+        final MPingPongMessageEndpoint<Long> ep2 = MPingPongMessageEndpoint.create( "ep2", 100L, 5L, 500L, 10000L, 0.f, exec );
+
+        MyListener l2 = new MyListener();
+        ep2.addDirectMessageEndpointListener( l2 );
+
+        ep1.setPartnerAndInitiateCommunications( ep2 );
+
+        log.info( "Starting producer threads" );
+
+        Thread [] producers = new Thread[ PRODUCERS ];
+        for( int p=0 ; p<PRODUCERS ; ++p ) {
+            final long base = p * (long) N;
+            producers[p] = new Thread( "producer-" + p ) {
+                    @Override
+                    public void run()
+                    {
+                        for( long i=0 ; i<N ; ++i ) {
+                            ep1.enqueueMessageForSend( base + i );
+                            if( i % 50 == 0 ) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+            };
+            producers[p].start();
+        }
+        for( Thread current : producers ) {
+            current.join();
+        }
+
+        log.info( "Waiting for all messages to arrive" );
+
+        long deadline = System.currentTimeMillis() + 20000L;
+        while( l2.size() < PRODUCERS * N && System.currentTimeMillis() < deadline ) {
+            sleepFor( 100L );
+        }
+
+        ep1.stopCommunicating();
+        ep2.stopCommunicating();
+
+        Assert.assertEquals( "Wrong number of messages received", PRODUCERS * N, l2.size() );
+
+        long [] next = new long[ PRODUCERS ];
+        for( Long current : l2.received ) {
+            int p = (int) ( current / N );
+            Assert.assertEquals( "Message out of sequence for producer " + p, p * (long) N + next[p], (long) current );
+            ++next[p];
+        }
+        Assert.assertTrue( "Messages left in queue", ep1.messagesToBeSent().isEmpty() );
+    }
+
+    @Before
+    public void setup()
+    {
+        exec = createThreadPool( 2 );
+    }
+
+    @After
+    public void cleanup()
+    {
+        done = true;
+
+        exec.shutdown();
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( PingPongTest9.class );
+
+    /**
+     * The number of producer threads.
+     */
+    protected static final int PRODUCERS = 8;
+
+    /**
+     * The number of messages to send per producer thread.
+     */
+    protected static final int N = 2000;
+
+    /**
+     * Our ThreadPool
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * Set to true if the test is done, so listeners won't report an error.
+     */
+    protected boolean done = false;
+
+    /**
+     * Listener.
+     */
+    class MyListener
+            implements
+                MessageEndpointListener<Long>
+    {
+        /**
+         * Called when one more more incoming messages have arrived.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msgs the received messages
+         */
+        public void messageReceived(
+                ReceivingMessageEndpoint<Long> endpoint,
+                List<Long>                     msgs )
+        {
+            synchronized( received ) {
+                received.addAll( msgs );
+            }
+        }
+
+        /**
+         * Called when an outgoing message has been sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the sent message
+         */
+        public void messageSent(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outgoing message has enqueued for sending.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the enqueued message
+         */
+        public void messageEnqueued(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            // ignore
+        }
+
+        /**
+         * Called when an outoing message failed to be sent.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the outgoing message
+         */
+        public void messageSendingFailed(
+                SendingMessageEndpoint<Long> endpoint,
+                Long                         msg )
+        {
+            Assert.fail( "Message sending failed: " + msg );
+        }
+
+        /**
+         * Called when the receiving endpoint threw the EndpointIsDeadException.
+         *
+         * @param endpoint the MessageEndpoint that sent this event
+         * @param msg the status of the outgoing queue
+         * @param t the error
+         */
+        public void disablingError(
+                MessageEndpoint<Long> endpoint,
+                List<Long>            msg,
+                Throwable             t )
+        {
+            if( !done ) {
+                Assert.fail( "Receiving endpoint is dead: " + msg );
+            }
+        }
+
+        /**
+         * Obtain the number of messages received so far.
+         *
+         * @return the number of messages
+         */
+        public int size()
+        {
+            synchronized( received ) {
+                return received.size();
+            }
+        }
+
+        /**
+         * The messages received so far, in sequence.
+         */
+        protected final List<Long> received = new ArrayList<Long>();
+    }
+}
@@ -0,0 +1,155 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm.pingpong.test;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.comm.MessageSendException;
+import org.infogrid.comm.pingpong.m.MPingPongMessageEndpoint;
+
+/**
+ * An MPingPongMessageEndpoint that simulates a slow transport: the message is delivered to
+ * the partner right away, but sending only returns after some time has passed. Optionally,
+ * the endpoint's monitor is held while sending, as PingPongMessageEndpoint used to do.
+ *
+ * @param <T> the message type
+ */
+public class SlowMPingPongMessageEndpoint<T>
+        extends
+            MPingPongMessageEndpoint<T>
+{
+    /**
+     * Factory method.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param slowness the number of milliseconds it takes for sending to return
+     * @param holdMonitor if true, hold the monitor while sending
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @return the created SlowMPingPongMessageEndpoint
+     * @param <T> the message type
+     */
+    public static <T> SlowMPingPongMessageEndpoint<T> create(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            long                     slowness,
+            boolean                  holdMonitor,
+            ScheduledExecutorService exec )
+    {
+        return new SlowMPingPongMessageEndpoint<T>(
+                name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                slowness,
+                holdMonitor,
+                exec );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the PingPongMessageEndpoint (for debugging only)
+     * @param deltaRespondNoMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if no message is in the queue
+     * @param deltaRespondWithMessage the number of milliseconds until this PingPongMessageEndpoint returns the token if a message is in the queue
+     * @param deltaResend  the number of milliseconds until this PingPongMessageEndpoint resends the token if sending the token failed
+     * @param deltaRecover the number of milliseconds until this PingPongMessageEndpoint decides that the token
+     *                     was not received by the partner PingPongMessageEndpoint, and resends
+     * @param slowness the number of milliseconds it takes for sending to return
+     * @param holdMonitor if true, hold the monitor while sending
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     */
+    protected SlowMPingPongMessageEndpoint(
+            String                   name,
+            long                     deltaRespondNoMessage,
+            long                     deltaRespondWithMessage,
+            long                     deltaResend,
+            long                     deltaRecover,
+            long                     slowness,
+            boolean                  holdMonitor,
+            ScheduledExecutorService exec )
+    {
+        super(  name,
+                deltaRespondNoMessage,
+                deltaRespondWithMessage,
+                deltaResend,
+                deltaRecover,
+                0.,
+                exec );
+
+        theSlowness   = slowness;
+        isHoldMonitor = holdMonitor;
+    }
+
+    /**
+     * Invoked when the timer triggers in the classic ping-pong mode.
+     *
+     * @param task the TimedTask that invokes this handler
+     */
+    @Override
+    protected void doPingPongAction(
+            TimedTask task )
+    {
+        if( isHoldMonitor ) {
+            synchronized( this ) {
+                super.doPingPongAction( task );
+            }
+        } else {
+            super.doPingPongAction( task );
+        }
+    }
+
+    /**
+     * Deliver the message, then take a while to return.
+     *
+     * @param token the token of the message
+     * @param content the content to send.
+     * @throws MessageSendException thrown if the message could not be sent
+     */
+    @Override
+    protected void sendMessage(
+            long    token,
+            List<T> content )
+        throws
+            MessageSendException
+    {
+        super.sendMessage( token, content );
+
+        try {
+            Thread.sleep( theSlowness );
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The number of milliseconds it takes for sending to return.
+     */
+    protected long theSlowness;
+
+    /**
+     * If true, hold the monitor while sending.
+     */
+    protected boolean isHoldMonitor;
+}
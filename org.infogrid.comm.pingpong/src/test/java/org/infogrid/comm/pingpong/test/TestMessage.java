@@ -14,6 +14,7 @@
 
 package org.infogrid.comm.pingpong.test;
 
+import java.io.Serializable;
 import org.infogrid.comm.CarriesInvocationId;
 import org.infogrid.util.logging.Log;
 
@@ -22,9 +23,11 @@ import org.infogrid.util.logging.Log;
  */
 public class TestMessage
         implements
-            CarriesInvocationId
+            CarriesInvocationId,
+            Serializable
 {
     private static final Log log = Log.getLogInstance( TestMessage.class );
+    private static final long serialVersionUID = 1L; // helps with serialization
 
     /**
      * Constructor with payload.
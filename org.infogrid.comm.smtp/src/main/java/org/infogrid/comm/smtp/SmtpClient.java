@@ -0,0 +1,353 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.comm.smtp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * Sends messages to an SMTP server over persistent connections. Connections are kept open
+ * between batches and reused, up to a maximum number of mail transactions per session.
+ * This object is thread-safe; concurrent batches use different connections.
+ */
+public class SmtpClient
+        implements
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( SmtpClient.class ); // our own, private logger
+
+    /**
+     * Factory method, using the default settings.
+     *
+     * @return the created SmtpClient
+     */
+    public static SmtpClient create()
+    {
+        return new SmtpClient(
+                DEFAULT_HOST,
+                DEFAULT_PORT,
+                DEFAULT_HELO_NAME,
+                DEFAULT_TIMEOUT,
+                DEFAULT_MAX_IDLE_CONNECTIONS,
+                DEFAULT_IDLE_TIMEOUT,
+                DEFAULT_MAX_TRANSACTIONS_PER_SESSION );
+    }
+
+    /**
+     * Factory method for a given server, using the default settings otherwise.
+     *
+     * @param host the host of the SMTP server
+     * @param port the port of the SMTP server
+     * @return the created SmtpClient
+     */
+    public static SmtpClient create(
+            String host,
+            int    port )
+    {
+        return new SmtpClient(
+                host,
+                port,
+                DEFAULT_HELO_NAME,
+                DEFAULT_TIMEOUT,
+                DEFAULT_MAX_IDLE_CONNECTIONS,
+                DEFAULT_IDLE_TIMEOUT,
+                DEFAULT_MAX_TRANSACTIONS_PER_SESSION );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param host the host of the SMTP server
+     * @param port the port of the SMTP server
+     * @param heloName the name by which we introduce ourselves
+     * @param timeout the connect and read timeout, in milliseconds
+     * @param maxIdleConnections the maximum number of connections kept open while not in use
+     * @param idleTimeout the number of milliseconds after which an unused connection is not reused
+     * @param maxTransactionsPerSession the number of messages after which a connection is closed
+     * @return the created SmtpClient
+     */
+    public static SmtpClient create(
+            String host,
+            int    port,
+            String heloName,
+            int    timeout,
+            int    maxIdleConnections,
+            long   idleTimeout,
+            int    maxTransactionsPerSession )
+    {
+        return new SmtpClient( host, port, heloName, timeout, maxIdleConnections, idleTimeout, maxTransactionsPerSession );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param host the host of the SMTP server
+     * @param port the port of the SMTP server
+     * @param heloName the name by which we introduce ourselves
+     * @param timeout the connect and read timeout, in milliseconds
+     * @param maxIdleConnections the maximum number of connections kept open while not in use
+     * @param idleTimeout the number of milliseconds after which an unused connection is not reused
+     * @param maxTransactionsPerSession the number of messages after which a connection is closed
+     */
+    protected SmtpClient(
+            String host,
+            int    port,
+            String heloName,
+            int    timeout,
+            int    maxIdleConnections,
+            long   idleTimeout,
+            int    maxTransactionsPerSession )
+    {
+        theHost                      = host;
+        thePort                      = port;
+        theHeloName                  = heloName;
+        theTimeout                   = timeout;
+        theMaxIdleConnections        = maxIdleConnections;
+        theIdleTimeout               = idleTimeout;
+        theMaxTransactionsPerSession = maxTransactionsPerSession;
+    }
+
+    /**
+     * Send a batch of messages, and sort them into those that were sent and those that failed.
+     * As many messages as permitted are sent over the same connection.
+     *
+     * @param msgs the messages
+     * @param sent add the messages that were sent to this list
+     * @param failed add the messages that could not be sent to this list
+     * @param <T> the message type
+     */
+    public <T extends SmtpSendableMessage> void send(
+            List<T> msgs,
+            List<T> sent,
+            List<T> failed )
+    {
+        int start = 0;
+        while( start < msgs.size() ) {
+            SmtpConnection connection = null;
+            boolean        reused     = false;
+            int            before     = sent.size() + failed.size();
+
+            try {
+                connection = pollIdleConnection();
+                if( connection != null ) {
+                    reused = true;
+                } else {
+                    connection = SmtpConnection.create( theHost, thePort, theHeloName, theTimeout );
+                }
+
+                int end = Math.min( msgs.size(), start + theMaxTransactionsPerSession - connection.getTransactionCount() );
+                connection.send( msgs.subList( start, end ), sent, failed );
+                start = end;
+
+                releaseConnection( connection );
+
+            } catch( IOException ex ) {
+                int done = sent.size() + failed.size() - before;
+                start += done;
+
+                if( connection != null ) {
+                    connection.abort();
+                }
+                if( reused && done == 0 ) {
+                    // the server most likely closed the idle connection; try again
+                    continue;
+                }
+                log.warn( "Cannot send via SMTP", theHost, thePort, ex );
+
+                failed.addAll( msgs.subList( start, msgs.size() ));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Obtain an idle connection that can still be used, if any.
+     *
+     * @return the connection, or null
+     */
+    protected SmtpConnection pollIdleConnection()
+    {
+        long now = System.currentTimeMillis();
+        while( true ) {
+            SmtpConnection ret;
+            synchronized( theIdleConnections ) {
+                ret = theIdleConnections.pollLast(); // most recently used
+            }
+            if( ret == null ) {
+                return null;
+            }
+            if( now - ret.getLastUsed() < theIdleTimeout ) {
+                return ret;
+            }
+            ret.close();
+        }
+    }
+
+    /**
+     * Return a connection after use, so it can be reused, unless it has reached the end of its life.
+     *
+     * @param connection the connection
+     */
+    protected void releaseConnection(
+            SmtpConnection connection )
+    {
+        if( connection.getTransactionCount() < theMaxTransactionsPerSession ) {
+            synchronized( theIdleConnections ) {
+                if( theIdleConnections.size() < theMaxIdleConnections ) {
+                    theIdleConnections.addLast( connection );
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Determine the number of connections currently kept open while not in use.
+     *
+     * @return the number of idle connections
+     */
+    public int getIdleConnectionCount()
+    {
+        synchronized( theIdleConnections ) {
+            return theIdleConnections.size();
+        }
+    }
+
+    /**
+     * Close all connections not currently in use.
+     */
+    public void close()
+    {
+        while( true ) {
+            SmtpConnection current;
+            synchronized( theIdleConnections ) {
+                current = theIdleConnections.pollFirst();
+            }
+            if( current == null ) {
+                break;
+            }
+            current.close();
+        }
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "host",
+                    "port",
+                    "idleConnections"
+                },
+                new Object[] {
+                    theHost,
+                    thePort,
+                    getIdleConnectionCount()
+                });
+    }
+
+    /**
+     * The host of the SMTP server.
+     */
+    protected final String theHost;
+
+    /**
+     * The port of the SMTP server.
+     */
+    protected final int thePort;
+
+    /**
+     * The name by which we introduce ourselves.
+     */
+    protected final String theHeloName;
+
+    /**
+     * The connect and read timeout, in milliseconds.
+     */
+    protected final int theTimeout;
+
+    /**
+     * The maximum number of connections kept open while not in use.
+     */
+    protected final int theMaxIdleConnections;
+
+    /**
+     * The number of milliseconds after which an unused connection is not reused.
+     */
+    protected final long theIdleTimeout;
+
+    /**
+     * The number of mail transactions after which a connection is closed.
+     */
+    protected final int theMaxTransactionsPerSession;
+
+    /**
+     * The connections currently not in use, least recently used first.
+     */
+    protected final ArrayDeque<SmtpConnection> theIdleConnections = new ArrayDeque<SmtpConnection>();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( SmtpClient.class );
+
+    /**
+     * Default host of the SMTP server.
+     */
+    public static final String DEFAULT_HOST = theResourceHelper.getResourceStringOrDefault( "Host", "localhost" );
+
+    /**
+     * Default port of the SMTP server.
+     */
+    public static final int DEFAULT_PORT = theResourceHelper.getResourceIntegerOrDefault( "Port", 25 );
+
+    /**
+     * Default name by which we introduce ourselves.
+     */
+    public static final String DEFAULT_HELO_NAME = theResourceHelper.getResourceStringOrDefault( "HeloName", "localhost" );
+
+    /**
+     * Default connect and read timeout, in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = theResourceHelper.getResourceIntegerOrDefault( "Timeout", 30000 );
+
+    /**
+     * Default maximum number of connections kept open while not in use.
+     */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = theResourceHelper.getResourceIntegerOrDefault( "MaxIdleConnections", 2 );
+
+    /**
+     * Default number of milliseconds after which an unused connection is not reused.
+     * Many servers drop idle sessions after a few minutes.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = theResourceHelper.getResourceLongOrDefault( "IdleTimeout", 60000L );
+
+    /**
+     * Default number of mail transactions after which a connection is closed.
+     * Many servers limit the number of messages per session.
+     */
+    public static final int DEFAULT_MAX_TRANSACTIONS_PER_SESSION = theResourceHelper.getResourceIntegerOrDefault( "MaxTransactionsPerSession", 100 );
+}
@@ -0,0 +1,773 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.comm.smtp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * One session with an SMTP server, over which any number of messages can be sent.
+ * If the server supports the ESMTP <code>PIPELINING</code> extension, the commands
+ * of each mail transaction are sent together with the content of the previous one,
+ * so each message costs a single round trip. A SmtpConnection is not thread-safe.
+ */
+public class SmtpConnection
+        implements
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( SmtpConnection.class ); // our own, private logger
+
+    /**
+     * Factory method. Connects to the server and introduces ourselves.
+     *
+     * @param host the host of the SMTP server
+     * @param port the port of the SMTP server
+     * @param heloName the name by which we introduce ourselves
+     * @param timeout the connect and read timeout, in milliseconds
+     * @return the created SmtpConnection
+     * @throws IOException thrown if the connection could not be established
+     */
+    public static SmtpConnection create(
+            String host,
+            int    port,
+            String heloName,
+            int    timeout )
+        throws
+            IOException
+    {
+        Socket socket = new Socket();
+        try {
+            socket.connect( new InetSocketAddress( host, port ), timeout );
+            socket.setSoTimeout( timeout );
+            socket.setTcpNoDelay( true );
+
+            SmtpConnection ret = new SmtpConnection( socket, heloName );
+            ret.open();
+            return ret;
+
+        } catch( IOException ex ) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param socket the connected Socket
+     * @param heloName the name by which we introduce ourselves
+     * @throws IOException thrown if the streams of the Socket could not be obtained
+     */
+    protected SmtpConnection(
+            Socket socket,
+            String heloName )
+        throws
+            IOException
+    {
+        theSocket   = socket;
+        theHeloName = heloName;
+        theReader   = new BufferedReader( new InputStreamReader( socket.getInputStream(), StandardCharsets.ISO_8859_1 ));
+        theWriter   = new BufferedOutputStream( socket.getOutputStream(), 16384 );
+    }
+
+    /**
+     * Read the greeting and introduce ourselves, preferring ESMTP.
+     *
+     * @throws IOException thrown if the server did not accept us
+     */
+    protected void open()
+        throws
+            IOException
+    {
+        expect( readReply(), 220 );
+
+        write( "EHLO " + theHeloName );
+        flush();
+        if( isPositive( readReply() )) {
+            for( int i=1 ; i<theLastReplyLines.size() ; ++i ) { // first line is the greeting
+                String ext = theLastReplyLines.get( i ).substring( 4 ).trim().toUpperCase( Locale.US );
+                if( ext.equals( "PIPELINING" )) {
+                    thePipelining = true;
+                } else if( ext.equals( "8BITMIME" )) {
+                    the8BitMime = true;
+                }
+            }
+        } else {
+            write( "HELO " + theHeloName );
+            flush();
+            expect( readReply(), 250 );
+        }
+        theLastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Determine whether the server supports the ESMTP PIPELINING extension.
+     *
+     * @return true if it does
+     */
+    public boolean supportsPipelining()
+    {
+        return thePipelining;
+    }
+
+    /**
+     * Determine the number of mail transactions performed during this session so far.
+     *
+     * @return the number of mail transactions
+     */
+    public int getTransactionCount()
+    {
+        return theTransactionCount;
+    }
+
+    /**
+     * Determine when this connection was last used.
+     *
+     * @return the time, in System.currentTimeMillis() format
+     */
+    public long getLastUsed()
+    {
+        return theLastUsed;
+    }
+
+    /**
+     * Send a batch of messages during this session. The receiver String of a message may
+     * contain several comma-separated recipients, which all receive the same message.
+     * A message counts as sent if at least one recipient was accepted. A message whose sender
+     * or receiver String contains line breaks or other control characters fails without
+     * anything being written for it. Messages are added to <code>sent</code> or
+     * <code>failed</code> in order; if an IOException is thrown, the messages not added to
+     * either have not been sent, and the connection must be aborted.
+     *
+     * @param msgs the messages
+     * @param sent add the messages that were sent to this list
+     * @param failed add the messages that were rejected by the server, or had invalid addresses, to this list
+     * @param <T> the message type
+     * @throws IOException thrown if communication with the server failed
+     */
+    public <T extends SmtpSendableMessage> void send(
+            List<T> msgs,
+            List<T> sent,
+            List<T> failed )
+        throws
+            IOException
+    {
+        int start = 0; // beginning of the current run of messages with valid addresses
+        for( int i=0 ; i<=msgs.size() ; ++i ) {
+            if( i < msgs.size() && hasValidAddresses( msgs.get( i ))) {
+                continue;
+            }
+            if( i > start ) {
+                List<T> run = msgs.subList( start, i );
+                if( thePipelining ) {
+                    sendPipelined( run, sent, failed );
+                } else {
+                    sendSequentially( run, sent, failed );
+                }
+                theLastUsed = System.currentTimeMillis();
+            }
+            if( i < msgs.size() ) {
+                log.warn( "Not sending message with invalid sender or receiver", msgs.get( i ));
+
+                failed.add( msgs.get( i ));
+            }
+            start = i+1;
+        }
+    }
+
+    /**
+     * Determine whether the sender and receiver Strings of a message can be written into
+     * SMTP commands and headers without changing their meaning.
+     *
+     * @param msg the message
+     * @return true if they can
+     */
+    protected static boolean hasValidAddresses(
+            SmtpSendableMessage msg )
+    {
+        return isValidAddressString( msg.getSenderString() ) && isValidAddressString( msg.getReceiverString() );
+    }
+
+    /**
+     * Determine whether a sender or receiver String is free of line breaks and other
+     * control characters, which would allow it to inject SMTP commands or headers.
+     *
+     * @param value the sender or receiver String
+     * @return true if it is non-null and free of control characters
+     */
+    public static boolean isValidAddressString(
+            String value )
+    {
+        if( value == null ) {
+            return false;
+        }
+        for( int i=0 ; i<value.length() ; ++i ) {
+            char c = value.charAt( i );
+            if( c < 0x20 || c == 0x7f ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send a batch of messages, sending the content of each message together with the
+     * commands of the next mail transaction.
+     *
+     * @param msgs the messages
+     * @param sent add the messages that were sent to this list
+     * @param failed add the messages that were rejected by the server to this list
+     * @param <T> the message type
+     * @throws IOException thrown if communication with the server failed
+     */
+    protected <T extends SmtpSendableMessage> void sendPipelined(
+            List<T> msgs,
+            List<T> sent,
+            List<T> failed )
+        throws
+            IOException
+    {
+        boolean rsetPending = false;
+
+        writeEnvelope( msgs.get( 0 ));
+        flush();
+
+        for( int i=0 ; i<msgs.size() ; ++i ) {
+            T current = msgs.get( i );
+
+            if( rsetPending ) {
+                readReply(); // nothing we could do about it
+                rsetPending = false;
+            }
+            boolean mailOk   = isPositive( readReply() );
+            int     accepted = 0;
+            for( int j=parseRecipients( current.getReceiverString() ).size() ; j>0 ; --j ) {
+                if( isPositive( readReply() )) {
+                    ++accepted;
+                }
+            }
+            boolean inData = readReply() == 354;
+
+            if( inData ) {
+                if( mailOk && accepted > 0 ) {
+                    writeContent( current );
+                } else {
+                    write( "." ); // the server should not have let us, but it did
+                }
+            } else {
+                write( "RSET" );
+                rsetPending = true;
+            }
+            if( i+1 < msgs.size() ) {
+                writeEnvelope( msgs.get( i+1 ));
+            }
+            flush();
+
+            if( inData && isPositive( readReply() ) && mailOk && accepted > 0 ) {
+                sent.add( current );
+            } else {
+                rejected( current, failed );
+            }
+        }
+        if( rsetPending ) {
+            flush();
+            readReply();
+        }
+    }
+
+    /**
+     * Send a batch of messages, waiting for the reply to each command.
+     *
+     * @param msgs the messages
+     * @param sent add the messages that were sent to this list
+     * @param failed add the messages that were rejected by the server to this list
+     * @param <T> the message type
+     * @throws IOException thrown if communication with the server failed
+     */
+    protected <T extends SmtpSendableMessage> void sendSequentially(
+            List<T> msgs,
+            List<T> sent,
+            List<T> failed )
+        throws
+            IOException
+    {
+        for( T current : msgs ) {
+            ++theTransactionCount;
+
+            write( mailFromCommand( current ));
+            flush();
+            if( !isPositive( readReply() )) {
+                resetAfterRejection( current, failed );
+                continue;
+            }
+            int accepted = 0;
+            for( String recipient : parseRecipients( current.getReceiverString() )) {
+                write( "RCPT TO:<" + recipient + ">" );
+                flush();
+                if( isPositive( readReply() )) {
+                    ++accepted;
+                }
+            }
+            if( accepted == 0 ) {
+                resetAfterRejection( current, failed );
+                continue;
+            }
+            write( "DATA" );
+            flush();
+            if( readReply() != 354 ) {
+                resetAfterRejection( current, failed );
+                continue;
+            }
+            writeContent( current );
+            flush();
+            if( isPositive( readReply() )) {
+                sent.add( current );
+            } else {
+                rejected( current, failed );
+            }
+        }
+    }
+
+    /**
+     * Record that a message was rejected, and reset the mail transaction.
+     *
+     * @param msg the message
+     * @param failed the list of failed messages
+     * @param <T> the message type
+     * @throws IOException thrown if communication with the server failed
+     */
+    protected <T extends SmtpSendableMessage> void resetAfterRejection(
+            T       msg,
+            List<T> failed )
+        throws
+            IOException
+    {
+        rejected( msg, failed );
+
+        write( "RSET" );
+        flush();
+        readReply();
+    }
+
+    /**
+     * Record that a message was rejected.
+     *
+     * @param msg the message
+     * @param failed the list of failed messages
+     * @param <T> the message type
+     */
+    protected <T extends SmtpSendableMessage> void rejected(
+            T       msg,
+            List<T> failed )
+    {
+        log.warn( "SMTP server rejected message", msg, theLastReply );
+
+        failed.add( msg );
+    }
+
+    /**
+     * Write the commands that start the mail transaction for a message, up to and
+     * including DATA.
+     *
+     * @param msg the message
+     * @throws IOException thrown if writing failed
+     */
+    protected void writeEnvelope(
+            SmtpSendableMessage msg )
+        throws
+            IOException
+    {
+        ++theTransactionCount;
+
+        write( mailFromCommand( msg ));
+        for( String recipient : parseRecipients( msg.getReceiverString() )) {
+            write( "RCPT TO:<" + recipient + ">" );
+        }
+        write( "DATA" );
+    }
+
+    /**
+     * Construct the MAIL FROM command for a message.
+     *
+     * @param msg the message
+     * @return the command
+     */
+    protected String mailFromCommand(
+            SmtpSendableMessage msg )
+    {
+        String ret = "MAIL FROM:<" + extractAddress( msg.getSenderString() ) + ">";
+        if( the8BitMime ) {
+            ret += " BODY=8BITMIME";
+        }
+        return ret;
+    }
+
+    /**
+     * Write the headers and the body of a message, dot-stuffed, followed by the end-of-data line.
+     *
+     * @param msg the message
+     * @throws IOException thrown if writing failed
+     */
+    protected void writeContent(
+            SmtpSendableMessage msg )
+        throws
+            IOException
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append( "From: " ).append( msg.getSenderString() ).append( CRLF );
+        buf.append( "To: " ).append( msg.getReceiverString() ).append( CRLF );
+        if( msg.getSubject() != null ) {
+            buf.append( "Subject: " ).append( encodeHeaderValue( msg.getSubject() )).append( CRLF );
+        }
+        buf.append( "Date: " ).append( theDateFormat.format( new Date() )).append( CRLF );
+        buf.append( "MIME-Version: 1.0" ).append( CRLF );
+        buf.append( "Content-Type: text/plain; charset=UTF-8" ).append( CRLF );
+        buf.append( "Content-Transfer-Encoding: 8bit" ).append( CRLF );
+        buf.append( CRLF );
+
+        String payload = msg.getPayload();
+        if( payload != null ) {
+            int start = 0;
+            while( start < payload.length() ) {
+                int end  = payload.indexOf( '\n', start );
+                int next;
+                if( end < 0 ) {
+                    end  = payload.length();
+                    next = end;
+                } else {
+                    next = end+1;
+                }
+                if( end > start && payload.charAt( end-1 ) == '\r' ) {
+                    --end;
+                }
+                if( end > start && payload.charAt( start ) == '.' ) {
+                    buf.append( '.' );
+                }
+                buf.append( payload, start, end ).append( CRLF );
+                start = next;
+            }
+        }
+        buf.append( '.' ).append( CRLF );
+
+        theWriter.write( buf.toString().getBytes( StandardCharsets.UTF_8 ));
+    }
+
+    /**
+     * End the session politely, and close the connection.
+     */
+    public void close()
+    {
+        try {
+            write( "QUIT" );
+            flush();
+            readReply();
+
+        } catch( IOException ex ) {
+            // ignore, we are closing anyway
+        }
+        abort();
+    }
+
+    /**
+     * Close the connection without further ado.
+     */
+    public void abort()
+    {
+        try {
+            theSocket.close();
+        } catch( IOException ex ) {
+            log.warn( ex );
+        }
+    }
+
+    /**
+     * Determine whether this connection is still open.
+     *
+     * @return true if it is open
+     */
+    public boolean isOpen()
+    {
+        return !theSocket.isClosed();
+    }
+
+    /**
+     * Buffer a command line.
+     *
+     * @param line the line, without line terminator
+     * @throws IOException thrown if writing failed
+     */
+    protected void write(
+            String line )
+        throws
+            IOException
+    {
+        if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "write", line );
+        }
+        theWriter.write( ( line + CRLF ).getBytes( StandardCharsets.UTF_8 ));
+    }
+
+    /**
+     * Send all buffered commands to the server.
+     *
+     * @throws IOException thrown if writing failed
+     */
+    protected void flush()
+        throws
+            IOException
+    {
+        theWriter.flush();
+    }
+
+    /**
+     * Read a possibly multi-line reply from the server.
+     *
+     * @return the reply code
+     * @throws IOException thrown if reading failed, or the reply was malformed
+     */
+    protected int readReply()
+        throws
+            IOException
+    {
+        theLastReplyLines.clear();
+
+        String line;
+        do {
+            line = theReader.readLine();
+            if( line == null ) {
+                throw new EOFException( "SMTP server closed the connection" );
+            }
+            if( line.length() < 3 ) {
+                throw new IOException( "Malformed SMTP reply: " + line );
+            }
+            theLastReplyLines.add( line );
+        } while( line.length() > 3 && line.charAt( 3 ) == '-' );
+
+        theLastReply = line;
+        try {
+            return Integer.parseInt( line.substring( 0, 3 ));
+
+        } catch( NumberFormatException ex ) {
+            throw new IOException( "Malformed SMTP reply: " + line );
+        }
+    }
+
+    /**
+     * Throw an IOException if a reply code is not the expected one.
+     *
+     * @param code the reply code
+     * @param expected the expected reply code
+     * @throws IOException thrown if the reply code is not the expected one
+     */
+    protected void expect(
+            int code,
+            int expected )
+        throws
+            IOException
+    {
+        if( code != expected ) {
+            throw new IOException( "Unexpected SMTP reply: " + theLastReply );
+        }
+    }
+
+    /**
+     * Determine whether a reply code indicates success.
+     *
+     * @param code the reply code
+     * @return true if it indicates success
+     */
+    protected static boolean isPositive(
+            int code )
+    {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Split a receiver String into the addresses of the individual recipients.
+     *
+     * @param receivers the receiver String, containing one or more comma-separated recipients
+     * @return the addresses
+     */
+    public static List<String> parseRecipients(
+            String receivers )
+    {
+        ArrayList<String> ret = new ArrayList<String>();
+        for( String current : receivers.split( "," )) {
+            String address = extractAddress( current );
+            if( !address.isEmpty() ) {
+                ret.add( address );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Extract the address from a mailbox specification such as <code>Name &lt;address&gt;</code>.
+     *
+     * @param mailbox the mailbox specification
+     * @return the address
+     */
+    public static String extractAddress(
+            String mailbox )
+    {
+        int open  = mailbox.lastIndexOf( '<' );
+        int close = mailbox.lastIndexOf( '>' );
+        if( open >= 0 && close > open ) {
+            return mailbox.substring( open+1, close ).trim();
+        }
+        return mailbox.trim();
+    }
+
+    /**
+     * Encode a header value that may contain non-ASCII characters, using the RFC 2047
+     * Q encoding if needed.
+     *
+     * @param value the header value
+     * @return the encoded value
+     */
+    public static String encodeHeaderValue(
+            String value )
+    {
+        boolean plain = true;
+        for( int i=0 ; i<value.length() ; ++i ) {
+            char c = value.charAt( i );
+            if( c < 0x20 || c > 0x7e ) {
+                plain = false;
+                break;
+            }
+        }
+        if( plain ) {
+            return value;
+        }
+        StringBuilder ret = new StringBuilder( "=?UTF-8?Q?" );
+        for( byte b : value.getBytes( StandardCharsets.UTF_8 )) {
+            int c = b & 0xff;
+            if( c == ' ' ) {
+                ret.append( '_' );
+            } else if( c > 0x20 && c < 0x7f && c != '=' && c != '?' && c != '_' ) {
+                ret.append( (char) c );
+            } else {
+                ret.append( '=' );
+                ret.append( HEX.charAt( c >> 4 ));
+                ret.append( HEX.charAt( c & 0xf ));
+            }
+        }
+        ret.append( "?=" );
+        return ret.toString();
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "socket",
+                    "pipelining",
+                    "transactionCount",
+                    "lastReply"
+                },
+                new Object[] {
+                    theSocket,
+                    thePipelining,
+                    theTransactionCount,
+                    theLastReply
+                });
+    }
+
+    /**
+     * The underlying Socket.
+     */
+    protected final Socket theSocket;
+
+    /**
+     * The name by which we introduce ourselves.
+     */
+    protected final String theHeloName;
+
+    /**
+     * Reads replies from the server.
+     */
+    protected final BufferedReader theReader;
+
+    /**
+     * Buffers commands and content to the server.
+     */
+    protected final OutputStream theWriter;
+
+    /**
+     * True if the server supports the PIPELINING extension.
+     */
+    protected boolean thePipelining;
+
+    /**
+     * True if the server supports the 8BITMIME extension.
+     */
+    protected boolean the8BitMime;
+
+    /**
+     * The number of mail transactions performed during this session.
+     */
+    protected int theTransactionCount;
+
+    /**
+     * The time this connection was last used.
+     */
+    protected long theLastUsed;
+
+    /**
+     * The last line of the most recent reply, for error reporting.
+     */
+    protected String theLastReply;
+
+    /**
+     * The lines of the most recent reply.
+     */
+    protected final List<String> theLastReplyLines = new ArrayList<String>();
+
+    /**
+     * Formats the Date header.
+     */
+    protected final SimpleDateFormat theDateFormat = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss Z", Locale.US );
+
+    /**
+     * The SMTP line terminator.
+     */
+    protected static final String CRLF = "\r\n";
+
+    /**
+     * Hexadecimal digits for the Q encoding.
+     */
+    private static final String HEX = "0123456789ABCDEF";
+}
@@ -26,7 +26,9 @@ import org.infogrid.util.ResourceHelper;
 import org.infogrid.util.logging.Log;
 
 /**
- * A message endpoint for sending messages via SMTP.
+ * A message endpoint for sending messages via SMTP. By default, messages are sent with a
+ * {@link SmtpClient} over persistent, pipelined connections. Alternatively, an external
+ * mail-sending command can be run for each message.
  * 
  * @param <T> the message type
  */
@@ -51,7 +53,8 @@ public class SmtpSendingMessageEndpoint<T extends SmtpSendableMessage>
                 DEFAULT_DELTA_RESEND,
                 DEFAULT_RANDOM_VARIATION,
                 exec,
-                new ArrayList<T>() );
+                new ArrayList<T>(),
+                USE_SEND_MAIL_COMMAND ? null : SmtpClient.create() );
         return ret;
     }
 
@@ -78,7 +81,38 @@ public class SmtpSendingMessageEndpoint<T extends SmtpSendableMessage>
                 deltaResend,
                 randomVariation,
                 exec,
-                messagesToBeSent );
+                messagesToBeSent,
+                USE_SEND_MAIL_COMMAND ? null : SmtpClient.create() );
+        return ret;
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param name the name of the MessageEndpoint (for debugging only)
+     * @param deltaResend  the number of milliseconds until this endpoint resends the message if sending the message failed
+     * @param randomVariation the random component to add to the various times
+     * @param exec the ScheduledExecutorService to schedule timed tasks
+     * @param messagesToBeSent outgoing message queue (may or may not be empty)
+     * @param smtpClient the SmtpClient to send messages with, or null to run the mail-sending command instead
+     * @return the created SmtpSendingMessageEndpoint
+     * @param <T> the message type
+     */
+    public static <T extends SmtpSendableMessage> SmtpSendingMessageEndpoint<T> create(
+            String                   name,
+            long                     deltaResend,
+            double                   randomVariation,
+            ScheduledExecutorService exec,
+            List<T>                  messagesToBeSent,
+            SmtpClient               smtpClient )
+    {
+        SmtpSendingMessageEndpoint<T> ret = new SmtpSendingMessageEndpoint<T>(
+                name,
+                deltaResend,
+                randomVariation,
+                exec,
+                messagesToBeSent,
+                smtpClient );
         return ret;
     }
 
@@ -90,15 +124,69 @@ public class SmtpSendingMessageEndpoint<T extends SmtpSendableMessage>
      * @param randomVariation the random component to add to the various times
      * @param exec the ScheduledExecutorService to schedule timed tasks
      * @param messagesToBeSent outgoing message queue (may or may not be empty)
+     * @param smtpClient the SmtpClient to send messages with, or null to run the mail-sending command instead
      */
     protected SmtpSendingMessageEndpoint(
             String                   name,
             long                     deltaResend,
             double                   randomVariation,
             ScheduledExecutorService exec,
-            List<T>                  messagesToBeSent )
+            List<T>                  messagesToBeSent,
+            SmtpClient               smtpClient )
     {
         super( name, deltaResend, randomVariation, exec, messagesToBeSent );
+
+        theSmtpClient = smtpClient;
+    }
+
+    /**
+     * Obtain the SmtpClient used to send messages, if any.
+     *
+     * @return the SmtpClient, or null if the mail-sending command is run instead
+     */
+    public SmtpClient getSmtpClient()
+    {
+        return theSmtpClient;
+    }
+
+    /**
+     * Send a batch of messages. With a SmtpClient, all messages are sent during as few
+     * SMTP sessions as possible.
+     *
+     * @param toSend the messages to send
+     * @param sent add the messages that were sent to this list
+     * @param failed add the messages that could not be sent to this list
+     */
+    @Override
+    protected void sendMessages(
+            List<T> toSend,
+            List<T> sent,
+            List<T> failed )
+    {
+        if( theSmtpClient == null ) {
+            super.sendMessages( toSend, sent, failed );
+            return;
+        }
+
+        ArrayList<T> attempt = new ArrayList<T>( toSend.size() );
+        for( T current : toSend ) {
+            if( current.getRemainingSendingAttempts() <= 0 ) {
+                if( log.isDebugEnabled() ) {
+                    log.debug( "Giving up on", current );
+                }
+                sent.add( current ); // pretend it worked
+            } else {
+                current.setRemainingSendingAttempts( current.getRemainingSendingAttempts()-1 );
+                attempt.add( current );
+            }
+        }
+
+        int before = sent.size();
+        theSmtpClient.send( attempt, sent, failed );
+
+        for( int i=before ; i<sent.size() ; ++i ) {
+            sent.get( i ).setRemainingSendingAttempts( 0 ); // we were successful
+        }
     }
 
     /**
@@ -120,6 +208,19 @@ public class SmtpSendingMessageEndpoint<T extends SmtpSendableMessage>
         }
         msg.setRemainingSendingAttempts( msg.getRemainingSendingAttempts()-1 );
 
+        if( theSmtpClient != null ) {
+            ArrayList<T> msgs   = new ArrayList<T>( 1 );
+            ArrayList<T> failed = new ArrayList<T>( 1 );
+            msgs.add( msg );
+
+            theSmtpClient.send( msgs, new ArrayList<T>( 1 ), failed );
+            if( !failed.isEmpty() ) {
+                throw new MessageSendException( msgs, "Failed to send via SMTP" );
+            }
+            msg.setRemainingSendingAttempts( 0 ); // we were successful
+            return;
+        }
+
         String [] commandLine = new String[ SEND_MAIL_COMMAND.length ] ;
         for( int i=0 ; i<commandLine.length ; ++i ) {
             commandLine[i] = MessageFormat.format( SEND_MAIL_COMMAND[i], msg.getSenderString(), msg.getReceiverString(), msg.getSubject() );
@@ -147,6 +248,11 @@ public class SmtpSendingMessageEndpoint<T extends SmtpSendableMessage>
         msg.setRemainingSendingAttempts( 0 ); // we were successful
     }
 
+    /**
+     * The SmtpClient used to send messages, or null if the mail-sending command is run instead.
+     */
+    protected SmtpClient theSmtpClient;
+
     /**
      * Our ResourceHelper.
      */
@@ -163,7 +269,13 @@ public class SmtpSendingMessageEndpoint<T extends SmtpSendableMessage>
     public static final double DEFAULT_RANDOM_VARIATION = theResourceHelper.getResourceDoubleOrDefault( "RandomVariation", 0.02 ); // 2%
 
     /**
-     * Executable to run to actually send the message.
+     * If true, the factory methods without SmtpClient create endpoints that run the
+     * mail-sending command instead of sending via SMTP themselves.
+     */
+    public static final boolean USE_SEND_MAIL_COMMAND = theResourceHelper.getResourceBooleanOrDefault( "UseSendMailCommand", false );
+
+    /**
+     * Executable to run to actually send the message, if no SmtpClient is used.
      * This should usually be overridden: this works for Linux if the gnu mails package is installed ("apt-get install mailutils" on debian/Ubuntu)
      */
     public static final String [] SEND_MAIL_COMMAND = theResourceHelper.getResourceStringArrayOrDefault(
@@ -0,0 +1,278 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.comm.smtp.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.comm.MessageEndpoint;
+import org.infogrid.comm.MessageEndpointListener;
+import org.infogrid.comm.ReceivingMessageEndpoint;
+import org.infogrid.comm.SendingMessageEndpoint;
+import org.infogrid.comm.smtp.SimpleSmtpSendableMessage;
+import org.infogrid.comm.smtp.SmtpClient;
+import org.infogrid.comm.smtp.SmtpSendingMessageEndpoint;
+import org.infogrid.util.NamedThreadFactory;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests sending via SMTP over persistent, pipelined connections to an in-process stand-in.
+ */
+public class SmtpSendingMessageEndpointTest1
+{
+    @Test
+    public void run()
+            throws
+                Throwable
+    {
+        log.info( "Sending via the endpoint" );
+
+        SmtpClient client = SmtpClient.create( "localhost", pipelined.getPort() );
+        SmtpSendingMessageEndpoint<SimpleSmtpSendableMessage> ep = SmtpSendingMessageEndpoint.create(
+                "smtp",
+                100L,
+                0.,
+                exec,
+                new ArrayList<SimpleSmtpSendableMessage>(),
+                client );
+
+        Counter counter = new Counter();
+        ep.addDirectMessageEndpointListener( counter );
+
+        for( int i=0 ; i<N_ENDPOINT ; ++i ) {
+            ep.enqueueMessageForSend( SimpleSmtpSendableMessage.create( "sender@example.com", "user-" + i + "@example.com", "Note " + i, "Hello " + i ));
+        }
+        ep.enqueueMessageForSend( SimpleSmtpSendableMessage.create(
+                "Sender <sender@example.com>",
+                "a@example.com, Bob <b@example.com>, reject-1@example.com",
+                "Grüße",
+                ".hidden\r\nline\n" ));
+        ep.enqueueMessageForSend( SimpleSmtpSendableMessage.create( "sender@example.com", "reject-2@example.com", "Lost", "Lost", 1 ));
+
+        for( int i=0 ; i<100 && counter.theSent.get() < N_ENDPOINT+2 ; ++i ) {
+            Thread.sleep( 100L );
+        }
+        Assert.assertEquals( "wrong number of messages sent", N_ENDPOINT+2, counter.theSent.get() ); // the rejected one gives up eventually
+        Assert.assertEquals( "wrong number of messages failed", 1, counter.theFailed.get() );
+
+        List<SmtpStandIn.Received> received = pipelined.getReceived();
+        Assert.assertEquals( "wrong number of messages received", N_ENDPOINT+1, received.size() );
+
+        SmtpStandIn.Received multi = received.get( N_ENDPOINT );
+        Assert.assertEquals( "wrong sender", "sender@example.com", multi.theFrom );
+        Assert.assertEquals( "wrong recipients", 2, multi.theRecipients.size() );
+        Assert.assertEquals( "wrong recipient", "b@example.com", multi.theRecipients.get( 1 ));
+        Assert.assertTrue( "wrong subject", multi.theContent.contains( "Subject: =?UTF-8?Q?Gr=C3=BC=C3=9Fe?=\n" ));
+        Assert.assertTrue( "wrong body", multi.theContent.endsWith( "\n\n.hidden\nline\n" ));
+
+        Assert.assertEquals( "connection not reused", 1, pipelined.getConnectionCount() );
+        Assert.assertEquals( "connection not kept", 1, client.getIdleConnectionCount() );
+
+        client.close();
+
+        log.info( "Comparing round trips" );
+
+        int pipelinedTrips  = roundTrips( pipelined );
+        int sequentialTrips = roundTrips( sequential );
+
+        log.info( "Round trips for " + N + " messages: pipelined: " + pipelinedTrips + ", sequential: " + sequentialTrips );
+
+        Assert.assertTrue( "too many round trips: " + pipelinedTrips, pipelinedTrips <= N + 5 );
+        Assert.assertTrue( "pipelining not effective: " + pipelinedTrips + " vs. " + sequentialTrips, pipelinedTrips * 3 < sequentialTrips );
+    }
+
+    @Test
+    public void controlCharactersInAddressesFail()
+    {
+        for( SmtpStandIn server : new SmtpStandIn[] { pipelined, sequential } ) {
+            log.info( "Sending messages with injected commands, pipelined: " + ( server == pipelined ));
+
+            SmtpClient client = SmtpClient.create( "localhost", server.getPort() );
+
+            List<SimpleSmtpSendableMessage> msgs = new ArrayList<SimpleSmtpSendableMessage>();
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com", "one@example.com", "One", "One" ));
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com>\r\nRCPT TO:<evil@example.com", "two@example.com", "Two", "Two" ));
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com", "three@example.com", "Three", "Three" ));
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com", "four@example.com\nBcc: evil@example.com", "Four", "Four" ));
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com", "five@example.com\u0000", "Five", "Five" ));
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com", "six@example.com", "Six", "Six" ));
+
+            List<SimpleSmtpSendableMessage> sent   = new ArrayList<SimpleSmtpSendableMessage>();
+            List<SimpleSmtpSendableMessage> failed = new ArrayList<SimpleSmtpSendableMessage>();
+
+            client.send( msgs, sent, failed );
+            client.close();
+
+            Assert.assertEquals( "wrong sent", Arrays.asList( msgs.get( 0 ), msgs.get( 2 ), msgs.get( 5 )), sent );
+            Assert.assertEquals( "wrong failed", Arrays.asList( msgs.get( 1 ), msgs.get( 3 ), msgs.get( 4 )), failed );
+
+            List<SmtpStandIn.Received> received = server.getReceived();
+            Assert.assertEquals( "wrong number of messages received", 3, received.size() );
+            for( SmtpStandIn.Received current : received ) {
+                Assert.assertEquals( "wrong number of recipients", 1, current.theRecipients.size() );
+                Assert.assertFalse( "injected recipient", current.theRecipients.get( 0 ).contains( "evil" ));
+                Assert.assertFalse( "injected header", current.theContent.contains( "evil" ));
+            }
+            Assert.assertEquals( "wrong recipient", "six@example.com", received.get( 2 ).theRecipients.get( 0 ));
+        }
+    }
+
+    /**
+     * Send a batch of messages directly via a SmtpClient, and count the round trips.
+     *
+     * @param server the server to send to
+     * @return the number of round trips
+     */
+    protected int roundTrips(
+            SmtpStandIn server )
+    {
+        SmtpClient client = SmtpClient.create( "localhost", server.getPort() );
+
+        List<SimpleSmtpSendableMessage> msgs = new ArrayList<SimpleSmtpSendableMessage>( N );
+        for( int i=0 ; i<N ; ++i ) {
+            msgs.add( SimpleSmtpSendableMessage.create( "sender@example.com", "user-" + i + "@example.com", "Note " + i, "Hello " + i ));
+        }
+        List<SimpleSmtpSendableMessage> sent   = new ArrayList<SimpleSmtpSendableMessage>( N );
+        List<SimpleSmtpSendableMessage> failed = new ArrayList<SimpleSmtpSendableMessage>();
+
+        int before = server.getRoundTripCount();
+        client.send( msgs, sent, failed );
+        int ret = server.getRoundTripCount() - before;
+
+        Assert.assertEquals( "not all sent", N, sent.size() );
+        Assert.assertTrue( "some failed", failed.isEmpty() );
+
+        client.close();
+        return ret;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        exec       = new ScheduledThreadPoolExecutor( 1, new NamedThreadFactory( getClass().getName() ));
+        pipelined  = new SmtpStandIn( true,  LATENCY );
+        sequential = new SmtpStandIn( false, LATENCY );
+    }
+
+    /**
+     * Cleanup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @After
+    public void cleanup()
+        throws
+            Exception
+    {
+        exec.shutdown();
+        pipelined.close();
+        sequential.close();
+    }
+
+    /**
+     * The number of messages sent via the endpoint, so they all fit into one session.
+     */
+    protected static final int N_ENDPOINT = 50;
+
+    /**
+     * The number of messages per batch when counting round trips.
+     */
+    protected static final int N = 100;
+
+    /**
+     * The simulated round-trip time, in milliseconds.
+     */
+    protected static final long LATENCY = 2L;
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * The stand-in server that supports pipelining.
+     */
+    protected SmtpStandIn pipelined;
+
+    /**
+     * The stand-in server that does not support pipelining.
+     */
+    protected SmtpStandIn sequential;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( SmtpSendingMessageEndpointTest1.class );
+
+    /**
+     * Counts sent and failed messages.
+     */
+    static class Counter
+            implements
+                MessageEndpointListener<SimpleSmtpSendableMessage>
+    {
+        public void messageReceived(
+                ReceivingMessageEndpoint<SimpleSmtpSendableMessage> endpoint,
+                List<SimpleSmtpSendableMessage>                     msgs )
+        {}
+
+        public void messageSent(
+                SendingMessageEndpoint<SimpleSmtpSendableMessage> endpoint,
+                SimpleSmtpSendableMessage                         msg )
+        {
+            theSent.incrementAndGet();
+        }
+
+        public void messageEnqueued(
+                SendingMessageEndpoint<SimpleSmtpSendableMessage> endpoint,
+                SimpleSmtpSendableMessage                         msg )
+        {}
+
+        public void messageSendingFailed(
+                SendingMessageEndpoint<SimpleSmtpSendableMessage> endpoint,
+                SimpleSmtpSendableMessage                         msg )
+        {
+            theFailed.incrementAndGet();
+        }
+
+        public void disablingError(
+                MessageEndpoint<SimpleSmtpSendableMessage> endpoint,
+                List<SimpleSmtpSendableMessage>            msg,
+                Throwable                                  t )
+        {}
+
+        /**
+         * The number of sent messages.
+         */
+        AtomicInteger theSent = new AtomicInteger();
+
+        /**
+         * The number of failed messages.
+         */
+        AtomicInteger theFailed = new AtomicInteger();
+    }
+}
@@ -0,0 +1,331 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.comm.smtp.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.util.logging.Log;
+
+/**
+ * A minimal, in-process stand-in for an SMTP server. It accepts all messages, except to
+ * recipients whose address starts with "reject". Like a real server, it flushes its replies
+ * only when it has no further commands to process, and then it pauses for a configurable
+ * latency, which simulates one network round trip.
+ */
+public class SmtpStandIn
+        implements
+            Runnable
+{
+    private static final Log log = Log.getLogInstance( SmtpStandIn.class ); // our own, private logger
+
+    /**
+     * Constructor. Starts listening right away on a free port.
+     *
+     * @param pipelining if true, advertise the PIPELINING extension
+     * @param latency the simulated round-trip time, in milliseconds
+     * @throws IOException thrown if the server socket could not be opened
+     */
+    public SmtpStandIn(
+            boolean pipelining,
+            long    latency )
+        throws
+            IOException
+    {
+        thePipelining  = pipelining;
+        theLatency     = latency;
+        theServer      = new ServerSocket( 0 );
+
+        Thread t = new Thread( this, "SmtpStandIn" );
+        t.setDaemon( true );
+        t.start();
+    }
+
+    /**
+     * Obtain the port we are listening on.
+     *
+     * @return the port
+     */
+    public int getPort()
+    {
+        return theServer.getLocalPort();
+    }
+
+    /**
+     * Accept connections.
+     */
+    public void run()
+    {
+        try {
+            while( true ) {
+                final Socket s = theServer.accept();
+                theConnectionCount.incrementAndGet();
+
+                Thread t = new Thread( "SmtpStandIn-session" ) {
+                        @Override
+                        public void run()
+                        {
+                            session( s );
+                        }
+                };
+                t.setDaemon( true );
+                t.start();
+            }
+        } catch( IOException ex ) {
+            // closed
+        }
+    }
+
+    /**
+     * Handle one session.
+     *
+     * @param s the Socket of the session
+     */
+    protected void session(
+            Socket s )
+    {
+        try {
+            BufferedReader in  = new BufferedReader( new InputStreamReader( s.getInputStream(), StandardCharsets.UTF_8 ));
+            OutputStream   out = s.getOutputStream();
+            StringBuilder  buf = new StringBuilder();
+
+            buf.append( "220 stand-in ESMTP\r\n" );
+
+            String       from       = null;
+            List<String> recipients = new ArrayList<String>();
+
+            while( true ) {
+                if( !in.ready() ) {
+                    flushAndWait( out, buf );
+                }
+                String line = in.readLine();
+                if( line == null ) {
+                    break;
+                }
+                String upper = line.toUpperCase();
+                if( upper.startsWith( "EHLO" )) {
+                    buf.append( "250-stand-in\r\n" );
+                    if( thePipelining ) {
+                        buf.append( "250-PIPELINING\r\n" );
+                    }
+                    buf.append( "250 8BITMIME\r\n" );
+
+                } else if( upper.startsWith( "MAIL FROM:" )) {
+                    from = line.substring( line.indexOf( '<' )+1, line.indexOf( '>' ));
+                    recipients.clear();
+                    buf.append( "250 OK\r\n" );
+
+                } else if( upper.startsWith( "RCPT TO:" )) {
+                    String rcpt = line.substring( line.indexOf( '<' )+1, line.indexOf( '>' ));
+                    if( rcpt.startsWith( "reject" )) {
+                        buf.append( "550 No such user\r\n" );
+                    } else {
+                        recipients.add( rcpt );
+                        buf.append( "250 OK\r\n" );
+                    }
+
+                } else if( upper.equals( "DATA" )) {
+                    if( from == null || recipients.isEmpty() ) {
+                        buf.append( "554 No valid recipients\r\n" );
+                        continue;
+                    }
+                    buf.append( "354 Go ahead\r\n" );
+
+                    StringBuilder content = new StringBuilder();
+                    while( true ) {
+                        if( !in.ready() ) {
+                            flushAndWait( out, buf );
+                        }
+                        String dataLine = in.readLine();
+                        if( dataLine == null || dataLine.equals( "." )) {
+                            break;
+                        }
+                        if( dataLine.startsWith( "." )) {
+                            dataLine = dataLine.substring( 1 );
+                        }
+                        content.append( dataLine ).append( '\n' );
+                    }
+                    synchronized( theReceived ) {
+                        theReceived.add( new Received( from, new ArrayList<String>( recipients ), content.toString() ));
+                    }
+                    from = null;
+                    buf.append( "250 Queued\r\n" );
+
+                } else if( upper.equals( "RSET" )) {
+                    from = null;
+                    recipients.clear();
+                    buf.append( "250 OK\r\n" );
+
+                } else if( upper.equals( "QUIT" )) {
+                    buf.append( "221 Bye\r\n" );
+                    out.write( buf.toString().getBytes( StandardCharsets.UTF_8 ));
+                    out.flush();
+                    break;
+
+                } else {
+                    buf.append( "502 Not implemented\r\n" );
+                }
+            }
+            s.close();
+
+        } catch( Exception ex ) {
+            log.error( ex );
+        }
+    }
+
+    /**
+     * Send the buffered replies, and wait for the simulated round-trip time.
+     *
+     * @param out the stream to send the replies to
+     * @param buf the buffered replies
+     * @throws IOException thrown if the replies could not be sent
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    protected void flushAndWait(
+            OutputStream  out,
+            StringBuilder buf )
+        throws
+            IOException,
+            InterruptedException
+    {
+        if( buf.length() > 0 ) {
+            out.write( buf.toString().getBytes( StandardCharsets.UTF_8 ));
+            out.flush();
+            buf.setLength( 0 );
+
+            theRoundTripCount.incrementAndGet();
+            Thread.sleep( theLatency );
+        }
+    }
+
+    /**
+     * Obtain the messages received so far.
+     *
+     * @return the messages
+     */
+    public List<Received> getReceived()
+    {
+        synchronized( theReceived ) {
+            return new ArrayList<Received>( theReceived );
+        }
+    }
+
+    /**
+     * Obtain the number of connections accepted so far.
+     *
+     * @return the number of connections
+     */
+    public int getConnectionCount()
+    {
+        return theConnectionCount.get();
+    }
+
+    /**
+     * Obtain the number of simulated round trips so far.
+     *
+     * @return the number of round trips
+     */
+    public int getRoundTripCount()
+    {
+        return theRoundTripCount.get();
+    }
+
+    /**
+     * Stop listening.
+     *
+     * @throws IOException thrown if the server socket could not be closed
+     */
+    public void close()
+        throws
+            IOException
+    {
+        theServer.close();
+    }
+
+    /**
+     * If true, advertise the PIPELINING extension.
+     */
+    protected final boolean thePipelining;
+
+    /**
+     * The simulated round-trip time, in milliseconds.
+     */
+    protected final long theLatency;
+
+    /**
+     * The server socket.
+     */
+    protected final ServerSocket theServer;
+
+    /**
+     * The messages received so far.
+     */
+    protected final List<Received> theReceived = new ArrayList<Received>();
+
+    /**
+     * The number of connections accepted so far.
+     */
+    protected final AtomicInteger theConnectionCount = new AtomicInteger();
+
+    /**
+     * The number of simulated round trips so far.
+     */
+    protected final AtomicInteger theRoundTripCount = new AtomicInteger();
+
+    /**
+     * A received message.
+     */
+    public static class Received
+    {
+        /**
+         * Constructor.
+         *
+         * @param from the envelope sender
+         * @param recipients the accepted envelope recipients
+         * @param content the headers and body
+         */
+        public Received(
+                String       from,
+                List<String> recipients,
+                String       content )
+        {
+            theFrom       = from;
+            theRecipients = recipients;
+            theContent    = content;
+        }
+
+        /**
+         * The envelope sender.
+         */
+        public final String theFrom;
+
+        /**
+         * The accepted envelope recipients.
+         */
+        public final List<String> theRecipients;
+
+        /**
+         * The headers and body.
+         */
+        public final String theContent;
+    }
+}
@@ -15,13 +15,29 @@
 package org.infogrid.comm;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.TokenBucket;
 import org.infogrid.util.logging.Log;
 
 /**
- * Factors out functionality common to many SendingMessageEndpoint implementations
- * that use a "fire and forget" model.
+ * <p>Factors out functionality common to many SendingMessageEndpoint implementations
+ * that use a "fire and forget" model.</p>
+ * <p>Enqueued messages are handed to a dispatcher that sends them with up to a configurable
+ * number of concurrent senders, optionally limited to a maximum rate. A message that could
+ * not be sent is retried on its own schedule, with exponentially increasing, randomized delays,
+ * so one failing message does not hold up the others. If more than one concurrent sender is
+ * configured, <code>sendMessages</code> and <code>sendMessage</code> must be thread-safe.</p>
+ * <p>The space in the outgoing queue that a message takes is only released once the message
+ * has been sent.</p>
  * 
  * @param <T> the message type
  */
@@ -49,20 +65,116 @@ public abstract class AbstractFireAndForgetSendingMessageEndpoint<T>
     {
         super( name, randomVariation, exec, messagesToBeSent );
 
-        theDeltaResend = deltaResend;
+        theDeltaResend        = deltaResend;
+        theMaxDeltaResend     = Math.max( deltaResend, DEFAULT_MAX_DELTA_RESEND );
+        theBackoffJitter      = DEFAULT_BACKOFF_JITTER;
+        theMaxConcurrentSends = DEFAULT_MAX_CONCURRENT_SENDS;
+        theMaxSendChunk       = DEFAULT_MAX_SEND_CHUNK;
     }
 
     /**
-     * Send a message.
+     * Set the ExecutorService on which messages are sent, and the maximum number of messages
+     * or batches of messages that may be sent at the same time.
+     *
+     * @param sendExec the ExecutorService, or null to send on the ScheduledExecutorService of this endpoint
+     * @param maxConcurrentSends the maximum number of concurrent senders
+     */
+    public void setSendExecutor(
+            ExecutorService sendExec,
+            int             maxConcurrentSends )
+    {
+        if( maxConcurrentSends < 1 ) {
+            throw new IllegalArgumentException( "Need at least one sender: " + maxConcurrentSends );
+        }
+        theSendExecutor       = sendExec;
+        theMaxConcurrentSends = maxConcurrentSends;
+
+        startSenders();
+    }
+
+    /**
+     * Obtain the maximum number of messages or batches of messages that may be sent at the same time.
+     *
+     * @return the maximum number of concurrent senders
+     */
+    public int getMaxConcurrentSends()
+    {
+        return theMaxConcurrentSends;
+    }
+
+    /**
+     * Limit the rate at which messages are sent, across all concurrent senders.
+     *
+     * @param messagesPerSecond the maximum sustained rate, or a non-positive number to remove the limit
+     * @param burst the maximum number of messages that may be sent at once after a pause
+     */
+    public void setRateLimit(
+            double messagesPerSecond,
+            int    burst )
+    {
+        if( messagesPerSecond > 0. ) {
+            theRateLimiter = TokenBucket.create( messagesPerSecond, burst );
+        } else {
+            theRateLimiter = null;
+        }
+    }
+
+    /**
+     * Obtain the TokenBucket that limits the rate at which messages are sent, if any.
+     *
+     * @return the TokenBucket, or null
+     */
+    public TokenBucket getRateLimiter()
+    {
+        return theRateLimiter;
+    }
+
+    /**
+     * Configure how the delay until a failed message is resent grows. The first delay is
+     * <code>deltaResend</code>; it doubles with each further failure of the same message,
+     * up to the maximum. Each delay is shortened by a random fraction of up to
+     * <code>jitter</code>, so messages that failed together are not resent together.
+     *
+     * @param maxDeltaResend the maximum delay, in milliseconds
+     * @param jitter the maximum random fraction, between 0 and 1
+     */
+    public void setBackoff(
+            long   maxDeltaResend,
+            double jitter )
+    {
+        if( jitter < 0. || jitter > 1. ) {
+            throw new IllegalArgumentException( "Jitter must be between 0 and 1: " + jitter );
+        }
+        theMaxDeltaResend = Math.max( theDeltaResend, maxDeltaResend );
+        theBackoffJitter  = jitter;
+    }
+
+    /**
+     * Set the maximum number of messages a sender passes to <code>sendMessages</code> at once.
+     *
+     * @param maxSendChunk the maximum number of messages
+     */
+    public void setMaxSendChunk(
+            int maxSendChunk )
+    {
+        if( maxSendChunk < 1 ) {
+            throw new IllegalArgumentException( "Need at least one message per chunk: " + maxSendChunk );
+        }
+        theMaxSendChunk = maxSendChunk;
+    }
+
+    /**
+     * Enqueue a message for which space in the outgoing queue has been obtained already,
+     * and send it.
      *
      * @param msg the Message to send.
      */
     @Override
-    public void enqueueMessageForSend(
+    protected void enqueueAdmittedMessage(
             T msg )
     {
-        super.enqueueMessageForSend( msg );
-        
+        super.enqueueAdmittedMessage( msg );
+
         synchronized( this ) {
             if( theFutureTask != null ) {
                 theFutureTask.cancel(); // This is pessimistic if enqueueMessageForSend is invoked N times very rapidly
@@ -71,51 +183,312 @@ public abstract class AbstractFireAndForgetSendingMessageEndpoint<T>
         }
     }
 
+    /**
+     * Obtain the Messages still to be sent, including those that are being sent or
+     * are waiting to be resent.
+     *
+     * @return the messages
+     */
+    @Override
+    public List<T> messagesToBeSent()
+    {
+        List<T> queued = super.messagesToBeSent();
+        if( theDispatching.isEmpty() ) {
+            return queued;
+        }
+        ArrayList<T> ret = new ArrayList<T>( theDispatching.size() + queued.size() );
+        for( Dispatch<T> current : theDispatching ) {
+            ret.add( current.theMessage );
+        }
+        ret.addAll( queued );
+        return ret;
+    }
+
+    /**
+     * Determine the number of messages that have been taken from the outgoing queue,
+     * but have not been sent yet.
+     *
+     * @return the number of messages
+     */
+    public int getDispatchingCount()
+    {
+        return theDispatching.size();
+    }
+
+    /**
+     * Determine the number of Messages still to be sent, including those currently being dispatched.
+     *
+     * @return the number of Messages
+     */
+    @Override
+    public int getMessagesToBeSentCount()
+    {
+        return super.getMessagesToBeSentCount() + theDispatching.size();
+    }
+
     /**
      * Invoked when the timer triggers.
      *
      * @param task the TimedTask that invokes this method
      */
+    @SuppressWarnings("unchecked")
     protected void doAction(
             TimedTask task )
     {
-        List<T> toSend = new ArrayList<T>();
-        
-        synchronized( theMessagesToBeSent ) {
-            toSend.addAll( theMessagesToBeSent );
+        if( task instanceof ResendTask ) {
+            Dispatch<T> d = (Dispatch<T>) ((ResendTask) task).theDispatch;
+            makeReady( d );
+            theListeners.fireEvent( Collections.singletonList( d.theMessage ), BATCH_RESENT );
+        } else {
+            takeMessages();
         }
+        startSenders();
+    }
 
-        // we can send messages out of order with SMTP
+    /**
+     * Move all messages from the outgoing queue to the dispatcher. Their space in the
+     * outgoing queue is released only once they have been sent.
+     */
+    protected void takeMessages()
+    {
+        synchronized( theTakeLock ) { // so two threads cannot drain the same messages
+            List<T> batch;
+            while( ( batch = drainMessagesToBeSent() ) != null && !batch.isEmpty() ) {
+                removeMessagesSent( batch );
+
+                for( T current : batch ) {
+                    Dispatch<T> d = new Dispatch<T>( current );
+                    theDispatching.add( d );
+                    makeReady( d );
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a message ready to be picked up by a sender.
+     *
+     * @param d the message
+     */
+    protected void makeReady(
+            Dispatch<T> d )
+    {
+        theReady.add( d );
+        theReadyCount.incrementAndGet();
+    }
+
+    /**
+     * Start as many senders as there are ready messages for, up to the maximum.
+     */
+    protected void startSenders()
+    {
+        while( theReadyCount.get() > 0 ) {
+            int active = theActiveSenders.get();
+            if( active >= theMaxConcurrentSends ) {
+                return;
+            }
+            if( !theActiveSenders.compareAndSet( active, active+1 )) {
+                continue;
+            }
+            ExecutorService exec = theSendExecutor != null ? theSendExecutor : theExecutorService;
+            try {
+                exec.execute( new Runnable() {
+                        public void run()
+                        {
+                            runSender();
+                        }
+                });
+
+            } catch( RejectedExecutionException ex ) {
+                theActiveSenders.decrementAndGet();
+                if( !exec.isShutdown() ) {
+                    log.warn( this + ": could not start sender with ExecutorService " + exec, ex );
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send ready messages until there are none left.
+     */
+    protected void runSender()
+    {
+        try {
+            List<Dispatch<T>> chunk;
+            while( ( chunk = pollReady() ) != null ) {
+                if( !sendChunk( chunk )) {
+                    break;
+                }
+            }
+        } finally {
+            theActiveSenders.decrementAndGet();
+        }
+        startSenders(); // a message may have become ready while we were stopping
+    }
+
+    /**
+     * Take the next chunk of ready messages. Chunks are made small enough that all
+     * concurrent senders get a share.
+     *
+     * @return the messages, or null if none are ready
+     */
+    protected List<Dispatch<T>> pollReady()
+    {
+        int max = Math.min( theMaxSendChunk, Math.max( 1, theReadyCount.get() / theMaxConcurrentSends ));
+
+        TokenBucket limiter = theRateLimiter;
+        if( limiter != null ) {
+            max = Math.min( max, limiter.getBurst() );
+        }
+
+        ArrayList<Dispatch<T>> ret = null;
+        Dispatch<T>            current;
+        while( ( ret == null || ret.size() < max ) && ( current = theReady.poll() ) != null ) {
+            theReadyCount.decrementAndGet();
+            if( ret == null ) {
+                ret = new ArrayList<Dispatch<T>>( max );
+            }
+            ret.add( current );
+        }
+        return ret;
+    }
+
+    /**
+     * Send a chunk of messages, notify listeners, and schedule the failed ones for resending.
+     *
+     * @param chunk the messages
+     * @return false if the sender has been interrupted and should stop
+     */
+    protected boolean sendChunk(
+            List<Dispatch<T>> chunk )
+    {
+        TokenBucket limiter = theRateLimiter;
+        if( limiter != null ) {
+            try {
+                limiter.acquire( chunk.size() );
+
+            } catch( InterruptedException ex ) {
+                for( Dispatch<T> current : chunk ) {
+                    makeReady( current );
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        List<T> toSend = new ArrayList<T>( chunk.size() );
+        for( Dispatch<T> current : chunk ) {
+            toSend.add( current.theMessage );
+        }
+
+        List<T> sent   = new ArrayList<T>( toSend.size() );
         List<T> failed = new ArrayList<T>();
-        for( T current : toSend ) {
 
+        try {
+            sendMessages( toSend, sent, failed );
+
+        } catch( RuntimeException ex ) {
+            log.error( this + ": sending failed", ex ); // those not reported as sent will be resent
+        }
+
+        // the same message may have been enqueued more than once, so match each sent message
+        // to a Dispatch of its own, searching from where the previous one was found
+        boolean [] done    = new boolean[ chunk.size() ];
+        int        removed = 0;
+        int        next    = 0;
+        for( T current : sent ) {
+            for( int j=0 ; j<chunk.size() ; ++j ) {
+                int i = ( next + j ) % chunk.size();
+                if( !done[i] && chunk.get( i ).theMessage == current ) {
+                    done[i] = true;
+                    theDispatching.remove( chunk.get( i ));
+                    ++removed;
+                    next = i+1;
+                    break;
+                }
+            }
+        }
+        messagesRemoved( removed );
+
+        if( !sent.isEmpty() ) {
+            theListeners.fireEvent( sent, BATCH_SENT );
+        }
+        for( T current : sent ) {
+            theListeners.fireEvent( current, MESSAGE_SENT );
+        }
+        for( T current : failed ) {
+            theListeners.fireEvent( current, MESSAGE_SENDING_FAILED );
+        }
+        for( int i=0 ; i<chunk.size() ; ++i ) {
+            if( !done[i] ) { // failed, or not reported at all
+                scheduleResend( chunk.get( i ));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schedule a message that could not be sent to be resent later.
+     *
+     * @param d the message
+     */
+    protected void scheduleResend(
+            Dispatch<T> d )
+    {
+        ++d.theFailures;
+
+        if( !scheduleIndependently( new ResendTask( this, d ), calculateDeltaResend( d.theFailures ))) {
+            log.warn( this + ": cannot resend", d.theMessage );
+        }
+    }
+
+    /**
+     * Calculate the delay until a message is resent.
+     *
+     * @param failures the number of times sending the message has failed so far
+     * @return the delay, in milliseconds
+     */
+    protected long calculateDeltaResend(
+            int failures )
+    {
+        double delta = theDeltaResend * Math.pow( 2., Math.min( failures-1, 30 ));
+        delta = Math.min( delta, theMaxDeltaResend );
+        delta *= 1. - theBackoffJitter * Math.random();
+
+        return (long) delta;
+    }
+
+    /**
+     * Send a batch of messages, and sort them into those that were sent and those that failed.
+     * By default, this invokes <code>sendMessage</code> for each message; subclasses may override
+     * this to send the entire batch more efficiently, such as over a single connection.
+     *
+     * @param toSend the messages to send
+     * @param sent add the messages that were sent to this list
+     * @param failed add the messages that could not be sent to this list
+     */
+    protected void sendMessages(
+            List<T> toSend,
+            List<T> sent,
+            List<T> failed )
+    {
+        // we can send messages out of order with SMTP
+        for( T current : toSend ) {
             try {
                 if( log.isDebugEnabled() ) {
                     log.debug( "Attempting to send", current );
                 }
                 sendMessage( current );
 
-                synchronized( theMessagesToBeSent ) {
-                    theMessagesToBeSent.remove( current );
-                }
-                theListeners.fireEvent( current, MESSAGE_SENT );
+                sent.add( current );
 
             } catch( MessageSendException ex ) {
                 failed.add( current );
-                
-                theListeners.fireEvent( current, MESSAGE_SENDING_FAILED );
 
                 log.warn( "Could not send", current, ex );
             }
         }
-        
-        if( !failed.isEmpty() ) {
-            synchronized( this ) {
-                if( theFutureTask == null || theFutureTask.isCancelled() ) {
-                    schedule( new ResendTask( this ), theDeltaResend );
-                }
-            }
-        }
     }
 
     /**
@@ -130,10 +503,119 @@ public abstract class AbstractFireAndForgetSendingMessageEndpoint<T>
             MessageSendException;
 
     /**
-     * The time until we retry to send the message if sending the message failed.
+     * The time until we retry to send the message if sending the message failed for the first time.
      */
     protected long theDeltaResend;
 
+    /**
+     * The maximum time until we retry to send a message, no matter how often it failed.
+     */
+    protected long theMaxDeltaResend;
+
+    /**
+     * The maximum random fraction by which the time until a retry is shortened.
+     */
+    protected double theBackoffJitter;
+
+    /**
+     * The ExecutorService on which messages are sent. If null, the ScheduledExecutorService is used.
+     */
+    protected volatile ExecutorService theSendExecutor;
+
+    /**
+     * The maximum number of concurrent senders.
+     */
+    protected volatile int theMaxConcurrentSends;
+
+    /**
+     * The maximum number of messages a sender passes to sendMessages at once.
+     */
+    protected volatile int theMaxSendChunk;
+
+    /**
+     * Limits the rate at which messages are sent, if not null.
+     */
+    protected volatile TokenBucket theRateLimiter;
+
+    /**
+     * The messages that have been taken from the outgoing queue, but have not been sent yet.
+     */
+    protected final Set<Dispatch<T>> theDispatching = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The messages that are ready to be picked up by a sender.
+     */
+    protected final ConcurrentLinkedQueue<Dispatch<T>> theReady = new ConcurrentLinkedQueue<Dispatch<T>>();
+
+    /**
+     * The number of messages in theReady, as ConcurrentLinkedQueue.size() is not constant-time.
+     */
+    protected final AtomicInteger theReadyCount = new AtomicInteger();
+
+    /**
+     * The number of senders currently running.
+     */
+    protected final AtomicInteger theActiveSenders = new AtomicInteger();
+
+    /**
+     * Makes sure that only one thread at a time moves messages from the outgoing queue to the dispatcher.
+     */
+    protected final Object theTakeLock = new Object();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( AbstractFireAndForgetSendingMessageEndpoint.class );
+
+    /**
+     * Default maximum time until we retry to send a message.
+     */
+    public static final long DEFAULT_MAX_DELTA_RESEND = theResourceHelper.getResourceLongOrDefault( "MaxDeltaResend", 600000L );
+
+    /**
+     * Default maximum random fraction by which the time until a retry is shortened.
+     */
+    public static final double DEFAULT_BACKOFF_JITTER = theResourceHelper.getResourceDoubleOrDefault( "BackoffJitter", 0.5 );
+
+    /**
+     * Default maximum number of concurrent senders.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_SENDS = theResourceHelper.getResourceIntegerOrDefault( "MaxConcurrentSends", 1 );
+
+    /**
+     * Default maximum number of messages a sender passes to sendMessages at once.
+     */
+    public static final int DEFAULT_MAX_SEND_CHUNK = theResourceHelper.getResourceIntegerOrDefault( "MaxSendChunk", 100 );
+
+    /**
+     * A message that has been taken from the outgoing queue, but has not been sent yet.
+     *
+     * @param <T> the message type
+     */
+    protected static class Dispatch<T>
+    {
+        /**
+         * Constructor.
+         *
+         * @param msg the message
+         */
+        public Dispatch(
+                T msg )
+        {
+            theMessage = msg;
+        }
+
+        /**
+         * The message.
+         */
+        protected final T theMessage;
+
+        /**
+         * The number of times sending the message has failed so far.
+         */
+        protected int theFailures;
+    }
+
     /**
      * The send task.
      */
@@ -154,7 +636,7 @@ public abstract class AbstractFireAndForgetSendingMessageEndpoint<T>
     }
     
     /**
-     * The resend task.
+     * The resend task for one message.
      */
     protected static class ResendTask
             extends
@@ -164,11 +646,20 @@ public abstract class AbstractFireAndForgetSendingMessageEndpoint<T>
          * Constructor.
          *
          * @param ep the endpoint that is supposed to respond
+         * @param dispatch the message to resend
          */
         public ResendTask(
-                AbstractSendingMessageEndpoint ep )
+                AbstractSendingMessageEndpoint ep,
+                Dispatch<?>                    dispatch )
         {
             super( ep );
-        }        
+
+            theDispatch = dispatch;
+        }
+
+        /**
+         * The message to resend.
+         */
+        protected final Dispatch<?> theDispatch;
     }
 }
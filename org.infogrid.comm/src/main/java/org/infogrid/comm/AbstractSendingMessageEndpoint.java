@@ -14,13 +14,20 @@
 
 package org.infogrid.comm;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.infogrid.util.AbstractListenerSet;
 import org.infogrid.util.FlexibleListenerSet;
 import org.infogrid.util.logging.CanBeDumped;
@@ -63,9 +70,136 @@ public abstract class AbstractSendingMessageEndpoint<T>
     }
 
     /**
-     * Send a message via the next ping or pong.
+     * Limit the number of messages sent in one batch.
+     *
+     * @param max the maximum number of messages, or 0 if unlimited
+     * @throws IllegalArgumentException thrown if max is negative
+     */
+    public void setMaxBatchCount(
+            int max )
+    {
+        if( max < 0 ) {
+            throw new IllegalArgumentException( "Maximum batch count must not be negative: " + max );
+        }
+        theMaxBatchCount = max;
+    }
+
+    /**
+     * Obtain the maximum number of messages sent in one batch.
+     *
+     * @return the maximum number of messages, or 0 if unlimited
+     */
+    public int getMaxBatchCount()
+    {
+        return theMaxBatchCount;
+    }
+
+    /**
+     * Limit the size of a batch, as the total number of bytes of the encoded messages in it.
+     * A batch always contains at least one message, even if that message is larger.
+     * Sizing is cheapest with a codec that implements {@link MessageCodec#encodedSize encodedSize}.
+     *
+     * @param max the maximum number of bytes, or 0 if unlimited
+     * @param codec the MessageCodec used to determine the size of a message
+     * @throws IllegalArgumentException thrown if max is negative, or no codec was given
+     */
+    public synchronized void setMaxBatchBytes(
+            int             max,
+            MessageCodec<T> codec )
+    {
+        if( max < 0 ) {
+            throw new IllegalArgumentException( "Maximum batch bytes must not be negative: " + max );
+        }
+        if( max > 0 && codec == null ) {
+            throw new IllegalArgumentException( "Must provide a MessageCodec to limit the batch bytes" );
+        }
+        theSizingCodec   = codec;
+        theMaxBatchBytes = max;
+    }
+
+    /**
+     * Obtain the maximum number of bytes of the encoded messages sent in one batch.
+     *
+     * @return the maximum number of bytes, or 0 if unlimited
+     */
+    public int getMaxBatchBytes()
+    {
+        return theMaxBatchBytes;
+    }
+
+    /**
+     * Limit the number of messages in the outgoing queue. When the queue is full,
+     * enqueueMessageForSend blocks or throws MessageQueueFullException, depending on the
+     * OverflowPolicy, and enqueueMessageForSendAsync defers the message until there is space.
+     * Space is returned when messages are removed from the queue; ping-pong endpoints do that
+     * when they take a batch for sending, and keep the batch elsewhere for resending.
+     * This must be invoked before any messages are enqueued.
+     *
+     * @param max the maximum number of messages, or 0 if unlimited
+     * @param policy what enqueueMessageForSend does when the queue is full
+     * @throws IllegalArgumentException thrown if max is negative, or no policy was given
+     */
+    public synchronized void setMaxQueueSize(
+            int            max,
+            OverflowPolicy policy )
+    {
+        if( max < 0 ) {
+            throw new IllegalArgumentException( "Maximum queue size must not be negative: " + max );
+        }
+        if( policy == null ) {
+            throw new IllegalArgumentException( "Must provide an OverflowPolicy" );
+        }
+        theMaxQueueSize   = max;
+        theOverflowPolicy = policy;
+        theQueueCapacity  = max > 0 ? new Semaphore( max - theMessagesToBeSent.size() ) : null;
+    }
+
+    /**
+     * Obtain the maximum number of messages in the outgoing queue.
+     *
+     * @return the maximum number of messages, or 0 if unlimited
+     */
+    public int getMaxQueueSize()
+    {
+        return theMaxQueueSize;
+    }
+
+    /**
+     * Obtain what enqueueMessageForSend does when the outgoing queue is full.
+     *
+     * @return the OverflowPolicy
+     */
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return theOverflowPolicy;
+    }
+
+    /**
+     * Set the watermarks of the outgoing queue. MessageQueueWatermarkListeners are notified when
+     * the number of messages in the queue reaches the high watermark, and when it has drained
+     * to the low watermark again.
+     *
+     * @param low the low watermark
+     * @param high the high watermark, or 0 to disable the events
+     * @throws IllegalArgumentException thrown if the watermarks are inconsistent
+     */
+    public void setQueueWatermarks(
+            int low,
+            int high )
+    {
+        if( low < 0 || ( high > 0 && low >= high )) {
+            throw new IllegalArgumentException( "Invalid watermarks: " + low + ", " + high );
+        }
+        theLowWatermark  = low;
+        theHighWatermark = high;
+    }
+
+    /**
+     * Send a message via the next ping or pong. If the outgoing queue is bounded and full,
+     * this blocks or throws MessageQueueFullException, depending on the OverflowPolicy.
      *
      * @param msg the Message to send.
+     * @throws MessageQueueFullException thrown if the outgoing queue is full and the OverflowPolicy is FAIL
      */
     public void enqueueMessageForSend(
             T msg )
@@ -73,14 +207,171 @@ public abstract class AbstractSendingMessageEndpoint<T>
         if( log.isTraceEnabled() ) {
             log.traceMethodCallEntry( this, "enqueueMessageForSend", msg );
         }
-        
-        synchronized( theMessagesToBeSent ) {
-            theMessagesToBeSent.add( msg );
+
+        obtainQueueCapacity( msg );
+
+        try {
+            enqueueAdmittedMessage( msg );
+
+        } catch( RuntimeException ex ) {
+            releaseQueueCapacity( 1 );
+            throw ex;
         }
+    }
+
+    /**
+     * Send a message via the next ping or pong, without ever blocking. If the outgoing queue is
+     * bounded and full, the message is enqueued as soon as there is space in the queue.
+     *
+     * @param msg the Message to send.
+     * @return a CompletableFuture that completes when the message has been enqueued
+     */
+    public CompletableFuture<T> enqueueMessageForSendAsync(
+            T msg )
+    {
+        if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "enqueueMessageForSendAsync", msg );
+        }
+
+        CompletableFuture<T> ret      = new CompletableFuture<T>();
+        Semaphore            capacity = theQueueCapacity;
+        boolean              admitted;
+
+        if( capacity == null ) {
+            admitted = true;
+
+        } else {
+            synchronized( thePendingMessages ) {
+                // do not overtake messages that are waiting already
+                admitted = thePendingMessages.isEmpty() && capacity.tryAcquire();
+                if( !admitted ) {
+                    thePendingMessages.add( new PendingMessage<T>( msg, ret ));
+                }
+            }
+        }
+        if( admitted ) {
+            admitPendingMessage( new PendingMessage<T>( msg, ret ));
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain space for one more message in the outgoing queue, if it is bounded.
+     *
+     * @param msg the Message that is about to be enqueued
+     * @throws MessageQueueFullException thrown if the outgoing queue is full and the OverflowPolicy is FAIL,
+     *         or if the thread was interrupted while waiting for space
+     */
+    protected void obtainQueueCapacity(
+            T msg )
+    {
+        Semaphore capacity = theQueueCapacity;
+        if( capacity == null ) {
+            return;
+        }
+        if( theOverflowPolicy == OverflowPolicy.FAIL ) {
+            if( !capacity.tryAcquire() ) {
+                throw new MessageQueueFullException( this, msg );
+            }
+        } else {
+            try {
+                capacity.acquire();
+
+            } catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new MessageQueueFullException( this, msg, ex );
+            }
+        }
+    }
+
+    /**
+     * Return space in the outgoing queue, if it is bounded, and enqueue messages that have been
+     * waiting for it.
+     *
+     * @param count the number of messages that have been removed from the outgoing queue
+     */
+    protected void releaseQueueCapacity(
+            int count )
+    {
+        Semaphore capacity = theQueueCapacity;
+        if( capacity == null || count == 0 ) {
+            return;
+        }
+        capacity.release( count );
+
+        while( true ) {
+            PendingMessage<T> pending;
+            synchronized( thePendingMessages ) {
+                if( thePendingMessages.isEmpty() || !capacity.tryAcquire() ) {
+                    break;
+                }
+                pending = thePendingMessages.removeFirst();
+            }
+            admitPendingMessage( pending );
+        }
+    }
+
+    /**
+     * Enqueue a message for which space in the outgoing queue has been obtained already,
+     * and complete its CompletableFuture.
+     *
+     * @param pending the message and its CompletableFuture
+     */
+    protected void admitPendingMessage(
+            PendingMessage<T> pending )
+    {
+        try {
+            enqueueAdmittedMessage( pending.theMessage );
+            pending.theFuture.complete( pending.theMessage );
+
+        } catch( RuntimeException ex ) {
+            releaseQueueCapacity( 1 );
+            pending.theFuture.completeExceptionally( ex );
+        }
+    }
+
+    /**
+     * Enqueue a message for which space in the outgoing queue has been obtained already.
+     * Subclasses override this to schedule sending.
+     *
+     * @param msg the Message to send.
+     */
+    protected void enqueueAdmittedMessage(
+            T msg )
+    {
+        theListeners.fireEvent( msg, MESSAGE_ENQUEUING );
+
+        addMessageToBeSent( msg );
 
         theListeners.fireEvent( msg, MESSAGE_ENQUEUED );
     }
 
+    /**
+     * Append a message to the outgoing queue. If the outgoing queue is a
+     * ConcurrentMessageQueue, this does not lock.
+     *
+     * @param msg the Message
+     */
+    protected void addMessageToBeSent(
+            T msg )
+    {
+        if( theMessagesToBeSent instanceof ConcurrentMessageQueue ) {
+            theMessagesToBeSent.add( msg );
+        } else {
+            synchronized( theMessagesToBeSent ) {
+                theMessagesToBeSent.add( msg );
+            }
+        }
+
+        int high = theHighWatermark;
+        if( high > 0 ) {
+            int size = theMessagesToBeSent.size();
+            if( size >= high && isAboveHighWatermark.compareAndSet( false, true )) {
+                theListeners.fireEvent( size, HIGH_WATERMARK_REACHED );
+            }
+        }
+    }
+
     /**
      * Send a message as quickly as possible.
      *
@@ -100,12 +391,196 @@ public abstract class AbstractSendingMessageEndpoint<T>
      */
     public List<T> messagesToBeSent()
     {
+        if( theMessagesToBeSent instanceof ConcurrentMessageQueue ) {
+            return new ArrayList<T>( theMessagesToBeSent ); // takes a snapshot without locking
+        }
         synchronized( theMessagesToBeSent ) {
             ArrayList<T> ret = new ArrayList<T>( theMessagesToBeSent.size() );
             ret.addAll( theMessagesToBeSent );
             return ret;
         }
     }
+
+    /**
+     * Obtain the batch of Messages to be sent next, within the configured limits on the
+     * batch size. The Messages remain in the outgoing queue until
+     * {@link #acknowledgeMessagesSent acknowledgeMessagesSent} is invoked.
+     * If the outgoing queue is a ConcurrentMessageQueue, this does not contend with threads
+     * that enqueue messages.
+     *
+     * @return the Messages, or null if there are none
+     */
+    protected List<T> drainMessagesToBeSent()
+    {
+        int     maxCount = theMaxBatchCount > 0 ? theMaxBatchCount : Integer.MAX_VALUE;
+        List<T> ret;
+
+        if( theMessagesToBeSent instanceof ConcurrentMessageQueue ) {
+            ret = ((ConcurrentMessageQueue<T>) theMessagesToBeSent).drainBatch( maxCount );
+
+        } else {
+            synchronized( theMessagesToBeSent ) {
+                if( theMessagesToBeSent.isEmpty() ) {
+                    return null;
+                }
+                ret = new ArrayList<T>( theMessagesToBeSent.subList( 0, Math.min( maxCount, theMessagesToBeSent.size() )));
+            }
+        }
+        if( ret != null && theMaxBatchBytes > 0 ) {
+            ret = limitBatchBytes( ret );
+        }
+        return ret;
+    }
+
+    /**
+     * Shorten a batch so the total size of its encoded messages does not exceed the
+     * maximum number of bytes. The batch always keeps its first message.
+     *
+     * @param batch the batch
+     * @return the batch, or the beginning of it
+     */
+    protected List<T> limitBatchBytes(
+            List<T> batch )
+    {
+        MessageCodec<T> codec = theSizingCodec;
+        int             max   = theMaxBatchBytes;
+        if( codec == null || max <= 0 ) { // changed in the meantime
+            return batch;
+        }
+
+        long total = 0L;
+        for( int i=0 ; i<batch.size() ; ++i ) {
+            total += encodedSize( codec, batch.get( i ));
+            if( total > max && i > 0 ) {
+                return new ArrayList<T>( batch.subList( 0, i ));
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Determine the number of bytes of a message when encoded with a codec. If the codec
+     * cannot tell, the message is encoded into a per-Thread buffer, so concurrent senders
+     * do not contend.
+     *
+     * @param codec the MessageCodec
+     * @param msg the message
+     * @return the number of bytes
+     */
+    protected int encodedSize(
+            MessageCodec<T> codec,
+            T               msg )
+    {
+        try {
+            int ret = codec.encodedSize( msg );
+            if( ret >= 0 ) {
+                return ret;
+            }
+            ByteBuffer buf = theSizingBuffer.get();
+            while( true ) {
+                buf.clear();
+                try {
+                    codec.encode( msg, buf );
+                    return buf.position();
+
+                } catch( BufferOverflowException ex ) {
+                    buf = ByteBuffer.allocate( buf.capacity() * 2 );
+                    theSizingBuffer.set( buf );
+                }
+            }
+        } catch( IOException ex ) {
+            log.warn( this + ": cannot determine size of message", msg, ex );
+            return 0;
+        }
+    }
+
+    /**
+     * Remove Messages from the outgoing queue that have been sent successfully, and
+     * notify listeners and waiting producers that there is space in the queue.
+     *
+     * @param sent the sent Messages, usually as returned by drainMessagesToBeSent
+     */
+    protected void acknowledgeMessagesSent(
+            List<T> sent )
+    {
+        messagesRemoved( removeMessagesSent( sent ));
+    }
+
+    /**
+     * Remove Messages from the outgoing queue that have been sent successfully, but do not
+     * notify anybody yet. This allows subclasses to remove Messages while holding a lock,
+     * and to invoke {@link #messagesRemoved messagesRemoved} after releasing it.
+     *
+     * @param sent the sent Messages, usually as returned by drainMessagesToBeSent
+     * @return the number of Messages removed
+     */
+    protected int removeMessagesSent(
+            List<T> sent )
+    {
+        int removed;
+
+        if( theMessagesToBeSent instanceof ConcurrentMessageQueue ) {
+            removed = ((ConcurrentMessageQueue<T>) theMessagesToBeSent).acknowledge( sent );
+
+        } else {
+            synchronized( theMessagesToBeSent ) {
+                // equal sizes do not imply equal content: a subclass may have removed or reordered Messages
+                if( ConcurrentMessageQueue.isPrefix( sent, theMessagesToBeSent )) {
+                    theMessagesToBeSent.subList( 0, sent.size() ).clear();
+                    removed = sent.size();
+
+                } else {
+                    removed = 0;
+                    for( T current : sent ) {
+                        if( theMessagesToBeSent.remove( current )) {
+                            ++removed;
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Notify listeners and waiting producers that Messages have been removed from the
+     * outgoing queue.
+     *
+     * @param removed the number of Messages removed
+     */
+    protected void messagesRemoved(
+            int removed )
+    {
+        if( isAboveHighWatermark.get() ) {
+            int size = theMessagesToBeSent.size();
+            if( size <= theLowWatermark && isAboveHighWatermark.compareAndSet( true, false )) {
+                theListeners.fireEvent( size, LOW_WATERMARK_REACHED );
+            }
+        }
+
+        releaseQueueCapacity( removed );
+    }
+
+    /**
+     * Determine the number of Messages still to be sent. Unlike messagesToBeSent(),
+     * this does not take a snapshot.
+     *
+     * @return the number of Messages
+     */
+    public int getMessagesToBeSentCount()
+    {
+        return theMessagesToBeSent.size();
+    }
+
+    /**
+     * Determine whether there are Messages in the outgoing queue.
+     *
+     * @return true if there are Messages to be sent
+     */
+    protected boolean hasMessagesToBeSent()
+    {
+        return !theMessagesToBeSent.isEmpty();
+    }
     
     /**
      * Calculate the next time of something, given a base and the random variation.
@@ -138,12 +613,29 @@ public abstract class AbstractSendingMessageEndpoint<T>
             log.traceMethodCallEntry( this, "schedule", task, base );
         }
 
+        if( scheduleIndependently( task, base )) {
+            theFutureTask = task;
+        }
+    }
+
+    /**
+     * Schedule a future task without making it the task that will be executed next.
+     * This allows subclasses to run more than one timer at the same time.
+     *
+     * @param task the TimedTask to schedule
+     * @param base the base value of the time delay, e.g. theDeltaRecover
+     * @return true if the task was scheduled successfully
+     */
+    protected boolean scheduleIndependently(
+            TimedTask task,
+            long      base )
+    {
         long actual = calculateRandomizedFuture( base );
         try {
             ScheduledFuture<?> theFuture = theExecutorService.schedule( task, actual, TimeUnit.MILLISECONDS );
             task.setFuture( theFuture );
 
-            theFutureTask = task;
+            return true;
 
         } catch( RejectedExecutionException ex ) {
             if( !theExecutorService.isShutdown() ) {
@@ -154,6 +646,7 @@ public abstract class AbstractSendingMessageEndpoint<T>
                                 + theExecutorService,
                         ex );
             }
+            return false;
         }
     }
     
@@ -213,6 +706,68 @@ public abstract class AbstractSendingMessageEndpoint<T>
      * Name of the endpoint (for debugging).
      */
     protected String theName;
+
+    /**
+     * The maximum number of messages in a batch, or 0 if unlimited.
+     */
+    protected volatile int theMaxBatchCount;
+
+    /**
+     * The maximum number of bytes of the encoded messages in a batch, or 0 if unlimited.
+     */
+    protected volatile int theMaxBatchBytes;
+
+    /**
+     * The MessageCodec used to determine the size of a message.
+     */
+    protected volatile MessageCodec<T> theSizingCodec;
+
+    /**
+     * Per-Thread buffer into which messages are encoded to determine their size, if their
+     * MessageCodec cannot tell. Grows as needed.
+     */
+    private static final ThreadLocal<ByteBuffer> theSizingBuffer = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue()
+            {
+                return ByteBuffer.allocate( 4096 );
+            }
+    };
+
+    /**
+     * The maximum number of messages in the outgoing queue, or 0 if unlimited.
+     */
+    protected int theMaxQueueSize;
+
+    /**
+     * What enqueueMessageForSend does when the outgoing queue is full.
+     */
+    protected OverflowPolicy theOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * The remaining space in the outgoing queue, or null if unlimited.
+     */
+    protected volatile Semaphore theQueueCapacity;
+
+    /**
+     * The messages, in sequence, that wait for space in the outgoing queue.
+     */
+    protected final ArrayDeque<PendingMessage<T>> thePendingMessages = new ArrayDeque<PendingMessage<T>>();
+
+    /**
+     * The low watermark of the outgoing queue.
+     */
+    protected volatile int theLowWatermark;
+
+    /**
+     * The high watermark of the outgoing queue, or 0 if disabled.
+     */
+    protected volatile int theHighWatermark;
+
+    /**
+     * True if the outgoing queue has reached the high watermark, and not yet drained to the low watermark.
+     */
+    protected final AtomicBoolean isAboveHighWatermark = new AtomicBoolean( false );
     
     /**
      * The outgoing queue of Messages to send.
@@ -302,6 +857,24 @@ public abstract class AbstractSendingMessageEndpoint<T>
             }
     };
     
+    /**
+     * Indicates that a message is about to be enqueued.
+     */
+    protected final EventType<T> MESSAGE_ENQUEUING = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof MessageEndpointInstrumentationListener ) {
+                    MessageEndpointInstrumentationListener<T> realListener = (MessageEndpointInstrumentationListener<T>) listener;
+                    SendingMessageEndpoint<T>                 realSender   = (SendingMessageEndpoint<T>) sender;
+                    realListener.messageEnqueuing( realSender, (T) event );
+                }
+            }
+    };
+
     /**
      * Indicates that sending a message failed.
      */
@@ -317,6 +890,96 @@ public abstract class AbstractSendingMessageEndpoint<T>
             }
     };
 
+    /**
+     * Indicates that the outgoing queue has reached the high watermark.
+     */
+    protected final EventType<T> HIGH_WATERMARK_REACHED = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof MessageQueueWatermarkListener ) {
+                    MessageQueueWatermarkListener<T> realListener = (MessageQueueWatermarkListener<T>) listener;
+                    SendingMessageEndpoint<T>        realSender   = (SendingMessageEndpoint<T>) sender;
+                    realListener.highWatermarkReached( realSender, (Integer) event );
+                }
+            }
+    };
+
+    /**
+     * Indicates that the outgoing queue has drained to the low watermark.
+     */
+    protected final EventType<T> LOW_WATERMARK_REACHED = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof MessageQueueWatermarkListener ) {
+                    MessageQueueWatermarkListener<T> realListener = (MessageQueueWatermarkListener<T>) listener;
+                    SendingMessageEndpoint<T>        realSender   = (SendingMessageEndpoint<T>) sender;
+                    realListener.lowWatermarkReached( realSender, (Integer) event );
+                }
+            }
+    };
+
+    /**
+     * Indicates that a batch of messages was sent for the first time.
+     */
+    protected final EventType<T> BATCH_SENT = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof MessageEndpointInstrumentationListener ) {
+                    MessageEndpointInstrumentationListener<T> realListener = (MessageEndpointInstrumentationListener<T>) listener;
+                    SendingMessageEndpoint<T>                 realSender   = (SendingMessageEndpoint<T>) sender;
+                    realListener.batchSent( realSender, (List<T>) event );
+                }
+            }
+    };
+
+    /**
+     * Indicates that a batch of messages was sent again because sending it failed earlier.
+     */
+    protected final EventType<T> BATCH_RESENT = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof MessageEndpointInstrumentationListener ) {
+                    MessageEndpointInstrumentationListener<T> realListener = (MessageEndpointInstrumentationListener<T>) listener;
+                    SendingMessageEndpoint<T>                 realSender   = (SendingMessageEndpoint<T>) sender;
+                    realListener.batchResent( realSender, (List<T>) event );
+                }
+            }
+    };
+
+    /**
+     * Indicates that a batch of messages was sent again because the partner did not respond in time.
+     */
+    protected final EventType<T> BATCH_RECOVERED = new EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                if( listener instanceof MessageEndpointInstrumentationListener ) {
+                    MessageEndpointInstrumentationListener<T> realListener = (MessageEndpointInstrumentationListener<T>) listener;
+                    SendingMessageEndpoint<T>                 realSender   = (SendingMessageEndpoint<T>) sender;
+                    realListener.batchRecovered( realSender, (List<T>) event );
+                }
+            }
+    };
+
     /**
      * The current set of MessageEndpointListeners.
      */
@@ -354,6 +1017,55 @@ public abstract class AbstractSendingMessageEndpoint<T>
         }
     };
 
+    /**
+     * What enqueueMessageForSend does when the outgoing queue is full.
+     */
+    public static enum OverflowPolicy
+    {
+        /**
+         * Block until there is space in the queue.
+         */
+        BLOCK,
+
+        /**
+         * Throw MessageQueueFullException.
+         */
+        FAIL
+    }
+
+    /**
+     * A message that waits for space in the outgoing queue, with the CompletableFuture
+     * to complete when it has been enqueued.
+     *
+     * @param <T> the message type
+     */
+    protected static class PendingMessage<T>
+    {
+        /**
+         * Constructor.
+         *
+         * @param msg the message
+         * @param future the CompletableFuture
+         */
+        public PendingMessage(
+                T                    msg,
+                CompletableFuture<T> future )
+        {
+            theMessage = msg;
+            theFuture  = future;
+        }
+
+        /**
+         * The message.
+         */
+        protected final T theMessage;
+
+        /**
+         * The CompletableFuture to complete when the message has been enqueued.
+         */
+        protected final CompletableFuture<T> theFuture;
+    }
+
     /**
      * The task to perform actions later, such as the resending of messages that could not be delivered.
      */    
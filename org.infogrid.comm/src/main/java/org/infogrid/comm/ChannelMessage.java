@@ -0,0 +1,86 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.io.Serializable;
+
+/**
+ * A message sent over a multiplexed MessageEndpoint: the message of a logical channel,
+ * together with the identifier of the channel.
+ *
+ * @param <T> the message type of the logical channel
+ */
+public class ChannelMessage<T>
+        implements
+            Serializable
+{
+    private static final long serialVersionUID = 1L; // helps with serialization
+
+    /**
+     * Constructor.
+     *
+     * @param channelId identifies the logical channel
+     * @param payload the message of the logical channel
+     */
+    public ChannelMessage(
+            long channelId,
+            T    payload )
+    {
+        theChannelId = channelId;
+        thePayload   = payload;
+    }
+
+    /**
+     * Obtain the identifier of the logical channel.
+     *
+     * @return the identifier
+     */
+    public long getChannelId()
+    {
+        return theChannelId;
+    }
+
+    /**
+     * Obtain the message of the logical channel.
+     *
+     * @return the message
+     */
+    public T getPayload()
+    {
+        return thePayload;
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        return "ChannelMessage( " + theChannelId + ": " + thePayload + " )";
+    }
+
+    /**
+     * Identifies the logical channel.
+     */
+    protected final long theChannelId;
+
+    /**
+     * The message of the logical channel.
+     */
+    protected final T thePayload;
+}
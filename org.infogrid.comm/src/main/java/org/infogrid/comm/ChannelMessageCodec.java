@@ -0,0 +1,123 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A MessageCodec for ChannelMessages. The channel identifier is written as a variable-length
+ * integer, followed by the message of the logical channel as encoded by a delegate MessageCodec.
+ *
+ * @param <T> the message type of the logical channels
+ */
+public class ChannelMessageCodec<T>
+        implements
+            MessageCodec<ChannelMessage<T>>
+{
+    /**
+     * Factory method.
+     *
+     * @param <T> the message type of the logical channels
+     * @param payloadCodec the MessageCodec for the messages of the logical channels
+     * @return the created ChannelMessageCodec
+     */
+    public static <T> ChannelMessageCodec<T> create(
+            MessageCodec<T> payloadCodec )
+    {
+        return new ChannelMessageCodec<T>( payloadCodec );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param payloadCodec the MessageCodec for the messages of the logical channels
+     */
+    protected ChannelMessageCodec(
+            MessageCodec<T> payloadCodec )
+    {
+        thePayloadCodec = payloadCodec;
+    }
+
+    /**
+     * Encode a message into a ByteBuffer, starting at the buffer's current position.
+     *
+     * @param message the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the message could not be encoded
+     */
+    public void encode(
+            ChannelMessage<T> message,
+            ByteBuffer        buf )
+        throws
+            IOException
+    {
+        VarIntMessageCodec.putUnsignedVarLong( buf, message.getChannelId() );
+        thePayloadCodec.encode( message.getPayload(), buf );
+    }
+
+    /**
+     * Determine the number of bytes that encode would write for a message, if the
+     * MessageCodec for the messages of the logical channels can tell.
+     *
+     * @param message the message
+     * @return the number of bytes, or -1 if unknown
+     * @throws IOException thrown if the message could not be encoded
+     */
+    @Override
+    public int encodedSize(
+            ChannelMessage<T> message )
+        throws
+            IOException
+    {
+        int ret = thePayloadCodec.encodedSize( message.getPayload() );
+        if( ret >= 0 ) {
+            ret += VarIntMessageCodec.unsignedVarLongSize( message.getChannelId() );
+        }
+        return ret;
+    }
+
+    /**
+     * Decode a message from a ByteBuffer.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the decoded message
+     * @throws IOException thrown if the message could not be decoded
+     */
+    public ChannelMessage<T> decode(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        long channelId;
+        try {
+            channelId = VarIntMessageCodec.getUnsignedVarLong( buf );
+
+        } catch( BufferUnderflowException ex ) {
+            throw new EOFException( "Truncated channel identifier" );
+        }
+        T payload = thePayloadCodec.decode( buf );
+
+        return new ChannelMessage<T>( channelId, payload );
+    }
+
+    /**
+     * The MessageCodec for the messages of the logical channels.
+     */
+    protected final MessageCodec<T> thePayloadCodec;
+}
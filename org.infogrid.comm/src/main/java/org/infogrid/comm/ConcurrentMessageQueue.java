@@ -0,0 +1,332 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * <p>An outgoing message queue for AbstractSendingMessageEndpoint that producers can add to
+ *    without ever taking a lock. Any number of threads may add messages; the sending thread
+ *    of the endpoint drains all of them in one batch with {@link #drainBatch drainBatch},
+ *    and removes the batch again with {@link #acknowledge acknowledge} once it has been sent,
+ *    in constant time.</p>
+ * <p>Messages that have been drained but not acknowledged yet remain in the queue: they are
+ *    returned again, in front of the newly added messages, by the next invocation of
+ *    <code>drainBatch</code>. This is what a resend needs.</p>
+ * <p>The sending thread may limit the size of a batch; the remaining messages are returned
+ *    by the next invocation of <code>drainBatch</code>.</p>
+ * <p>This class implements List only so it can be passed wherever the endpoints expect
+ *    their outgoing queue. Only <code>add</code>, <code>size</code>,
+ *    <code>isEmpty</code> and read access are supported; reading returns a snapshot.</p>
+ *
+ * @param <T> the message type
+ */
+public class ConcurrentMessageQueue<T>
+        extends
+            AbstractList<T>
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @return the created ConcurrentMessageQueue
+     * @param <T> the message type
+     */
+    public static <T> ConcurrentMessageQueue<T> create()
+    {
+        return new ConcurrentMessageQueue<T>();
+    }
+
+    /**
+     * Constructor, use factory method.
+     */
+    protected ConcurrentMessageQueue()
+    {
+        // nothing
+    }
+
+    /**
+     * Add a message to the end of the queue. This never blocks.
+     *
+     * @param msg the message
+     * @return always returns true
+     */
+    @Override
+    public boolean add(
+            T msg )
+    {
+        if( msg == null ) {
+            throw new NullPointerException( "Cannot add null message" );
+        }
+        theIncoming.offer( msg );
+        theSize.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Obtain all messages that have not been acknowledged yet: those drained earlier but not
+     * acknowledged, followed by those added since. The returned List must not be modified;
+     * it is not modified by the queue either.
+     *
+     * @return the batch, or null if there are no messages
+     */
+    public List<T> drainBatch()
+    {
+        return drainBatch( Integer.MAX_VALUE );
+    }
+
+    /**
+     * Obtain the first messages that have not been acknowledged yet, up to a maximum number:
+     * those drained earlier but not acknowledged, followed by those added since. The returned
+     * List must not be modified; it is not modified by the queue either.
+     *
+     * @param maxCount the maximum number of messages in the batch
+     * @return the batch, or null if there are no messages
+     */
+    public List<T> drainBatch(
+            int maxCount )
+    {
+        synchronized( theConsumerLock ) {
+            ArrayList<T> batch    = null;
+            int          inFlight = theInFlight != null ? theInFlight.size() : 0;
+            T            current;
+
+            while( inFlight < maxCount && ( current = theIncoming.poll() ) != null ) {
+                if( batch == null ) {
+                    // copy rather than append, so a previously returned batch never changes
+                    batch = theInFlight != null ? new ArrayList<T>( theInFlight ) : new ArrayList<T>();
+                }
+                batch.add( current );
+                ++inFlight;
+            }
+            if( batch != null ) {
+                theInFlight = batch;
+            }
+            if( inFlight > maxCount ) {
+                return new ArrayList<T>( theInFlight.subList( 0, maxCount ));
+            }
+            return theInFlight;
+        }
+    }
+
+    /**
+     * Remove messages that have been sent successfully. If the batch is the one most
+     * recently returned by {@link #drainBatch drainBatch}, this takes constant time; if it is
+     * the beginning of it, it takes time proportional to the number of remaining messages.
+     * Otherwise, the messages in the batch are removed one by one from the messages
+     * drained but not acknowledged yet.
+     *
+     * @param batch the sent messages
+     * @return the number of messages removed
+     */
+    public int acknowledge(
+            List<T> batch )
+    {
+        synchronized( theConsumerLock ) {
+            ArrayList<T> inFlight = theInFlight;
+            int          ret      = 0;
+
+            if( inFlight == null ) {
+                // nothing
+
+            } else if( batch == inFlight ) {
+                theInFlight = null;
+                ret         = batch.size();
+
+            } else if( isPrefix( batch, inFlight )) {
+                ret         = batch.size();
+                theInFlight = ret < inFlight.size() ? new ArrayList<T>( inFlight.subList( ret, inFlight.size() )) : null;
+
+            } else {
+                ArrayList<T> remaining = new ArrayList<T>( inFlight );
+                for( T current : batch ) {
+                    for( int i=0 ; i<remaining.size() ; ++i ) {
+                        if( remaining.get( i ) == current ) {
+                            remaining.remove( i );
+                            ++ret;
+                            break;
+                        }
+                    }
+                }
+                theInFlight = remaining.isEmpty() ? null : remaining;
+            }
+            theSize.addAndGet( -ret );
+
+            return ret;
+        }
+    }
+
+    /**
+     * Determine whether one List contains the same instances as the beginning of another.
+     *
+     * @param prefix the potential prefix
+     * @param list the List
+     * @return true if prefix is a prefix of list
+     * @param <T> the message type
+     */
+    public static <T> boolean isPrefix(
+            List<T> prefix,
+            List<T> list )
+    {
+        if( prefix.size() > list.size() ) {
+            return false;
+        }
+        for( int i=0 ; i<prefix.size() ; ++i ) {
+            if( prefix.get( i ) != list.get( i )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Obtain the number of messages in the queue.
+     *
+     * @return the number of messages
+     */
+    @Override
+    public int size()
+    {
+        return theSize.get();
+    }
+
+    /**
+     * Determine whether the queue is empty.
+     *
+     * @return true if there are no messages in the queue
+     */
+    @Override
+    public boolean isEmpty()
+    {
+        return theSize.get() == 0;
+    }
+
+    /**
+     * Obtain a message by index. This creates a snapshot of the queue first.
+     *
+     * @param index the index
+     * @return the message
+     */
+    public T get(
+            int index )
+    {
+        return snapshot().get( index );
+    }
+
+    /**
+     * Iterate over a snapshot of the queue.
+     *
+     * @return the Iterator
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        return snapshot().iterator();
+    }
+
+    /**
+     * Removing individual messages is not supported; use {@link #acknowledge acknowledge}.
+     *
+     * @param o the message
+     * @return never returns
+     * @throws UnsupportedOperationException always thrown
+     */
+    @Override
+    public boolean remove(
+            Object o )
+    {
+        throw new UnsupportedOperationException( "Use acknowledge" );
+    }
+
+    /**
+     * Clearing the queue is not supported; use {@link #acknowledge acknowledge}.
+     *
+     * @throws UnsupportedOperationException always thrown
+     */
+    @Override
+    public void clear()
+    {
+        throw new UnsupportedOperationException( "Use acknowledge" );
+    }
+
+    /**
+     * Create a snapshot of the current content of the queue.
+     *
+     * @return the snapshot
+     */
+    protected List<T> snapshot()
+    {
+        ArrayList<T> ret      = new ArrayList<T>();
+        List<T>      inFlight = theInFlight;
+
+        if( inFlight != null ) {
+            ret.addAll( inFlight );
+        }
+        ret.addAll( theIncoming );
+
+        return ret;
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theInFlight",
+                    "theIncoming",
+                    "theSize"
+                },
+                new Object[] {
+                    theInFlight,
+                    theIncoming,
+                    theSize.get()
+                } );
+    }
+
+    /**
+     * The messages added by producers, but not drained yet.
+     */
+    protected final ConcurrentLinkedQueue<T> theIncoming = new ConcurrentLinkedQueue<T>();
+
+    /**
+     * The messages drained, but not acknowledged yet. This List is replaced, never modified.
+     */
+    protected volatile ArrayList<T> theInFlight;
+
+    /**
+     * The number of messages in the queue, both in theIncoming and in theInFlight.
+     */
+    protected final AtomicInteger theSize = new AtomicInteger();
+
+    /**
+     * Serializes the sending side. Producers never acquire this lock.
+     */
+    protected final Object theConsumerLock = new Object();
+}
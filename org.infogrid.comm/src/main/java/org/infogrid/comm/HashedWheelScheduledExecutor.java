@@ -0,0 +1,559 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.infogrid.util.NamedThreadFactory;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * <p>A ScheduledExecutorService whose delayed tasks are kept in a {@link TimeoutWheel}
+ *    instead of a heap. Scheduling and canceling a task take constant time, regardless of
+ *    how many tasks are pending, which makes it suitable for very many endpoints whose
+ *    timers are canceled and rescheduled all the time. Tasks run late by up to one tick
+ *    of the wheel.</p>
+ * <p>When their time has come, tasks run on a fixed-size pool of worker threads. Upon
+ *    shutdown, delayed and periodic tasks that have not run yet are canceled.</p>
+ */
+public class HashedWheelScheduledExecutor
+        extends
+            AbstractExecutorService
+        implements
+            ScheduledExecutorService,
+            CanBeDumped
+{
+    /**
+     * Factory method, using the default tick and wheel size.
+     *
+     * @param name the name of the HashedWheelScheduledExecutor, used for its threads
+     * @param nThreads the number of worker threads
+     * @return the created HashedWheelScheduledExecutor
+     */
+    public static HashedWheelScheduledExecutor create(
+            String name,
+            int    nThreads )
+    {
+        return create( name, nThreads, TimeoutWheel.DEFAULT_TICK_MILLIS, TimeoutWheel.DEFAULT_WHEEL_SIZE );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param name the name of the HashedWheelScheduledExecutor, used for its threads
+     * @param nThreads the number of worker threads
+     * @param tickMillis the duration of a tick of the wheel, in milliseconds
+     * @param wheelSize the number of buckets of the wheel
+     * @return the created HashedWheelScheduledExecutor
+     */
+    public static HashedWheelScheduledExecutor create(
+            String name,
+            int    nThreads,
+            long   tickMillis,
+            int    wheelSize )
+    {
+        TimeoutWheel       wheel   = TimeoutWheel.create( name + "-wheel", tickMillis, wheelSize );
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(
+                nThreads,
+                nThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory( name ));
+
+        return new HashedWheelScheduledExecutor( name, wheel, workers );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param name the name of the HashedWheelScheduledExecutor
+     * @param wheel the TimeoutWheel that keeps the delayed tasks
+     * @param workers the ThreadPoolExecutor that runs the tasks
+     */
+    protected HashedWheelScheduledExecutor(
+            String             name,
+            TimeoutWheel       wheel,
+            ThreadPoolExecutor workers )
+    {
+        theName    = name;
+        theWheel   = wheel;
+        theWorkers = workers;
+    }
+
+    /**
+     * Execute a task as soon as a worker thread is available.
+     *
+     * @param command the task
+     */
+    public void execute(
+            Runnable command )
+    {
+        if( command == null ) {
+            throw new NullPointerException();
+        }
+        theWorkers.execute( command );
+    }
+
+    /**
+     * Schedule a one-shot task.
+     *
+     * @param command the task
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the ScheduledFuture representing the task
+     */
+    public ScheduledFuture<?> schedule(
+            Runnable command,
+            long     delay,
+            TimeUnit unit )
+    {
+        if( command == null ) {
+            throw new NullPointerException();
+        }
+        WheelFuture<Object> ret = new WheelFuture<Object>( Executors.callable( command ), 0L );
+        admit( ret, unit.toNanos( delay ));
+        return ret;
+    }
+
+    /**
+     * Schedule a one-shot task that returns a value.
+     *
+     * @param <V> the type of value
+     * @param callable the task
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the ScheduledFuture representing the task
+     */
+    public <V> ScheduledFuture<V> schedule(
+            Callable<V> callable,
+            long        delay,
+            TimeUnit    unit )
+    {
+        if( callable == null ) {
+            throw new NullPointerException();
+        }
+        WheelFuture<V> ret = new WheelFuture<V>( callable, 0L );
+        admit( ret, unit.toNanos( delay ));
+        return ret;
+    }
+
+    /**
+     * Schedule a periodic task that runs at a fixed rate.
+     *
+     * @param command the task
+     * @param initialDelay the delay until the first run
+     * @param period the period between the starts of successive runs
+     * @param unit the unit of the delay and the period
+     * @return the ScheduledFuture representing the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(
+            Runnable command,
+            long     initialDelay,
+            long     period,
+            TimeUnit unit )
+    {
+        if( command == null ) {
+            throw new NullPointerException();
+        }
+        if( period <= 0 ) {
+            throw new IllegalArgumentException( "Period must be positive: " + period );
+        }
+        WheelFuture<Object> ret = new WheelFuture<Object>( Executors.callable( command ), unit.toNanos( period ));
+        admit( ret, unit.toNanos( initialDelay ));
+        return ret;
+    }
+
+    /**
+     * Schedule a periodic task that runs with a fixed delay between runs.
+     *
+     * @param command the task
+     * @param initialDelay the delay until the first run
+     * @param delay the delay between the end of one run and the start of the next
+     * @param unit the unit of the delays
+     * @return the ScheduledFuture representing the task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+            Runnable command,
+            long     initialDelay,
+            long     delay,
+            TimeUnit unit )
+    {
+        if( command == null ) {
+            throw new NullPointerException();
+        }
+        if( delay <= 0 ) {
+            throw new IllegalArgumentException( "Delay must be positive: " + delay );
+        }
+        WheelFuture<Object> ret = new WheelFuture<Object>( Executors.callable( command ), -unit.toNanos( delay ));
+        admit( ret, unit.toNanos( initialDelay ));
+        return ret;
+    }
+
+    /**
+     * Admit a newly scheduled task.
+     *
+     * @param future the task
+     * @param delayNanos the delay, in nanoseconds
+     */
+    protected void admit(
+            WheelFuture<?> future,
+            long           delayNanos )
+    {
+        if( isShutdown ) {
+            throw new RejectedExecutionException( this + " has been shut down" );
+        }
+        thePending.add( future );
+        if( isShutdown ) { // raced with shutdown
+            future.cancel( false );
+            throw new RejectedExecutionException( this + " has been shut down" );
+        }
+        arm( future, delayNanos );
+    }
+
+    /**
+     * Put a task onto the wheel.
+     *
+     * @param future the task
+     * @param delayNanos the delay, in nanoseconds
+     */
+    protected void arm(
+            WheelFuture<?> future,
+            long           delayNanos )
+    {
+        future.theTime = System.nanoTime() + delayNanos;
+
+        long delayMillis = ( Math.max( delayNanos, 0L ) + 999999L ) / 1000000L; // round up, never early
+        try {
+            future.theTimeout = theWheel.schedule( future.theTrigger, delayMillis );
+
+        } catch( IllegalStateException ex ) {
+            future.cancel( false );
+            throw new RejectedExecutionException( this + " has been shut down", ex );
+        }
+    }
+
+    /**
+     * Shut down. Running tasks complete, tasks that have not run yet are canceled.
+     */
+    public void shutdown()
+    {
+        isShutdown = true;
+
+        for( WheelFuture<?> current : thePending ) {
+            current.cancel( false );
+        }
+        theWorkers.shutdown();
+        theWheel.stop();
+    }
+
+    /**
+     * Shut down, and attempt to interrupt running tasks.
+     *
+     * @return the tasks that never ran
+     */
+    public List<Runnable> shutdownNow()
+    {
+        isShutdown = true;
+
+        ArrayList<Runnable> ret = new ArrayList<Runnable>();
+        for( WheelFuture<?> current : thePending ) {
+            if( current.cancel( false )) {
+                ret.add( current );
+            }
+        }
+        ret.addAll( theWorkers.shutdownNow() );
+        theWheel.stop();
+
+        return ret;
+    }
+
+    /**
+     * Determine whether this HashedWheelScheduledExecutor has been shut down.
+     *
+     * @return true if it has been shut down
+     */
+    public boolean isShutdown()
+    {
+        return isShutdown;
+    }
+
+    /**
+     * Determine whether all tasks have completed after shut down.
+     *
+     * @return true if all tasks have completed
+     */
+    public boolean isTerminated()
+    {
+        return isShutdown && theWorkers.isTerminated();
+    }
+
+    /**
+     * Block until all tasks have completed after shut down, or the timeout occurs.
+     *
+     * @param timeout the timeout
+     * @param unit the unit of the timeout
+     * @return true if all tasks have completed
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public boolean awaitTermination(
+            long     timeout,
+            TimeUnit unit )
+        throws
+            InterruptedException
+    {
+        return theWorkers.awaitTermination( timeout, unit );
+    }
+
+    /**
+     * Obtain the number of tasks that have been scheduled, but not run or been canceled yet.
+     * Periodic tasks count until they are canceled.
+     *
+     * @return the number of tasks
+     */
+    public int getPendingCount()
+    {
+        return thePending.size();
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        return super.toString() + "{ " + theName + " }";
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "name",
+                    "theWheel",
+                    "pending",
+                    "isShutdown"
+                },
+                new Object[] {
+                    "HashedWheelScheduledExecutor " + theName + " (" + theWorkers.getCorePoolSize() + " threads)",
+                    theWheel,
+                    thePending.size(),
+                    isShutdown
+                });
+    }
+
+    /**
+     * Name of the HashedWheelScheduledExecutor (for debugging).
+     */
+    protected final String theName;
+
+    /**
+     * The TimeoutWheel that keeps the delayed tasks.
+     */
+    protected final TimeoutWheel theWheel;
+
+    /**
+     * The ThreadPoolExecutor that runs the tasks.
+     */
+    protected final ThreadPoolExecutor theWorkers;
+
+    /**
+     * The tasks that have been scheduled, but not run or been canceled yet. This is only needed
+     * to cancel them upon shutdown.
+     */
+    protected final Set<WheelFuture<?>> thePending = Collections.newSetFromMap( new ConcurrentHashMap<WheelFuture<?>,Boolean>() );
+
+    /**
+     * Set to true when this HashedWheelScheduledExecutor has been shut down.
+     */
+    protected volatile boolean isShutdown;
+
+    /**
+     * A task scheduled on this HashedWheelScheduledExecutor.
+     *
+     * @param <V> the type of value returned by the task
+     */
+    protected class WheelFuture<V>
+            extends
+                FutureTask<V>
+            implements
+                RunnableScheduledFuture<V>
+    {
+        /**
+         * Constructor.
+         *
+         * @param callable the task
+         * @param period positive for a fixed rate, negative for a fixed delay, 0 for a one-shot task, in nanoseconds
+         */
+        protected WheelFuture(
+                Callable<V> callable,
+                long        period )
+        {
+            super( callable );
+
+            thePeriod = period;
+        }
+
+        /**
+         * Run the task and, if periodic, schedule its next run.
+         */
+        @Override
+        public void run()
+        {
+            if( thePeriod == 0L ) {
+                super.run();
+
+            } else if( runAndReset() ) {
+                if( isShutdown ) {
+                    cancel( false );
+                    return;
+                }
+                long next;
+                if( thePeriod > 0L ) {
+                    next = theTime + thePeriod - System.nanoTime();
+                } else {
+                    next = -thePeriod;
+                }
+                try {
+                    arm( this, next );
+                } catch( RejectedExecutionException ex ) {
+                    // canceled already
+                }
+            }
+        }
+
+        /**
+         * Cancel the task. This takes constant time.
+         *
+         * @param mayInterruptIfRunning if true, interrupt the thread running the task
+         * @return true if the task was canceled
+         */
+        @Override
+        public boolean cancel(
+                boolean mayInterruptIfRunning )
+        {
+            boolean ret = super.cancel( mayInterruptIfRunning );
+            if( ret ) {
+                TimeoutWheel.Timeout timeout = theTimeout;
+                if( timeout != null ) {
+                    timeout.cancel();
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Invoked when the task has completed or been canceled.
+         */
+        @Override
+        protected void done()
+        {
+            thePending.remove( this );
+        }
+
+        /**
+         * Determine whether this task is periodic.
+         *
+         * @return true if periodic
+         */
+        public boolean isPeriodic()
+        {
+            return thePeriod != 0L;
+        }
+
+        /**
+         * Obtain the remaining delay until the task runs.
+         *
+         * @param unit the unit of the delay
+         * @return the delay
+         */
+        public long getDelay(
+                TimeUnit unit )
+        {
+            return unit.convert( theTime - System.nanoTime(), TimeUnit.NANOSECONDS );
+        }
+
+        /**
+         * Compare by remaining delay.
+         *
+         * @param other the Delayed to compare with
+         * @return comparison result
+         */
+        public int compareTo(
+                Delayed other )
+        {
+            if( other == this ) {
+                return 0;
+            }
+            long diff = getDelay( TimeUnit.NANOSECONDS ) - other.getDelay( TimeUnit.NANOSECONDS );
+            return diff < 0 ? -1 : ( diff > 0 ? 1 : 0 );
+        }
+
+        /**
+         * The period: positive for a fixed rate, negative for a fixed delay, 0 for a one-shot task, in nanoseconds.
+         */
+        protected final long thePeriod;
+
+        /**
+         * The value of System.nanoTime() at which the task is supposed to run next.
+         */
+        protected volatile long theTime;
+
+        /**
+         * The Timeout on the wheel for the next run of the task.
+         */
+        protected volatile TimeoutWheel.Timeout theTimeout;
+
+        /**
+         * Runs on the thread of the wheel when the time has come, and hands the task to the workers.
+         */
+        protected final Runnable theTrigger = new Runnable() {
+                public void run()
+                {
+                    try {
+                        theWorkers.execute( WheelFuture.this );
+
+                    } catch( RejectedExecutionException ex ) {
+                        cancel( false );
+                    }
+                }
+        };
+    }
+}
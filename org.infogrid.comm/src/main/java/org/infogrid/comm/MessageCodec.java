@@ -0,0 +1,77 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Knows how to turn a message into bytes, and back. This is used by MessageEndpoints
+ * that send their messages over a byte-oriented transport.
+ *
+ * @param <T> the message type
+ */
+public interface MessageCodec<T>
+{
+    /**
+     * Encode a message into a ByteBuffer, starting at the buffer's current position.
+     * Upon return, the position of the buffer is just after the encoded message.
+     * If the remaining space in the buffer is not sufficient, this throws
+     * <code>java.nio.BufferOverflowException</code>, and the caller may try again with a
+     * larger buffer.
+     *
+     * @param message the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the message could not be encoded
+     */
+    public void encode(
+            T          message,
+            ByteBuffer buf )
+        throws
+            IOException;
+
+    /**
+     * Determine the number of bytes that <code>encode</code> would write for a message,
+     * without encoding it. This must not change the state of the codec. Callers that
+     * receive -1 have to encode the message to find out.
+     *
+     * @param message the message
+     * @return the number of bytes, or -1 if it cannot be determined more cheaply than by encoding
+     * @throws IOException thrown if the message could not be encoded
+     */
+    public default int encodedSize(
+            T message )
+        throws
+            IOException
+    {
+        return -1;
+    }
+
+    /**
+     * Decode a message from a ByteBuffer. The message starts at the buffer's current
+     * position and ends at its limit. The decoded message must not keep a reference to
+     * <code>buf</code>, or to anything sharing its content: callers may reuse the buffer
+     * as soon as this method returns.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the decoded message
+     * @throws IOException thrown if the message could not be decoded
+     */
+    public T decode(
+            ByteBuffer buf )
+        throws
+            IOException;
+}
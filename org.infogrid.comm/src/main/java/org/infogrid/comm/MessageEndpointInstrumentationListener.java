@@ -0,0 +1,76 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.List;
+
+/**
+ * Adds more detail to MessageEndpointListener for listeners that instrument a
+ * SendingMessageEndpoint, such as {@link MessageEndpointStatistics}: when messages enter the
+ * outgoing queue, how they are batched, and how often batches have to be sent again.
+ *
+ * @param <T> the message type
+ */
+public interface MessageEndpointInstrumentationListener<T>
+        extends
+            MessageEndpointListener<T>
+{
+    /**
+     * Called when an outgoing message is about to be enqueued, before it becomes visible
+     * to the sending side. Unlike <code>messageEnqueued</code>, which may arrive after
+     * <code>messageSent</code> if a concurrent sender is quick, this is always called
+     * before the message can be sent. If enqueueing fails, no <code>messageEnqueued</code>
+     * follows.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param msg the message about to be enqueued
+     */
+    public void messageEnqueuing(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg );
+
+    /**
+     * Called when a batch of messages has been sent for the first time. Endpoints that
+     * send even if they have no messages, such as ping-pong endpoints, report empty batches.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param batch the messages in the batch
+     */
+    public void batchSent(
+            SendingMessageEndpoint<T> endpoint,
+            List<T>                   batch );
+
+    /**
+     * Called when a batch of messages has been sent again, because sending it failed earlier.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param batch the messages in the batch
+     */
+    public void batchResent(
+            SendingMessageEndpoint<T> endpoint,
+            List<T>                   batch );
+
+    /**
+     * Called when a batch of messages has been sent again, because the partner did not
+     * respond in time.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param batch the messages in the batch
+     */
+    public void batchRecovered(
+            SendingMessageEndpoint<T> endpoint,
+            List<T>                   batch );
+}
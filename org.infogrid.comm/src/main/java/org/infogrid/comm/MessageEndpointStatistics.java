@@ -0,0 +1,624 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.infogrid.util.Histogram;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Instruments a SendingMessageEndpoint: add it as a listener, and it records how long
+ * messages wait between being enqueued and being sent, how large the sent batches are, how
+ * deep the outgoing queue is, and how often batches have to be resent or recovered. Values
+ * are kept in {@link Histogram}s, so recording is cheap; the current values can be dumped
+ * at any time.</p>
+ * <p>The same instance may be added to several endpoints to aggregate over them.</p>
+ * <p>Messages that are never sent, e.g. because the endpoint died, are forgotten when the
+ * endpoint reports them with a disabling error, or once they have been waiting for longer
+ * than the maximum tracked age. If too many messages are waiting nevertheless, further
+ * messages are counted as untracked.</p>
+ *
+ * @param <T> the message type
+ */
+public class MessageEndpointStatistics<T>
+        implements
+            MessageEndpointInstrumentationListener<T>,
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( MessageEndpointStatistics.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param <T> the message type
+     * @return the created MessageEndpointStatistics
+     */
+    public static <T> MessageEndpointStatistics<T> create()
+    {
+        return new MessageEndpointStatistics<T>( DEFAULT_MAX_TRACKED_AGE );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param <T> the message type
+     * @param maxTrackedAge the time, in milliseconds, after which a message that has not been sent is forgotten
+     * @return the created MessageEndpointStatistics
+     */
+    public static <T> MessageEndpointStatistics<T> create(
+            long maxTrackedAge )
+    {
+        return new MessageEndpointStatistics<T>( maxTrackedAge );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param maxTrackedAge the time, in milliseconds, after which a message that has not been sent is forgotten
+     */
+    @SuppressWarnings( "unchecked" )
+    protected MessageEndpointStatistics(
+            long maxTrackedAge )
+    {
+        theMaxTrackedAge = TimeUnit.MILLISECONDS.toNanos( maxTrackedAge );
+
+        theEnqueueTimes = new IdentityHashMap[ STRIPES ];
+        theNextSweeps   = new long[ STRIPES ];
+        long now = System.nanoTime();
+        for( int i=0 ; i<STRIPES ; ++i ) {
+            theEnqueueTimes[i] = new IdentityHashMap<Object,Long>();
+            theNextSweeps[i]   = now;
+        }
+    }
+
+    /**
+     * Called when an outgoing message is about to be enqueued. This is where the enqueue
+     * time is taken, as the message may be sent before <code>messageEnqueued</code> is called.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param msg the message about to be enqueued
+     */
+    public void messageEnqueuing(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        long now   = System.nanoTime();
+        int  index = stripeIndexOf( msg );
+
+        IdentityHashMap<Object,Long> stripe = theEnqueueTimes[ index ];
+        synchronized( stripe ) {
+            if( stripe.containsKey( msg )) {
+                return; // the same message instance is enqueued again before it was sent; keep the first time
+            }
+            if( stripe.size() >= MAX_TRACKED_PER_STRIPE && now - theNextSweeps[ index ] >= 0 ) {
+                sweep( index, now );
+            }
+            if( stripe.size() < MAX_TRACKED_PER_STRIPE ) {
+                stripe.put( msg, now );
+                return;
+            }
+        }
+        theUntracked.increment();
+
+        if( theCapWarned.compareAndSet( false, true )) {
+            log.warn( this + ": too many messages waiting to be sent, no longer tracking the latency of all of them" );
+        }
+    }
+
+    /**
+     * Called when an outgoing message has been enqueued.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param msg the enqueued message
+     */
+    public void messageEnqueued(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        theEnqueued.increment();
+
+        recordQueueDepth( endpoint );
+    }
+
+    /**
+     * Called when an outgoing message has been sent.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param msg the sent message
+     */
+    public void messageSent(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        theSent.increment();
+
+        Long                         enqueued;
+        IdentityHashMap<Object,Long> stripe = stripeOf( msg );
+        synchronized( stripe ) {
+            enqueued = stripe.remove( msg );
+        }
+        if( enqueued != null ) {
+            theEnqueueToSent.record( TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - enqueued ));
+        }
+    }
+
+    /**
+     * Called when sending an outgoing message has failed.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param msg the message whose sending failed
+     */
+    public void messageSendingFailed(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        theFailed.increment();
+    }
+
+    /**
+     * Called when an incoming message has been received.
+     *
+     * @param endpoint the ReceivingMessageEndpoint that sent this event
+     * @param msg the received message(s)
+     */
+    public void messageReceived(
+            ReceivingMessageEndpoint<T> endpoint,
+            List<T>                     msg )
+    {
+        theReceived.add( msg.size() );
+    }
+
+    /**
+     * Called when an error was reported that is likely going to disable all future communication.
+     * The messages that are still in the outgoing queue will not be sent, so we forget them.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the status of the outgoing queue
+     * @param t the error
+     */
+    public void disablingError(
+            MessageEndpoint<T> endpoint,
+            List<T>            msg,
+            Throwable          t )
+    {
+        theDisablingErrors.increment();
+
+        if( msg != null ) {
+            for( T current : msg ) {
+                IdentityHashMap<Object,Long> stripe = stripeOf( current );
+                synchronized( stripe ) {
+                    stripe.remove( current );
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a batch of messages has been sent for the first time.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param batch the messages in the batch
+     */
+    public void batchSent(
+            SendingMessageEndpoint<T> endpoint,
+            List<T>                   batch )
+    {
+        theBatchSize.record( batch.size() );
+        recordQueueDepth( endpoint );
+    }
+
+    /**
+     * Called when a batch of messages has been sent again, because sending it failed earlier.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param batch the messages in the batch
+     */
+    public void batchResent(
+            SendingMessageEndpoint<T> endpoint,
+            List<T>                   batch )
+    {
+        theResends.increment();
+    }
+
+    /**
+     * Called when a batch of messages has been sent again, because the partner did not
+     * respond in time.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param batch the messages in the batch
+     */
+    public void batchRecovered(
+            SendingMessageEndpoint<T> endpoint,
+            List<T>                   batch )
+    {
+        theRecovers.increment();
+    }
+
+    /**
+     * Record the current depth of the outgoing queue of an endpoint.
+     *
+     * @param endpoint the endpoint
+     */
+    protected void recordQueueDepth(
+            SendingMessageEndpoint<T> endpoint )
+    {
+        if( endpoint instanceof AbstractSendingMessageEndpoint ) {
+            theQueueDepth.record( ((AbstractSendingMessageEndpoint<T>) endpoint).getMessagesToBeSentCount() );
+        }
+    }
+
+    /**
+     * Forget the messages in a stripe that have been waiting for longer than the maximum
+     * tracked age. Must be called while holding the lock on the stripe.
+     *
+     * @param index the index of the stripe
+     * @param now the current time, in System.nanoTime() format
+     */
+    protected void sweep(
+            int  index,
+            long now )
+    {
+        Iterator<Map.Entry<Object,Long>> iter   = theEnqueueTimes[ index ].entrySet().iterator();
+        long                             oldest = now;
+
+        while( iter.hasNext() ) {
+            long enqueued = iter.next().getValue();
+            if( now - enqueued >= theMaxTrackedAge ) {
+                iter.remove();
+                theExpired.increment();
+            } else if( enqueued - oldest < 0 ) {
+                oldest = enqueued;
+            }
+        }
+        // nothing else can expire before the oldest remaining entry does
+        theNextSweeps[ index ] = oldest + theMaxTrackedAge;
+    }
+
+    /**
+     * Obtain the index of the stripe of the enqueue times that a message belongs to.
+     *
+     * @param msg the message
+     * @return the index of the stripe
+     */
+    protected int stripeIndexOf(
+            Object msg )
+    {
+        return System.identityHashCode( msg ) & ( STRIPES - 1 );
+    }
+
+    /**
+     * Obtain the stripe of the enqueue times that a message belongs to.
+     *
+     * @param msg the message
+     * @return the stripe
+     */
+    protected IdentityHashMap<Object,Long> stripeOf(
+            Object msg )
+    {
+        return theEnqueueTimes[ stripeIndexOf( msg ) ];
+    }
+
+    /**
+     * Obtain the distribution of the time between a message being enqueued and being sent, in microseconds.
+     *
+     * @return the Histogram
+     */
+    public Histogram getEnqueueToSentLatency()
+    {
+        return theEnqueueToSent;
+    }
+
+    /**
+     * Obtain the distribution of the number of messages per sent batch.
+     *
+     * @return the Histogram
+     */
+    public Histogram getBatchSize()
+    {
+        return theBatchSize;
+    }
+
+    /**
+     * Obtain the distribution of the number of messages in the outgoing queue, sampled
+     * whenever a message is enqueued or a batch is sent.
+     *
+     * @return the Histogram
+     */
+    public Histogram getQueueDepth()
+    {
+        return theQueueDepth;
+    }
+
+    /**
+     * Obtain the number of enqueued messages.
+     *
+     * @return the number of messages
+     */
+    public long getEnqueuedCount()
+    {
+        return theEnqueued.sum();
+    }
+
+    /**
+     * Obtain the number of sent messages.
+     *
+     * @return the number of messages
+     */
+    public long getSentCount()
+    {
+        return theSent.sum();
+    }
+
+    /**
+     * Obtain the number of times sending a message failed.
+     *
+     * @return the number of failures
+     */
+    public long getFailedCount()
+    {
+        return theFailed.sum();
+    }
+
+    /**
+     * Obtain the number of received messages.
+     *
+     * @return the number of messages
+     */
+    public long getReceivedCount()
+    {
+        return theReceived.sum();
+    }
+
+    /**
+     * Obtain the number of batches resent because sending them failed.
+     *
+     * @return the number of resends
+     */
+    public long getResendCount()
+    {
+        return theResends.sum();
+    }
+
+    /**
+     * Obtain the number of batches resent because the partner did not respond in time.
+     *
+     * @return the number of recovers
+     */
+    public long getRecoverCount()
+    {
+        return theRecovers.sum();
+    }
+
+    /**
+     * Obtain the number of disabling errors.
+     *
+     * @return the number of errors
+     */
+    public long getDisablingErrorCount()
+    {
+        return theDisablingErrors.sum();
+    }
+
+    /**
+     * Obtain the number of enqueued messages whose latency was not tracked, because too
+     * many messages were waiting at the time.
+     *
+     * @return the number of messages
+     */
+    public long getUntrackedCount()
+    {
+        return theUntracked.sum();
+    }
+
+    /**
+     * Obtain the number of enqueued messages that were forgotten because they had not
+     * been sent within the maximum tracked age.
+     *
+     * @return the number of messages
+     */
+    public long getExpiredCount()
+    {
+        return theExpired.sum();
+    }
+
+    /**
+     * Obtain the number of messages whose enqueue time is currently being tracked.
+     *
+     * @return the number of messages
+     */
+    public int getTrackedCount()
+    {
+        int ret = 0;
+        for( IdentityHashMap<Object,Long> stripe : theEnqueueTimes ) {
+            synchronized( stripe ) {
+                ret += stripe.size();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reset all values. This is not atomic with respect to concurrent events. Messages
+     * enqueued before the reset are still tracked.
+     */
+    public void reset()
+    {
+        theEnqueueToSent.reset();
+        theBatchSize.reset();
+        theQueueDepth.reset();
+        theEnqueued.reset();
+        theSent.reset();
+        theFailed.reset();
+        theReceived.reset();
+        theResends.reset();
+        theRecovers.reset();
+        theDisablingErrors.reset();
+        theUntracked.reset();
+        theExpired.reset();
+        theCapWarned.set( false );
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "enqueued",
+                    "sent",
+                    "failed",
+                    "received",
+                    "resends",
+                    "recovers",
+                    "disablingErrors",
+                    "untracked",
+                    "expired",
+                    "enqueueToSent",
+                    "batchSize",
+                    "queueDepth"
+                },
+                new Object[] {
+                    getEnqueuedCount(),
+                    getSentCount(),
+                    getFailedCount(),
+                    getReceivedCount(),
+                    getResendCount(),
+                    getRecoverCount(),
+                    getDisablingErrorCount(),
+                    getUntrackedCount(),
+                    getExpiredCount(),
+                    theEnqueueToSent,
+                    theBatchSize,
+                    theQueueDepth
+                } );
+    }
+
+    /**
+     * The time between a message being enqueued and being sent, in microseconds.
+     */
+    protected final Histogram theEnqueueToSent = Histogram.create( "usec" );
+
+    /**
+     * The number of messages per sent batch.
+     */
+    protected final Histogram theBatchSize = Histogram.create( "messages" );
+
+    /**
+     * The number of messages in the outgoing queue.
+     */
+    protected final Histogram theQueueDepth = Histogram.create( "messages" );
+
+    /**
+     * The number of enqueued messages.
+     */
+    protected final LongAdder theEnqueued = new LongAdder();
+
+    /**
+     * The number of sent messages.
+     */
+    protected final LongAdder theSent = new LongAdder();
+
+    /**
+     * The number of times sending a message failed.
+     */
+    protected final LongAdder theFailed = new LongAdder();
+
+    /**
+     * The number of received messages.
+     */
+    protected final LongAdder theReceived = new LongAdder();
+
+    /**
+     * The number of batches resent because sending them failed.
+     */
+    protected final LongAdder theResends = new LongAdder();
+
+    /**
+     * The number of batches resent because the partner did not respond in time.
+     */
+    protected final LongAdder theRecovers = new LongAdder();
+
+    /**
+     * The number of disabling errors.
+     */
+    protected final LongAdder theDisablingErrors = new LongAdder();
+
+    /**
+     * The number of enqueued messages whose latency was not tracked.
+     */
+    protected final LongAdder theUntracked = new LongAdder();
+
+    /**
+     * The number of enqueued messages that were forgotten because they were not sent in time.
+     */
+    protected final LongAdder theExpired = new LongAdder();
+
+    /**
+     * Set once we have warned that messages could not be tracked, so we do not flood the log.
+     */
+    protected final AtomicBoolean theCapWarned = new AtomicBoolean( false );
+
+    /**
+     * The time, in System.nanoTime() format, after which a message that has not been sent is forgotten.
+     */
+    protected final long theMaxTrackedAge;
+
+    /**
+     * The time at which the messages that have not been sent yet were enqueued, in
+     * System.nanoTime() format. Striped by identity hash code, so concurrent senders rarely contend.
+     */
+    protected final IdentityHashMap<Object,Long> [] theEnqueueTimes;
+
+    /**
+     * Per stripe of theEnqueueTimes, the earliest time, in System.nanoTime() format, at which
+     * sweeping the stripe may find an expired entry. Guarded by the stripe.
+     */
+    protected final long [] theNextSweeps;
+
+    /**
+     * The number of stripes of theEnqueueTimes. Must be a power of two.
+     */
+    protected static final int STRIPES = 16;
+
+    /**
+     * The maximum number of messages tracked per stripe, so messages that are never
+     * sent do not accumulate without limit.
+     */
+    protected static final int MAX_TRACKED_PER_STRIPE = 4096;
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( MessageEndpointStatistics.class );
+
+    /**
+     * The default time, in milliseconds, after which a message that has not been sent is forgotten.
+     */
+    public static final long DEFAULT_MAX_TRACKED_AGE = theResourceHelper.getResourceLongOrDefault( "MaxTrackedAge", 600000L );
+}
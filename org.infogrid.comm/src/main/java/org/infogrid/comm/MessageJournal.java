@@ -0,0 +1,1026 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>A durable, append-only journal for the outgoing message queue of a SendingMessageEndpoint.
+ *    The List returned by {@link #getMessagesToBeSent getMessagesToBeSent} is passed to the
+ *    endpoint as its outgoing queue, and the journal is registered with the endpoint as a
+ *    listener. Messages are journaled when added to the queue, and truncated from the journal
+ *    when the endpoint reports them as sent. After a crash, opening the journal again
+ *    recovers the messages that had been enqueued but not sent, so they can be passed to
+ *    the endpoint's restore factory method.</p>
+ * <p>The journal is kept in memory-mapped segment files in a directory. Each record carries
+ *    a CRC32 checksum, so a record that was only partially written before a crash is detected
+ *    and ignored. Each segment starts with a checkpoint of all live state; when a segment is
+ *    full, a new one is started and the old one is deleted. Recovery thus only ever reads
+ *    one segment, not the whole history.</p>
+ * <p>Enqueued messages are forced to disk before <code>add</code> returns. The queue is a
+ *    {@link ConcurrentMessageQueue}, so the endpoint does not lock it while adding, and the
+ *    force happens outside of any lock other than the commit lock: concurrent threads
+ *    share the same force ("group commit"). Records of sent messages and tokens
+ *    are not forced individually: after a crash, a message may be sent again, but it is never
+ *    lost.</p>
+ *
+ * @param <T> the message type
+ */
+public class MessageJournal<T>
+        implements
+            MessageEndpointListener<T>,
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( MessageJournal.class ); // our own, private logger
+
+    /**
+     * Factory method. Opens the journal in this directory, recovering its content if it
+     * exists, or creates a new journal.
+     *
+     * @param directory the directory holding the segment files
+     * @param codec the MessageCodec to encode messages with
+     * @return the opened MessageJournal
+     * @throws IOException thrown if the journal could not be opened
+     * @param <T> the message type
+     */
+    public static <T> MessageJournal<T> open(
+            File            directory,
+            MessageCodec<T> codec )
+        throws
+            IOException
+    {
+        return open( directory, codec, DEFAULT_SEGMENT_SIZE );
+    }
+
+    /**
+     * Factory method. Opens the journal in this directory, recovering its content if it
+     * exists, or creates a new journal.
+     *
+     * @param directory the directory holding the segment files
+     * @param codec the MessageCodec to encode messages with
+     * @param segmentSize the size of a segment file, in bytes
+     * @return the opened MessageJournal
+     * @throws IOException thrown if the journal could not be opened
+     * @param <T> the message type
+     */
+    public static <T> MessageJournal<T> open(
+            File            directory,
+            MessageCodec<T> codec,
+            int             segmentSize )
+        throws
+            IOException
+    {
+        MessageJournal<T> ret = new MessageJournal<T>( directory, codec, segmentSize );
+        ret.recover();
+        return ret;
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param directory the directory holding the segment files
+     * @param codec the MessageCodec to encode messages with
+     * @param segmentSize the size of a segment file, in bytes
+     */
+    protected MessageJournal(
+            File            directory,
+            MessageCodec<T> codec,
+            int             segmentSize )
+    {
+        theDirectory   = directory;
+        theCodec       = codec;
+        theSegmentSize = segmentSize;
+    }
+
+    /**
+     * Obtain the journaled outgoing message queue. Initially, this contains the recovered
+     * messages that had been enqueued but not sent. This queue is to be handed to the endpoint.
+     *
+     * @return the queue
+     */
+    public ConcurrentMessageQueue<T> getMessagesToBeSent()
+    {
+        return theQueue;
+    }
+
+    /**
+     * Obtain the messages that were sent with the last token, if the endpoint recorded tokens.
+     * These may have to be resent.
+     *
+     * @return the messages, or null if there are none
+     */
+    public synchronized List<T> getMessagesSentLast()
+    {
+        if( theSentLast.isEmpty() ) {
+            return null;
+        }
+        return new ArrayList<T>( theSentLast.values() );
+    }
+
+    /**
+     * Obtain the last token sent, as recorded in the journal.
+     *
+     * @return the token, or -1 if none has been recorded
+     */
+    public synchronized long getLastSentToken()
+    {
+        return theLastSentToken;
+    }
+
+    /**
+     * Obtain the last token received, as recorded in the journal.
+     *
+     * @return the token, or -1 if none has been recorded
+     */
+    public synchronized long getLastReceivedToken()
+    {
+        return theLastReceivedToken;
+    }
+
+    /**
+     * Obtain the number of messages that have been enqueued but not sent.
+     *
+     * @return the number of messages
+     */
+    public synchronized int getPendingCount()
+    {
+        return thePending.size();
+    }
+
+    /**
+     * Record that a token has been sent. Messages reported as sent after this, and before
+     * the next token, are kept as the messages sent with this token.
+     *
+     * @param lastSentToken the token that was sent
+     * @param lastReceivedToken the token that was received last
+     */
+    public void recordToken(
+            long lastSentToken,
+            long lastReceivedToken )
+    {
+        synchronized( this ) {
+            if( lastSentToken != theLastSentToken ) {
+                theSentLast.clear(); // otherwise this is a resend of the same token
+            }
+            theTracksTokens      = true;
+            theLastSentToken     = lastSentToken;
+            theLastReceivedToken = lastReceivedToken;
+
+            append( RECORD_TOKEN, lastSentToken, lastReceivedToken, null );
+        }
+    }
+
+    /**
+     * Called when an outgoing message has been sent. This truncates the message from the journal.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the sent message
+     */
+    public void messageSent(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        synchronized( this ) {
+            ArrayDeque<Long> seqs = theSeqs.get( msg );
+            if( seqs == null ) {
+                return; // not journaled, or a resend
+            }
+            Long seq = seqs.poll();
+            if( seqs.isEmpty() ) {
+                theSeqs.remove( msg );
+            }
+            thePending.remove( seq );
+            if( theTracksTokens ) {
+                theSentLast.put( seq, msg );
+            }
+            append( RECORD_SENT, seq, 0L, null );
+        }
+    }
+
+    /**
+     * Called when one more more incoming messages have arrived.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msgs the received messages
+     */
+    public void messageReceived(
+            ReceivingMessageEndpoint<T> endpoint,
+            List<T>                     msgs )
+    {
+        // no op
+    }
+
+    /**
+     * Called when an outgoing message has enqueued for sending.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the enqueued message
+     */
+    public void messageEnqueued(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        // no op, journaled by the queue already
+    }
+
+    /**
+     * Called when an outoing message failed to be sent.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the outgoing message
+     */
+    public void messageSendingFailed(
+            SendingMessageEndpoint<T> endpoint,
+            T                         msg )
+    {
+        // no op, message remains in the journal
+    }
+
+    /**
+     * Called when an error was severe enough that continuing as a MessageEndPoint makes
+     * no sense.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the status of the outgoing queue
+     * @param t the Throwable indicating the error. This may be null if not available
+     */
+    public void disablingError(
+            MessageEndpoint<T> endpoint,
+            List<T>            msg,
+            Throwable          t )
+    {
+        // no op, messages remain in the journal
+    }
+
+    /**
+     * Force everything to disk, and close the journal.
+     */
+    public void close()
+    {
+        synchronized( theCommitLock ) {
+            synchronized( this ) {
+                if( theSegment != null ) {
+                    theSegment.force();
+                    theSegment = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Journal a newly enqueued message. This does not wait until it is on disk; use
+     * {@link #commit commit} with the returned position for that, after releasing the monitor.
+     * The caller must hold the monitor.
+     *
+     * @param msg the message
+     * @return the logical position in the journal after the record
+     */
+    protected long journalEnqueued(
+            T msg )
+    {
+        long seq = theNextSeq++;
+
+        thePending.put( seq, msg );
+        ArrayDeque<Long> seqs = theSeqs.get( msg );
+        if( seqs == null ) {
+            seqs = new ArrayDeque<Long>( 1 );
+            theSeqs.put( msg, seqs );
+        }
+        seqs.add( seq );
+
+        return append( RECORD_ENQUEUED, seq, 0L, msg );
+    }
+
+    /**
+     * Append a record to the current segment, starting a new segment if needed. The in-memory
+     * state must have been updated already, so it can be written as the checkpoint of a new segment.
+     * The caller must hold the monitor.
+     *
+     * @param type the record type
+     * @param a the first numeric argument of the record
+     * @param b the second numeric argument of the record
+     * @param msg the message, if any
+     * @return the logical position in the journal after the record
+     */
+    protected long append(
+            byte type,
+            long a,
+            long b,
+            T    msg )
+    {
+        if( theSegment == null ) {
+            throw new IllegalStateException( "Journal is closed: " + theDirectory );
+        }
+        try {
+            ByteBuffer body = encodeRecord( type, a, b, msg );
+            if( theSegment.remaining() < body.remaining() + 8 ) {
+                startSegment( theSegmentIndex + 1 ); // the checkpoint contains this record
+            } else {
+                writeRecord( theSegment, body );
+            }
+            return theAppendPosition.get();
+
+        } catch( IOException ex ) {
+            throw new IllegalStateException( "Cannot write to journal " + theDirectory, ex );
+        }
+    }
+
+    /**
+     * Make sure that everything up to this logical position is on disk. If another thread
+     * is forcing the segment at the same time, this waits for it, and returns without forcing
+     * again if that covered this position.
+     *
+     * @param position the logical position
+     */
+    protected void commit(
+            long position )
+    {
+        synchronized( theCommitLock ) {
+            if( theForcedPosition.get() >= position ) {
+                return;
+            }
+            MappedByteBuffer segment;
+            long             target;
+            synchronized( this ) {
+                segment = theSegment;
+                target  = theAppendPosition.get();
+            }
+            if( segment != null ) {
+                segment.force();
+                ++theForceCount;
+            }
+            advanceForcedPosition( target );
+        }
+    }
+
+    /**
+     * Advance the logical position up to which the journal is on disk.
+     *
+     * @param position the new position
+     */
+    protected void advanceForcedPosition(
+            long position )
+    {
+        long current;
+        do {
+            current = theForcedPosition.get();
+            if( current >= position ) {
+                return;
+            }
+        } while( !theForcedPosition.compareAndSet( current, position ));
+    }
+
+    /**
+     * Encode the body of a record into the scratch buffer.
+     *
+     * @param type the record type
+     * @param a the first numeric argument of the record
+     * @param b the second numeric argument of the record
+     * @param msg the message, if any
+     * @return the scratch buffer, flipped
+     * @throws IOException thrown if a message could not be encoded
+     */
+    protected ByteBuffer encodeRecord(
+            byte type,
+            long a,
+            long b,
+            T    msg )
+        throws
+            IOException
+    {
+        while( true ) {
+            ByteBuffer buf = theScratch;
+            buf.clear();
+            try {
+                buf.put( type );
+                switch( type ) {
+                    case RECORD_ENQUEUED:
+                        VarIntMessageCodec.putUnsignedVarLong( buf, a );
+                        encodeMessage( msg, buf );
+                        break;
+
+                    case RECORD_SENT:
+                        VarIntMessageCodec.putUnsignedVarLong( buf, a );
+                        break;
+
+                    case RECORD_TOKEN:
+                        VarIntMessageCodec.putVarLong( buf, a );
+                        VarIntMessageCodec.putVarLong( buf, b );
+                        break;
+
+                    case RECORD_CHECKPOINT:
+                        VarIntMessageCodec.putUnsignedVarLong( buf, theNextSeq );
+                        VarIntMessageCodec.putVarLong( buf, theLastSentToken );
+                        VarIntMessageCodec.putVarLong( buf, theLastReceivedToken );
+                        buf.put( theTracksTokens ? (byte) 1 : (byte) 0 );
+                        encodeMessages( thePending, buf );
+                        encodeMessages( theSentLast, buf );
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException( "Unknown record type " + type );
+                }
+                buf.flip();
+                return buf;
+
+            } catch( BufferOverflowException ex ) {
+                theScratch = ByteBuffer.allocate( buf.capacity() * 2 );
+            }
+        }
+    }
+
+    /**
+     * Encode a set of messages, with their sequence numbers.
+     *
+     * @param messages the messages, keyed by sequence number
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if a message could not be encoded
+     */
+    protected void encodeMessages(
+            Map<Long,T> messages,
+            ByteBuffer  buf )
+        throws
+            IOException
+    {
+        VarIntMessageCodec.putUnsignedVarLong( buf, messages.size() );
+        for( Map.Entry<Long,T> current : messages.entrySet() ) {
+            VarIntMessageCodec.putUnsignedVarLong( buf, current.getKey() );
+            encodeMessage( current.getValue(), buf );
+        }
+    }
+
+    /**
+     * Encode one message, prefixed by its length.
+     *
+     * @param msg the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the message could not be encoded
+     */
+    protected void encodeMessage(
+            T          msg,
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        int lengthPosition = buf.position();
+        buf.putInt( 0 ); // placeholder for length
+        theCodec.encode( msg, buf );
+        buf.putInt( lengthPosition, buf.position() - lengthPosition - 4 );
+    }
+
+    /**
+     * Decode one message written by encodeMessage.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the message
+     * @throws IOException thrown if the message could not be decoded
+     */
+    protected T decodeMessage(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        int length = buf.getInt();
+        int end    = buf.position() + length;
+        int limit  = buf.limit();
+
+        buf.limit( end );
+        T ret = theCodec.decode( buf );
+        buf.limit( limit );
+        buf.position( end );
+
+        return ret;
+    }
+
+    /**
+     * Write a record into a segment: its length, its checksum, and its body.
+     *
+     * @param segment the segment
+     * @param body the body of the record
+     */
+    protected void writeRecord(
+            ByteBuffer segment,
+            ByteBuffer body )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( body.duplicate() );
+
+        int length = body.remaining();
+        int start  = segment.position();
+
+        segment.putInt( start + 4, (int) crc.getValue() );
+        segment.position( start + 8 );
+        segment.put( body );
+        segment.putInt( start, length ); // length last, so a torn record looks like the end of the segment
+
+        theAppendPosition.addAndGet( length + 8 );
+    }
+
+    /**
+     * Start a new segment, beginning with a checkpoint of all live state, and delete the
+     * previous segments. The caller must hold the monitor.
+     *
+     * @param index the index of the new segment
+     * @throws IOException thrown if the segment could not be created
+     */
+    protected void startSegment(
+            long index )
+        throws
+            IOException
+    {
+        ByteBuffer body = encodeRecord( RECORD_CHECKPOINT, 0L, 0L, null );
+        int        size = Math.max( theSegmentSize, 2 * ( body.remaining() + 8 ));
+
+        if( theSegment != null ) {
+            theSegment.force(); // make sure records still in the old segment are not lost if creating the new one fails
+        }
+
+        File             file   = segmentFile( index );
+        RandomAccessFile raf    = new RandomAccessFile( file, "rw" );
+        MappedByteBuffer mapped;
+        try {
+            raf.setLength( 0L ); // zero out anything left over
+            raf.setLength( size );
+            mapped = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0L, size );
+        } finally {
+            raf.close();
+        }
+
+        writeRecord( mapped, body );
+        mapped.force();
+
+        theSegment      = mapped;
+        theSegmentIndex = index;
+        advanceForcedPosition( theAppendPosition.get() );
+
+        for( File current : listSegments() ) {
+            if( segmentIndex( current ) < index && !current.delete() ) {
+                log.warn( this + ": cannot delete old segment " + current );
+            }
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug( this + ": started segment " + file + " with " + thePending.size() + " pending messages" );
+        }
+    }
+
+    /**
+     * Recover the state from the newest segment that starts with a valid checkpoint, and
+     * start a fresh segment.
+     *
+     * @throws IOException thrown if the journal could not be read or written
+     */
+    protected synchronized void recover()
+        throws
+            IOException
+    {
+        if( !theDirectory.isDirectory() && !theDirectory.mkdirs() ) {
+            throw new IOException( "Cannot create directory " + theDirectory );
+        }
+        File [] segments = listSegments();
+        long    maxIndex = 0L;
+        boolean found    = false;
+
+        for( int i=segments.length-1 ; i>=0 ; --i ) {
+            maxIndex = Math.max( maxIndex, segmentIndex( segments[i] ));
+            if( !found ) {
+                found = readSegment( segments[i] );
+            }
+        }
+        theQueue.addRecovered( thePending.values() ); // messages sent with the last token are not pending
+
+        startSegment( maxIndex + 1 );
+    }
+
+    /**
+     * Read a segment, and apply its records to the in-memory state.
+     *
+     * @param file the segment file
+     * @return true if the segment started with a valid checkpoint
+     * @throws IOException thrown if the segment could not be read
+     */
+    protected boolean readSegment(
+            File file )
+        throws
+            IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        MappedByteBuffer mapped;
+        try {
+            mapped = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0L, raf.length() );
+        } finally {
+            raf.close();
+        }
+
+        boolean first = true;
+        int     count = 0;
+        try {
+            while( mapped.remaining() >= 8 ) {
+                int length = mapped.getInt();
+                int crc    = mapped.getInt();
+                if( length <= 0 || length > mapped.remaining() ) {
+                    break;
+                }
+                ByteBuffer body = mapped.slice();
+                body.limit( length );
+                mapped.position( mapped.position() + length );
+
+                CRC32 check = new CRC32();
+                check.update( body.duplicate() );
+                if( (int) check.getValue() != crc ) {
+                    log.warn( this + ": checksum mismatch in " + file + ", ignoring rest of segment" );
+                    break;
+                }
+                byte type = body.get();
+                if( first ) {
+                    if( type != RECORD_CHECKPOINT ) {
+                        return false;
+                    }
+                    first = false;
+                }
+                applyRecord( type, body );
+                ++count;
+            }
+        } catch( BufferUnderflowException ex ) {
+            log.warn( this + ": truncated record in " + file, ex );
+        }
+        if( log.isInfoEnabled() ) {
+            log.info( this + ": recovered " + count + " records from " + file + ", " + thePending.size() + " pending messages" );
+        }
+        return !first;
+    }
+
+    /**
+     * Apply a record read during recovery to the in-memory state.
+     *
+     * @param type the record type
+     * @param body the rest of the record body
+     * @throws IOException thrown if the record could not be decoded
+     */
+    protected void applyRecord(
+            byte       type,
+            ByteBuffer body )
+        throws
+            IOException
+    {
+        switch( type ) {
+            case RECORD_CHECKPOINT: {
+                thePending.clear();
+                theSentLast.clear();
+                theSeqs.clear();
+                theNextSeq           = VarIntMessageCodec.getUnsignedVarLong( body );
+                theLastSentToken     = VarIntMessageCodec.getVarLong( body );
+                theLastReceivedToken = VarIntMessageCodec.getVarLong( body );
+                theTracksTokens      = body.get() != 0;
+
+                long n = VarIntMessageCodec.getUnsignedVarLong( body );
+                for( long i=0 ; i<n ; ++i ) {
+                    long seq = VarIntMessageCodec.getUnsignedVarLong( body );
+                    addPending( seq, decodeMessage( body ));
+                }
+                n = VarIntMessageCodec.getUnsignedVarLong( body );
+                for( long i=0 ; i<n ; ++i ) {
+                    long seq = VarIntMessageCodec.getUnsignedVarLong( body );
+                    theSentLast.put( seq, decodeMessage( body ));
+                }
+                break;
+            }
+            case RECORD_ENQUEUED: {
+                long seq = VarIntMessageCodec.getUnsignedVarLong( body );
+                addPending( seq, decodeMessage( body ));
+                theNextSeq = Math.max( theNextSeq, seq + 1 );
+                break;
+            }
+            case RECORD_SENT: {
+                long seq = VarIntMessageCodec.getUnsignedVarLong( body );
+                T    msg = thePending.remove( seq );
+                if( msg != null ) {
+                    theSeqs.remove( msg );
+                    if( theTracksTokens ) {
+                        theSentLast.put( seq, msg );
+                    }
+                }
+                break;
+            }
+            case RECORD_TOKEN: {
+                long lastSent = VarIntMessageCodec.getVarLong( body );
+                if( lastSent != theLastSentToken ) {
+                    theSentLast.clear();
+                }
+                theTracksTokens      = true;
+                theLastSentToken     = lastSent;
+                theLastReceivedToken = VarIntMessageCodec.getVarLong( body );
+                break;
+            }
+            default:
+                throw new IOException( "Unknown record type " + type );
+        }
+    }
+
+    /**
+     * Add a recovered pending message to the in-memory state.
+     *
+     * @param seq the sequence number of the message
+     * @param msg the message
+     */
+    protected void addPending(
+            long seq,
+            T    msg )
+    {
+        thePending.put( seq, msg );
+
+        ArrayDeque<Long> seqs = new ArrayDeque<Long>( 1 );
+        seqs.add( seq );
+        theSeqs.put( msg, seqs ); // decoded messages are distinct objects
+    }
+
+    /**
+     * Determine the segment files in the directory, sorted by index.
+     *
+     * @return the segment files
+     */
+    protected File [] listSegments()
+    {
+        File [] ret = theDirectory.listFiles();
+        if( ret == null ) {
+            return new File[0];
+        }
+        ArrayList<File> found = new ArrayList<File>( ret.length );
+        for( File current : ret ) {
+            if( current.getName().endsWith( SEGMENT_SUFFIX ) && segmentIndex( current ) >= 0 ) {
+                found.add( current );
+            }
+        }
+        ret = found.toArray( new File[ found.size() ] );
+        Arrays.sort( ret ); // names are zero-padded
+        return ret;
+    }
+
+    /**
+     * Determine the file for a segment.
+     *
+     * @param index the index of the segment
+     * @return the File
+     */
+    protected File segmentFile(
+            long index )
+    {
+        return new File( theDirectory, String.format( "%016d", index ) + SEGMENT_SUFFIX );
+    }
+
+    /**
+     * Determine the index of a segment file.
+     *
+     * @param file the File
+     * @return the index, or -1 if this is not a segment file
+     */
+    protected static long segmentIndex(
+            File file )
+    {
+        String name = file.getName();
+        try {
+            return Long.parseLong( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ));
+        } catch( NumberFormatException ex ) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Obtain the number of times the journal was forced to disk. Because of group commit,
+     * this may be less than the number of enqueued messages.
+     *
+     * @return the number of times
+     */
+    public long getForceCount()
+    {
+        return theForceCount;
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theDirectory",
+                    "theSegmentIndex",
+                    "theNextSeq",
+                    "theLastSentToken",
+                    "theLastReceivedToken",
+                    "pending",
+                    "sentLast"
+                },
+                new Object[] {
+                    theDirectory,
+                    theSegmentIndex,
+                    theNextSeq,
+                    theLastSentToken,
+                    theLastReceivedToken,
+                    thePending.size(),
+                    theSentLast.size()
+                });
+    }
+
+    /**
+     * The journaled queue handed to the endpoint. Acknowledging messages does not truncate
+     * the journal: messages are truncated once they have been reported as sent.
+     */
+    protected class JournaledList
+            extends
+                ConcurrentMessageQueue<T>
+    {
+        /**
+         * Add a message to the end of the queue, and wait until it is on disk. Threads
+         * adding concurrently share the same force.
+         *
+         * @param msg the message
+         * @return always returns true
+         */
+        @Override
+        public boolean add(
+                T msg )
+        {
+            if( msg == null ) {
+                throw new NullPointerException( "Cannot add null message" );
+            }
+            long position;
+            synchronized( MessageJournal.this ) {
+                position = journalEnqueued( msg );
+                super.add( msg ); // in the same order as in the journal
+            }
+            commit( position );
+
+            return true;
+        }
+
+        /**
+         * Add recovered messages without journaling them again.
+         *
+         * @param msgs the messages
+         */
+        protected void addRecovered(
+                Collection<T> msgs )
+        {
+            for( T current : msgs ) {
+                super.add( current );
+            }
+        }
+    }
+
+    /**
+     * The directory holding the segment files.
+     */
+    protected final File theDirectory;
+
+    /**
+     * Converts messages to bytes and back.
+     */
+    protected final MessageCodec<T> theCodec;
+
+    /**
+     * The size of a newly created segment, in bytes.
+     */
+    protected final int theSegmentSize;
+
+    /**
+     * The journaled queue.
+     */
+    protected final JournaledList theQueue = new JournaledList();
+
+    /**
+     * The messages that have been enqueued but not sent, keyed by sequence number.
+     */
+    protected final LinkedHashMap<Long,T> thePending = new LinkedHashMap<Long,T>();
+
+    /**
+     * The messages that have been sent with the last token, keyed by sequence number.
+     */
+    protected final LinkedHashMap<Long,T> theSentLast = new LinkedHashMap<Long,T>();
+
+    /**
+     * Maps pending messages to their sequence numbers. This is by identity, as messages
+     * do not necessarily implement equals.
+     */
+    protected final IdentityHashMap<T,ArrayDeque<Long>> theSeqs = new IdentityHashMap<T,ArrayDeque<Long>>();
+
+    /**
+     * The next sequence number to assign.
+     */
+    protected long theNextSeq = 1L;
+
+    /**
+     * The last token sent.
+     */
+    protected long theLastSentToken = -1L;
+
+    /**
+     * The last token received.
+     */
+    protected long theLastReceivedToken = -1L;
+
+    /**
+     * True once a token has been recorded: from then on, sent messages are kept until the next token.
+     */
+    protected boolean theTracksTokens = false;
+
+    /**
+     * The current segment, or null if closed.
+     */
+    protected MappedByteBuffer theSegment;
+
+    /**
+     * The index of the current segment.
+     */
+    protected long theSegmentIndex;
+
+    /**
+     * Scratch buffer for encoding records.
+     */
+    protected ByteBuffer theScratch = ByteBuffer.allocate( 4096 );
+
+    /**
+     * Logical position after the last appended record, counting across segments.
+     */
+    protected final AtomicLong theAppendPosition = new AtomicLong();
+
+    /**
+     * Logical position up to which the journal is known to be on disk.
+     */
+    protected final AtomicLong theForcedPosition = new AtomicLong();
+
+    /**
+     * Serializes forcing the segment to disk.
+     */
+    protected final Object theCommitLock = new Object();
+
+    /**
+     * The number of times the segment was forced.
+     */
+    protected volatile long theForceCount;
+
+    /**
+     * The default size of a segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The file name suffix of segment files.
+     */
+    public static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Record type: checkpoint of all live state.
+     */
+    protected static final byte RECORD_CHECKPOINT = 1;
+
+    /**
+     * Record type: a message was enqueued.
+     */
+    protected static final byte RECORD_ENQUEUED = 2;
+
+    /**
+     * Record type: a message was sent.
+     */
+    protected static final byte RECORD_SENT = 3;
+
+    /**
+     * Record type: a token was sent.
+     */
+    protected static final byte RECORD_TOKEN = 4;
+}
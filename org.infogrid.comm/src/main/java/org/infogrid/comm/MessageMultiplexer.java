@@ -0,0 +1,371 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.infogrid.util.AbstractListenerSet;
+import org.infogrid.util.ConcurrentLongHashMap;
+import org.infogrid.util.FlexibleListenerSet;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Carries many logical BidirectionalMessageEndpoints, identified by channel ID, over
+ *    one physical BidirectionalMessageEndpoint, such as a single ping-pong or TCP session
+ *    between two hosts.</p>
+ * <p>The logical channels have no timers or queues of their own: their messages are
+ *    enqueued with the physical endpoint, which sends the pending messages of all channels
+ *    together with its next token. This makes a logical channel very much cheaper than an
+ *    endpoint pair of its own.</p>
+ *
+ * @param <T> the message type of the logical channels
+ */
+public class MessageMultiplexer<T>
+        implements
+            MessageEndpointListener<ChannelMessage<T>>,
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( MessageMultiplexer.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param <T> the message type of the logical channels
+     * @param physicalEndpoint the BidirectionalMessageEndpoint that carries the logical channels
+     * @return the created MessageMultiplexer
+     */
+    public static <T> MessageMultiplexer<T> create(
+            BidirectionalMessageEndpoint<ChannelMessage<T>> physicalEndpoint )
+    {
+        MessageMultiplexer<T> ret = new MessageMultiplexer<T>( physicalEndpoint );
+
+        physicalEndpoint.addWeakMessageEndpointListener( ret );
+        return ret;
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param physicalEndpoint the BidirectionalMessageEndpoint that carries the logical channels
+     */
+    protected MessageMultiplexer(
+            BidirectionalMessageEndpoint<ChannelMessage<T>> physicalEndpoint )
+    {
+        thePhysicalEndpoint = physicalEndpoint;
+    }
+
+    /**
+     * Obtain the BidirectionalMessageEndpoint that carries the logical channels.
+     *
+     * @return the BidirectionalMessageEndpoint
+     */
+    public BidirectionalMessageEndpoint<ChannelMessage<T>> getPhysicalEndpoint()
+    {
+        return thePhysicalEndpoint;
+    }
+
+    /**
+     * Obtain the logical channel with this identifier, creating it if needed.
+     *
+     * @param channelId identifies the logical channel
+     * @return the logical channel
+     */
+    public MultiplexedMessageEndpoint<T> obtainChannel(
+            long channelId )
+    {
+        MultiplexedMessageEndpoint<T> ret = theChannels.get( channelId );
+        if( ret == null ) {
+            MultiplexedMessageEndpoint<T> created = MultiplexedMessageEndpoint.create( this, channelId );
+
+            ret = theChannels.putIfAbsent( channelId, created );
+            if( ret == null ) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain the logical channel with this identifier, if it exists.
+     *
+     * @param channelId identifies the logical channel
+     * @return the logical channel, or null
+     */
+    public MultiplexedMessageEndpoint<T> getChannel(
+            long channelId )
+    {
+        return theChannels.get( channelId );
+    }
+
+    /**
+     * Close the logical channel with this identifier. Messages that arrive for it later
+     * open it again.
+     *
+     * @param channelId identifies the logical channel
+     * @return the closed channel, or null if it did not exist
+     */
+    public MultiplexedMessageEndpoint<T> closeChannel(
+            long channelId )
+    {
+        return theChannels.remove( channelId );
+    }
+
+    /**
+     * Obtain the number of logical channels currently open.
+     *
+     * @return the number of channels
+     */
+    public int getChannelCount()
+    {
+        return theChannels.size();
+    }
+
+    /**
+     * Called when one or more incoming messages have arrived. They are distributed to
+     * the logical channels, keeping their order within each channel.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msgs the received messages
+     */
+    public void messageReceived(
+            ReceivingMessageEndpoint<ChannelMessage<T>> endpoint,
+            List<ChannelMessage<T>>                     msgs )
+    {
+        for( Map.Entry<Long,List<T>> current : groupByChannel( msgs ).entrySet() ) {
+            long channelId = current.getKey();
+
+            MultiplexedMessageEndpoint<T> channel = theChannels.get( channelId );
+            if( channel == null ) {
+                MultiplexedMessageEndpoint<T> created = MultiplexedMessageEndpoint.create( this, channelId );
+
+                channel = theChannels.putIfAbsent( channelId, created );
+                if( channel == null ) {
+                    channel = created;
+                    theListeners.fireEvent( channel );
+                }
+            }
+            channel.messagesReceived( current.getValue() );
+        }
+    }
+
+    /**
+     * Called when an outgoing message has been sent.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the sent message
+     */
+    public void messageSent(
+            SendingMessageEndpoint<ChannelMessage<T>> endpoint,
+            ChannelMessage<T>                         msg )
+    {
+        MultiplexedMessageEndpoint<T> channel = theChannels.get( msg.getChannelId() );
+        if( channel != null ) {
+            channel.messageSent( msg.getPayload() );
+        }
+    }
+
+    /**
+     * Called when an outgoing message has enqueued for sending.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the enqueued message
+     */
+    public void messageEnqueued(
+            SendingMessageEndpoint<ChannelMessage<T>> endpoint,
+            ChannelMessage<T>                         msg )
+    {
+        MultiplexedMessageEndpoint<T> channel = theChannels.get( msg.getChannelId() );
+        if( channel != null ) {
+            channel.messageEnqueued( msg.getPayload() );
+        }
+    }
+
+    /**
+     * Called when an outgoing message failed to be sent.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the outgoing message
+     */
+    public void messageSendingFailed(
+            SendingMessageEndpoint<ChannelMessage<T>> endpoint,
+            ChannelMessage<T>                         msg )
+    {
+        MultiplexedMessageEndpoint<T> channel = theChannels.get( msg.getChannelId() );
+        if( channel != null ) {
+            channel.messageSendingFailed( msg.getPayload() );
+        }
+    }
+
+    /**
+     * Called when the physical endpoint has been disabled. All logical channels are notified,
+     * each with its own part of the outgoing queue.
+     *
+     * @param endpoint the MessageEndpoint that sent this event
+     * @param msg the status of the outgoing queue
+     * @param t the Throwable indicating the error. This may be null if not available
+     */
+    public void disablingError(
+            MessageEndpoint<ChannelMessage<T>> endpoint,
+            List<ChannelMessage<T>>            msg,
+            Throwable                          t )
+    {
+        Map<Long,List<T>> grouped = groupByChannel( msg );
+
+        for( MultiplexedMessageEndpoint<T> channel : theChannels.values() ) {
+            List<T> found = grouped.get( channel.getChannelId() );
+            if( found == null ) {
+                found = Collections.emptyList();
+            }
+            channel.disablingError( found, t );
+        }
+    }
+
+    /**
+     * Group ChannelMessages by channel, keeping their order within each channel.
+     *
+     * @param msgs the ChannelMessages, may be null
+     * @return the messages of the logical channels, keyed by channel identifier
+     */
+    protected Map<Long,List<T>> groupByChannel(
+            List<ChannelMessage<T>> msgs )
+    {
+        LinkedHashMap<Long,List<T>> ret = new LinkedHashMap<Long,List<T>>();
+        if( msgs == null ) {
+            return ret;
+        }
+        long    lastId   = 0L;
+        List<T> lastList = null;
+
+        for( ChannelMessage<T> current : msgs ) {
+            long channelId = current.getChannelId();
+            if( lastList == null || channelId != lastId ) {
+                lastList = ret.get( channelId );
+                if( lastList == null ) {
+                    lastList = new ArrayList<T>();
+                    ret.put( channelId, lastList );
+                }
+                lastId = channelId;
+            }
+            lastList.add( current.getPayload() );
+        }
+        return ret;
+    }
+
+    /**
+     * Add a MessageMultiplexerListener.
+     *
+     * @param newListener the listener to add
+     */
+    public void addDirectMessageMultiplexerListener(
+            MessageMultiplexerListener<T> newListener )
+    {
+        theListeners.addDirect( newListener );
+    }
+
+    /**
+     * Add a MessageMultiplexerListener.
+     *
+     * @param newListener the listener to add
+     */
+    public void addWeakMessageMultiplexerListener(
+            MessageMultiplexerListener<T> newListener )
+    {
+        theListeners.addWeak( newListener );
+    }
+
+    /**
+     * Add a MessageMultiplexerListener.
+     *
+     * @param newListener the listener to add
+     */
+    public void addSoftMessageMultiplexerListener(
+            MessageMultiplexerListener<T> newListener )
+    {
+        theListeners.addSoft( newListener );
+    }
+
+    /**
+     * Remove a MessageMultiplexerListener.
+     *
+     * @param oldListener the listener to remove
+     */
+    public void removeMessageMultiplexerListener(
+            MessageMultiplexerListener<T> oldListener )
+    {
+        theListeners.remove( oldListener );
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "thePhysicalEndpoint",
+                    "theChannels"
+                },
+                new Object[] {
+                    thePhysicalEndpoint,
+                    theChannels
+                });
+    }
+
+    /**
+     * The BidirectionalMessageEndpoint that carries the logical channels.
+     */
+    protected final BidirectionalMessageEndpoint<ChannelMessage<T>> thePhysicalEndpoint;
+
+    /**
+     * The logical channels, keyed by channel identifier.
+     */
+    protected final ConcurrentLongHashMap<MultiplexedMessageEndpoint<T>> theChannels = ConcurrentLongHashMap.create();
+
+    /**
+     * The current set of MessageMultiplexerListeners.
+     */
+    protected AbstractListenerSet<MessageMultiplexerListener<T>,MultiplexedMessageEndpoint<T>,Object> theListeners
+            = new FlexibleListenerSet<MessageMultiplexerListener<T>,MultiplexedMessageEndpoint<T>,Object>()
+    {
+        /**
+         * Fire the event to one contained object.
+         *
+         * @param listener the receiver of this event
+         * @param event the sent event
+         * @param parameter dispatch parameter
+         */
+        protected void fireEventToListener(
+                MessageMultiplexerListener<T>  listener,
+                MultiplexedMessageEndpoint<T>  event,
+                Object                         parameter )
+        {
+            try {
+                listener.channelOpened( MessageMultiplexer.this, event );
+
+            } catch( Throwable t ) {
+                log.error( t );
+            }
+        }
+    };
+}
@@ -0,0 +1,36 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+/**
+ * Listener interface for events emitted by a MessageMultiplexer.
+ *
+ * @param <T> the message type of the logical channels
+ */
+public interface MessageMultiplexerListener<T>
+{
+    /**
+     * Called when the partner has opened a logical channel that did not exist locally, just
+     * before its first messages are delivered. Listeners typically add their
+     * MessageEndpointListener to the channel here.
+     *
+     * @param multiplexer the MessageMultiplexer that sent this event
+     * @param channel the new logical channel
+     */
+    public void channelOpened(
+            MessageMultiplexer<T>         multiplexer,
+            MultiplexedMessageEndpoint<T> channel );
+}
@@ -0,0 +1,104 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+/**
+ * Thrown if a message cannot be enqueued because the outgoing queue of a SendingMessageEndpoint
+ * is full, and the endpoint has been configured to fail rather than to block in this case.
+ * This is a RuntimeException, as <code>enqueueMessageForSend</code> does not declare any
+ * checked Exceptions.
+ */
+public class MessageQueueFullException
+        extends
+            RuntimeException
+{
+    private static final long serialVersionUID = 1L; // helps with serialization
+
+    /**
+     * Constructor.
+     *
+     * @param endpoint the endpoint whose queue is full
+     * @param msg the message that could not be enqueued
+     */
+    public MessageQueueFullException(
+            SendingMessageEndpoint<?> endpoint,
+            Object                    msg )
+    {
+        super( "Outgoing message queue is full" );
+
+        theEndpoint = endpoint;
+        theMessage  = msg;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param endpoint the endpoint whose queue is full
+     * @param msg the message that could not be enqueued
+     * @param cause the cause, e.g. an interruption while waiting for space in the queue
+     */
+    public MessageQueueFullException(
+            SendingMessageEndpoint<?> endpoint,
+            Object                    msg,
+            Throwable                 cause )
+    {
+        super( "Outgoing message queue is full", cause );
+
+        theEndpoint = endpoint;
+        theMessage  = msg;
+    }
+
+    /**
+     * Obtain the endpoint whose queue is full.
+     *
+     * @return the endpoint. This returns null after deserialization.
+     */
+    public SendingMessageEndpoint<?> getEndpoint()
+    {
+        return theEndpoint;
+    }
+
+    /**
+     * Obtain the message that could not be enqueued.
+     *
+     * @return the message. This returns null after deserialization.
+     */
+    public Object getMessageToSend()
+    {
+        return theMessage;
+    }
+
+    /**
+     * Convert to string format, for debugging.
+     *
+     * @return string format of this instance
+     */
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": " + theEndpoint;
+    }
+
+    /**
+     * The endpoint whose queue is full.
+     */
+    protected transient SendingMessageEndpoint<?> theEndpoint;
+
+    /**
+     * The message that could not be enqueued.
+     */
+    protected transient Object theMessage;
+}
@@ -0,0 +1,50 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+/**
+ * Adds more detail to MessageEndpointListener for listeners that wish to know when the
+ * outgoing queue of a SendingMessageEndpoint fills up and drains again. This allows producers
+ * to slow down before the queue is full.
+ *
+ * @param <T> the message type
+ */
+public interface MessageQueueWatermarkListener<T>
+        extends
+            MessageEndpointListener<T>
+{
+    /**
+     * Called when the number of messages in the outgoing queue has reached the high watermark.
+     * This is not called again until the queue has drained to the low watermark.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param size the number of messages in the outgoing queue
+     */
+    public void highWatermarkReached(
+            SendingMessageEndpoint<T> endpoint,
+            int                       size );
+
+    /**
+     * Called when the number of messages in the outgoing queue has drained to the low watermark,
+     * after it had reached the high watermark.
+     *
+     * @param endpoint the SendingMessageEndpoint that sent this event
+     * @param size the number of messages in the outgoing queue
+     */
+    public void lowWatermarkReached(
+            SendingMessageEndpoint<T> endpoint,
+            int                       size );
+}
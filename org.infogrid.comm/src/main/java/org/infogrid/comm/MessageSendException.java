@@ -67,6 +67,7 @@ public class MessageSendException
         super( errorMessage );
         
         theMessageToSend = messageToSend;
+        theErrorMessage  = errorMessage;
     }
     
     /**
@@ -84,6 +85,7 @@ public class MessageSendException
         super( errorMessage, cause );
         
         theMessageToSend = message;
+        theErrorMessage  = errorMessage;
     }
 
     /**
@@ -103,11 +105,21 @@ public class MessageSendException
      */    
     public Object [] getLocalizationParameters()
     {
-        return new Object[] { getMessage(), theMessageToSend };
+        // getMessage() would come back here if no error message was given
+        String errorMessage = theErrorMessage;
+        if( errorMessage == null && getCause() != null ) {
+            errorMessage = getCause().getLocalizedMessage();
+        }
+        return new Object[] { errorMessage, theMessageToSend };
     }
 
     /**
      * The message that could not be sent.
      */
     protected List<? extends Object> theMessageToSend;
+
+    /**
+     * The error message, if any was given.
+     */
+    protected String theErrorMessage;
 }
@@ -0,0 +1,362 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.infogrid.util.AbstractListenerSet;
+import org.infogrid.util.FlexibleListenerSet;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * A logical BidirectionalMessageEndpoint carried by a MessageMultiplexer. Its messages are
+ * sent and received by the MessageMultiplexer's physical endpoint; it has no timers or
+ * queues of its own.
+ *
+ * @param <T> the message type
+ */
+public class MultiplexedMessageEndpoint<T>
+        implements
+            BidirectionalMessageEndpoint<T>,
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( MultiplexedMessageEndpoint.class ); // our own, private logger
+
+    /**
+     * Factory method, for the MessageMultiplexer only.
+     *
+     * @param <T> the message type
+     * @param multiplexer the MessageMultiplexer that carries this channel
+     * @param channelId identifies this channel
+     * @return the created MultiplexedMessageEndpoint
+     */
+    static <T> MultiplexedMessageEndpoint<T> create(
+            MessageMultiplexer<T> multiplexer,
+            long                  channelId )
+    {
+        return new MultiplexedMessageEndpoint<T>( multiplexer, channelId );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param multiplexer the MessageMultiplexer that carries this channel
+     * @param channelId identifies this channel
+     */
+    protected MultiplexedMessageEndpoint(
+            MessageMultiplexer<T> multiplexer,
+            long                  channelId )
+    {
+        theMultiplexer = multiplexer;
+        theChannelId   = channelId;
+    }
+
+    /**
+     * Obtain the MessageMultiplexer that carries this channel.
+     *
+     * @return the MessageMultiplexer
+     */
+    public MessageMultiplexer<T> getMultiplexer()
+    {
+        return theMultiplexer;
+    }
+
+    /**
+     * Obtain the identifier of this channel.
+     *
+     * @return the identifier
+     */
+    public long getChannelId()
+    {
+        return theChannelId;
+    }
+
+    /**
+     * Send a message as soon as the physical endpoint can.
+     *
+     * @param msg the message to send
+     */
+    public void enqueueMessageForSend(
+            T msg )
+    {
+        theMultiplexer.getPhysicalEndpoint().enqueueMessageForSend( new ChannelMessage<T>( theChannelId, msg ));
+    }
+
+    /**
+     * Send a message as quickly as the physical endpoint can.
+     *
+     * @param msg the message to send
+     */
+    public void sendMessageAsap(
+            T msg )
+    {
+        theMultiplexer.getPhysicalEndpoint().sendMessageAsap( new ChannelMessage<T>( theChannelId, msg ));
+    }
+
+    /**
+     * Obtain the messages of this channel that are still to be sent by the physical endpoint.
+     *
+     * @return the messages, in sequence
+     */
+    public List<T> messagesToBeSent()
+    {
+        List<ChannelMessage<T>> all = theMultiplexer.getPhysicalEndpoint().messagesToBeSent();
+        ArrayList<T>            ret = new ArrayList<T>();
+
+        for( ChannelMessage<T> current : all ) {
+            if( current.getChannelId() == theChannelId ) {
+                ret.add( current.getPayload() );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Invoked by the MessageMultiplexer when messages for this channel have arrived.
+     *
+     * @param msgs the messages
+     */
+    protected void messagesReceived(
+            List<T> msgs )
+    {
+        theListeners.fireEvent( msgs, MESSAGE_RECEIVED );
+    }
+
+    /**
+     * Invoked by the MessageMultiplexer when a message of this channel has been sent.
+     *
+     * @param msg the message
+     */
+    protected void messageSent(
+            T msg )
+    {
+        theListeners.fireEvent( msg, MESSAGE_SENT );
+    }
+
+    /**
+     * Invoked by the MessageMultiplexer when a message of this channel has been enqueued.
+     *
+     * @param msg the message
+     */
+    protected void messageEnqueued(
+            T msg )
+    {
+        theListeners.fireEvent( msg, MESSAGE_ENQUEUED );
+    }
+
+    /**
+     * Invoked by the MessageMultiplexer when a message of this channel failed to be sent.
+     *
+     * @param msg the message
+     */
+    protected void messageSendingFailed(
+            T msg )
+    {
+        theListeners.fireEvent( msg, MESSAGE_SENDING_FAILED );
+    }
+
+    /**
+     * Invoked by the MessageMultiplexer when the physical endpoint has been disabled.
+     *
+     * @param msgs the messages of this channel in the outgoing queue
+     * @param t the Throwable indicating the error, if any
+     */
+    protected void disablingError(
+            List<T>   msgs,
+            Throwable t )
+    {
+        theListeners.fireEvent( msgs, t );
+    }
+
+    /**
+     * Add a MessageEndpointListener.
+     *
+     * @param newListener the listener to add
+     */
+    public void addDirectMessageEndpointListener(
+            MessageEndpointListener<T> newListener )
+    {
+        theListeners.addDirect( newListener );
+    }
+
+    /**
+     * Add a MessageEndpointListener.
+     *
+     * @param newListener the listener to add
+     */
+    public void addWeakMessageEndpointListener(
+            MessageEndpointListener<T> newListener )
+    {
+        theListeners.addWeak( newListener );
+    }
+
+    /**
+     * Add a MessageEndpointListener.
+     *
+     * @param newListener the listener to add
+     */
+    public void addSoftMessageEndpointListener(
+            MessageEndpointListener<T> newListener )
+    {
+        theListeners.addSoft( newListener );
+    }
+
+    /**
+     * Remove a MessageEndpointListener.
+     *
+     * @param oldListener the listener to remove
+     */
+    public void removeMessageEndpointListener(
+            MessageEndpointListener<T> oldListener )
+    {
+        theListeners.remove( oldListener );
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        return super.toString() + "{ channel " + theChannelId + " }";
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theChannelId",
+                    "theMultiplexer"
+                },
+                new Object[] {
+                    theChannelId,
+                    theMultiplexer
+                });
+    }
+
+    /**
+     * The MessageMultiplexer that carries this channel.
+     */
+    protected final MessageMultiplexer<T> theMultiplexer;
+
+    /**
+     * Identifies this channel.
+     */
+    protected final long theChannelId;
+
+    /**
+     * Indicates that a message was sent successfully.
+     */
+    protected final AbstractSendingMessageEndpoint.EventType<T> MESSAGE_SENT = new AbstractSendingMessageEndpoint.EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                listener.messageSent( (SendingMessageEndpoint<T>) sender, (T) event );
+            }
+    };
+
+    /**
+     * Indicates that messages were received.
+     */
+    protected final AbstractSendingMessageEndpoint.EventType<T> MESSAGE_RECEIVED = new AbstractSendingMessageEndpoint.EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                listener.messageReceived( (ReceivingMessageEndpoint<T>) sender, (List<T>) event );
+            }
+    };
+
+    /**
+     * Indicates that a message was enqueued, but not sent yet.
+     */
+    protected final AbstractSendingMessageEndpoint.EventType<T> MESSAGE_ENQUEUED = new AbstractSendingMessageEndpoint.EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                listener.messageEnqueued( (SendingMessageEndpoint<T>) sender, (T) event );
+            }
+    };
+
+    /**
+     * Indicates that sending a message failed.
+     */
+    protected final AbstractSendingMessageEndpoint.EventType<T> MESSAGE_SENDING_FAILED = new AbstractSendingMessageEndpoint.EventType<T>() {
+            @SuppressWarnings( "unchecked" )
+            public void fireEvent(
+                    MessageEndpoint<T>         sender,
+                    MessageEndpointListener<T> listener,
+                    Object                     event )
+            {
+                listener.messageSendingFailed( (SendingMessageEndpoint<T>) sender, (T) event );
+            }
+    };
+
+    /**
+     * The current set of MessageEndpointListeners.
+     */
+    protected AbstractListenerSet<MessageEndpointListener<T>,Object,Object> theListeners
+            = new FlexibleListenerSet<MessageEndpointListener<T>,Object,Object>()
+    {
+        /**
+         * Fire the event to one contained object.
+         *
+         * @param listener the receiver of this event
+         * @param event the sent event
+         * @param parameter dispatch parameter
+         */
+        @SuppressWarnings(value={"unchecked"})
+        protected void fireEventToListener(
+                MessageEndpointListener<T> listener,
+                Object                     event,
+                Object                     parameter )
+        {
+            try {
+                if( parameter instanceof AbstractSendingMessageEndpoint.EventType ) {
+                    AbstractSendingMessageEndpoint.EventType realParameter = (AbstractSendingMessageEndpoint.EventType) parameter;
+
+                    realParameter.fireEvent( MultiplexedMessageEndpoint.this, listener, event );
+
+                } else if( parameter == null || parameter instanceof Throwable ) {
+                    listener.disablingError( MultiplexedMessageEndpoint.this, (List<T>) event, (Throwable) parameter );
+
+                } else {
+                    log.error( "unknown parameter: " + parameter );
+                }
+            } catch( Throwable t ) {
+                log.error( t );
+            }
+        }
+    };
+}
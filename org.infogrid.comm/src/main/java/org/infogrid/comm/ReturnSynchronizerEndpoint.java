@@ -16,6 +16,9 @@ package org.infogrid.comm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import org.infogrid.util.ResourceHelper;
 import org.infogrid.util.ReturnSynchronizer;
 import org.infogrid.util.ReturnSynchronizerException.DuplicateKey;
@@ -134,6 +137,60 @@ public class ReturnSynchronizerEndpoint<T extends CarriesInvocationId>
         }
     }
 
+    /**
+     * Invoke the front leg of the remote procedure call as part of a given transaction,
+     * regardless of the calling thread.
+     *
+     * @param transaction the transaction the call is part of
+     * @param message the message that represents the argument to the call
+     */
+    public void call(
+            ReturnSynchronizer<Long,T>.Transaction transaction,
+            T                                      message )
+    {
+        long invocationId = createInvocationId();
+
+        message.setRequestId( invocationId );
+
+        if( log.isTraceEnabled() ) { // better here because here we have the invocation id set
+            log.traceMethodCallEntry( this, "invoke", transaction, message );
+        }
+
+        try {
+            transaction.addOpenQuery( invocationId );
+            theMessageEndpoint.sendMessageAsap( message );
+
+        } catch( DuplicateKey ex ) {
+            log.error( ex );
+        }
+    }
+
+    /**
+     * Invoke a number of remote procedure calls in a new transaction that is not associated
+     * with the calling thread, and aggregate their responses. The calling thread does not block.
+     * The transaction is ended when the returned CompletableFuture completes.
+     *
+     * @param messages the messages that represent the arguments to the calls
+     * @return CompletableFuture that completes with the responses, keyed by invocation id
+     */
+    public CompletableFuture<Map<Long,T>> callAll(
+            List<T> messages )
+    {
+        final ReturnSynchronizer<Long,T>.Transaction transaction = theSynchronizer.createTransaction();
+
+        for( T current : messages ) {
+            call( transaction, current );
+        }
+        return transaction.whenComplete( new BiConsumer<Map<Long,T>,Throwable>() {
+                public void accept(
+                        Map<Long,T> results,
+                        Throwable   t )
+                {
+                    transaction.endTransaction();
+                }
+        });
+    }
+
     /**
      * Determine whether a call is waiting for a response with the provided responseId.
      *
@@ -166,8 +223,8 @@ public class ReturnSynchronizerEndpoint<T extends CarriesInvocationId>
             long responseId = current.getResponseId();
 
             try {
-                if( theSynchronizer.depositQueryResult( responseId, current )) {
-                    otherMessages.add( current );
+                if( !theSynchronizer.depositQueryResult( responseId, current )) {
+                    otherMessages.add( current ); // not a response we were waiting for
                 }
             } catch( DuplicateResult ex ) {
                 log.error( ex );
@@ -0,0 +1,104 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import org.infogrid.util.DelegatingIOException;
+
+/**
+ * A MessageCodec that uses Java serialization. This works with any Serializable message
+ * type, but is neither compact nor fast.
+ *
+ * @param <T> the message type
+ */
+public class SerializingMessageCodec<T extends Serializable>
+        implements
+            MessageCodec<T>
+{
+    /**
+     * Factory method.
+     *
+     * @return the created SerializingMessageCodec
+     * @param <T> the message type
+     */
+    public static <T extends Serializable> SerializingMessageCodec<T> create()
+    {
+        return new SerializingMessageCodec<T>();
+    }
+
+    /**
+     * Constructor, use factory method.
+     */
+    protected SerializingMessageCodec()
+    {
+        // nothing
+    }
+
+    /**
+     * Encode a message into a ByteBuffer, starting at the buffer's current position.
+     *
+     * @param message the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the message could not be encoded
+     */
+    public void encode(
+            T          message,
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream    out   = new ObjectOutputStream( bytes );
+
+        out.writeObject( message );
+        out.close();
+
+        buf.put( bytes.toByteArray() );
+    }
+
+    /**
+     * Decode a message from a ByteBuffer.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the decoded message
+     * @throws IOException thrown if the message could not be decoded
+     */
+    @SuppressWarnings( "unchecked" )
+    public T decode(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        byte [] data = new byte[ buf.remaining() ];
+        buf.get( data );
+
+        ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( data ));
+        try {
+            return (T) in.readObject();
+
+        } catch( ClassNotFoundException ex ) {
+            throw new DelegatingIOException( ex );
+        } finally {
+            in.close();
+        }
+    }
+}
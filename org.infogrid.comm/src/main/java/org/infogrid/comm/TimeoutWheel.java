@@ -0,0 +1,560 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>A hashed timer wheel: a single thread that runs tasks after a delay, with constant-time
+ *    scheduling and cancellation regardless of how many tasks are pending. Time advances in
+ *    ticks; each task is kept in the bucket of the tick in which it expires, so expiring
+ *    tasks never requires searching or sorting. Tasks run late by up to one tick.</p>
+ * <p>This is intended for very many timeouts that are usually canceled before they expire,
+ *    such as those of pending RPCs. The tasks run on the thread of the TimeoutWheel, so they
+ *    must be short; longer work should be handed off to an Executor.</p>
+ */
+public class TimeoutWheel
+        implements
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( TimeoutWheel.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param name the name of the TimeoutWheel, used for its thread
+     * @param tickMillis the duration of a tick, in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @return the created TimeoutWheel
+     */
+    public static TimeoutWheel create(
+            String name,
+            long   tickMillis,
+            int    wheelSize )
+    {
+        TimeoutWheel ret = new TimeoutWheel( name, tickMillis, wheelSize );
+        ret.theThread.start();
+        return ret;
+    }
+
+    /**
+     * Obtain the TimeoutWheel shared by all users that do not need their own.
+     *
+     * @return the shared TimeoutWheel
+     */
+    public static synchronized TimeoutWheel getDefault()
+    {
+        if( theDefault == null ) {
+            theDefault = create( "TimeoutWheel", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE );
+        }
+        return theDefault;
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param name the name of the TimeoutWheel, used for its thread
+     * @param tickMillis the duration of a tick, in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    protected TimeoutWheel(
+            String name,
+            long   tickMillis,
+            int    wheelSize )
+    {
+        if( tickMillis <= 0 ) {
+            throw new IllegalArgumentException( "Tick must be positive: " + tickMillis );
+        }
+        if( wheelSize <= 0 ) {
+            throw new IllegalArgumentException( "Wheel size must be positive: " + wheelSize );
+        }
+        int n = 1;
+        while( n < wheelSize ) {
+            n <<= 1;
+        }
+        theName      = name;
+        theTickNanos = tickMillis * 1000000L;
+        theBuckets   = new Bucket[ n ];
+        theMask      = n - 1;
+
+        for( int i=0 ; i<n ; ++i ) {
+            theBuckets[i] = new Bucket();
+        }
+
+        theStartNanos = System.nanoTime();
+
+        theThread = new Thread( name ) {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+        };
+        theThread.setDaemon( true );
+    }
+
+    /**
+     * Schedule a task to run after a delay.
+     *
+     * @param task the task
+     * @param delayMillis the delay, in milliseconds
+     * @return the Timeout, which can be used to cancel the task
+     * @throws IllegalStateException thrown if the TimeoutWheel has been stopped
+     */
+    public Timeout schedule(
+            Runnable task,
+            long     delayMillis )
+    {
+        if( isStopped ) {
+            throw new IllegalStateException( this + " has been stopped" );
+        }
+        long    deadline = System.nanoTime() - theStartNanos + Math.max( delayMillis, 0L ) * 1000000L;
+        Timeout ret      = new Timeout( this, task, deadline );
+
+        thePendingCount.incrementAndGet();
+        theNewTimeouts.offer( ret );
+
+        return ret;
+    }
+
+    /**
+     * Obtain the number of tasks that have been scheduled, but have neither run nor been canceled.
+     *
+     * @return the number of tasks
+     */
+    public int getPendingCount()
+    {
+        return thePendingCount.get();
+    }
+
+    /**
+     * Stop this TimeoutWheel. Pending tasks do not run anymore.
+     */
+    public void stop()
+    {
+        isStopped = true;
+        LockSupport.unpark( theThread );
+    }
+
+    /**
+     * Determine whether this TimeoutWheel has been stopped.
+     *
+     * @return true if it has been stopped
+     */
+    public boolean isStopped()
+    {
+        return isStopped;
+    }
+
+    /**
+     * The main loop of the thread.
+     */
+    protected void work()
+    {
+        long tick = 0L;
+
+        while( !isStopped ) {
+            long deadline = ( tick + 1 ) * theTickNanos;
+            long now;
+            while( ( now = System.nanoTime() - theStartNanos ) < deadline ) {
+                LockSupport.parkNanos( this, deadline - now );
+                if( isStopped ) {
+                    return;
+                }
+            }
+
+            removeCanceled();
+            transferNew( tick );
+
+            Bucket bucket = theBuckets[ (int) ( tick & theMask ) ];
+            bucket.expire( now );
+
+            ++tick;
+        }
+    }
+
+    /**
+     * Remove the Timeouts that have been canceled from their buckets.
+     */
+    protected void removeCanceled()
+    {
+        Timeout current;
+        while( ( current = theCanceledTimeouts.poll() ) != null ) {
+            if( current.theBucket != null ) {
+                current.theBucket.remove( current );
+            }
+        }
+    }
+
+    /**
+     * Put the newly scheduled Timeouts into their buckets.
+     *
+     * @param tick the current tick
+     */
+    protected void transferNew(
+            long tick )
+    {
+        Timeout current;
+        while( ( current = theNewTimeouts.poll() ) != null ) {
+            if( current.theState.get() != Timeout.ST_PENDING ) {
+                continue; // canceled already
+            }
+            long expiresAt = current.theDeadline / theTickNanos;
+
+            current.theRemainingRounds = ( expiresAt - tick ) / theBuckets.length;
+
+            long ticks = Math.max( expiresAt, tick ); // do not schedule into the past
+            theBuckets[ (int) ( ticks & theMask ) ].add( current );
+        }
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        return super.toString() + "{ " + theName + " }";
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theName",
+                    "theTickNanos",
+                    "theBuckets.length",
+                    "thePendingCount",
+                    "isStopped"
+                },
+                new Object[] {
+                    theName,
+                    theTickNanos,
+                    theBuckets.length,
+                    thePendingCount.get(),
+                    isStopped
+                } );
+    }
+
+    /**
+     * Name of the TimeoutWheel (for debugging).
+     */
+    protected final String theName;
+
+    /**
+     * The duration of a tick, in nanoseconds.
+     */
+    protected final long theTickNanos;
+
+    /**
+     * The buckets, one for each tick of a round.
+     */
+    protected final Bucket [] theBuckets;
+
+    /**
+     * The number of buckets minus one, used to find buckets.
+     */
+    protected final int theMask;
+
+    /**
+     * The value of System.nanoTime() when this TimeoutWheel was created. All times are relative to this.
+     */
+    protected final long theStartNanos;
+
+    /**
+     * The thread that expires the Timeouts.
+     */
+    protected final Thread theThread;
+
+    /**
+     * Timeouts that have been scheduled, but not been put into their buckets yet.
+     */
+    protected final ConcurrentLinkedQueue<Timeout> theNewTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * Timeouts that have been canceled, but not been removed from their buckets yet.
+     */
+    protected final ConcurrentLinkedQueue<Timeout> theCanceledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The number of tasks that have been scheduled, but have neither run nor been canceled.
+     */
+    protected final AtomicInteger thePendingCount = new AtomicInteger();
+
+    /**
+     * Set to true when this TimeoutWheel has been stopped.
+     */
+    protected volatile boolean isStopped;
+
+    /**
+     * The shared TimeoutWheel, allocated as needed.
+     */
+    private static TimeoutWheel theDefault;
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( TimeoutWheel.class );
+
+    /**
+     * The duration of a tick of the shared TimeoutWheel, in milliseconds.
+     */
+    public static final long DEFAULT_TICK_MILLIS = theResourceHelper.getResourceLongOrDefault( "DefaultTickMillis", 10L );
+
+    /**
+     * The number of buckets of the shared TimeoutWheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = theResourceHelper.getResourceIntegerOrDefault( "DefaultWheelSize", 512 );
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout
+    {
+        /**
+         * Constructor.
+         *
+         * @param wheel the TimeoutWheel on which the task has been scheduled
+         * @param task the task
+         * @param deadline the time at which the task shall run, in nanoseconds relative to the start of the wheel
+         */
+        protected Timeout(
+                TimeoutWheel wheel,
+                Runnable     task,
+                long         deadline )
+        {
+            theWheel    = wheel;
+            theTask     = task;
+            theDeadline = deadline;
+        }
+
+        /**
+         * Cancel the task. This takes constant time.
+         *
+         * @return true if the task was canceled, false if it has run or been canceled already
+         */
+        public boolean cancel()
+        {
+            if( !theState.compareAndSet( ST_PENDING, ST_CANCELED )) {
+                return false;
+            }
+            theWheel.thePendingCount.decrementAndGet();
+            theWheel.theCanceledTimeouts.offer( this );
+            return true;
+        }
+
+        /**
+         * Determine whether the task has been canceled.
+         *
+         * @return true if it has been canceled
+         */
+        public boolean isCanceled()
+        {
+            return theState.get() == ST_CANCELED;
+        }
+
+        /**
+         * Determine whether the task has run, or is running.
+         *
+         * @return true if it has run
+         */
+        public boolean isExpired()
+        {
+            return theState.get() == ST_EXPIRED;
+        }
+
+        /**
+         * Obtain the number of milliseconds until the task is supposed to run.
+         *
+         * @return the number of milliseconds, negative if overdue
+         */
+        public long getDelayMillis()
+        {
+            return ( theDeadline - ( System.nanoTime() - theWheel.theStartNanos )) / 1000000L;
+        }
+
+        /**
+         * Run the task, unless it has been canceled.
+         */
+        protected void expire()
+        {
+            if( !theState.compareAndSet( ST_PENDING, ST_EXPIRED )) {
+                return;
+            }
+            theWheel.thePendingCount.decrementAndGet();
+            try {
+                theTask.run();
+
+            } catch( Throwable t ) {
+                log.error( t );
+            }
+        }
+
+        /**
+         * The TimeoutWheel on which the task has been scheduled.
+         */
+        protected final TimeoutWheel theWheel;
+
+        /**
+         * The task.
+         */
+        protected final Runnable theTask;
+
+        /**
+         * The time at which the task shall run, in nanoseconds relative to the start of the wheel.
+         */
+        protected final long theDeadline;
+
+        /**
+         * The number of complete rounds of the wheel until the task runs. Only accessed by the wheel's thread.
+         */
+        protected long theRemainingRounds;
+
+        /**
+         * The bucket holding this Timeout. Only accessed by the wheel's thread.
+         */
+        protected Bucket theBucket;
+
+        /**
+         * The previous Timeout in the bucket. Only accessed by the wheel's thread.
+         */
+        protected Timeout thePrevious;
+
+        /**
+         * The next Timeout in the bucket. Only accessed by the wheel's thread.
+         */
+        protected Timeout theNext;
+
+        /**
+         * The state of this Timeout.
+         */
+        protected final AtomicInteger theState = new AtomicInteger( ST_PENDING );
+
+        /**
+         * State: the task has neither run nor been canceled.
+         */
+        protected static final int ST_PENDING = 0;
+
+        /**
+         * State: the task has been canceled.
+         */
+        protected static final int ST_CANCELED = 1;
+
+        /**
+         * State: the task has run.
+         */
+        protected static final int ST_EXPIRED = 2;
+    }
+
+    /**
+     * A doubly-linked list of the Timeouts that expire in the same tick of a round.
+     * Only accessed by the wheel's thread.
+     */
+    protected static class Bucket
+    {
+        /**
+         * Append a Timeout.
+         *
+         * @param timeout the Timeout
+         */
+        public void add(
+                Timeout timeout )
+        {
+            timeout.theBucket = this;
+            if( theTail == null ) {
+                theHead = timeout;
+                theTail = timeout;
+            } else {
+                theTail.theNext      = timeout;
+                timeout.thePrevious  = theTail;
+                theTail              = timeout;
+            }
+        }
+
+        /**
+         * Remove a Timeout.
+         *
+         * @param timeout the Timeout
+         */
+        public void remove(
+                Timeout timeout )
+        {
+            if( timeout.thePrevious != null ) {
+                timeout.thePrevious.theNext = timeout.theNext;
+            } else {
+                theHead = timeout.theNext;
+            }
+            if( timeout.theNext != null ) {
+                timeout.theNext.thePrevious = timeout.thePrevious;
+            } else {
+                theTail = timeout.thePrevious;
+            }
+            timeout.thePrevious = null;
+            timeout.theNext     = null;
+            timeout.theBucket   = null;
+        }
+
+        /**
+         * Run the Timeouts that expire in this round, and count down the others.
+         *
+         * @param now the current time, in nanoseconds relative to the start of the wheel
+         */
+        public void expire(
+                long now )
+        {
+            Timeout current = theHead;
+            while( current != null ) {
+                Timeout next = current.theNext;
+
+                if( current.theState.get() != Timeout.ST_PENDING ) {
+                    remove( current );
+
+                } else if( current.theRemainingRounds <= 0 ) {
+                    remove( current );
+                    current.expire();
+
+                } else {
+                    --current.theRemainingRounds;
+                }
+                current = next;
+            }
+        }
+
+        /**
+         * The first Timeout in the list.
+         */
+        protected Timeout theHead;
+
+        /**
+         * The last Timeout in the list.
+         */
+        protected Timeout theTail;
+    }
+}
@@ -0,0 +1,360 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.comm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>A compact binary MessageCodec for messages that carry invocation IDs. The request and
+ *    response IDs are written natively as variable-length integers, so the common small IDs
+ *    take one or two bytes; subclasses only encode and decode the payload.</p>
+ * <p>Everything is read from and written to the ByteBuffer directly, without intermediate
+ *    streams or byte arrays. The static helper methods may be used by subclasses to
+ *    encode their payload in the same manner.</p>
+ *
+ * @param <T> the message type
+ */
+public abstract class VarIntMessageCodec<T extends CarriesInvocationId>
+        implements
+            MessageCodec<T>
+{
+    /**
+     * Constructor for subclasses only.
+     */
+    protected VarIntMessageCodec()
+    {
+        // nothing
+    }
+
+    /**
+     * Encode a message into a ByteBuffer, starting at the buffer's current position.
+     *
+     * @param message the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the message could not be encoded
+     */
+    public void encode(
+            T          message,
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        putVarLong( buf, message.getRequestId() );
+        putVarLong( buf, message.getResponseId() );
+
+        encodePayload( message, buf );
+    }
+
+    /**
+     * Decode a message from a ByteBuffer.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the decoded message
+     * @throws IOException thrown if the message could not be decoded
+     */
+    public T decode(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        try {
+            long requestId  = getVarLong( buf );
+            long responseId = getVarLong( buf );
+
+            T ret = decodePayload( buf );
+            ret.setRequestId( requestId );
+            ret.setResponseId( responseId );
+
+            return ret;
+
+        } catch( BufferUnderflowException ex ) {
+            EOFException toThrow = new EOFException( "Message truncated" );
+            toThrow.initCause( ex );
+            throw toThrow;
+        }
+    }
+
+    /**
+     * Encode the payload of a message, i.e. everything other than the invocation IDs.
+     *
+     * @param message the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the payload could not be encoded
+     */
+    protected abstract void encodePayload(
+            T          message,
+            ByteBuffer buf )
+        throws
+            IOException;
+
+    /**
+     * Decode the payload of a message and instantiate the message. The invocation IDs
+     * are set by the caller.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the decoded message
+     * @throws IOException thrown if the payload could not be decoded
+     */
+    protected abstract T decodePayload(
+            ByteBuffer buf )
+        throws
+            IOException;
+
+    /**
+     * Write a non-negative long as a variable-length integer, 7 bits per byte.
+     * Negative values take the maximum of 10 bytes.
+     *
+     * @param buf the ByteBuffer to write into
+     * @param value the value
+     */
+    public static void putUnsignedVarLong(
+            ByteBuffer buf,
+            long       value )
+    {
+        while( ( value & ~0x7FL ) != 0 ) {
+            buf.put( (byte) ( ( value & 0x7F ) | 0x80 ));
+            value >>>= 7;
+        }
+        buf.put( (byte) value );
+    }
+
+    /**
+     * Determine the number of bytes putUnsignedVarLong writes for a value.
+     *
+     * @param value the value
+     * @return the number of bytes
+     */
+    public static int unsignedVarLongSize(
+            long value )
+    {
+        int ret = 1;
+        while( ( value & ~0x7FL ) != 0 ) {
+            ++ret;
+            value >>>= 7;
+        }
+        return ret;
+    }
+
+    /**
+     * Read a variable-length integer written by putUnsignedVarLong.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the value
+     * @throws IOException thrown if the encoding is invalid
+     */
+    public static long getUnsignedVarLong(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        long ret   = 0L;
+        int  shift = 0;
+        while( shift < 64 ) {
+            byte b = buf.get();
+            ret |= (long) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) {
+                return ret;
+            }
+            shift += 7;
+        }
+        throw new IOException( "Malformed variable-length integer" );
+    }
+
+    /**
+     * Write a long as a variable-length integer, using zig-zag encoding so small
+     * negative values are as compact as small positive ones.
+     *
+     * @param buf the ByteBuffer to write into
+     * @param value the value
+     */
+    public static void putVarLong(
+            ByteBuffer buf,
+            long       value )
+    {
+        putUnsignedVarLong( buf, ( value << 1 ) ^ ( value >> 63 ));
+    }
+
+    /**
+     * Read a variable-length integer written by putVarLong.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the value
+     * @throws IOException thrown if the encoding is invalid
+     */
+    public static long getVarLong(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        long raw = getUnsignedVarLong( buf );
+        return ( raw >>> 1 ) ^ -( raw & 1 );
+    }
+
+    /**
+     * Write a String as its UTF-8 length followed by its UTF-8 bytes. The characters are
+     * encoded directly into the ByteBuffer.
+     *
+     * @param buf the ByteBuffer to write into
+     * @param value the String, may be null
+     */
+    public static void putString(
+            ByteBuffer buf,
+            String     value )
+    {
+        if( value == null ) {
+            putUnsignedVarLong( buf, 0L );
+            return;
+        }
+        int length = value.length();
+        int utf8   = 0;
+        for( int i=0 ; i<length ; ++i ) {
+            char c = value.charAt( i );
+            if( c < 0x80 ) {
+                utf8 += 1;
+            } else if( c < 0x800 ) {
+                utf8 += 2;
+            } else if( Character.isHighSurrogate( c ) && i+1 < length && Character.isLowSurrogate( value.charAt( i+1 ))) {
+                utf8 += 4;
+                ++i;
+            } else {
+                utf8 += 3;
+            }
+        }
+        putUnsignedVarLong( buf, utf8 + 1L ); // 0 indicates null
+        if( buf.remaining() < utf8 ) {
+            throw new BufferOverflowException();
+        }
+        for( int i=0 ; i<length ; ++i ) {
+            char c = value.charAt( i );
+            if( c < 0x80 ) {
+                buf.put( (byte) c );
+            } else if( c < 0x800 ) {
+                buf.put( (byte) ( 0xC0 | ( c >> 6 )));
+                buf.put( (byte) ( 0x80 | ( c & 0x3F )));
+            } else if( Character.isHighSurrogate( c ) && i+1 < length && Character.isLowSurrogate( value.charAt( i+1 ))) {
+                int cp = Character.toCodePoint( c, value.charAt( ++i ));
+                buf.put( (byte) ( 0xF0 | ( cp >> 18 )));
+                buf.put( (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3F )));
+                buf.put( (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3F )));
+                buf.put( (byte) ( 0x80 | ( cp & 0x3F )));
+            } else {
+                if( Character.isSurrogate( c )) {
+                    c = '?'; // unpaired surrogate cannot be represented in UTF-8
+                }
+                buf.put( (byte) ( 0xE0 | ( c >> 12 )));
+                buf.put( (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F )));
+                buf.put( (byte) ( 0x80 | ( c & 0x3F )));
+            }
+        }
+    }
+
+    /**
+     * Read a String written by putString.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the String, may be null
+     * @throws IOException thrown if the encoding is invalid
+     */
+    public static String getString(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        ByteBuffer bytes = sliceBytes( buf );
+        if( bytes == null ) {
+            return null;
+        }
+        if( bytes.hasArray() ) {
+            return new String( bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8 );
+        } else {
+            return StandardCharsets.UTF_8.decode( bytes ).toString();
+        }
+    }
+
+    /**
+     * Write a sequence of bytes, prefixed with its length.
+     *
+     * @param buf the ByteBuffer to write into
+     * @param value the bytes between the position and the limit of this ByteBuffer, may be null
+     */
+    public static void putBytes(
+            ByteBuffer buf,
+            ByteBuffer value )
+    {
+        if( value == null ) {
+            putUnsignedVarLong( buf, 0L );
+        } else {
+            putUnsignedVarLong( buf, value.remaining() + 1L ); // 0 indicates null
+            buf.put( value.duplicate() );
+        }
+    }
+
+    /**
+     * Read a sequence of bytes written by putBytes. The bytes are copied, so they may be kept
+     * in the decoded message after the ByteBuffer being read from has been reused.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the bytes, or null
+     * @throws IOException thrown if the encoding is invalid
+     */
+    public static byte [] getBytes(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        ByteBuffer bytes = sliceBytes( buf );
+        if( bytes == null ) {
+            return null;
+        }
+        byte [] ret = new byte[ bytes.remaining() ];
+        bytes.get( ret );
+        return ret;
+    }
+
+    /**
+     * Read a sequence of bytes written by putBytes without copying. The returned ByteBuffer
+     * shares its content with the ByteBuffer that is being read from, so it must not be kept
+     * beyond the decoding of the current message.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the bytes between the position and the limit of the returned ByteBuffer, or null
+     * @throws IOException thrown if the encoding is invalid
+     */
+    protected static ByteBuffer sliceBytes(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        long length = getUnsignedVarLong( buf );
+        if( length == 0L ) {
+            return null;
+        }
+        --length;
+        if( length > buf.remaining() ) {
+            throw new EOFException( "Declared length " + length + " exceeds remaining " + buf.remaining() );
+        }
+        ByteBuffer ret = buf.slice();
+        ret.limit( (int) length );
+        buf.position( buf.position() + (int) length );
+
+        return ret;
+    }
+}
@@ -14,10 +14,15 @@
 
 package org.infogrid.comm;
 
-import java.util.HashMap;
-import java.util.List;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import org.infogrid.util.ConcurrentLongHashMap;
 import org.infogrid.util.logging.Log;
 import org.infogrid.util.RemoteQueryTimeoutException;
 import org.infogrid.util.ResourceHelper;
@@ -25,9 +30,11 @@ import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
 
 /**
- * A communication endpoint that suspends the thread sending a message until a
- * response has arrived. This is useful to implement RPC-style communications
- * on top of the ping-pong framework.
+ * A communication endpoint that matches responses to the messages that requested them.
+ * This is useful to implement RPC-style communications on top of the ping-pong framework.
+ * {@link #callAsync callAsync} returns a future without blocking the calling thread;
+ * {@link #call call} suspends the calling thread until the response has arrived; it parks
+ * on the future rather than waiting on a monitor, so it does not pin a virtual thread.
  * 
  * @param <T> the message type
  */
@@ -87,7 +94,7 @@ public class WaitForResponseEndpoint<T extends CarriesInvocationId>
      * Invoke the remote procedure call.
      *
      * @param message the message that represents the argument to the call
-     * @param timeout the timeout, in milliseconds, until the call times out
+     * @param timeout the timeout, in milliseconds, until the call times out; 0 or less means wait indefinitely
      * @return the return value
      * @throws RemoteQueryTimeoutException thrown if the invocation timed out
      * @throws InvocationTargetException thrown if the invocation produced an Exception
@@ -99,57 +106,155 @@ public class WaitForResponseEndpoint<T extends CarriesInvocationId>
             RemoteQueryTimeoutException,
             InvocationTargetException
     {
-        long   invocationId = createInvocationId();
-        Object syncObject   = new Object();
-        
-        message.setRequestId( invocationId );
-
-        if( log.isInfoEnabled() ) { // better here because here we have the invocation id set
-            log.info( this + ".invoke( " + message + ", " + timeout + " )" );
-        }
+        PendingCall<T> pending      = invoke( message, timeout ); // exceptions thrown while sending propagate as they always have
+        long           invocationId = pending.getInvocationId();
 
-        synchronized( theOngoingInvocations ) {
-            theOngoingInvocations.put( invocationId, syncObject );        
-        }
-        
         try {
-            synchronized( syncObject ) {
-                theMessageEndpoint.sendMessageAsap( message );
-                syncObject.wait( timeout );
+            T ret;
+            if( timeout > 0L ) {
+                // the TimeoutWheel normally completes the future; waiting a bit longer only guards against it not running
+                ret = pending.get( timeout + TIMEOUT_SLACK, TimeUnit.MILLISECONDS );
+            } else {
+                ret = pending.get();
             }
-            
-        } catch( InterruptedException ex ) {
-            // ignore
-        }
-
-        synchronized( theOngoingInvocations ) {
-            T         receivedMessage  = theResults.remove( invocationId );
-            Throwable ex               = theExceptions.remove( invocationId );
 
             if( log.isInfoEnabled() ) {
-                StringBuilder buf = new StringBuilder();
-                buf.append( this ).append( ".invoke( ... invocationId=" ).append( invocationId ).append( " ) has woken up with " );
-                if( receivedMessage != null ) {
-                    buf.append( "result " ).append( receivedMessage );
-                } else if( ex != null ) {
-                    buf.append( "exception " ).append( ex );
-                } else {
-                    buf.append( "null result and null exception" );
-                }
-                log.info( buf.toString() );
+                log.info( this + ".invoke( ... invocationId=" + invocationId + " ) has woken up with result " + ret );
             }
+            return ret;
 
-            if( ex != null ) {
-                throw new InvocationTargetException( ex );
+        } catch( ExecutionException ex ) {
+            Throwable cause = ex.getCause();
+
+            if( log.isInfoEnabled() ) {
+                log.info( this + ".invoke( ... invocationId=" + invocationId + " ) has woken up with exception " + cause );
             }
-            if( theOngoingInvocations.remove( invocationId ) != null ) {
-                throw new RemoteQueryTimeoutException.QueryIsOngoing( this, receivedMessage != null, receivedMessage );
+            if( cause instanceof RemoteQueryTimeoutException ) {
+                throw (RemoteQueryTimeoutException) cause;
             }
+            throw new InvocationTargetException( cause );
 
-            return receivedMessage;
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            abandon( invocationId );
+            throw new RemoteQueryTimeoutException.QueryIsOngoing( this, false, null );
+
+        } catch( TimeoutException ex ) {
+            abandon( invocationId );
+            throw new RemoteQueryTimeoutException.QueryIsOngoing( this, false, null );
         }
     }
-    
+
+    /**
+     * Invoke the remote procedure call without waiting for the response.
+     *
+     * @param message the message that represents the argument to the call
+     * @return the future return value
+     */
+    public CompletableFuture<T> callAsync(
+            T message )
+    {
+        return callAsync( message, defaultTimeout );
+    }
+
+    /**
+     * Invoke the remote procedure call without waiting for the response. The returned
+     * future completes with the response, or exceptionally with a RemoteQueryTimeoutException
+     * if no response arrived within the timeout, or with the RuntimeException thrown if the
+     * message could not be sent. No thread is blocked while the call is ongoing.
+     * Cancelling or completing the returned future abandons the call.
+     *
+     * @param message the message that represents the argument to the call
+     * @param timeout the timeout, in milliseconds, until the call times out; 0 or less means never
+     * @return the future return value
+     */
+    public CompletableFuture<T> callAsync(
+            T    message,
+            long timeout )
+    {
+        try {
+            return invoke( message, timeout );
+
+        } catch( RuntimeException ex ) {
+            CompletableFuture<T> ret = new CompletableFuture<T>();
+            ret.completeExceptionally( ex );
+            return ret;
+        }
+    }
+
+    /**
+     * Register a call, schedule its timeout and send its message.
+     *
+     * @param message the message that represents the argument to the call
+     * @param timeout the timeout, in milliseconds, until the call times out; 0 or less means never
+     * @return the registered call
+     * @throws RuntimeException thrown if the message could not be sent; the call has been abandoned
+     */
+    protected PendingCall<T> invoke(
+            T    message,
+            long timeout )
+    {
+        long invocationId = createInvocationId();
+
+        message.setRequestId( invocationId );
+
+        if( log.isInfoEnabled() ) { // better here because here we have the invocation id set
+            log.info( this + ".invoke( " + message + ", " + timeout + " )" );
+        }
+
+        final PendingCall<T> ret = new PendingCall<T>( invocationId );
+
+        thePendingCalls.put( invocationId, ret );
+
+        ret.whenComplete(
+                new BiConsumer<T,Throwable>() {
+                    public void accept(
+                            T         result,
+                            Throwable failure )
+                    {
+                        // also cleans up if the caller cancelled or completed the future itself
+                        thePendingCalls.remove( ret.getInvocationId(), ret );
+                        ret.cancelTimeout();
+                    }
+                });
+
+        if( timeout > 0L ) {
+            ret.theTimeout = theTimeoutWheel.schedule(
+                    new Runnable() {
+                        public void run()
+                        {
+                            if( thePendingCalls.remove( ret.getInvocationId(), ret )) {
+                                ret.completeExceptionally( new RemoteQueryTimeoutException.QueryIsOngoing( WaitForResponseEndpoint.this, false, null ));
+                            }
+                        }
+                    },
+                    timeout );
+        }
+
+        try {
+            theMessageEndpoint.sendMessageAsap( message );
+
+        } catch( RuntimeException ex ) {
+            abandon( invocationId );
+            throw ex;
+        }
+        return ret;
+    }
+
+    /**
+     * Stop waiting for the response to a call.
+     *
+     * @param invocationId the invocation id of the call
+     */
+    protected void abandon(
+            long invocationId )
+    {
+        PendingCall<T> pending = thePendingCalls.remove( invocationId );
+        if( pending != null ) {
+            pending.cancelTimeout();
+        }
+    }
+
     /**
      * Determine whether a call is waiting for a response with the provided responseId.
      * 
@@ -159,15 +264,7 @@ public class WaitForResponseEndpoint<T extends CarriesInvocationId>
     public boolean isCallWaitingFor(
             long responseId )
     {
-        Object syncObject;
-        synchronized( theOngoingInvocations ) {
-            syncObject = theOngoingInvocations.get( responseId );
-        }
-        if( syncObject != null ) {
-            return true;
-        } else {
-            return false;
-        }
+        return thePendingCalls.containsKey( responseId );
     }
 
     /**
@@ -188,18 +285,10 @@ public class WaitForResponseEndpoint<T extends CarriesInvocationId>
         for( T current : msgs ) {
             long responseId = current.getResponseId();
         
-            Object syncObject;
-            synchronized( theOngoingInvocations ) {
-                syncObject = theOngoingInvocations.remove( responseId );
-                if( syncObject != null ) {
-                    theResults.put( responseId, current );
-                }
-            }
-
-            if( syncObject != null ) {
-                synchronized( syncObject ) {
-                    syncObject.notifyAll();
-                }
+            PendingCall<T> pending = thePendingCalls.remove( responseId );
+            if( pending != null ) {
+                pending.cancelTimeout();
+                pending.complete( current );
             } else {
                 otherMessages.add(  current );
             }
@@ -222,16 +311,16 @@ public class WaitForResponseEndpoint<T extends CarriesInvocationId>
             List<T>            msg,
             Throwable          t )
     {
-        // notify all waiting threads
-        
-        synchronized( theOngoingInvocations ) {
-            for( Long responseId : theOngoingInvocations.keySet() ) {
-                Object syncObject = theOngoingInvocations.remove( responseId );
-                if( syncObject != null ) {
-                    theExceptions.put( responseId, t );
-                    synchronized( syncObject ) {
-                        syncObject.notifyAll();
-                    }
+        // complete all ongoing calls; without a Throwable, they return null as they always have
+
+        for( long responseId : thePendingCalls.keys() ) {
+            PendingCall<T> pending = thePendingCalls.remove( responseId );
+            if( pending != null ) {
+                pending.cancelTimeout();
+                if( t != null ) {
+                    pending.completeExceptionally( t );
+                } else {
+                    pending.complete( null );
                 }
             }
         }
@@ -247,34 +336,85 @@ public class WaitForResponseEndpoint<T extends CarriesInvocationId>
     {
         d.dump( this,
                 new String[] {
-                    "theOngoingInvocations",
-                    "theResults",
+                    "thePendingCalls",
                     "theMessageEndpoint"
                 },
                 new Object[] {
-                    theOngoingInvocations,
-                    theResults,
+                    thePendingCalls,
                     theMessageEndpoint
                 });
     }
 
     /**
-     * The ongoing invocations.
-     */
-    protected final HashMap<Long,Object> theOngoingInvocations = new HashMap<Long,Object>();
-    
-    /**
-     * The assembled result(s).
+     * The ongoing invocations, keyed by invocation id.
      */
-    protected HashMap<Long,T> theResults = new HashMap<Long,T>();
-    
+    protected final ConcurrentLongHashMap<PendingCall<T>> thePendingCalls = ConcurrentLongHashMap.create();
+
     /**
-     * The Exceptions that resulted.
+     * The TimeoutWheel that times out the ongoing invocations.
      */
-    protected HashMap<Long,Throwable> theExceptions = new HashMap<Long,Throwable>();
+    protected TimeoutWheel theTimeoutWheel = TimeoutWheel.getDefault();
 
     /**
      * The default timeout.
      */
     protected static long defaultTimeout = ResourceHelper.getInstance( WaitForResponseEndpoint.class ).getResourceLongOrDefault( "DefaultTimeout", 5000L  );
+
+    /**
+     * The time, in milliseconds, that a synchronous call waits beyond its timeout before giving up
+     * on the TimeoutWheel.
+     */
+    protected static final long TIMEOUT_SLACK = 1000L;
+
+    /**
+     * An ongoing invocation.
+     *
+     * @param <T> the message type
+     */
+    public static class PendingCall<T>
+            extends
+                CompletableFuture<T>
+    {
+        /**
+         * Constructor.
+         *
+         * @param invocationId the invocation id of the call
+         */
+        protected PendingCall(
+                long invocationId )
+        {
+            theInvocationId = invocationId;
+        }
+
+        /**
+         * Obtain the invocation id of the call.
+         *
+         * @return the invocation id
+         */
+        public long getInvocationId()
+        {
+            return theInvocationId;
+        }
+
+        /**
+         * Cancel the timeout of this call, if any.
+         */
+        protected void cancelTimeout()
+        {
+            TimeoutWheel.Timeout timeout = theTimeout;
+            if( timeout != null ) {
+                timeout.cancel();
+            }
+        }
+
+        /**
+         * The invocation id of the call.
+         */
+        protected final long theInvocationId;
+
+        /**
+         * The timeout of the call.
+         */
+        protected volatile TimeoutWheel.Timeout theTimeout;
+    }
 }
@@ -0,0 +1,727 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.crypto.codec;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.infogrid.comm.MessageCodec;
+import org.infogrid.crypto.diffiehellman.DiffieHellmanEndpoint;
+import org.infogrid.crypto.util.SecretKeyUtil;
+import org.infogrid.util.ByteBufferPool;
+import org.infogrid.util.DelegatingIOException;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * <p>A MessageCodec that encrypts and authenticates the messages encoded by another
+ * MessageCodec with AES-GCM. It can be given to any MessageEndpoint that sends its messages
+ * over a byte-oriented transport, such as a TcpPingPongMessageEndpoint, instead of the
+ * plain MessageCodec.</p>
+ * <p>Each encoded message is a frame with this layout:</p>
+ * <pre>
+ *   session (8 bytes) | epoch (4 bytes) | counter (8 bytes) | ciphertext | tag (16 bytes)
+ * </pre>
+ * <p>The header is authenticated, but not encrypted. Each instance picks a random session
+ * identifier; together with the epoch, it determines the frame key, which is derived from a
+ * shared master key with HMAC-SHA256. So each sender uses its own keys, and the nonce,
+ * which is the epoch and the counter, never repeats for the same key. After a configurable
+ * number of bytes, the sender moves on to the next epoch, and thus to a new key; the
+ * receiver follows automatically. The receiver rejects frames that fail authentication,
+ * that it has seen already, or that are from an epoch older than the previous one. Only
+ * authenticated frames change what the receiver remembers, so forged frames can neither
+ * advance a session's epoch nor push a session out of the receiver's bounded set of
+ * sessions, which would reset its replay window.</p>
+ * <p>Cipher instances are reused, and messages are encoded into and decrypted from pooled,
+ * direct ByteBuffers. This class is thread-safe.</p>
+ *
+ * @param <T> the message type
+ */
+public class AesGcmMessageCodec<T>
+        implements
+            MessageCodec<T>,
+            CanBeDumped
+{
+    /**
+     * Factory method, using the default settings.
+     *
+     * @param delegate the MessageCodec that encodes the messages before encryption
+     * @param masterKey the master key shared with the peer
+     * @return the created AesGcmMessageCodec
+     * @param <T> the message type
+     */
+    public static <T> AesGcmMessageCodec<T> create(
+            MessageCodec<T> delegate,
+            SecretKey       masterKey )
+    {
+        return create( delegate, masterKey, DEFAULT_ROTATE_AFTER_BYTES, DEFAULT_KEY_SIZE );
+    }
+
+    /**
+     * Factory method, using the secret agreed on with a Diffie-Hellman exchange as the master key.
+     *
+     * @param delegate the MessageCodec that encodes the messages before encryption
+     * @param local our DiffieHellmanEndpoint
+     * @param partnerPublicKey the public key of our peer
+     * @return the created AesGcmMessageCodec
+     * @param <T> the message type
+     */
+    public static <T> AesGcmMessageCodec<T> create(
+            MessageCodec<T>       delegate,
+            DiffieHellmanEndpoint local,
+            BigInteger            partnerPublicKey )
+    {
+        SecretKey masterKey = SecretKeyUtil.sharedSecretToSecretKey( local.computeSharedSecret( partnerPublicKey ), MAC_ALGORITHM );
+
+        return create( delegate, masterKey );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param delegate the MessageCodec that encodes the messages before encryption
+     * @param masterKey the master key shared with the peer
+     * @param rotateAfterBytes the number of plaintext bytes after which the sender moves on to a new key
+     * @param keySize the size of the AES keys, in bytes: 16, 24 or 32
+     * @return the created AesGcmMessageCodec
+     * @param <T> the message type
+     */
+    public static <T> AesGcmMessageCodec<T> create(
+            MessageCodec<T> delegate,
+            SecretKey       masterKey,
+            long            rotateAfterBytes,
+            int             keySize )
+    {
+        if( keySize != 16 && keySize != 24 && keySize != 32 ) {
+            throw new IllegalArgumentException( "Invalid AES key size: " + keySize );
+        }
+        if( rotateAfterBytes <= 0L ) {
+            throw new IllegalArgumentException( "Must rotate after a positive number of bytes: " + rotateAfterBytes );
+        }
+        SecretKeySpec macKey = new SecretKeySpec( masterKey.getEncoded(), MAC_ALGORITHM );
+
+        return new AesGcmMessageCodec<T>( delegate, macKey, rotateAfterBytes, keySize, theRandomGenerator.nextLong() );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param delegate the MessageCodec that encodes the messages before encryption
+     * @param masterKey the master key shared with the peer, as HMAC-SHA256 key
+     * @param rotateAfterBytes the number of plaintext bytes after which the sender moves on to a new key
+     * @param keySize the size of the AES keys, in bytes
+     * @param session the session identifier of this sender
+     */
+    protected AesGcmMessageCodec(
+            MessageCodec<T> delegate,
+            SecretKeySpec   masterKey,
+            long            rotateAfterBytes,
+            int             keySize,
+            long            session )
+    {
+        theDelegate         = delegate;
+        theMasterKey        = masterKey;
+        theRotateAfterBytes = rotateAfterBytes;
+        theKeySize          = keySize;
+        theSession          = session;
+        theSendKey          = deriveKey( session, 0 );
+    }
+
+    /**
+     * Encode and encrypt a message into a ByteBuffer, starting at the buffer's current position.
+     *
+     * @param message the message
+     * @param buf the ByteBuffer to write into
+     * @throws IOException thrown if the message could not be encoded
+     */
+    public void encode(
+            T          message,
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        ByteBuffer plain = encodePlain( message );
+        try {
+            int length = plain.remaining();
+            if( buf.remaining() < HEADER_SIZE + length + TAG_SIZE ) {
+                throw new BufferOverflowException(); // the caller will try again with a larger buffer
+            }
+
+            SecretKeySpec key;
+            int           epoch;
+            long          counter;
+            synchronized( this ) {
+                if( theSendBytes >= theRotateAfterBytes || theSendCounter == MAX_FRAMES_PER_KEY ) {
+                    ++theSendEpoch;
+                    theSendKey     = deriveKey( theSession, theSendEpoch );
+                    theSendCounter = 0L;
+                    theSendBytes   = 0L;
+                }
+                key     = theSendKey;
+                epoch   = theSendEpoch;
+                counter = theSendCounter++;
+
+                theSendBytes += length;
+            }
+
+            ByteBuffer header = buf.duplicate();
+            buf.putLong( theSession );
+            buf.putInt( epoch );
+            buf.putLong( counter );
+            header.limit( buf.position() );
+
+            Cipher cipher = obtainCipher();
+            try {
+                cipher.init( Cipher.ENCRYPT_MODE, key, createParameterSpec( epoch, counter ));
+                cipher.updateAAD( header );
+                cipher.doFinal( plain, buf );
+
+            } catch( GeneralSecurityException ex ) {
+                throw new DelegatingIOException( ex );
+
+            } finally {
+                releaseCipher( cipher );
+            }
+        } finally {
+            theBufferPool.release( plain );
+        }
+    }
+
+    /**
+     * Determine the number of bytes that encode would write for a message. Unlike encode,
+     * this does not use up a counter value or count towards the rotation of the key.
+     *
+     * @param message the message
+     * @return the number of bytes
+     * @throws IOException thrown if the message could not be encoded
+     */
+    @Override
+    public int encodedSize(
+            T message )
+        throws
+            IOException
+    {
+        int length = theDelegate.encodedSize( message );
+        if( length < 0 ) {
+            ByteBuffer plain = encodePlain( message );
+            length = plain.remaining();
+            theBufferPool.release( plain );
+        }
+        return HEADER_SIZE + length + TAG_SIZE;
+    }
+
+    /**
+     * Decrypt, authenticate and decode a message from a ByteBuffer. The frame starts at the
+     * buffer's current position and ends at its limit.
+     *
+     * @param buf the ByteBuffer to read from
+     * @return the decoded message
+     * @throws IOException thrown if the message could not be decoded, or failed authentication
+     */
+    public T decode(
+            ByteBuffer buf )
+        throws
+            IOException
+    {
+        if( buf.remaining() < HEADER_SIZE + TAG_SIZE ) {
+            throw new IOException( "Frame too short: " + buf.remaining() );
+        }
+        ByteBuffer header  = buf.duplicate();
+        long       session = buf.getLong();
+        int        epoch   = buf.getInt();
+        long       counter = buf.getLong();
+        header.limit( buf.position() );
+
+        // the header is not trusted until the frame has been authenticated, so nothing is
+        // changed based on it until then
+        ReceiveState state = findReceiveState( session, epoch );
+        if( state == null ) {
+            throw new IOException( "Frame from expired epoch " + epoch + " of session " + session );
+        }
+
+        ByteBuffer plain  = theBufferPool.obtain( buf.remaining() - TAG_SIZE );
+        Cipher     cipher = obtainCipher();
+        try {
+            cipher.init( Cipher.DECRYPT_MODE, state.theKey, createParameterSpec( epoch, counter ));
+            cipher.updateAAD( header );
+            cipher.doFinal( buf, plain );
+
+            state = installReceiveState( session, state );
+            if( state == null ) {
+                throw new IOException( "Frame from expired epoch " + epoch + " of session " + session );
+            }
+            if( !state.accept( counter )) {
+                throw new IOException( "Replayed frame " + counter + " in epoch " + epoch + " of session " + session );
+            }
+            plain.flip();
+            return theDelegate.decode( plain );
+
+        } catch( AEADBadTagException ex ) {
+            throw new DelegatingIOException( "Frame failed authentication", ex );
+
+        } catch( GeneralSecurityException ex ) {
+            throw new DelegatingIOException( ex );
+
+        } finally {
+            releaseCipher( cipher );
+            theBufferPool.release( plain );
+        }
+    }
+
+    /**
+     * Encode a message with the delegate into a pooled ByteBuffer, growing the buffer if needed.
+     *
+     * @param message the message
+     * @return the ByteBuffer, flipped, which the caller must release to the pool
+     * @throws IOException thrown if the message could not be encoded
+     */
+    protected ByteBuffer encodePlain(
+            T message )
+        throws
+            IOException
+    {
+        int capacity = theBufferPool.getBufferSize();
+        while( true ) {
+            ByteBuffer ret = theBufferPool.obtain( capacity );
+            try {
+                theDelegate.encode( message, ret );
+                ret.flip();
+                return ret;
+
+            } catch( BufferOverflowException ex ) {
+                theBufferPool.release( ret );
+                capacity = Math.max( capacity, ret.capacity() ) * 2;
+
+            } catch( IOException ex ) {
+                theBufferPool.release( ret );
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Find the state for receiving frames of a session's epoch. If there is none yet, because
+     * the session or the epoch is new, create a candidate that is not remembered until
+     * {@link #installReceiveState installReceiveState} is invoked with it after a frame has
+     * been authenticated with its key. Only the newest epoch of a session and the one before
+     * are accepted.
+     *
+     * @param session the session identifier of the sender
+     * @param epoch the epoch
+     * @return the ReceiveState, or null if the epoch has expired
+     */
+    protected ReceiveState findReceiveState(
+            long session,
+            int  epoch )
+    {
+        synchronized( theSessions ) {
+            ReceiveState [] states = theSessions.get( session ); // newest, previous
+            if( states != null ) {
+                if( epoch == states[0].theEpoch ) {
+                    return states[0];
+                }
+                if( states[1] != null && epoch == states[1].theEpoch ) {
+                    return states[1];
+                }
+                if( epoch < states[0].theEpoch ) {
+                    return null;
+                }
+            }
+        }
+        return new ReceiveState( epoch, deriveKey( session, epoch ));
+    }
+
+    /**
+     * Remember the state for receiving frames of a session's epoch, once a frame has been
+     * authenticated with its key. If another Thread has installed a state for the same
+     * epoch in the meantime, that one is returned instead. Installing a new epoch keeps
+     * the epoch just before it, if any, and forgets all older ones.
+     *
+     * @param session the session identifier of the sender
+     * @param candidate the ReceiveState found by findReceiveState
+     * @return the ReceiveState to use, or null if the epoch has expired in the meantime
+     */
+    protected ReceiveState installReceiveState(
+            long         session,
+            ReceiveState candidate )
+    {
+        synchronized( theSessions ) {
+            ReceiveState [] states = theSessions.get( session ); // newest, previous
+            if( states == null ) {
+                states = new ReceiveState[ 2 ];
+                theSessions.put( session, states );
+            }
+            ReceiveState newest = states[0];
+            if( newest == null || candidate.theEpoch > newest.theEpoch ) {
+                states[1] = ( newest != null && candidate.theEpoch == newest.theEpoch + 1 ) ? newest : null;
+                states[0] = candidate;
+                return candidate;
+            }
+            if( candidate.theEpoch == newest.theEpoch ) {
+                return newest;
+            }
+            if( states[1] != null && candidate.theEpoch == states[1].theEpoch ) {
+                return states[1];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Derive the AES key for a session's epoch from the master key.
+     *
+     * @param session the session identifier of the sender
+     * @param epoch the epoch
+     * @return the key
+     */
+    protected SecretKeySpec deriveKey(
+            long session,
+            int  epoch )
+    {
+        try {
+            Mac mac = Mac.getInstance( MAC_ALGORITHM );
+            mac.init( theMasterKey );
+
+            ByteBuffer info = ByteBuffer.allocate( LABEL.length + 12 );
+            info.put( LABEL );
+            info.putLong( session );
+            info.putInt( epoch );
+            info.flip();
+            mac.update( info );
+
+            return new SecretKeySpec( mac.doFinal(), 0, theKeySize, "AES" );
+
+        } catch( GeneralSecurityException ex ) {
+            throw new RuntimeException( ex ); // every JRE has HmacSHA256
+        }
+    }
+
+    /**
+     * Create the GCM parameters for a frame.
+     *
+     * @param epoch the epoch
+     * @param counter the counter
+     * @return the parameters
+     */
+    protected static GCMParameterSpec createParameterSpec(
+            int  epoch,
+            long counter )
+    {
+        byte [] nonce = new byte[ NONCE_SIZE ];
+        ByteBuffer.wrap( nonce ).putInt( epoch ).putLong( counter );
+
+        return new GCMParameterSpec( TAG_SIZE * 8, nonce );
+    }
+
+    /**
+     * Obtain a Cipher, reusing one if possible.
+     *
+     * @return the Cipher
+     * @throws IOException thrown if AES-GCM is not available
+     */
+    protected Cipher obtainCipher()
+        throws
+            IOException
+    {
+        Cipher ret = theCiphers.poll();
+        if( ret == null ) {
+            try {
+                ret = Cipher.getInstance( CIPHER_TRANSFORMATION );
+            } catch( GeneralSecurityException ex ) {
+                throw new DelegatingIOException( ex );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Return a Cipher after use, so it can be reused.
+     *
+     * @param cipher the Cipher
+     */
+    protected void releaseCipher(
+            Cipher cipher )
+    {
+        theCiphers.offer( cipher );
+    }
+
+    /**
+     * Obtain the session identifier of this sender.
+     *
+     * @return the session identifier
+     */
+    public long getSession()
+    {
+        return theSession;
+    }
+
+    /**
+     * Obtain the current epoch of this sender.
+     *
+     * @return the epoch
+     */
+    public synchronized int getSendEpoch()
+    {
+        return theSendEpoch;
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                        "theDelegate",
+                        "theSession",
+                        "theSendEpoch",
+                        "theRotateAfterBytes"
+                },
+                new Object[] {
+                        theDelegate,
+                        theSession,
+                        getSendEpoch(),
+                        theRotateAfterBytes
+                } );
+    }
+
+    /**
+     * The MessageCodec that encodes the messages before encryption.
+     */
+    protected final MessageCodec<T> theDelegate;
+
+    /**
+     * The master key, from which the frame keys are derived.
+     */
+    protected final SecretKeySpec theMasterKey;
+
+    /**
+     * The number of plaintext bytes after which the sender moves on to a new key.
+     */
+    protected final long theRotateAfterBytes;
+
+    /**
+     * The size of the AES keys, in bytes.
+     */
+    protected final int theKeySize;
+
+    /**
+     * The session identifier of this sender.
+     */
+    protected final long theSession;
+
+    /**
+     * The current epoch of this sender.
+     */
+    protected int theSendEpoch;
+
+    /**
+     * The key of the current epoch of this sender.
+     */
+    protected SecretKeySpec theSendKey;
+
+    /**
+     * The counter of the next frame sent in the current epoch.
+     */
+    protected long theSendCounter;
+
+    /**
+     * The number of plaintext bytes sent in the current epoch.
+     */
+    protected long theSendBytes;
+
+    /**
+     * The states for receiving frames, newest epoch first, keyed by the session identifier
+     * of the sender. Only the most recently used sessions are kept, and only sessions from
+     * which an authenticated frame has been received are added.
+     */
+    protected final Map<Long,ReceiveState[]> theSessions = new LinkedHashMap<Long,ReceiveState[]>( 16, 0.75f, true ) {
+            private static final long serialVersionUID = 1L; // helps with serialization
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long,ReceiveState[]> eldest )
+            {
+                return size() > MAX_SESSIONS;
+            }
+    };
+
+    /**
+     * Ciphers not currently in use.
+     */
+    protected final ConcurrentLinkedQueue<Cipher> theCiphers = new ConcurrentLinkedQueue<Cipher>();
+
+    /**
+     * The direct ByteBuffers for plaintext.
+     */
+    protected final ByteBufferPool theBufferPool = ByteBufferPool.create( DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFERS, true );
+
+    /**
+     * The state of receiving frames from one epoch of a session: the key, and a sliding
+     * window of the frames seen so far, so replays are detected even if frames arrive
+     * somewhat out of order.
+     */
+    protected static class ReceiveState
+    {
+        /**
+         * Constructor.
+         *
+         * @param epoch the epoch
+         * @param key the key of the epoch
+         */
+        public ReceiveState(
+                int           epoch,
+                SecretKeySpec key )
+        {
+            theEpoch = epoch;
+            theKey   = key;
+        }
+
+        /**
+         * Determine whether a frame is new, and remember it if so.
+         *
+         * @param counter the counter of the frame
+         * @return true if the frame is new
+         */
+        public synchronized boolean accept(
+                long counter )
+        {
+            if( counter > theHighest ) {
+                long shift = counter - theHighest;
+                theSeen    = shift >= 64 ? 0L : theSeen << shift;
+                theSeen   |= 1L;
+                theHighest = counter;
+                return true;
+            }
+            long offset = theHighest - counter;
+            if( offset >= 64 ) {
+                return false; // too old to tell
+            }
+            long bit = 1L << offset;
+            if( ( theSeen & bit ) != 0 ) {
+                return false;
+            }
+            theSeen |= bit;
+            return true;
+        }
+
+        /**
+         * The epoch.
+         */
+        protected final int theEpoch;
+
+        /**
+         * The key of the epoch.
+         */
+        protected final SecretKeySpec theKey;
+
+        /**
+         * The highest counter seen so far.
+         */
+        protected long theHighest = -1L;
+
+        /**
+         * Bit i is set if the frame with counter theHighest-i has been seen.
+         */
+        protected long theSeen;
+    }
+
+    /**
+     * The JCE transformation.
+     */
+    public static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The JCE algorithm used to derive keys.
+     */
+    public static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The size of the frame header, in bytes.
+     */
+    public static final int HEADER_SIZE = 8 + 4 + 8;
+
+    /**
+     * The size of the GCM nonce, in bytes.
+     */
+    public static final int NONCE_SIZE = 12;
+
+    /**
+     * The size of the GCM authentication tag, in bytes.
+     */
+    public static final int TAG_SIZE = 16;
+
+    /**
+     * The maximum number of frames encrypted with the same key.
+     */
+    public static final long MAX_FRAMES_PER_KEY = 1L << 32;
+
+    /**
+     * Distinguishes the keys derived here from other uses of the master key.
+     */
+    private static final byte [] LABEL = { 'I', 'n', 'f', 'o', 'G', 'r', 'i', 'd', ' ', 'A', 'E', 'A', 'D' };
+
+    /**
+     * The maximum number of sessions whose ReceiveStates are kept.
+     */
+    protected static final int MAX_SESSIONS = 64;
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( AesGcmMessageCodec.class );
+
+    /**
+     * Default number of plaintext bytes after which the sender moves on to a new key.
+     */
+    public static final long DEFAULT_ROTATE_AFTER_BYTES = theResourceHelper.getResourceLongOrDefault( "RotateAfterBytes", 1L << 30 );
+
+    /**
+     * Default size of the AES keys, in bytes.
+     */
+    public static final int DEFAULT_KEY_SIZE = theResourceHelper.getResourceIntegerOrDefault( "KeySize", 16 );
+
+    /**
+     * Default capacity of the pooled plaintext buffers.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = theResourceHelper.getResourceIntegerOrDefault( "BufferSize", 8192 );
+
+    /**
+     * Default maximum number of pooled plaintext buffers.
+     */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = theResourceHelper.getResourceIntegerOrDefault( "MaxPooledBuffers", 16 );
+
+    /**
+     * Our Random number generator.
+     */
+    private static final SecureRandom theRandomGenerator = new SecureRandom();
+}
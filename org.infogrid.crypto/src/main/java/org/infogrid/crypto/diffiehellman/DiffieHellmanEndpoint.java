@@ -15,13 +15,13 @@
 package org.infogrid.crypto.diffiehellman;
 
 import java.math.BigInteger;
-import java.security.SecureRandom;
-import java.util.Random;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
 
 /**
- * Represents a Diffie-Hellman endpoint.
+ * Represents a Diffie-Hellman endpoint. Unless provided, its key pair is taken from the
+ * {@link DiffieHellmanKeyPairPool} for its (p, g) group, where it has usually been
+ * generated ahead of time.
  */
 public class DiffieHellmanEndpoint
         implements
@@ -93,6 +93,20 @@ public class DiffieHellmanEndpoint
         return new DiffieHellmanEndpoint( p, g, privateKey, publicKey );
     }
 
+    /**
+     * Factory method. Take keys from the provided pool.
+     *
+     * @param pool the pool of pre-generated key pairs for the group
+     * @return the created DiffieHellmanEndpoint
+     */
+    public static DiffieHellmanEndpoint create(
+            DiffieHellmanKeyPairPool pool )
+    {
+        DiffieHellmanEndpoint ret = new DiffieHellmanEndpoint( pool.getP(), pool.getG() );
+        ret.theKeyPairPool = pool;
+        return ret;
+    }
+
     /**
      * Constructor.
      *
@@ -183,21 +197,52 @@ public class DiffieHellmanEndpoint
     }
 
     /**
-     * Generate the key pair if needed.
+     * Generate the key pair if needed. The key pair is obtained without holding the
+     * monitor of this object.
      */
-    public synchronized final void generateKeyPairIfNeeded()
+    public final void generateKeyPairIfNeeded()
     {
-        if( thePrivateKey == null ) {
-            do {
-                thePrivateKey = new BigInteger( theP.bitCount(), theRandomGenerator );
-            } while( thePrivateKey.equals( ZERO ));
-            thePublicKey = null;
+        BigInteger privateKey;
+        synchronized( this ) {
+            if( thePrivateKey != null && thePublicKey != null ) {
+                return;
+            }
+            privateKey = thePrivateKey;
         }
-        if( thePublicKey == null ) {
-            thePublicKey  = theG.modPow( thePrivateKey, theP );
+
+        DiffieHellmanKeyPairPool pool = getKeyPairPool();
+        BigInteger               publicKey;
+        if( privateKey == null ) {
+            DiffieHellmanKeyPair pair = pool.obtainKeyPair();
+            privateKey = pair.getPrivateKey();
+            publicKey  = pair.getPublicKey();
+        } else {
+            publicKey = pool.computePublicKey( privateKey );
+        }
+
+        synchronized( this ) {
+            if( thePrivateKey == null || thePrivateKey == privateKey ) { // another thread may have been faster
+                thePrivateKey = privateKey;
+                thePublicKey  = publicKey;
+            }
         }
     }
 
+    /**
+     * Obtain the pool from which key pairs are taken.
+     *
+     * @return the DiffieHellmanKeyPairPool
+     */
+    public DiffieHellmanKeyPairPool getKeyPairPool()
+    {
+        DiffieHellmanKeyPairPool ret = theKeyPairPool;
+        if( ret == null ) {
+            ret = DiffieHellmanKeyPairPool.getInstance( theP, theG );
+            theKeyPairPool = ret;
+        }
+        return ret;
+    }
+
     /**
      * Dump this object.
      *
@@ -242,13 +287,8 @@ public class DiffieHellmanEndpoint
     protected BigInteger thePrivateKey;
 
     /**
-     * Zero as a BigInteger.
-     */
-    private static final BigInteger ZERO = BigInteger.valueOf( 0 );
-
-    /**
-     * Our Random number generator.
+     * The pool from which key pairs are taken, once determined.
      */
-    private static final Random theRandomGenerator = new SecureRandom();
+    protected volatile DiffieHellmanKeyPairPool theKeyPairPool;
 }
 
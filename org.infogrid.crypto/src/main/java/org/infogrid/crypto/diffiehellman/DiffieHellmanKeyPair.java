@@ -0,0 +1,105 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.crypto.diffiehellman;
+
+import java.math.BigInteger;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * A Diffie-Hellman private key and the matching public key.
+ */
+public class DiffieHellmanKeyPair
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @param privateKey the private key
+     * @param publicKey the public key
+     * @return the created DiffieHellmanKeyPair
+     */
+    public static DiffieHellmanKeyPair create(
+            BigInteger privateKey,
+            BigInteger publicKey )
+    {
+        return new DiffieHellmanKeyPair( privateKey, publicKey );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param privateKey the private key
+     * @param publicKey the public key
+     */
+    protected DiffieHellmanKeyPair(
+            BigInteger privateKey,
+            BigInteger publicKey )
+    {
+        thePrivateKey = privateKey;
+        thePublicKey  = publicKey;
+    }
+
+    /**
+     * Obtain the private key.
+     *
+     * @return the private key
+     */
+    public BigInteger getPrivateKey()
+    {
+        return thePrivateKey;
+    }
+
+    /**
+     * Obtain the public key.
+     *
+     * @return the public key
+     */
+    public BigInteger getPublicKey()
+    {
+        return thePublicKey;
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                        "thePublicKey",
+                        "thePrivateKey"
+                },
+                new Object[] {
+                        thePublicKey,
+                        thePrivateKey
+                } );
+    }
+
+    /**
+     * The private key.
+     */
+    protected final BigInteger thePrivateKey;
+
+    /**
+     * The public key.
+     */
+    protected final BigInteger thePublicKey;
+}
@@ -0,0 +1,371 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.crypto.diffiehellman;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Generates Diffie-Hellman key pairs for one (p, g) group ahead of time, on background
+ * Threads, so that a handshake can take a key pair without computing <code>g^x mod p</code>
+ * on its critical path. Each key pair is handed out only once.</p>
+ * <p>Public keys are computed with a {@link FixedBaseExponentiator} for the group, which is
+ * built when first needed. If the pool runs empty, a key pair is generated by the caller,
+ * and the pool is refilled in the background.</p>
+ */
+public class DiffieHellmanKeyPairPool
+        implements
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( DiffieHellmanKeyPairPool.class ); // our own, private logger
+
+    /**
+     * Obtain the shared pool for a group, creating it with the default settings if needed.
+     *
+     * @param p the Diffie-Hellman p parameter
+     * @param g the Diffie-Hellman g parameter
+     * @return the DiffieHellmanKeyPairPool
+     */
+    public static DiffieHellmanKeyPairPool getInstance(
+            BigInteger p,
+            BigInteger g )
+    {
+        List<BigInteger>         key = Arrays.asList( p, g );
+        DiffieHellmanKeyPairPool ret = theInstances.get( key );
+        if( ret == null ) {
+            DiffieHellmanKeyPairPool created = create( p, g, DEFAULT_POOL_SIZE, DEFAULT_WINDOW );
+            ret = theInstances.putIfAbsent( key, created );
+            if( ret == null ) {
+                ret = created;
+                ret.refill();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Factory method for a pool that is not shared.
+     *
+     * @param p the Diffie-Hellman p parameter
+     * @param g the Diffie-Hellman g parameter
+     * @param poolSize the number of key pairs to keep ready
+     * @param window the number of bits per window of the FixedBaseExponentiator
+     * @return the created DiffieHellmanKeyPairPool
+     */
+    public static DiffieHellmanKeyPairPool create(
+            BigInteger p,
+            BigInteger g,
+            int        poolSize,
+            int        window )
+    {
+        if( poolSize < 1 ) {
+            throw new IllegalArgumentException( "Pool size must be at least 1: " + poolSize );
+        }
+        return new DiffieHellmanKeyPairPool( p, g, poolSize, window );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param p the Diffie-Hellman p parameter
+     * @param g the Diffie-Hellman g parameter
+     * @param poolSize the number of key pairs to keep ready
+     * @param window the number of bits per window of the FixedBaseExponentiator
+     */
+    protected DiffieHellmanKeyPairPool(
+            BigInteger p,
+            BigInteger g,
+            int        poolSize,
+            int        window )
+    {
+        theP      = p;
+        theG      = g;
+        theWindow = window;
+        thePool   = new ArrayBlockingQueue<DiffieHellmanKeyPair>( poolSize );
+    }
+
+    /**
+     * Obtain the Diffie-Hellman p parameter.
+     *
+     * @return the Diffie-Hellman p parameter
+     */
+    public BigInteger getP()
+    {
+        return theP;
+    }
+
+    /**
+     * Obtain the Diffie-Hellman g parameter.
+     *
+     * @return the Diffie-Hellman g parameter
+     */
+    public BigInteger getG()
+    {
+        return theG;
+    }
+
+    /**
+     * Take a key pair out of the pool, or generate one if the pool is empty.
+     *
+     * @return the key pair
+     */
+    public DiffieHellmanKeyPair obtainKeyPair()
+    {
+        DiffieHellmanKeyPair ret = thePool.poll();
+        refill();
+
+        if( ret == null ) {
+            theMissCount.incrementAndGet();
+            ret = generateKeyPair();
+        }
+        return ret;
+    }
+
+    /**
+     * Generate a new key pair. The private key is a random, non-zero exponent of up to
+     * as many bits as p.
+     *
+     * @return the key pair
+     */
+    public DiffieHellmanKeyPair generateKeyPair()
+    {
+        BigInteger privateKey;
+        do {
+            privateKey = new BigInteger( theP.bitLength(), theRandomGenerator );
+        } while( privateKey.signum() == 0 );
+
+        return DiffieHellmanKeyPair.create( privateKey, computePublicKey( privateKey ));
+    }
+
+    /**
+     * Compute the public key that matches a private key.
+     *
+     * @param privateKey the private key
+     * @return the public key
+     */
+    public BigInteger computePublicKey(
+            BigInteger privateKey )
+    {
+        return getExponentiator().modPow( privateKey );
+    }
+
+    /**
+     * Obtain the FixedBaseExponentiator for this group, building it if needed.
+     *
+     * @return the FixedBaseExponentiator
+     */
+    public FixedBaseExponentiator getExponentiator()
+    {
+        FixedBaseExponentiator ret = theExponentiator;
+        if( ret == null ) {
+            synchronized( this ) {
+                ret = theExponentiator;
+                if( ret == null ) {
+                    ret = FixedBaseExponentiator.create( theP, theG, theP.bitLength(), theWindow );
+                    theExponentiator = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Start generating key pairs in the background, unless the pool is full or
+     * this is happening already.
+     */
+    public void refill()
+    {
+        if( thePool.remainingCapacity() == 0 || !theRefilling.compareAndSet( false, true )) {
+            return;
+        }
+        try {
+            theRefillExecutor.execute( new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            while( thePool.remainingCapacity() > 0 ) {
+                                if( !thePool.offer( generateKeyPair() )) {
+                                    break;
+                                }
+                            }
+                        } catch( Throwable t ) {
+                            log.error( t );
+
+                        } finally {
+                            theRefilling.set( false );
+                        }
+                    }
+            });
+
+        } catch( RejectedExecutionException ex ) {
+            theRefilling.set( false );
+            log.warn( this + ": could not refill", ex );
+        }
+    }
+
+    /**
+     * Determine the number of key pairs that are ready to be taken.
+     *
+     * @return the number of key pairs
+     */
+    public int getAvailableCount()
+    {
+        return thePool.size();
+    }
+
+    /**
+     * Determine how often the pool was empty when a key pair was needed.
+     *
+     * @return the number of times
+     */
+    public int getMissCount()
+    {
+        return theMissCount.get();
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                        "theP",
+                        "theG",
+                        "available",
+                        "misses"
+                },
+                new Object[] {
+                        theP,
+                        theG,
+                        getAvailableCount(),
+                        getMissCount()
+                } );
+    }
+
+    /**
+     * The p parameter.
+     */
+    protected final BigInteger theP;
+
+    /**
+     * The g parameter.
+     */
+    protected final BigInteger theG;
+
+    /**
+     * The number of bits per window of the FixedBaseExponentiator.
+     */
+    protected final int theWindow;
+
+    /**
+     * The FixedBaseExponentiator for g modulo p, once built.
+     */
+    protected volatile FixedBaseExponentiator theExponentiator;
+
+    /**
+     * The key pairs ready to be taken.
+     */
+    protected final ArrayBlockingQueue<DiffieHellmanKeyPair> thePool;
+
+    /**
+     * True while key pairs are being generated in the background.
+     */
+    protected final AtomicBoolean theRefilling = new AtomicBoolean();
+
+    /**
+     * The number of times the pool was empty when a key pair was needed.
+     */
+    protected final AtomicInteger theMissCount = new AtomicInteger();
+
+    /**
+     * The shared pools, keyed by (p, g).
+     */
+    private static final ConcurrentHashMap<List<BigInteger>,DiffieHellmanKeyPairPool> theInstances
+            = new ConcurrentHashMap<List<BigInteger>,DiffieHellmanKeyPairPool>();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( DiffieHellmanKeyPairPool.class );
+
+    /**
+     * Default number of key pairs to keep ready.
+     */
+    public static final int DEFAULT_POOL_SIZE = theResourceHelper.getResourceIntegerOrDefault( "PoolSize", 32 );
+
+    /**
+     * Default number of bits per window of the FixedBaseExponentiator.
+     */
+    public static final int DEFAULT_WINDOW = theResourceHelper.getResourceIntegerOrDefault( "Window", 4 );
+
+    /**
+     * Default number of background Threads generating key pairs, across all pools.
+     */
+    public static final int DEFAULT_REFILL_THREADS = theResourceHelper.getResourceIntegerOrDefault( "RefillThreads", 1 );
+
+    /**
+     * Counts the background Threads, for their names.
+     */
+    private static final AtomicInteger theThreadCounter = new AtomicInteger();
+
+    /**
+     * Generates key pairs in the background. Its daemon Threads go away when idle.
+     */
+    private static final ThreadPoolExecutor theRefillExecutor = new ThreadPoolExecutor(
+            DEFAULT_REFILL_THREADS,
+            DEFAULT_REFILL_THREADS,
+            10L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                    public Thread newThread(
+                            Runnable r )
+                    {
+                        Thread ret = new Thread( r, "DiffieHellmanKeyPairPool-" + theThreadCounter.incrementAndGet() );
+                        ret.setDaemon( true );
+                        ret.setPriority( Thread.MIN_PRIORITY );
+                        return ret;
+                    }
+            });
+    static {
+        theRefillExecutor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Our Random number generator.
+     */
+    private static final Random theRandomGenerator = new SecureRandom();
+}
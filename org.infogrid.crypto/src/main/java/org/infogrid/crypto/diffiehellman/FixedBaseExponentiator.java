@@ -0,0 +1,312 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.crypto.diffiehellman;
+
+import java.math.BigInteger;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * <p>Computes powers of a fixed base modulo a fixed modulus, such as the Diffie-Hellman
+ * generator <code>g</code> modulo <code>p</code>, faster than <code>BigInteger.modPow</code>.</p>
+ * <p>The exponent is split into windows of <code>w</code> bits. For each window position
+ * <code>i</code> and each window value <code>j</code>, the table holds
+ * <code>g^(j * 2^(i*w)) mod p</code>. A power then takes one modular multiplication per
+ * non-zero window, and no squarings at all. The table takes about
+ * <code>bits/w * 2^w</code> numbers of the size of <code>p</code>, and is computed once.</p>
+ * <p>For odd moduli, the table is kept in Montgomery form, so each multiplication is
+ * reduced with two further multiplications and a shift instead of a division.</p>
+ * <p>Exponents longer than the table fall back to <code>BigInteger.modPow</code>.
+ * This object is immutable and thread-safe.</p>
+ */
+public class FixedBaseExponentiator
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @param p the modulus
+     * @param g the base
+     * @param maxExponentBits the maximum number of bits of the exponents to be supported by the table
+     * @param window the number of bits per window
+     * @return the created FixedBaseExponentiator
+     */
+    public static FixedBaseExponentiator create(
+            BigInteger p,
+            BigInteger g,
+            int        maxExponentBits,
+            int        window )
+    {
+        if( p.signum() <= 0 ) {
+            throw new IllegalArgumentException( "Modulus must be positive: " + p );
+        }
+        if( window < 1 || window > 16 ) {
+            throw new IllegalArgumentException( "Window must be between 1 and 16 bits: " + window );
+        }
+        if( maxExponentBits < 1 ) {
+            throw new IllegalArgumentException( "Exponent must have at least one bit: " + maxExponentBits );
+        }
+        int            positions = ( maxExponentBits + window - 1 ) / window;
+        int            values    = 1 << window;
+        BigInteger[][] table     = new BigInteger[ positions ][];
+
+        BigInteger base = g.mod( p ); // g^(2^(i*w))
+        for( int i=0 ; i<positions ; ++i ) {
+            BigInteger [] row = new BigInteger[ values ];
+            row[0] = BigInteger.ONE;
+            for( int j=1 ; j<values ; ++j ) {
+                row[j] = row[j-1].multiply( base ).mod( p );
+            }
+            table[i] = row;
+            base = row[values-1].multiply( base ).mod( p );
+        }
+        MontgomeryReducer reducer = null;
+        if( p.testBit( 0 ) && p.bitLength() > 1 ) {
+            reducer = new MontgomeryReducer( p );
+            for( BigInteger [] row : table ) {
+                for( int j=1 ; j<values ; ++j ) {
+                    row[j] = reducer.toMontgomery( row[j] );
+                }
+            }
+        }
+        return new FixedBaseExponentiator( p, g, window, positions * window, table, reducer );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param p the modulus
+     * @param g the base
+     * @param window the number of bits per window
+     * @param maxExponentBits the maximum number of bits of the exponents supported by the table
+     * @param table the precomputed powers
+     * @param reducer performs Montgomery reduction if the table is in Montgomery form, or null
+     */
+    protected FixedBaseExponentiator(
+            BigInteger        p,
+            BigInteger        g,
+            int               window,
+            int               maxExponentBits,
+            BigInteger[][]    table,
+            MontgomeryReducer reducer )
+    {
+        theP               = p;
+        theG               = g;
+        theWindow          = window;
+        theMaxExponentBits = maxExponentBits;
+        theTable           = table;
+        theReducer         = reducer;
+    }
+
+    /**
+     * Obtain the modulus.
+     *
+     * @return the modulus
+     */
+    public BigInteger getP()
+    {
+        return theP;
+    }
+
+    /**
+     * Obtain the base.
+     *
+     * @return the base
+     */
+    public BigInteger getG()
+    {
+        return theG;
+    }
+
+    /**
+     * Obtain the maximum number of bits of the exponents supported by the table.
+     *
+     * @return the number of bits
+     */
+    public int getMaxExponentBits()
+    {
+        return theMaxExponentBits;
+    }
+
+    /**
+     * Compute <code>g^exponent mod p</code>.
+     *
+     * @param exponent the exponent, which must not be negative
+     * @return the power
+     */
+    public BigInteger modPow(
+            BigInteger exponent )
+    {
+        if( exponent.signum() < 0 ) {
+            throw new ArithmeticException( "Negative exponent: " + exponent );
+        }
+        int bits = exponent.bitLength();
+        if( bits > theMaxExponentBits ) {
+            return theG.modPow( exponent, theP );
+        }
+
+        BigInteger ret = null;
+        for( int i=0, bit=0 ; bit<bits ; ++i, bit += theWindow ) {
+            int digit = 0;
+            for( int k=theWindow-1 ; k>=0 ; --k ) {
+                digit <<= 1;
+                if( exponent.testBit( bit+k )) {
+                    digit |= 1;
+                }
+            }
+            if( digit != 0 ) {
+                BigInteger factor = theTable[i][digit];
+                if( ret == null ) {
+                    ret = factor;
+                } else if( theReducer != null ) {
+                    ret = theReducer.reduce( ret.multiply( factor ));
+                } else {
+                    ret = ret.multiply( factor ).mod( theP );
+                }
+            }
+        }
+        if( ret == null ) {
+            return BigInteger.ONE.mod( theP );
+        }
+        return theReducer != null ? theReducer.reduce( ret ) : ret;
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                        "theP",
+                        "theG",
+                        "theWindow",
+                        "theMaxExponentBits"
+                },
+                new Object[] {
+                        theP,
+                        theG,
+                        theWindow,
+                        theMaxExponentBits
+                } );
+    }
+
+    /**
+     * The modulus.
+     */
+    protected final BigInteger theP;
+
+    /**
+     * The base.
+     */
+    protected final BigInteger theG;
+
+    /**
+     * The number of bits per window.
+     */
+    protected final int theWindow;
+
+    /**
+     * The maximum number of bits of the exponents supported by the table.
+     */
+    protected final int theMaxExponentBits;
+
+    /**
+     * The precomputed powers: theTable[i][j] = g^(j * 2^(i*theWindow)) mod p.
+     */
+    protected final BigInteger[][] theTable;
+
+    /**
+     * Performs Montgomery reduction if the table is in Montgomery form, or null.
+     */
+    protected final MontgomeryReducer theReducer;
+
+    /**
+     * Montgomery reduction modulo an odd modulus <code>p</code>, with <code>R = 2^k</code>
+     * for the smallest multiple <code>k</code> of 32 that is at least as long as <code>p</code>.
+     */
+    protected static class MontgomeryReducer
+    {
+        /**
+         * Constructor.
+         *
+         * @param p the odd modulus
+         */
+        public MontgomeryReducer(
+                BigInteger p )
+        {
+            theP      = p;
+            theBits   = ( p.bitLength() + 31 ) / 32 * 32;
+            theMask   = BigInteger.ONE.shiftLeft( theBits ).subtract( BigInteger.ONE );
+            thePPrime = p.negate().modInverse( BigInteger.ONE.shiftLeft( theBits ));
+        }
+
+        /**
+         * Convert a number to Montgomery form, i.e. <code>x * R mod p</code>.
+         *
+         * @param x the number, between 0 and p-1
+         * @return the number in Montgomery form
+         */
+        public BigInteger toMontgomery(
+                BigInteger x )
+        {
+            return x.shiftLeft( theBits ).mod( theP );
+        }
+
+        /**
+         * Compute <code>t * R^-1 mod p</code>. Applied to the product of two numbers in
+         * Montgomery form, this yields their product in Montgomery form; applied to a
+         * number in Montgomery form, this yields the ordinary number.
+         *
+         * @param t the number, between 0 and p*p-1
+         * @return the reduced number
+         */
+        public BigInteger reduce(
+                BigInteger t )
+        {
+            BigInteger m   = t.and( theMask ).multiply( thePPrime ).and( theMask );
+            BigInteger ret = t.add( m.multiply( theP )).shiftRight( theBits );
+            if( ret.compareTo( theP ) >= 0 ) {
+                ret = ret.subtract( theP );
+            }
+            return ret;
+        }
+
+        /**
+         * The modulus.
+         */
+        protected final BigInteger theP;
+
+        /**
+         * The number of bits of R.
+         */
+        protected final int theBits;
+
+        /**
+         * R-1.
+         */
+        protected final BigInteger theMask;
+
+        /**
+         * -p^-1 mod R.
+         */
+        protected final BigInteger thePPrime;
+    }
+}
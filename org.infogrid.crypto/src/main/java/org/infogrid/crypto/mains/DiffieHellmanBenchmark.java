@@ -0,0 +1,207 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.crypto.mains;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+import org.infogrid.crypto.diffiehellman.DiffieHellmanEndpoint;
+import org.infogrid.crypto.diffiehellman.DiffieHellmanKeyPairPool;
+import org.infogrid.crypto.diffiehellman.FixedBaseExponentiator;
+
+/**
+ * Helper program to measure Diffie-Hellman key generation and handshakes per second,
+ * with plain <code>modPow</code>, with a FixedBaseExponentiator, and with a
+ * DiffieHellmanKeyPairPool that has been filled ahead of a burst of handshakes.
+ * By default, uses the 2048-bit MODP group from RFC 3526.
+ */
+public abstract class DiffieHellmanBenchmark
+{
+    /**
+     * Private constructor to keep this abstract.
+     */
+    private DiffieHellmanBenchmark()
+    {
+        // nothing
+    }
+
+    /**
+     * Main program, invoke from the command line.
+     *
+     * @param args command-line arguments
+     */
+    public static void main(
+            String [] args )
+    {
+        try {
+            long       millis = args.length > 0 ? Long.parseLong( args[0] ) : 5000L;
+            int        burst  = args.length > 1 ? Integer.parseInt( args[1] ) : 64;
+            BigInteger p      = args.length > 2 ? new BigInteger( args[2], 16 ) : MODP_2048_P;
+            BigInteger g      = args.length > 3 ? new BigInteger( args[3], 16 ) : MODP_2048_G;
+
+            final BigInteger             fp    = p;
+            final BigInteger             fg    = g;
+            final FixedBaseExponentiator table = FixedBaseExponentiator.create( p, g, p.bitLength(), DiffieHellmanKeyPairPool.DEFAULT_WINDOW );
+
+            report( "Key pairs, modPow", measure( millis, new Runnable() {
+                    public void run()
+                    {
+                        fg.modPow( randomPrivateKey( fp ), fp );
+                    }
+            }));
+            report( "Key pairs, fixed-base table", measure( millis, new Runnable() {
+                    public void run()
+                    {
+                        table.modPow( randomPrivateKey( fp ));
+                    }
+            }));
+            report( "Handshakes, modPow", measure( millis, new Runnable() {
+                    public void run()
+                    {
+                        handshake(
+                                DiffieHellmanEndpoint.create( fp, fg, randomPrivateKey( fp ), null ),
+                                DiffieHellmanEndpoint.create( fp, fg, randomPrivateKey( fp ), null ),
+                                false );
+                    }
+            }));
+
+            DiffieHellmanKeyPairPool pool = DiffieHellmanKeyPairPool.create( p, g, 2*burst, DiffieHellmanKeyPairPool.DEFAULT_WINDOW );
+            pool.refill();
+            while( pool.getAvailableCount() < 2*burst ) {
+                Thread.sleep( 100L );
+            }
+            long start = System.nanoTime();
+            for( int i=0 ; i<burst ; ++i ) {
+                handshake( DiffieHellmanEndpoint.create( pool ), DiffieHellmanEndpoint.create( pool ), true );
+            }
+            double perSecond = burst * 1e9 / ( System.nanoTime() - start );
+            report( "Handshakes, burst of " + burst + " from pre-filled pool", perSecond );
+            System.out.println( "Pool misses during burst: " + pool.getMissCount() );
+
+        } catch( Throwable t ) {
+            System.err.println( "Synopsis: java " + DiffieHellmanBenchmark.class.getName() + " [<milliseconds> [<burst> [<p in hex> <g in hex>]]]" );
+            t.printStackTrace( System.err );
+            System.exit( 1 );
+        }
+    }
+
+    /**
+     * Perform one handshake between two endpoints, and check that they agree.
+     *
+     * @param one the first endpoint
+     * @param two the second endpoint
+     * @param generate if true, generate the public keys; otherwise compute them from the given private keys
+     */
+    protected static void handshake(
+            DiffieHellmanEndpoint one,
+            DiffieHellmanEndpoint two,
+            boolean               generate )
+    {
+        BigInteger oneKey = generate ? one.getPublicKey() : one.getG().modPow( one.getPrivateKey(), one.getP() );
+        BigInteger twoKey = generate ? two.getPublicKey() : two.getG().modPow( two.getPrivateKey(), two.getP() );
+
+        BigInteger oneSecret = twoKey.modPow( one.getPrivateKey(), one.getP() );
+        BigInteger twoSecret = oneKey.modPow( two.getPrivateKey(), two.getP() );
+
+        if( !oneSecret.equals( twoSecret )) {
+            throw new IllegalStateException( "Shared secrets differ" );
+        }
+    }
+
+    /**
+     * Run an operation repeatedly after a warm-up, and determine how often it ran per second.
+     *
+     * @param millis the measurement time, in milliseconds
+     * @param operation the operation
+     * @return the number of operations per second
+     */
+    protected static double measure(
+            long     millis,
+            Runnable operation )
+    {
+        long warmUpEnd = System.nanoTime() + millis * 200000L; // a fifth of the time
+        while( System.nanoTime() < warmUpEnd ) {
+            operation.run();
+        }
+
+        long start = System.nanoTime();
+        long end   = start + millis * 1000000L;
+        long count = 0;
+        long now;
+        do {
+            operation.run();
+            ++count;
+        } while( ( now = System.nanoTime() ) < end );
+
+        return count * 1e9 / ( now - start );
+    }
+
+    /**
+     * Print a result.
+     *
+     * @param name the name of what was measured
+     * @param perSecond the number of operations per second
+     */
+    protected static void report(
+            String name,
+            double perSecond )
+    {
+        System.out.println( String.format( "%-55s %10.1f/s", name, perSecond ));
+    }
+
+    /**
+     * Generate a private key the same way DiffieHellmanKeyPairPool does.
+     *
+     * @param p the Diffie-Hellman p parameter
+     * @return the private key
+     */
+    protected static BigInteger randomPrivateKey(
+            BigInteger p )
+    {
+        BigInteger ret;
+        do {
+            ret = new BigInteger( p.bitLength(), theRandomGenerator );
+        } while( ret.signum() == 0 );
+        return ret;
+    }
+
+    /**
+     * The p parameter of the 2048-bit MODP group from RFC 3526.
+     */
+    public static final BigInteger MODP_2048_P = new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1"
+          + "29024E088A67CC74020BBEA63B139B22514A08798E3404DD"
+          + "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245"
+          + "E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+          + "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3D"
+          + "C2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F"
+          + "83655D23DCA3AD961C62F356208552BB9ED529077096966D"
+          + "670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+          + "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9"
+          + "DE2BCBF6955817183995497CEA956AE515D2261898FA0510"
+          + "15728E5A8AACAA68FFFFFFFFFFFFFFFF",
+            16 );
+
+    /**
+     * The g parameter of the 2048-bit MODP group from RFC 3526.
+     */
+    public static final BigInteger MODP_2048_G = BigInteger.valueOf( 2 );
+
+    /**
+     * Our Random number generator.
+     */
+    private static final Random theRandomGenerator = new SecureRandom();
+}
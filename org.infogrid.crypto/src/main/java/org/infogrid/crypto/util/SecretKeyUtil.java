@@ -14,6 +14,9 @@
 
 package org.infogrid.crypto.util;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import org.infogrid.util.Base64;
@@ -62,4 +65,28 @@ public abstract class SecretKeyUtil
 
         return ret;
     }
+
+    /**
+     * Convert a shared secret, such as the one agreed on by two DiffieHellmanEndpoints,
+     * into a Java SecretKey, by hashing it with SHA-256.
+     *
+     * @param sharedSecret the shared secret
+     * @param algorithm the algorithm of the SecretKey
+     * @return the SecretKey
+     */
+    public static SecretKey sharedSecretToSecretKey(
+            BigInteger sharedSecret,
+            String     algorithm )
+    {
+        try {
+            MessageDigest digest  = MessageDigest.getInstance( "SHA-256" );
+            byte []       asBytes = digest.digest( sharedSecret.toByteArray() );
+            SecretKeySpec ret     = new SecretKeySpec( asBytes, algorithm );
+
+            return ret;
+
+        } catch( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException( ex ); // every JRE has SHA-256
+        }
+    }
 }
@@ -0,0 +1,220 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.crypto.test;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.crypto.codec.AesGcmMessageCodec;
+import org.infogrid.crypto.diffiehellman.DiffieHellmanEndpoint;
+import org.infogrid.crypto.mains.DiffieHellmanBenchmark;
+import org.infogrid.crypto.util.SecretKeyUtil;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests AesGcmMessageCodec: round trips between two parties that agreed on a key with
+ * Diffie-Hellman, rejection of tampered, replayed and expired frames, key rotation, sizing
+ * without side effects, and messages that are larger than a single block.
+ */
+public class AesGcmMessageCodecTest1
+{
+    @Test
+    public void run()
+            throws
+                Exception
+    {
+        log.info( "Agreeing on a key" );
+
+        DiffieHellmanEndpoint dhA = DiffieHellmanEndpoint.create( DiffieHellmanBenchmark.MODP_2048_P, DiffieHellmanBenchmark.MODP_2048_G );
+        DiffieHellmanEndpoint dhB = DiffieHellmanEndpoint.create( DiffieHellmanBenchmark.MODP_2048_P, DiffieHellmanBenchmark.MODP_2048_G );
+
+        AesGcmMessageCodec<String> a = AesGcmMessageCodec.create( SerializingMessageCodec.<String>create(), dhA, dhB.getPublicKey() );
+        AesGcmMessageCodec<String> b = AesGcmMessageCodec.create( SerializingMessageCodec.<String>create(), dhB, dhA.getPublicKey() );
+
+        //
+
+        log.info( "Round trips" );
+
+        ByteBuffer frame = encode( a, "Attack at dawn" );
+        Assert.assertEquals( "wrong message", "Attack at dawn", b.decode( frame.duplicate() ));
+        Assert.assertEquals( "wrong message", "Retreat", a.decode( encode( b, "Retreat" )));
+        Assert.assertFalse( "plaintext visible", new String( toBytes( frame ), "ISO-8859-1" ).contains( "dawn" ));
+
+        //
+
+        log.info( "Replay" );
+
+        try {
+            b.decode( frame.duplicate() );
+            Assert.fail( "replay accepted" );
+        } catch( IOException ex ) {
+            log.debug( "Correctly received exception", ex );
+        }
+
+        //
+
+        log.info( "Out of order" );
+
+        ByteBuffer first  = encode( a, "first" );
+        ByteBuffer second = encode( a, "second" );
+        Assert.assertEquals( "wrong message", "second", b.decode( second ));
+        Assert.assertEquals( "wrong message", "first",  b.decode( first ));
+
+        //
+
+        log.info( "Tampering" );
+
+        for( int position : new int[] { 3, AesGcmMessageCodec.HEADER_SIZE + 2, -1 } ) {
+            ByteBuffer tampered = encode( a, "Attack at dawn" );
+            int        index    = position >= 0 ? position : tampered.limit() - 1;
+            tampered.put( index, (byte) ( tampered.get( index ) ^ 1 ));
+            try {
+                b.decode( tampered );
+                Assert.fail( "tampered frame accepted at " + index );
+            } catch( IOException ex ) {
+                log.debug( "Correctly received exception", ex );
+            }
+        }
+        Assert.assertEquals( "wrong message after tampering", "still fine", b.decode( encode( a, "still fine" )));
+
+        //
+
+        log.info( "Wrong key" );
+
+        AesGcmMessageCodec<String> c = AesGcmMessageCodec.create(
+                SerializingMessageCodec.<String>create(),
+                SecretKeyUtil.sharedSecretToSecretKey( dhA.getPublicKey(), AesGcmMessageCodec.MAC_ALGORITHM ));
+        try {
+            b.decode( encode( c, "intruder" ));
+            Assert.fail( "frame with wrong key accepted" );
+        } catch( IOException ex ) {
+            log.debug( "Correctly received exception", ex );
+        }
+
+        //
+
+        log.info( "Buffer too small" );
+
+        try {
+            a.encode( "does not fit", ByteBuffer.allocate( AesGcmMessageCodec.HEADER_SIZE + AesGcmMessageCodec.TAG_SIZE ));
+            Assert.fail( "no BufferOverflowException" );
+        } catch( BufferOverflowException ex ) {
+            log.debug( "Correctly received exception", ex );
+        }
+
+        //
+
+        log.info( "Key rotation" );
+
+        AesGcmMessageCodec<String> r1 = AesGcmMessageCodec.create(
+                SerializingMessageCodec.<String>create(),
+                SecretKeyUtil.sharedSecretToSecretKey( dhA.computeSharedSecret( dhB.getPublicKey() ), AesGcmMessageCodec.MAC_ALGORITHM ),
+                ROTATE,
+                32 );
+        AesGcmMessageCodec<String> r2 = AesGcmMessageCodec.create(
+                SerializingMessageCodec.<String>create(),
+                SecretKeyUtil.sharedSecretToSecretKey( dhB.computeSharedSecret( dhA.getPublicKey() ), AesGcmMessageCodec.MAC_ALGORITHM ),
+                ROTATE,
+                32 );
+
+        ByteBuffer stale = encode( r1, "stale" );
+        for( int i=0 ; i<N ; ++i ) {
+            Assert.assertEquals( "wrong message after rotation", "message-" + i, r2.decode( encode( r1, "message-" + i )));
+        }
+        Assert.assertTrue( "no rotation: " + r1.getSendEpoch(), r1.getSendEpoch() >= N / 5 );
+        try {
+            r2.decode( stale );
+            Assert.fail( "frame from expired epoch accepted" );
+        } catch( IOException ex ) {
+            log.debug( "Correctly received exception", ex );
+        }
+
+        //
+
+        log.info( "Sizing" );
+
+        int epoch = r1.getSendEpoch();
+        int size  = 0;
+        for( int i=0 ; i<N ; ++i ) {
+            size = r1.encodedSize( "sized" );
+        }
+        Assert.assertEquals( "sizing rotated the key", epoch, r1.getSendEpoch() );
+        Assert.assertEquals( "wrong size", encode( r1, "sized" ).remaining(), size );
+
+        //
+
+        log.info( "Large message" );
+
+        StringBuilder big = new StringBuilder();
+        for( int i=0 ; i<20000 ; ++i ) {
+            big.append( (char) ( 'a' + i % 26 ));
+        }
+        ByteBuffer bigFrame = ByteBuffer.allocateDirect( 32768 );
+        a.encode( big.toString(), bigFrame );
+        bigFrame.flip();
+        Assert.assertEquals( "wrong large message", big.toString(), b.decode( bigFrame ));
+    }
+
+    /**
+     * Encode a message into a new ByteBuffer.
+     *
+     * @param codec the codec
+     * @param message the message
+     * @return the ByteBuffer, flipped
+     * @throws IOException thrown if the message could not be encoded
+     */
+    protected static ByteBuffer encode(
+            AesGcmMessageCodec<String> codec,
+            String                     message )
+        throws
+            IOException
+    {
+        ByteBuffer ret = ByteBuffer.allocateDirect( 4096 );
+        codec.encode( message, ret );
+        ret.flip();
+        return ret;
+    }
+
+    /**
+     * Copy the remaining content of a ByteBuffer.
+     *
+     * @param buf the ByteBuffer
+     * @return the content
+     */
+    protected static byte [] toBytes(
+            ByteBuffer buf )
+    {
+        byte [] ret = new byte[ buf.remaining() ];
+        buf.duplicate().get( ret );
+        return ret;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( AesGcmMessageCodecTest1.class );
+
+    /**
+     * The number of messages to send.
+     */
+    protected static final int N = 100;
+
+    /**
+     * Rotate keys after so many bytes in the rotation test.
+     */
+    protected static final long ROTATE = 64L;
+}
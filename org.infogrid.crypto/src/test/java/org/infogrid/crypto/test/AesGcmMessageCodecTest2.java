@@ -0,0 +1,172 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.crypto.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import javax.crypto.spec.SecretKeySpec;
+import org.infogrid.comm.SerializingMessageCodec;
+import org.infogrid.crypto.codec.AesGcmMessageCodec;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that frames that fail authentication do not change the receive state of an
+ * AesGcmMessageCodec: a forged epoch must not expire the current one, and a flood of
+ * forged sessions must not evict a real session and thereby reset its replay window.
+ */
+public class AesGcmMessageCodecTest2
+{
+    @Test
+    public void forgedEpoch()
+        throws
+            Exception
+    {
+        AesGcmMessageCodec<String> a = createCodec();
+        AesGcmMessageCodec<String> b = createCodec();
+
+        Assert.assertEquals( "wrong message", "hello", b.decode( encode( a, "hello" )));
+
+        //
+
+        log.info( "Forging frames from later epochs" );
+
+        for( int epoch : new int[] { 1, 2, 1000, Integer.MAX_VALUE } ) {
+            ByteBuffer forged = encode( a, "forged" );
+            forged.putInt( EPOCH_OFFSET, epoch );
+
+            expectRejection( b, forged, "forged epoch " + epoch );
+        }
+
+        //
+
+        log.info( "Continuing in the real epoch" );
+
+        Assert.assertEquals( "wrong epoch", 0, a.getSendEpoch() );
+        for( int i=0 ; i<10 ; ++i ) {
+            Assert.assertEquals( "real frame rejected after forged epoch", "real-" + i, b.decode( encode( a, "real-" + i )));
+        }
+    }
+
+    @Test
+    public void sessionFlood()
+        throws
+            Exception
+    {
+        AesGcmMessageCodec<String> a = createCodec();
+        AesGcmMessageCodec<String> b = createCodec();
+
+        ByteBuffer captured = encode( a, "pay once" );
+        Assert.assertEquals( "wrong message", "pay once", b.decode( captured.duplicate() ));
+
+        //
+
+        log.info( "Flooding with forged sessions" );
+
+        Random random = new Random( 42L );
+        for( int i=0 ; i<N_FORGED ; ++i ) {
+            ByteBuffer forged = encode( a, "forged-" + i );
+            forged.putLong( SESSION_OFFSET, random.nextLong() );
+
+            expectRejection( b, forged, "forged session " + i );
+        }
+
+        //
+
+        log.info( "Replaying the captured frame" );
+
+        expectRejection( b, captured.duplicate(), "replay after session flood" );
+
+        Assert.assertEquals( "real frame rejected after session flood", "pay twice", b.decode( encode( a, "pay twice" )));
+    }
+
+    /**
+     * Create a codec with the shared test key.
+     *
+     * @return the codec
+     */
+    protected static AesGcmMessageCodec<String> createCodec()
+    {
+        return AesGcmMessageCodec.create( SerializingMessageCodec.<String>create(), MASTER_KEY );
+    }
+
+    /**
+     * Encode a message into a new ByteBuffer.
+     *
+     * @param codec the codec
+     * @param message the message
+     * @return the ByteBuffer, flipped
+     * @throws IOException thrown if the message could not be encoded
+     */
+    protected static ByteBuffer encode(
+            AesGcmMessageCodec<String> codec,
+            String                     message )
+        throws
+            IOException
+    {
+        ByteBuffer ret = ByteBuffer.allocate( 4096 );
+        codec.encode( message, ret );
+        ret.flip();
+        return ret;
+    }
+
+    /**
+     * Check that a frame is rejected.
+     *
+     * @param codec the receiving codec
+     * @param frame the frame
+     * @param what describes the frame, for error messages
+     */
+    protected static void expectRejection(
+            AesGcmMessageCodec<String> codec,
+            ByteBuffer                 frame,
+            String                     what )
+    {
+        try {
+            codec.decode( frame );
+            Assert.fail( "accepted " + what );
+
+        } catch( IOException ex ) {
+            log.debug( "Correctly received exception", ex );
+        }
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( AesGcmMessageCodecTest2.class );
+
+    /**
+     * The number of forged sessions, comfortably more than the codec remembers.
+     */
+    protected static final int N_FORGED = 1000;
+
+    /**
+     * Position of the session identifier in the frame header.
+     */
+    protected static final int SESSION_OFFSET = 0;
+
+    /**
+     * Position of the epoch in the frame header.
+     */
+    protected static final int EPOCH_OFFSET = 8;
+
+    /**
+     * The master key shared by all codecs in this test.
+     */
+    protected static final SecretKeySpec MASTER_KEY = new SecretKeySpec( new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+            17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32 }, AesGcmMessageCodec.MAC_ALGORITHM );
+}
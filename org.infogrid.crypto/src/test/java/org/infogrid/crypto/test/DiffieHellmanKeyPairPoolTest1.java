@@ -0,0 +1,111 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.crypto.test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import org.infogrid.crypto.diffiehellman.DiffieHellmanKeyPair;
+import org.infogrid.crypto.diffiehellman.DiffieHellmanKeyPairPool;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the key pairs handed out by DiffieHellmanKeyPairPool match, that the pool
+ * refills itself in the background, and that two parties agree on the shared secret.
+ */
+public class DiffieHellmanKeyPairPoolTest1
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        Random     random = new Random( 42L );
+        BigInteger p      = BigInteger.probablePrime( 512, random );
+        BigInteger g      = BigInteger.valueOf( 2L );
+
+        DiffieHellmanKeyPairPool pool = DiffieHellmanKeyPairPool.create( p, g, POOL_SIZE, 4 );
+
+        //
+
+        log.info( "Taking key pairs out of an empty pool" );
+
+        Assert.assertEquals( "pool not empty", 0, pool.getAvailableCount() );
+
+        DiffieHellmanKeyPair first = pool.obtainKeyPair();
+        check( pool, first );
+        Assert.assertEquals( "wrong number of misses", 1, pool.getMissCount() );
+
+        //
+
+        log.info( "Waiting for the pool to refill" );
+
+        for( int i=0 ; i<100 && pool.getAvailableCount() < POOL_SIZE ; ++i ) {
+            Thread.sleep( 100L );
+        }
+        Assert.assertEquals( "pool not refilled", POOL_SIZE, pool.getAvailableCount() );
+
+        DiffieHellmanKeyPair [] pairs = new DiffieHellmanKeyPair[ POOL_SIZE ];
+        for( int i=0 ; i<POOL_SIZE ; ++i ) {
+            pairs[i] = pool.obtainKeyPair();
+            check( pool, pairs[i] );
+            Assert.assertNotEquals( "same key pair handed out twice", first.getPrivateKey(), pairs[i].getPrivateKey() );
+        }
+
+        //
+
+        log.info( "Agreeing on a shared secret" );
+
+        DiffieHellmanKeyPair one = pairs[0];
+        DiffieHellmanKeyPair two = pairs[1];
+
+        BigInteger secretOne = two.getPublicKey().modPow( one.getPrivateKey(), p );
+        BigInteger secretTwo = one.getPublicKey().modPow( two.getPrivateKey(), p );
+
+        Assert.assertEquals( "no agreement", secretOne, secretTwo );
+    }
+
+    /**
+     * Check that the public key of a key pair matches its private key.
+     *
+     * @param pool the pool that handed out the key pair
+     * @param pair the key pair
+     */
+    protected void check(
+            DiffieHellmanKeyPairPool pool,
+            DiffieHellmanKeyPair     pair )
+    {
+        Assert.assertTrue( "private key not positive: " + pair.getPrivateKey(), pair.getPrivateKey().signum() > 0 );
+        Assert.assertTrue(
+                "private key too short: " + pair.getPrivateKey().bitLength() + " bits",
+                pair.getPrivateKey().bitLength() > pool.getP().bitLength() / 2 );
+        Assert.assertEquals(
+                "public key does not match private key " + pair.getPrivateKey(),
+                pool.getG().modPow( pair.getPrivateKey(), pool.getP() ),
+                pair.getPublicKey() );
+        Assert.assertEquals(
+                "computed public key does not match",
+                pair.getPublicKey(),
+                pool.computePublicKey( pair.getPrivateKey() ));
+    }
+
+    /**
+     * The size of the pool.
+     */
+    protected static final int POOL_SIZE = 4;
+
+    private static final Log log = Log.getLogInstance( DiffieHellmanKeyPairPoolTest1.class ); // our own, private logger
+}
@@ -0,0 +1,134 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.crypto.test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import org.infogrid.crypto.diffiehellman.FixedBaseExponentiator;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that FixedBaseExponentiator computes the same powers as BigInteger.modPow,
+ * for odd and even moduli, several window sizes, and exponents inside and outside
+ * of the precomputed table.
+ */
+public class FixedBaseExponentiatorTest1
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        Random random = new Random( 42L );
+
+        BigInteger [] moduli = {
+                BigInteger.probablePrime( 256, random ),                   // odd: Montgomery form
+                new BigInteger( 255, random ).setBit( 254 ).setBit( 0 ),  // odd, not prime
+                new BigInteger( 256, random ).setBit( 255 ).clearBit( 0 ), // even: plain reduction
+                BigInteger.valueOf( 2L ).pow( 200 ),                       // power of two
+                BigInteger.valueOf( 3L ),                                  // tiny
+                BigInteger.ONE                                             // everything is 0
+        };
+
+        for( BigInteger p : moduli ) {
+            BigInteger g = new BigInteger( p.bitLength() + 8, random ); // larger than p on purpose
+
+            for( int window : WINDOWS ) {
+                log.info( "Testing p of " + p.bitLength() + " bits, " + ( p.testBit( 0 ) ? "odd" : "even" ) + ", window " + window );
+
+                FixedBaseExponentiator exp = FixedBaseExponentiator.create( p, g, MAX_EXPONENT_BITS, window );
+
+                int max = exp.getMaxExponentBits();
+                Assert.assertTrue( "table too small: " + max, max >= MAX_EXPONENT_BITS );
+                Assert.assertTrue( "table too large: " + max, max < MAX_EXPONENT_BITS + window );
+
+                check( exp, BigInteger.ZERO );
+                check( exp, BigInteger.ONE );
+                check( exp, BigInteger.valueOf( 2L ));
+                check( exp, BigInteger.ONE.shiftLeft( window ));       // first digit of the second window
+                check( exp, BigInteger.ONE.shiftLeft( window ).subtract( BigInteger.ONE ));
+
+                // exponents near and beyond the end of the table
+                for( int bits = max-2 ; bits <= max+2 ; ++bits ) {
+                    check( exp, BigInteger.ONE.shiftLeft( bits ).subtract( BigInteger.ONE )); // all ones
+                    check( exp, BigInteger.ONE.shiftLeft( bits - 1 ));                          // single one
+                    check( exp, new BigInteger( bits, random ).setBit( bits - 1 ));
+                }
+                check( exp, new BigInteger( 2 * max, random ));
+
+                for( int i=0 ; i<N_RANDOM ; ++i ) {
+                    check( exp, new BigInteger( 1 + random.nextInt( max ), random ));
+                }
+            }
+        }
+
+        log.info( "Testing invalid arguments" );
+
+        FixedBaseExponentiator exp = FixedBaseExponentiator.create( moduli[0], BigInteger.valueOf( 2L ), 16, 4 );
+        try {
+            exp.modPow( BigInteger.valueOf( -1L ));
+            Assert.fail( "no exception for negative exponent" );
+        } catch( ArithmeticException ex ) {
+            // expected
+        }
+        try {
+            FixedBaseExponentiator.create( BigInteger.ZERO, BigInteger.valueOf( 2L ), 16, 4 );
+            Assert.fail( "no exception for modulus 0" );
+        } catch( IllegalArgumentException ex ) {
+            // expected
+        }
+        try {
+            FixedBaseExponentiator.create( moduli[0], BigInteger.valueOf( 2L ), 16, 0 );
+            Assert.fail( "no exception for window 0" );
+        } catch( IllegalArgumentException ex ) {
+            // expected
+        }
+    }
+
+    /**
+     * Compare one power with BigInteger.modPow.
+     *
+     * @param exp the FixedBaseExponentiator to test
+     * @param exponent the exponent
+     */
+    protected void check(
+            FixedBaseExponentiator exp,
+            BigInteger             exponent )
+    {
+        BigInteger expected = exp.getG().modPow( exponent, exp.getP() );
+        BigInteger found    = exp.modPow( exponent );
+
+        Assert.assertEquals( "wrong power for p=" + exp.getP() + ", g=" + exp.getG() + ", exponent=" + exponent, expected, found );
+    }
+
+    /**
+     * The window sizes to test.
+     */
+    protected static final int [] WINDOWS = { 1, 3, 4, 5, 8 };
+
+    /**
+     * The maximum number of exponent bits requested from the table.
+     */
+    protected static final int MAX_EXPONENT_BITS = 130;
+
+    /**
+     * The number of random exponents to test per table.
+     */
+    protected static final int N_RANDOM = 50;
+
+    private static final Log log = Log.getLogInstance( FixedBaseExponentiatorTest1.class ); // our own, private logger
+}
@@ -14,6 +14,9 @@
 
 package org.infogrid.util.instrument;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
 import org.infogrid.util.logging.Log;
@@ -23,6 +26,8 @@ import org.infogrid.util.logging.Log;
  * this one can be run without the debugger. It collaborates with {@link InstrumentedThread},
  * and can only be used on Threads that are of class InstrumentedThread. The run-time overhead
  * is fairly small, so it can be incorporated in production code if needed.
+ * Threads wait on a Condition, not on the monitor of the Breakpoint, so a waiting virtual
+ * Thread does not pin its carrier Thread.
  */
 public class Breakpoint
         implements
@@ -70,19 +75,53 @@ public class Breakpoint
         if( current instanceof InstrumentedThread ) {
             InstrumentedThread realCurrent = (InstrumentedThread) current;
 
-            synchronized( this ) {
-                notifyAll();
+            theLock.lock();
+            try {
+                theCondition.signalAll();
 
                 logWait();
 
                 if( realCurrent.getNextBreakpoint() == this ) {
-                    wait( theDelay );
+                    await( theDelay );
                 }
+            } finally {
+                theLock.unlock();
             }
         }
         logExit();
     }
 
+    /**
+     * Wait until signalled, or until the delay has passed. The caller must hold theLock.
+     *
+     * @param delay the maximum time to wait, in milliseconds. 0 means forever
+     * @throws InterruptedException thrown if the Thread was interrupted while waiting
+     */
+    protected void await(
+            long delay )
+        throws
+            InterruptedException
+    {
+        if( delay > 0L ) {
+            theCondition.await( delay, TimeUnit.MILLISECONDS );
+        } else {
+            theCondition.await();
+        }
+    }
+
+    /**
+     * Wake up all Threads waiting at, or for, this Breakpoint.
+     */
+    protected void signalAll()
+    {
+        theLock.lock();
+        try {
+            theCondition.signalAll();
+        } finally {
+            theLock.unlock();
+        }
+    }
+
     /**
      * This overridable method provides a hook through which we can log having entered this Breakpoint.
      */
@@ -139,4 +178,14 @@ public class Breakpoint
      * The maximum length of time to wait at the Breakpoint, in milliseconds. 0 means forever.
      */
     protected long theDelay;
+
+    /**
+     * Taken by Threads that reach this Breakpoint, and by Threads that advance an InstrumentedThread to it.
+     */
+    protected final ReentrantLock theLock = new ReentrantLock();
+
+    /**
+     * Signalled when a Thread reaches this Breakpoint, or is released from it.
+     */
+    protected final Condition theCondition = theLock.newCondition();
 }
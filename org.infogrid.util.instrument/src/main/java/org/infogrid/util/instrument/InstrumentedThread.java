@@ -101,16 +101,20 @@ public class InstrumentedThread
             InterruptedException
     {
         long now1 = System.currentTimeMillis(); // unfortunately we have to determine ourselves whether it timed out or reached the Breakpoint
-        synchronized( bp ) {
+        bp.theLock.lock();
+        try {
             synchronized( this ) {
                 if( ! isAlive() ) {
                     start();
                 }
-                // FIXME? Should this say here: if( runToBreakpoint != null ) runToBreakPoint.notifyAll()
+                // FIXME? Should this say here: if( runToBreakpoint != null ) runToBreakPoint.signalAll()
 
                 runToBreakpoint = bp;
             }
-            bp.wait( delay );
+            bp.await( delay );
+
+        } finally {
+            bp.theLock.unlock();
         }
         long now2 = System.currentTimeMillis();
         if( delay == 0 ) {
@@ -138,9 +142,7 @@ public class InstrumentedThread
         }
 
         if( runTo != null ) {
-            synchronized( runTo ) {
-                runTo.notifyAll();
-            }
+            runTo.signalAll();
         }
     }
 
@@ -14,6 +14,10 @@
 
 package org.infogrid.util;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Saves a bit of code to map the simplified factory method onto the more general one.
  * 
@@ -46,6 +50,64 @@ public abstract class AbstractSmartFactory<K,V,A>
         return obtainNewFor( key, null );
     }
 
+    /**
+     * Bulk factory method. This default implementation simply invokes
+     * {@link #obtainFor(Object,Object) obtainFor} for each key; subclasses
+     * may override this with something more efficient.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    public Map<K,V> obtainForAll(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException
+    {
+        return obtainForEach( keys, argument );
+    }
+
+    /**
+     * Invoke {@link #obtainFor(Object,Object) obtainFor} for each key. Subclasses that override
+     * obtainForAll may use this to return to the default behavior.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    protected Map<K,V> obtainForEach(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException
+    {
+        Map<K,V> ret = new LinkedHashMap<K,V>( keys.size() * 4 / 3 + 1 );
+        for( K key : keys ) {
+            ret.put( key, obtainFor( key, argument ));
+        }
+        return ret;
+    }
+
+    /**
+     * Bulk factory method. This is equivalent to specifying a null argument.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    public Map<K,V> obtainForAll(
+            Collection<K> keys )
+        throws
+            FactoryException
+    {
+        return obtainForAll( keys, null );
+    }
+
     /**
      * Determine whether the number of key-value pairs in this SmartFactory is zero.
      *
@@ -14,43 +14,52 @@
 
 package org.infogrid.util;
 
-import org.infogrid.util.logging.Log;
-
 import java.io.IOException;
-
-// We are not supposed to import from this package, but well, the code is there,
-// why duplicate as long as it works? FIXME?
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.infogrid.util.logging.Log;
 
 /**
- * Collects Base64 utilities.
+ * <p>Collects Base64 utilities.</p>
+ * <p>Encoding and decoding is table-driven, and available in the standard (RFC 4648, section 4),
+ * URL-safe (RFC 4648, section 5) and MIME (RFC 2045) variants through {@link Encoder} and
+ * {@link Decoder} instances, which are immutable and thread-safe. Besides byte arrays and Strings,
+ * they read from and write into caller-provided arrays, ByteBuffers and Appendables without
+ * intermediate copies, and wrap streams for large payloads.</p>
  */
 public abstract class Base64
 {
     private static final Log log = Log.getLogInstance( Base64.class ); // our own, private logger
 
     /**
-     * Helper method to decode base64.
+     * Helper method to decode base64. Characters outside of the Base64 alphabet, such as
+     * line breaks, are ignored.
      *
      * @param data the input data
-     * @return the output data
+     * @return the output data, or an empty array if the input data was not valid
      */
     public static byte[] base64decode(
             String data )
     {
         try {
-            byte [] ret = theDecoder.decodeBuffer( data );
+            byte [] ret = MIME_DECODER.decode( data );
             return ret;
 
-        } catch( IOException ex ) {
+        } catch( IllegalArgumentException ex ) {
             log.error( ex );
             return new byte[0];
         }
     }
 
     /**
-     * Helper method to encode base64.
+     * Helper method to encode base64, with a line feed after every 76 characters.
+     * As the encoder in sun.misc did, this terminates every full line with a line feed,
+     * including the last one: input whose length is a multiple of 57 bytes produces
+     * output that ends with a line feed.
      *
      * @param data the input data
      * @return the output data
@@ -58,7 +67,10 @@ public abstract class Base64
     public static String base64encode(
             byte [] data )
     {
-        String ret = theEncoder.encode( data );
+        String ret = LINE_FEED_ENCODER.encodeToString( data );
+        if( data.length > 0 && data.length % BYTES_PER_LINE == 0 ) {
+            ret = ret + "\n";
+        }
         return ret;
     }
 
@@ -71,28 +83,850 @@ public abstract class Base64
     public static String base64encodeNoCr(
             byte [] data )
     {
-        String       encoded = base64encode( data );
-        StringBuilder buf     = new StringBuilder( encoded.length() );
-
-        // remove
-        int cr1 = 0;
-        int cr2 = 0;
-        while( ( cr2 = encoded.indexOf( "\n", cr1 )) >= 0 ) {
-            buf.append( encoded.substring( cr1, cr2 ));
-            cr1 = cr2+1;
-        }
-        buf.append( encoded.substring( cr1 ));
-        String ret = buf.toString();
+        String ret = ENCODER.encodeToString( data );
         return ret;
     }
 
     /**
-     * Shared Encoder.
+     * Obtain an Encoder for the standard Base64 alphabet, without line breaks.
+     *
+     * @return the Encoder
+     */
+    public static Encoder getEncoder()
+    {
+        return ENCODER;
+    }
+
+    /**
+     * Obtain an Encoder for the URL-safe Base64 alphabet, without line breaks.
+     *
+     * @return the Encoder
+     */
+    public static Encoder getUrlEncoder()
+    {
+        return URL_ENCODER;
+    }
+
+    /**
+     * Obtain an Encoder for MIME, with the standard alphabet and a CRLF after every 76 characters.
+     *
+     * @return the Encoder
+     */
+    public static Encoder getMimeEncoder()
+    {
+        return MIME_ENCODER;
+    }
+
+    /**
+     * Obtain an Encoder with the standard alphabet and line breaks.
+     *
+     * @param lineLength the maximum number of characters per line, rounded down to a multiple of 4
+     * @param lineSeparator the line separator
+     * @return the Encoder
+     */
+    public static Encoder getMimeEncoder(
+            int    lineLength,
+            String lineSeparator )
+    {
+        lineLength = lineLength / 4 * 4;
+        if( lineLength <= 0 ) {
+            return ENCODER;
+        }
+        for( int i=0 ; i<lineSeparator.length() ; ++i ) {
+            char c = lineSeparator.charAt( i );
+            if( c > 0xff || DECODE_TABLE[c] >= 0 || c == PAD ) {
+                throw new IllegalArgumentException( "Line separator must not contain Base64 characters: " + lineSeparator );
+            }
+        }
+        return new Encoder( STANDARD_ALPHABET, true, lineLength, lineSeparator.getBytes( StandardCharsets.ISO_8859_1 ));
+    }
+
+    /**
+     * Obtain a Decoder for the standard Base64 alphabet. Any other character is an error.
+     *
+     * @return the Decoder
+     */
+    public static Decoder getDecoder()
+    {
+        return DECODER;
+    }
+
+    /**
+     * Obtain a Decoder for the URL-safe Base64 alphabet. Any other character is an error.
+     *
+     * @return the Decoder
+     */
+    public static Decoder getUrlDecoder()
+    {
+        return URL_DECODER;
+    }
+
+    /**
+     * Obtain a Decoder for MIME, with the standard alphabet. Other characters, such as
+     * line breaks, are ignored.
+     *
+     * @return the Decoder
+     */
+    public static Decoder getMimeDecoder()
+    {
+        return MIME_DECODER;
+    }
+
+    /**
+     * Create a decoding table for an alphabet.
+     *
+     * @param alphabet the alphabet
+     * @param skipOthers if true, characters outside of the alphabet are to be skipped; otherwise they are errors
+     * @return the table
+     */
+    protected static int [] createDecodeTable(
+            byte [] alphabet,
+            boolean skipOthers )
+    {
+        int [] ret = new int[ 256 ];
+        Arrays.fill( ret, skipOthers ? SKIP : INVALID );
+        for( int i=0 ; i<alphabet.length ; ++i ) {
+            ret[ alphabet[i] ] = i;
+        }
+        ret[ PAD ] = PADDING;
+        return ret;
+    }
+
+    /**
+     * Obtain a scratch buffer, which is used when the input or the output is not a byte array.
+     * This is the buffer of this Thread, unless more space is needed.
+     *
+     * @param size the needed size
+     * @return the scratch buffer
+     */
+    protected static byte [] scratch(
+            int size )
+    {
+        if( size <= SCRATCH_SIZE ) {
+            return theScratch.get();
+        } else {
+            return new byte[ size ];
+        }
+    }
+
+    /**
+     * Encodes binary data into Base64 characters.
+     */
+    public static class Encoder
+    {
+        /**
+         * Constructor, use the factory methods of Base64.
+         *
+         * @param alphabet the 64 characters to encode with
+         * @param pad if true, pad the output to a multiple of 4 characters
+         * @param lineLength the number of characters per line, a multiple of 4, or 0 for no line breaks
+         * @param lineSeparator the line separator
+         */
+        protected Encoder(
+                byte [] alphabet,
+                boolean pad,
+                int     lineLength,
+                byte [] lineSeparator )
+        {
+            theAlphabet      = alphabet;
+            isPadding        = pad;
+            theLineLength    = lineLength;
+            theLineSeparator = lineSeparator;
+            theBytesPerLine  = lineLength > 0 ? lineLength / 4 * 3 : 0;
+            theChunkSize     = lineLength > 0 ? theBytesPerLine * Math.max( 1, SCRATCH_SIZE / ( lineLength + lineSeparator.length ) / 2 ) : SCRATCH_SIZE / 8 * 3;
+        }
+
+        /**
+         * Obtain an Encoder like this one, but that does not pad its output.
+         *
+         * @return the Encoder
+         */
+        public Encoder withoutPadding()
+        {
+            if( !isPadding ) {
+                return this;
+            }
+            return new Encoder( theAlphabet, false, theLineLength, theLineSeparator );
+        }
+
+        /**
+         * Determine the number of characters needed to encode a number of bytes.
+         *
+         * @param length the number of bytes
+         * @return the number of characters
+         * @throws IllegalArgumentException thrown if the encoded length exceeds the maximum array size
+         */
+        public int encodedLength(
+                int length )
+        {
+            long ret = isPadding ? 4L * (( length + 2L ) / 3 ) : ( 4L * length + 2 ) / 3;
+            if( theLineLength > 0 && ret > 0 ) {
+                ret += ( ret - 1 ) / theLineLength * theLineSeparator.length;
+            }
+            if( ret > Integer.MAX_VALUE - 8 ) {
+                throw new IllegalArgumentException( "Encoded length too large: " + ret );
+            }
+            return (int) ret;
+        }
+
+        /**
+         * Encode a byte array.
+         *
+         * @param src the bytes
+         * @return the encoded characters, as bytes
+         */
+        public byte [] encode(
+                byte [] src )
+        {
+            byte [] ret = new byte[ encodedLength( src.length ) ];
+            encode( src, 0, src.length, ret, 0 );
+            return ret;
+        }
+
+        /**
+         * Encode a byte array into a String.
+         *
+         * @param src the bytes
+         * @return the encoded String
+         */
+        public String encodeToString(
+                byte [] src )
+        {
+            byte [] encoded = encode( src );
+            return new String( encoded, StandardCharsets.ISO_8859_1 );
+        }
+
+        /**
+         * Encode a range of a byte array into another byte array.
+         *
+         * @param src the bytes
+         * @param off the offset of the first byte in src
+         * @param len the number of bytes
+         * @param dst the array to write the encoded characters into
+         * @param dstOff the offset in dst at which to start writing
+         * @return the number of characters written
+         * @throws ArrayIndexOutOfBoundsException thrown if dst is too short
+         */
+        public int encode(
+                byte [] src,
+                int     off,
+                int     len,
+                byte [] dst,
+                int     dstOff )
+        {
+            int end  = off + len;
+            int full = off + len / 3 * 3;
+            int s    = off;
+            int d    = dstOff;
+
+            while( s < full ) {
+                int lineEnd = theBytesPerLine > 0 ? Math.min( full, s + theBytesPerLine ) : full;
+                while( s < lineEnd ) {
+                    int bits = ( src[s] & 0xff ) << 16 | ( src[s+1] & 0xff ) << 8 | ( src[s+2] & 0xff );
+                    dst[d]   = theAlphabet[ bits >>> 18 ];
+                    dst[d+1] = theAlphabet[ ( bits >>> 12 ) & 0x3f ];
+                    dst[d+2] = theAlphabet[ ( bits >>> 6 ) & 0x3f ];
+                    dst[d+3] = theAlphabet[ bits & 0x3f ];
+                    s += 3;
+                    d += 4;
+                }
+                if( theBytesPerLine > 0 && ( s - off ) % theBytesPerLine == 0 && s < end ) {
+                    System.arraycopy( theLineSeparator, 0, dst, d, theLineSeparator.length );
+                    d += theLineSeparator.length;
+                }
+            }
+            if( s < end ) {
+                int bits = ( src[s] & 0xff ) << 16;
+                if( end - s == 2 ) {
+                    bits |= ( src[s+1] & 0xff ) << 8;
+                }
+                dst[d++] = theAlphabet[ bits >>> 18 ];
+                dst[d++] = theAlphabet[ ( bits >>> 12 ) & 0x3f ];
+                if( end - s == 2 ) {
+                    dst[d++] = theAlphabet[ ( bits >>> 6 ) & 0x3f ];
+                } else if( isPadding ) {
+                    dst[d++] = PAD;
+                }
+                if( isPadding ) {
+                    dst[d++] = PAD;
+                }
+            }
+            return d - dstOff;
+        }
+
+        /**
+         * Encode the remaining bytes of a ByteBuffer into another ByteBuffer. Upon return, the
+         * position of src is at its limit, and the position of dst is after the encoded characters.
+         *
+         * @param src the bytes
+         * @param dst the ByteBuffer to write the encoded characters into
+         * @throws BufferOverflowException thrown if dst does not have enough space; neither buffer is modified then
+         */
+        public void encode(
+                ByteBuffer src,
+                ByteBuffer dst )
+        {
+            int len = src.remaining();
+            if( dst.remaining() < encodedLength( len )) {
+                throw new BufferOverflowException();
+            }
+            if( src.hasArray() && dst.hasArray() ) {
+                int written = encode( src.array(), src.arrayOffset() + src.position(), len, dst.array(), dst.arrayOffset() + dst.position() );
+                src.position( src.limit() );
+                dst.position( dst.position() + written );
+                return;
+            }
+            int     half    = Math.max( theChunkSize, encodedLength( theChunkSize ));
+            byte [] scratch = scratch( 2 * half );
+            boolean first   = true;
+            while( src.hasRemaining() ) {
+                if( !first && theLineLength > 0 ) {
+                    dst.put( theLineSeparator );
+                }
+                int n = Math.min( theChunkSize, src.remaining() );
+                src.get( scratch, 0, n );
+                int written = encode( scratch, 0, n, scratch, half );
+                dst.put( scratch, half, written );
+                first = false;
+            }
+        }
+
+        /**
+         * Encode a range of a byte array, and append the encoded characters.
+         *
+         * @param src the bytes
+         * @param off the offset of the first byte in src
+         * @param len the number of bytes
+         * @param out the Appendable to append the characters to
+         * @throws IOException thrown by the Appendable
+         */
+        public void encode(
+                byte []    src,
+                int        off,
+                int        len,
+                Appendable out )
+            throws
+                IOException
+        {
+            if( out instanceof StringBuilder ) {
+                ((StringBuilder) out).ensureCapacity( ((StringBuilder) out).length() + encodedLength( len ));
+            }
+            byte [] scratch = scratch( encodedLength( theChunkSize ));
+            int     end     = off + len;
+            boolean first   = true;
+            while( off < end ) {
+                if( !first && theLineLength > 0 ) {
+                    for( byte b : theLineSeparator ) {
+                        out.append( (char) b );
+                    }
+                }
+                int n       = Math.min( theChunkSize, end - off );
+                int written = encode( src, off, n, scratch, 0 );
+                for( int i=0 ; i<written ; ++i ) {
+                    out.append( (char) scratch[i] );
+                }
+                off  += n;
+                first = false;
+            }
+        }
+
+        /**
+         * Wrap an OutputStream, so that bytes written to the returned stream are written
+         * to the wrapped stream encoded. Closing the returned stream writes the final
+         * characters, and closes the wrapped stream.
+         *
+         * @param out the OutputStream to wrap
+         * @return the encoding OutputStream
+         */
+        public OutputStream wrap(
+                OutputStream out )
+        {
+            return new Base64OutputStream( out, this );
+        }
+
+        /**
+         * The 64 characters to encode with.
+         */
+        protected final byte [] theAlphabet;
+
+        /**
+         * If true, pad the output to a multiple of 4 characters.
+         */
+        protected final boolean isPadding;
+
+        /**
+         * The number of characters per line, or 0 for no line breaks.
+         */
+        protected final int theLineLength;
+
+        /**
+         * The line separator.
+         */
+        protected final byte [] theLineSeparator;
+
+        /**
+         * The number of input bytes per line, or 0 for no line breaks.
+         */
+        protected final int theBytesPerLine;
+
+        /**
+         * The number of input bytes encoded at a time when going through the scratch buffer.
+         * This is a multiple of the bytes per line, so line breaks fall between chunks.
+         */
+        protected final int theChunkSize;
+    }
+
+    /**
+     * Decodes Base64 characters into binary data. Missing padding at the end is accepted.
+     */
+    public static class Decoder
+    {
+        /**
+         * Constructor, use the factory methods of Base64.
+         *
+         * @param table maps each character to its value, or to SKIP, INVALID or PADDING
+         */
+        protected Decoder(
+                int [] table )
+        {
+            theTable = table;
+        }
+
+        /**
+         * Determine the maximum number of bytes that a number of characters can decode into.
+         *
+         * @param length the number of characters
+         * @return the maximum number of bytes
+         */
+        public int maxDecodedLength(
+                int length )
+        {
+            return (int) ( length / 4 * 3L + ( length % 4 == 0 ? 0 : length % 4 - 1 ));
+        }
+
+        /**
+         * Decode a byte array of characters.
+         *
+         * @param src the characters, as bytes
+         * @return the decoded bytes
+         * @throws IllegalArgumentException thrown if the input is not valid Base64
+         */
+        public byte [] decode(
+                byte [] src )
+        {
+            byte [] ret     = new byte[ maxDecodedLength( src.length ) ];
+            int     written = decode( src, 0, src.length, ret, 0 );
+            return written == ret.length ? ret : Arrays.copyOf( ret, written );
+        }
+
+        /**
+         * Decode a String.
+         *
+         * @param src the characters
+         * @return the decoded bytes
+         * @throws IllegalArgumentException thrown if the input is not valid Base64
+         */
+        public byte [] decode(
+                CharSequence src )
+        {
+            byte [] ret     = new byte[ maxDecodedLength( src.length() ) ];
+            int     written = decode( src, ret, 0 );
+            return written == ret.length ? ret : Arrays.copyOf( ret, written );
+        }
+
+        /**
+         * Decode a range of a byte array of characters into another byte array.
+         *
+         * @param src the characters, as bytes
+         * @param off the offset of the first character in src
+         * @param len the number of characters
+         * @param dst the array to write the decoded bytes into
+         * @param dstOff the offset in dst at which to start writing
+         * @return the number of bytes written
+         * @throws IllegalArgumentException thrown if the input is not valid Base64
+         * @throws ArrayIndexOutOfBoundsException thrown if dst is too short
+         */
+        public int decode(
+                byte [] src,
+                int     off,
+                int     len,
+                byte [] dst,
+                int     dstOff )
+        {
+            return written( decode( src, off, len, dst, dstOff, true ));
+        }
+
+        /**
+         * Decode characters into a byte array.
+         *
+         * @param src the characters
+         * @param dst the array to write the decoded bytes into
+         * @param dstOff the offset in dst at which to start writing
+         * @return the number of bytes written
+         * @throws IllegalArgumentException thrown if the input is not valid Base64
+         * @throws ArrayIndexOutOfBoundsException thrown if dst is too short
+         */
+        public int decode(
+                CharSequence src,
+                byte []      dst,
+                int          dstOff )
+        {
+            byte [] scratch = scratch( SCRATCH_SIZE );
+            int     length  = src.length();
+            int     carry   = 0;
+            int     d       = dstOff;
+            int     i       = 0;
+            while( true ) {
+                int n = Math.min( SCRATCH_SIZE - carry, length - i );
+                for( int k=0 ; k<n ; ++k ) {
+                    char c = src.charAt( i+k );
+                    scratch[ carry+k ] = c <= 0xff ? (byte) c : (byte) 0xff; // never in an alphabet
+                }
+                i += n;
+
+                boolean last   = i == length;
+                long    result = decode( scratch, 0, carry+n, dst, d, last );
+                d += written( result );
+                if( last || isDone( result )) {
+                    return d - dstOff;
+                }
+                carry = carryOver( scratch, consumed( result ), carry+n );
+            }
+        }
+
+        /**
+         * Decode the remaining characters of a ByteBuffer into another ByteBuffer. Upon return,
+         * the position of src is at its limit, and the position of dst is after the decoded bytes.
+         *
+         * @param src the characters, as bytes
+         * @param dst the ByteBuffer to write the decoded bytes into
+         * @throws IllegalArgumentException thrown if the input is not valid Base64
+         * @throws BufferOverflowException thrown if dst does not have enough space; some bytes may have been written then
+         */
+        public void decode(
+                ByteBuffer src,
+                ByteBuffer dst )
+        {
+            if( src.hasArray() && dst.hasArray() && dst.remaining() >= maxDecodedLength( src.remaining() )) {
+                int written = decode( src.array(), src.arrayOffset() + src.position(), src.remaining(), dst.array(), dst.arrayOffset() + dst.position() );
+                src.position( src.limit() );
+                dst.position( dst.position() + written );
+                return;
+            }
+            byte [] scratch = scratch( SCRATCH_SIZE );
+            int     half    = SCRATCH_SIZE / 2;
+            int     carry   = 0;
+            while( true ) {
+                int n = Math.min( half - carry, src.remaining() );
+                src.get( scratch, carry, n );
+
+                boolean last   = !src.hasRemaining();
+                long    result = decode( scratch, 0, carry+n, scratch, half, last );
+                dst.put( scratch, half, written( result ));
+                if( last || isDone( result )) {
+                    src.position( src.limit() );
+                    return;
+                }
+                carry = carryOver( scratch, consumed( result ), carry+n );
+            }
+        }
+
+        /**
+         * Wrap an InputStream of Base64 characters, so that reading from the returned stream
+         * returns the decoded bytes.
+         *
+         * @param in the InputStream to wrap
+         * @return the decoding InputStream
+         */
+        public InputStream wrap(
+                InputStream in )
+        {
+            return new Base64InputStream( in, this );
+        }
+
+        /**
+         * Decode characters. If this is not the last part of the input, decoding stops before
+         * an incomplete group of four characters, which the caller needs to pass in again.
+         *
+         * @param src the characters, as bytes
+         * @param off the offset of the first character in src
+         * @param len the number of characters
+         * @param dst the array to write the decoded bytes into
+         * @param dstOff the offset in dst at which to start writing
+         * @param last if true, this is the last part of the input
+         * @return the number of characters consumed, the number of bytes written, and whether the end of the data has been reached, packed into a long
+         * @throws IllegalArgumentException thrown if the input is not valid Base64
+         */
+        protected long decode(
+                byte [] src,
+                int     off,
+                int     len,
+                byte [] dst,
+                int     dstOff,
+                boolean last )
+        {
+            int end       = off + len;
+            int s         = off;
+            int d         = dstOff;
+            int bits      = 0;
+            int count     = 0;
+            int quantum   = off; // start of the current group of four characters
+
+            while( s < end ) {
+                int c = src[s++] & 0xff;
+                int v = theTable[c];
+                if( v >= 0 ) {
+                    bits = bits << 6 | v;
+                    if( ++count == 4 ) {
+                        dst[d]   = (byte) ( bits >> 16 );
+                        dst[d+1] = (byte) ( bits >> 8 );
+                        dst[d+2] = (byte) bits;
+                        d      += 3;
+                        bits    = 0;
+                        count   = 0;
+                        quantum = s;
+                    }
+
+                } else if( v == PADDING ) {
+                    if( count < 2 ) {
+                        throw new IllegalArgumentException( "Illegal padding at " + ( s-1-off ));
+                    }
+                    if( count == 2 ) {
+                        // need a second padding character
+                        while( s < end && theTable[ src[s] & 0xff ] == SKIP ) {
+                            ++s;
+                        }
+                        if( s == end ) {
+                            if( !last ) {
+                                return pack( quantum - off, d - dstOff, false );
+                            }
+                            throw new IllegalArgumentException( "Incomplete padding at end" );
+                        }
+                        if( theTable[ src[s] & 0xff ] != PADDING ) {
+                            throw new IllegalArgumentException( "Illegal padding at " + ( s-off ));
+                        }
+                        ++s;
+                    }
+                    d = finish( bits, count, dst, d );
+                    while( s < end ) {
+                        if( theTable[ src[s] & 0xff ] != SKIP ) {
+                            throw new IllegalArgumentException( "Input after padding at " + ( s-off ));
+                        }
+                        ++s;
+                    }
+                    return pack( len, d - dstOff, true );
+
+                } else if( v == INVALID ) {
+                    throw new IllegalArgumentException( "Illegal Base64 character " + c + " at " + ( s-1-off ));
+
+                } else if( count == 0 ) {
+                    quantum = s; // skipped, and nothing to carry over
+                }
+            }
+            if( !last ) {
+                return pack( quantum - off, d - dstOff, false );
+            }
+            if( count == 1 ) {
+                throw new IllegalArgumentException( "Incomplete Base64 input" );
+            }
+            d = finish( bits, count, dst, d );
+            return pack( len, d - dstOff, true );
+        }
+
+        /**
+         * Move the characters that were not consumed to the beginning of the buffer, so they
+         * can be passed in again with the next part of the input. Skipped characters are
+         * dropped, so what is carried over is never longer than four characters.
+         *
+         * @param buf the buffer
+         * @param consumed the number of characters consumed
+         * @param end the end of the characters in the buffer
+         * @return the number of characters carried over
+         */
+        protected int carryOver(
+                byte [] buf,
+                int     consumed,
+                int     end )
+        {
+            int ret = 0;
+            for( int i=consumed ; i<end ; ++i ) {
+                if( theTable[ buf[i] & 0xff ] != SKIP ) {
+                    buf[ret++] = buf[i];
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Write the bytes of an incomplete final group of characters.
+         *
+         * @param bits the bits of the characters
+         * @param count the number of characters, 0, 2 or 3
+         * @param dst the array to write into
+         * @param d the index at which to write
+         * @return the index after the written bytes
+         */
+        protected static int finish(
+                int     bits,
+                int     count,
+                byte [] dst,
+                int     d )
+        {
+            if( count == 2 ) {
+                dst[d++] = (byte) ( bits >> 4 );
+            } else if( count == 3 ) {
+                dst[d++] = (byte) ( bits >> 10 );
+                dst[d++] = (byte) ( bits >> 2 );
+            }
+            return d;
+        }
+
+        /**
+         * Pack the result of decoding into a long.
+         *
+         * @param consumed the number of characters consumed
+         * @param written the number of bytes written
+         * @param done true if the end of the data has been reached
+         * @return the packed result
+         */
+        protected static long pack(
+                int     consumed,
+                int     written,
+                boolean done )
+        {
+            return ( (long) consumed << 32 ) | ( done ? 0x80000000L : 0L ) | written;
+        }
+
+        /**
+         * Unpack the number of characters consumed from the result of decoding.
+         *
+         * @param result the packed result
+         * @return the number of characters
+         */
+        protected static int consumed(
+                long result )
+        {
+            return (int) ( result >>> 32 );
+        }
+
+        /**
+         * Unpack the number of bytes written from the result of decoding.
+         *
+         * @param result the packed result
+         * @return the number of bytes
+         */
+        protected static int written(
+                long result )
+        {
+            return (int) ( result & 0x7fffffffL );
+        }
+
+        /**
+         * Unpack whether the end of the data has been reached from the result of decoding.
+         *
+         * @param result the packed result
+         * @return true if the end has been reached
+         */
+        protected static boolean isDone(
+                long result )
+        {
+            return ( result & 0x80000000L ) != 0L;
+        }
+
+        /**
+         * Maps each character to its value, or to SKIP, INVALID or PADDING.
+         */
+        protected final int [] theTable;
+    }
+
+    /**
+     * The standard alphabet.
+     */
+    protected static final byte [] STANDARD_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes( StandardCharsets.ISO_8859_1 );
+
+    /**
+     * The URL-safe alphabet.
+     */
+    protected static final byte [] URL_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes( StandardCharsets.ISO_8859_1 );
+
+    /**
+     * The padding character.
+     */
+    protected static final byte PAD = '=';
+
+    /**
+     * Decoding table value for characters that are errors.
+     */
+    protected static final int INVALID = -1;
+
+    /**
+     * Decoding table value for characters that are skipped.
+     */
+    protected static final int SKIP = -2;
+
+    /**
+     * Decoding table value for the padding character.
+     */
+    protected static final int PADDING = -3;
+
+    /**
+     * The size of the per-Thread scratch buffer.
+     */
+    protected static final int SCRATCH_SIZE = 4096;
+
+    /**
+     * The decoding table for the standard alphabet.
+     */
+    protected static final int [] DECODE_TABLE = createDecodeTable( STANDARD_ALPHABET, false );
+
+    /**
+     * Encoder for the standard alphabet.
+     */
+    protected static final Encoder ENCODER = new Encoder( STANDARD_ALPHABET, true, 0, new byte[0] );
+
+    /**
+     * Encoder for the URL-safe alphabet.
+     */
+    protected static final Encoder URL_ENCODER = new Encoder( URL_ALPHABET, true, 0, new byte[0] );
+
+    /**
+     * Encoder for MIME.
+     */
+    protected static final Encoder MIME_ENCODER = new Encoder( STANDARD_ALPHABET, true, 76, new byte[] { '\r', '\n' } );
+
+    /**
+     * The number of input bytes encoded into a full line of 76 characters.
+     */
+    protected static final int BYTES_PER_LINE = 57;
+
+    /**
+     * Encoder with a line feed after every 76 characters, as base64encode has always produced.
+     */
+    protected static final Encoder LINE_FEED_ENCODER = new Encoder( STANDARD_ALPHABET, true, 76, new byte[] { '\n' } );
+
+    /**
+     * Decoder for the standard alphabet.
+     */
+    protected static final Decoder DECODER = new Decoder( DECODE_TABLE );
+
+    /**
+     * Decoder for the URL-safe alphabet.
+     */
+    protected static final Decoder URL_DECODER = new Decoder( createDecodeTable( URL_ALPHABET, false ));
+
+    /**
+     * Decoder for MIME.
      */
-    protected static BASE64Encoder theEncoder = new BASE64Encoder();
+    protected static final Decoder MIME_DECODER = new Decoder( createDecodeTable( STANDARD_ALPHABET, true ));
 
     /**
-     * Shared Decoder.
+     * Per-Thread scratch buffer, used when the input or the output is not a byte array.
      */
-    protected static BASE64Decoder theDecoder = new BASE64Decoder();
+    private static final ThreadLocal<byte[]> theScratch = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte [] initialValue()
+            {
+                return new byte[ SCRATCH_SIZE ];
+            }
+    };
 }
@@ -0,0 +1,219 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that reads Base64 characters from a delegate InputStream, and returns
+ * the decoded bytes. Invalid input is reported as an IOException.
+ */
+public class Base64InputStream
+        extends
+            FilterInputStream
+{
+    /**
+     * Constructor.
+     *
+     * @param delegate the delegate InputStream
+     * @param decoder the Decoder to use
+     */
+    public Base64InputStream(
+            InputStream    delegate,
+            Base64.Decoder decoder )
+    {
+        super( delegate );
+
+        if( delegate == null ) {
+            throw new IllegalArgumentException();
+        }
+        theDecoder = decoder;
+        theEncoded = new byte[ BUFFER_SIZE ];
+        theDecoded = new byte[ decoder.maxDecodedLength( BUFFER_SIZE ) ];
+    }
+
+    /**
+     * Read a byte.
+     *
+     * @return the byte, or -1 at the end of the data
+     * @throws IOException thrown if an I/O error occurred, or the input was not valid
+     */
+    @Override
+    public int read()
+        throws
+            IOException
+    {
+        if( !fill() ) {
+            return -1;
+        }
+        return theDecoded[ theDecodedPos++ ] & 0xff;
+    }
+
+    /**
+     * Read into a range of a byte array.
+     *
+     * @param b the data buffer to read into
+     * @param off the index into the buffer where we start writing
+     * @param len the maximum number of bytes to write to the buffer
+     * @return the number of bytes read, or -1 at the end of the data
+     * @throws IOException thrown if an I/O error occurred, or the input was not valid
+     */
+    @Override
+    public int read(
+            byte [] b,
+            int     off,
+            int     len )
+        throws
+            IOException
+    {
+        if( off < 0 || len < 0 || off + len > b.length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        if( len == 0 ) {
+            return 0;
+        }
+        if( !fill() ) {
+            return -1;
+        }
+        int ret = Math.min( len, theDecodedCount - theDecodedPos );
+        System.arraycopy( theDecoded, theDecodedPos, b, off, ret );
+        theDecodedPos += ret;
+        return ret;
+    }
+
+    /**
+     * Skip decoded bytes.
+     *
+     * @param n the number of bytes to skip
+     * @return the number of bytes skipped
+     * @throws IOException thrown if an I/O error occurred, or the input was not valid
+     */
+    @Override
+    public long skip(
+            long n )
+        throws
+            IOException
+    {
+        long ret = 0L;
+        while( ret < n && fill() ) {
+            int step = (int) Math.min( n - ret, theDecodedCount - theDecodedPos );
+            theDecodedPos += step;
+            ret           += step;
+        }
+        return ret;
+    }
+
+    /**
+     * Determine the number of decoded bytes that can be read without blocking.
+     *
+     * @return the number of bytes
+     */
+    @Override
+    public int available()
+    {
+        return theDecodedCount - theDecodedPos;
+    }
+
+    /**
+     * Marking is not supported.
+     *
+     * @return false
+     */
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /**
+     * Make sure there are decoded bytes to read, unless the end of the data has been reached.
+     *
+     * @return true if there are decoded bytes to read
+     * @throws IOException thrown if an I/O error occurred, or the input was not valid
+     */
+    protected boolean fill()
+        throws
+            IOException
+    {
+        while( theDecodedPos == theDecodedCount ) {
+            if( isDone ) {
+                return false;
+            }
+            int     n    = in.read( theEncoded, theCarry, theEncoded.length - theCarry );
+            boolean last = n < 0;
+            int     end  = theCarry + ( last ? 0 : n );
+
+            long result;
+            try {
+                result = theDecoder.decode( theEncoded, 0, end, theDecoded, 0, last );
+
+            } catch( IllegalArgumentException ex ) {
+                throw new DelegatingIOException( ex );
+            }
+            theDecodedPos   = 0;
+            theDecodedCount = Base64.Decoder.written( result );
+
+            if( last || Base64.Decoder.isDone( result )) {
+                isDone = true;
+            } else {
+                theCarry = theDecoder.carryOver( theEncoded, Base64.Decoder.consumed( result ), end );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The Decoder to use.
+     */
+    protected final Base64.Decoder theDecoder;
+
+    /**
+     * Buffer for the characters read from the delegate.
+     */
+    protected final byte [] theEncoded;
+
+    /**
+     * The number of characters at the beginning of theEncoded that still need to be decoded.
+     */
+    protected int theCarry;
+
+    /**
+     * Buffer for the decoded bytes.
+     */
+    protected final byte [] theDecoded;
+
+    /**
+     * The position of the next byte to read in theDecoded.
+     */
+    protected int theDecodedPos;
+
+    /**
+     * The number of bytes in theDecoded.
+     */
+    protected int theDecodedCount;
+
+    /**
+     * True once the end of the data has been reached.
+     */
+    protected boolean isDone;
+
+    /**
+     * The number of characters read from the delegate at a time.
+     */
+    protected static final int BUFFER_SIZE = 4096;
+}
@@ -0,0 +1,199 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that Base64-encodes the bytes written to it, and writes the characters
+ * to a delegate OutputStream. Bytes are encoded a chunk at a time; the last, incomplete
+ * group of bytes is only encoded, with padding, when this stream is closed.
+ */
+public class Base64OutputStream
+        extends
+            FilterOutputStream
+{
+    /**
+     * Constructor.
+     *
+     * @param delegate the delegate OutputStream
+     * @param encoder the Encoder to use
+     */
+    public Base64OutputStream(
+            OutputStream   delegate,
+            Base64.Encoder encoder )
+    {
+        super( delegate );
+
+        if( delegate == null ) {
+            throw new IllegalArgumentException();
+        }
+        theEncoder = encoder;
+        thePending = new byte[ encoder.theChunkSize ];
+        theEncoded = new byte[ encoder.encodedLength( encoder.theChunkSize ) ];
+    }
+
+    /**
+     * Write a byte.
+     *
+     * @param b the byte
+     * @throws IOException thrown if an I/O error occurred
+     */
+    @Override
+    public void write(
+            int b )
+        throws
+            IOException
+    {
+        thePending[ thePendingCount++ ] = (byte) b;
+        if( thePendingCount == thePending.length ) {
+            writeChunk( thePending, 0, thePendingCount );
+            thePendingCount = 0;
+        }
+    }
+
+    /**
+     * Write a range of a byte array.
+     *
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @throws IOException thrown if an I/O error occurred
+     */
+    @Override
+    public void write(
+            byte [] b,
+            int     off,
+            int     len )
+        throws
+            IOException
+    {
+        if( off < 0 || len < 0 || off + len > b.length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        int end = off + len;
+        if( thePendingCount > 0 ) {
+            int n = Math.min( len, thePending.length - thePendingCount );
+            System.arraycopy( b, off, thePending, thePendingCount, n );
+            thePendingCount += n;
+            off             += n;
+            if( thePendingCount < thePending.length ) {
+                return;
+            }
+            writeChunk( thePending, 0, thePendingCount );
+            thePendingCount = 0;
+        }
+        while( end - off >= thePending.length ) {
+            writeChunk( b, off, thePending.length ); // straight from the caller's array
+            off += thePending.length;
+        }
+        System.arraycopy( b, off, thePending, 0, end - off );
+        thePendingCount = end - off;
+    }
+
+    /**
+     * Encode and write a chunk, or the final bytes.
+     *
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected void writeChunk(
+            byte [] b,
+            int     off,
+            int     len )
+        throws
+            IOException
+    {
+        if( hasWritten && theEncoder.theLineLength > 0 ) {
+            out.write( theEncoder.theLineSeparator );
+        }
+        int n = theEncoder.encode( b, off, len, theEncoded, 0 );
+        out.write( theEncoded, 0, n );
+        hasWritten = true;
+    }
+
+    /**
+     * Flush the characters encoded so far. Bytes that do not complete a group
+     * are held back until more bytes are written, or this stream is closed.
+     *
+     * @throws IOException thrown if an I/O error occurred
+     */
+    @Override
+    public void flush()
+        throws
+            IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Encode and write the remaining bytes, and close the delegate OutputStream.
+     *
+     * @throws IOException thrown if an I/O error occurred
+     */
+    @Override
+    public void close()
+        throws
+            IOException
+    {
+        if( isClosed ) {
+            return;
+        }
+        isClosed = true;
+        try {
+            if( thePendingCount > 0 ) {
+                writeChunk( thePending, 0, thePendingCount );
+                thePendingCount = 0;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The Encoder to use.
+     */
+    protected final Base64.Encoder theEncoder;
+
+    /**
+     * The bytes written, but not encoded yet.
+     */
+    protected final byte [] thePending;
+
+    /**
+     * The number of bytes in thePending.
+     */
+    protected int thePendingCount;
+
+    /**
+     * Buffer for the encoded characters.
+     */
+    protected final byte [] theEncoded;
+
+    /**
+     * True once characters have been written to the delegate.
+     */
+    protected boolean hasWritten;
+
+    /**
+     * True once this stream has been closed.
+     */
+    protected boolean isClosed;
+}
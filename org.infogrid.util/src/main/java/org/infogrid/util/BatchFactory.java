@@ -0,0 +1,50 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link Factory} that can also create many values in a single invocation, such as
+ * with a single SQL <code>IN</code> query. {@link MSmartFactory} uses this interface,
+ * if its delegate Factory supports it, to create all values missing from its storage
+ * in one call.
+ * 
+ * @param <K> the type of key
+ * @param <V> the type of value
+ * @param <A> the type of argument
+ */
+public interface BatchFactory<K,V,A>
+        extends
+            Factory<K,V,A>
+{
+    /**
+     * Factory method for many values at once. Keys for which no value could be
+     * created are absent from the returned Map.
+     *
+     * @param keys the keys for which values shall be created
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the created objects, keyed by their keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    public abstract Map<K,V> obtainForAll(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException;
+}
@@ -0,0 +1,205 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * A pool of equally-sized ByteBuffers, so that buffers used for I/O do not need to be
+ * allocated over and over. Larger buffers may be obtained as well, but they are not pooled.
+ * This class is thread-safe.
+ */
+public class ByteBufferPool
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @param bufferSize the capacity of the pooled ByteBuffers
+     * @param maxPooled the maximum number of ByteBuffers kept in the pool
+     * @param direct if true, allocate direct ByteBuffers
+     * @return the created ByteBufferPool
+     */
+    public static ByteBufferPool create(
+            int     bufferSize,
+            int     maxPooled,
+            boolean direct )
+    {
+        if( bufferSize <= 0 ) {
+            throw new IllegalArgumentException( "Buffer size must be positive: " + bufferSize );
+        }
+        return new ByteBufferPool( bufferSize, maxPooled, direct );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param bufferSize the capacity of the pooled ByteBuffers
+     * @param maxPooled the maximum number of ByteBuffers kept in the pool
+     * @param direct if true, allocate direct ByteBuffers
+     */
+    protected ByteBufferPool(
+            int     bufferSize,
+            int     maxPooled,
+            boolean direct )
+    {
+        theBufferSize = bufferSize;
+        theMaxPooled  = maxPooled;
+        isDirect      = direct;
+    }
+
+    /**
+     * Obtain a cleared ByteBuffer with the pool's buffer size.
+     *
+     * @return the ByteBuffer
+     */
+    public ByteBuffer obtain()
+    {
+        ByteBuffer ret = thePool.poll();
+        if( ret != null ) {
+            thePooledCount.decrementAndGet();
+            ret.clear();
+        } else {
+            ret = allocate( theBufferSize );
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain a cleared ByteBuffer with at least the specified capacity.
+     *
+     * @param minCapacity the minimum capacity
+     * @return the ByteBuffer
+     */
+    public ByteBuffer obtain(
+            int minCapacity )
+    {
+        if( minCapacity <= theBufferSize ) {
+            return obtain();
+        } else {
+            return allocate( minCapacity );
+        }
+    }
+
+    /**
+     * Return a ByteBuffer to the pool. The caller must not use the ByteBuffer any more.
+     * ByteBuffers of a size other than the pool's buffer size are simply dropped.
+     *
+     * @param buf the ByteBuffer
+     */
+    public void release(
+            ByteBuffer buf )
+    {
+        if( buf == null || buf.capacity() != theBufferSize || buf.isDirect() != isDirect ) {
+            return;
+        }
+        if( thePooledCount.incrementAndGet() <= theMaxPooled ) {
+            thePool.offer( buf );
+        } else {
+            thePooledCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Obtain the capacity of the pooled ByteBuffers.
+     *
+     * @return the capacity
+     */
+    public int getBufferSize()
+    {
+        return theBufferSize;
+    }
+
+    /**
+     * Obtain the number of ByteBuffers currently in the pool.
+     *
+     * @return the number of ByteBuffers
+     */
+    public int getPooledCount()
+    {
+        return thePooledCount.get();
+    }
+
+    /**
+     * Allocate a new ByteBuffer.
+     *
+     * @param capacity the capacity of the new ByteBuffer
+     * @return the ByteBuffer
+     */
+    protected ByteBuffer allocate(
+            int capacity )
+    {
+        if( isDirect ) {
+            return ByteBuffer.allocateDirect( capacity );
+        } else {
+            return ByteBuffer.allocate( capacity );
+        }
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theBufferSize",
+                    "theMaxPooled",
+                    "isDirect",
+                    "pooled"
+                },
+                new Object[] {
+                    theBufferSize,
+                    theMaxPooled,
+                    isDirect,
+                    thePooledCount.get()
+                });
+    }
+
+    /**
+     * The capacity of the pooled ByteBuffers.
+     */
+    protected final int theBufferSize;
+
+    /**
+     * The maximum number of ByteBuffers kept in the pool.
+     */
+    protected final int theMaxPooled;
+
+    /**
+     * If true, allocate direct ByteBuffers.
+     */
+    protected final boolean isDirect;
+
+    /**
+     * The pooled ByteBuffers.
+     */
+    protected final ConcurrentLinkedQueue<ByteBuffer> thePool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * The number of ByteBuffers in the pool. This is tracked separately as
+     * ConcurrentLinkedQueue.size() is not a constant-time operation.
+     */
+    protected final AtomicInteger thePooledCount = new AtomicInteger();
+}
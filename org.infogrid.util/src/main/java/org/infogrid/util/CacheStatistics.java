@@ -0,0 +1,343 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * Aggregate counters collected by a cache, such as a {@link CachingMap} or a {@link SmartFactory}.
+ * The counters are striped, so recording is cheap even if many Threads access the cache
+ * concurrently. Unlike the per-event listener callbacks, these statistics are always collected.
+ */
+public class CacheStatistics
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @param owner the cache that collects these statistics
+     * @return the created CacheStatistics
+     */
+    public static CacheStatistics create(
+            HasCacheStatistics owner )
+    {
+        return new CacheStatistics( owner );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param owner the cache that collects these statistics
+     */
+    protected CacheStatistics(
+            HasCacheStatistics owner )
+    {
+        theOwner = owner;
+
+        EvictionCause [] causes = EvictionCause.values();
+        theEvictions = new LongAdder[ causes.length ];
+        for( int i=0 ; i<causes.length ; ++i ) {
+            theEvictions[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record that a requested value was found in the cache.
+     */
+    public void recordHit()
+    {
+        theHits.increment();
+    }
+
+    /**
+     * Record that a requested value was not found in the cache.
+     */
+    public void recordMiss()
+    {
+        theMisses.increment();
+    }
+
+    /**
+     * Record that a value was successfully loaded or created because it was not found in the cache.
+     *
+     * @param nanos the time it took to load the value, in nanoseconds
+     */
+    public void recordLoad(
+            long nanos )
+    {
+        theLoads.increment();
+        theLoadTime.add( nanos );
+    }
+
+    /**
+     * Record that several values were successfully loaded or created together.
+     *
+     * @param count the number of values
+     * @param nanos the time it took to load all values, in nanoseconds
+     */
+    public void recordLoads(
+            int  count,
+            long nanos )
+    {
+        theLoads.add( count );
+        theLoadTime.add( nanos );
+    }
+
+    /**
+     * Record that a value could not be loaded or created.
+     *
+     * @param nanos the time it took until the load failed, in nanoseconds
+     */
+    public void recordLoadFailure(
+            long nanos )
+    {
+        theLoadFailures.increment();
+        theLoadTime.add( nanos );
+    }
+
+    /**
+     * Record that a value was evicted from the cache without having been removed by the client.
+     *
+     * @param cause the reason for the eviction
+     */
+    public void recordEviction(
+            EvictionCause cause )
+    {
+        theEvictions[ cause.ordinal() ].increment();
+    }
+
+    /**
+     * Obtain the number of hits.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount()
+    {
+        return theHits.sum();
+    }
+
+    /**
+     * Obtain the number of misses.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount()
+    {
+        return theMisses.sum();
+    }
+
+    /**
+     * Obtain the fraction of requests that were hits. Returns 1 if there were no requests.
+     *
+     * @return the hit ratio
+     */
+    public double getHitRatio()
+    {
+        long hits  = theHits.sum();
+        long total = hits + theMisses.sum();
+
+        return total == 0 ? 1. : ((double) hits) / total;
+    }
+
+    /**
+     * Obtain the number of successful loads.
+     *
+     * @return the number of loads
+     */
+    public long getLoadCount()
+    {
+        return theLoads.sum();
+    }
+
+    /**
+     * Obtain the number of failed loads.
+     *
+     * @return the number of failed loads
+     */
+    public long getLoadFailureCount()
+    {
+        return theLoadFailures.sum();
+    }
+
+    /**
+     * Obtain the total time spent loading, successfully or not, in nanoseconds.
+     *
+     * @return the total time
+     */
+    public long getTotalLoadTime()
+    {
+        return theLoadTime.sum();
+    }
+
+    /**
+     * Obtain the average time spent per load, successfully or not, in nanoseconds.
+     * Returns 0 if there were no loads.
+     *
+     * @return the average time
+     */
+    public long getAverageLoadTime()
+    {
+        long count = theLoads.sum() + theLoadFailures.sum();
+        return count == 0 ? 0L : theLoadTime.sum() / count;
+    }
+
+    /**
+     * Obtain the number of evictions for a given cause.
+     *
+     * @param cause the cause
+     * @return the number of evictions
+     */
+    public long getEvictionCount(
+            EvictionCause cause )
+    {
+        return theEvictions[ cause.ordinal() ].sum();
+    }
+
+    /**
+     * Obtain the number of evictions, regardless of cause.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount()
+    {
+        long ret = 0;
+        for( LongAdder current : theEvictions ) {
+            ret += current.sum();
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain the current number of entries in the cache.
+     *
+     * @return the number of entries
+     */
+    public int getSize()
+    {
+        return theOwner.size();
+    }
+
+    /**
+     * Reset all counters to zero. This is not atomic with respect to concurrent updates.
+     */
+    public void reset()
+    {
+        theHits.reset();
+        theMisses.reset();
+        theLoads.reset();
+        theLoadFailures.reset();
+        theLoadTime.reset();
+        for( LongAdder current : theEvictions ) {
+            current.reset();
+        }
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "size",
+                    "hits",
+                    "misses",
+                    "hitRatio",
+                    "loads",
+                    "loadFailures",
+                    "totalLoadTime (nsec)",
+                    "averageLoadTime (nsec)",
+                    "evictions (size)",
+                    "evictions (expired)",
+                    "evictions (collected)"
+                },
+                new Object[] {
+                    getSize(),
+                    getHitCount(),
+                    getMissCount(),
+                    getHitRatio(),
+                    getLoadCount(),
+                    getLoadFailureCount(),
+                    getTotalLoadTime(),
+                    getAverageLoadTime(),
+                    getEvictionCount( EvictionCause.SIZE ),
+                    getEvictionCount( EvictionCause.EXPIRED ),
+                    getEvictionCount( EvictionCause.COLLECTED )
+                } );
+    }
+
+    /**
+     * The cache that collects these statistics.
+     */
+    protected final HasCacheStatistics theOwner;
+
+    /**
+     * Number of hits.
+     */
+    protected final LongAdder theHits = new LongAdder();
+
+    /**
+     * Number of misses.
+     */
+    protected final LongAdder theMisses = new LongAdder();
+
+    /**
+     * Number of successful loads.
+     */
+    protected final LongAdder theLoads = new LongAdder();
+
+    /**
+     * Number of failed loads.
+     */
+    protected final LongAdder theLoadFailures = new LongAdder();
+
+    /**
+     * Total time spent loading, in nanoseconds.
+     */
+    protected final LongAdder theLoadTime = new LongAdder();
+
+    /**
+     * Number of evictions, indexed by the ordinal of the EvictionCause.
+     */
+    protected final LongAdder [] theEvictions;
+
+    /**
+     * The reasons why a cache may evict a value.
+     */
+    public static enum EvictionCause
+    {
+        /**
+         * The cache was full.
+         */
+        SIZE,
+
+        /**
+         * The value had been in the cache for too long.
+         */
+        EXPIRED,
+
+        /**
+         * The value was garbage-collected.
+         */
+        COLLECTED
+    }
+}
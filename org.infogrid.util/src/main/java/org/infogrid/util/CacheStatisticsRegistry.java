@@ -0,0 +1,140 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * Keeps track of named caches that collect {@link CacheStatistics}, so their
+ * statistics can be dumped together. Caches are held through WeakReferences, so
+ * registering a cache does not prevent it from being garbage-collected.
+ */
+public class CacheStatisticsRegistry
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @return the created CacheStatisticsRegistry
+     */
+    public static CacheStatisticsRegistry create()
+    {
+        return new CacheStatisticsRegistry();
+    }
+
+    /**
+     * Constructor, use factory method.
+     */
+    protected CacheStatisticsRegistry()
+    {
+        // no op
+    }
+
+    /**
+     * Obtain the singleton CacheStatisticsRegistry.
+     *
+     * @return the CacheStatisticsRegistry
+     */
+    public static CacheStatisticsRegistry getSingleton()
+    {
+        return theSingleton;
+    }
+
+    /**
+     * Register a cache under a name. This replaces any cache previously registered
+     * under the same name.
+     *
+     * @param name the name of the cache
+     * @param cache the cache
+     */
+    public synchronized void register(
+            String             name,
+            HasCacheStatistics cache )
+    {
+        theCaches.put( name, new WeakReference<HasCacheStatistics>( cache ));
+    }
+
+    /**
+     * Unregister the cache with this name.
+     *
+     * @param name the name of the cache
+     */
+    public synchronized void unregister(
+            String name )
+    {
+        theCaches.remove( name );
+    }
+
+    /**
+     * Obtain the cache registered under this name.
+     *
+     * @param name the name of the cache
+     * @return the cache, or null
+     */
+    public synchronized HasCacheStatistics get(
+            String name )
+    {
+        WeakReference<HasCacheStatistics> ref = theCaches.get( name );
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Dump the statistics of all registered caches that still exist.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        ArrayList<String>          names = new ArrayList<String>();
+        ArrayList<CacheStatistics> stats = new ArrayList<CacheStatistics>();
+
+        synchronized( this ) {
+            Iterator<Map.Entry<String,WeakReference<HasCacheStatistics>>> iter = theCaches.entrySet().iterator();
+            while( iter.hasNext() ) {
+                Map.Entry<String,WeakReference<HasCacheStatistics>> current = iter.next();
+                HasCacheStatistics cache = current.getValue().get();
+                if( cache == null ) {
+                    iter.remove();
+                } else {
+                    names.add( current.getKey() );
+                    stats.add( cache.getCacheStatistics() );
+                }
+            }
+        }
+        d.dump( this,
+                names.toArray( new String[ names.size() ] ),
+                stats.toArray( new Object[ stats.size() ] ));
+    }
+
+    /**
+     * The registered caches, keyed by name and sorted by name.
+     */
+    protected final TreeMap<String,WeakReference<HasCacheStatistics>> theCaches
+            = new TreeMap<String,WeakReference<HasCacheStatistics>>();
+
+    /**
+     * The singleton instance.
+     */
+    private static final CacheStatisticsRegistry theSingleton = new CacheStatisticsRegistry();
+}
@@ -0,0 +1,321 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.ArrayList;
+
+/**
+ * A thread-safe hash map whose keys are primitive <code>long</code>s. The mappings are
+ * spread over a number of LongHashMap segments, each guarded by its own lock, so threads
+ * that access different keys rarely contend. Values must not be null.
+ *
+ * @param <V> the type of value
+ */
+public class ConcurrentLongHashMap<V>
+{
+    /**
+     * Factory method.
+     *
+     * @return the created ConcurrentLongHashMap
+     * @param <V> the type of value
+     */
+    public static <V> ConcurrentLongHashMap<V> create()
+    {
+        return new ConcurrentLongHashMap<V>( DEFAULT_CONCURRENCY_LEVEL );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param concurrencyLevel the expected number of threads accessing the map at the same time
+     * @return the created ConcurrentLongHashMap
+     * @param <V> the type of value
+     */
+    public static <V> ConcurrentLongHashMap<V> create(
+            int concurrencyLevel )
+    {
+        return new ConcurrentLongHashMap<V>( concurrencyLevel );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param concurrencyLevel the expected number of threads accessing the map at the same time
+     */
+    @SuppressWarnings(value={"unchecked"})
+    protected ConcurrentLongHashMap(
+            int concurrencyLevel )
+    {
+        if( concurrencyLevel <= 0 ) {
+            throw new IllegalArgumentException( "Concurrency level must be positive: " + concurrencyLevel );
+        }
+        int n = 1;
+        while( n < concurrencyLevel ) {
+            n <<= 1;
+        }
+        theSegments    = new LongHashMap[ n ];
+        theSegmentMask = n - 1;
+
+        for( int i=0 ; i<n ; ++i ) {
+            theSegments[i] = LongHashMap.create();
+        }
+    }
+
+    /**
+     * Obtain the value for a key.
+     *
+     * @param key the key
+     * @return the value, or null if none
+     */
+    public V get(
+            long key )
+    {
+        LongHashMap<V> segment = segmentFor( key );
+        synchronized( segment ) {
+            return segment.get( key );
+        }
+    }
+
+    /**
+     * Determine whether there is a value for a key.
+     *
+     * @param key the key
+     * @return true if there is a value
+     */
+    public boolean containsKey(
+            long key )
+    {
+        LongHashMap<V> segment = segmentFor( key );
+        synchronized( segment ) {
+            return segment.containsKey( key );
+        }
+    }
+
+    /**
+     * Set the value for a key.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value for the key, if any
+     */
+    public V put(
+            long key,
+            V    value )
+    {
+        LongHashMap<V> segment = segmentFor( key );
+        synchronized( segment ) {
+            return segment.put( key, value );
+        }
+    }
+
+    /**
+     * Set the value for a key, unless there is one already.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the existing value for the key, or null if the value was set
+     */
+    public V putIfAbsent(
+            long key,
+            V    value )
+    {
+        LongHashMap<V> segment = segmentFor( key );
+        synchronized( segment ) {
+            V ret = segment.get( key );
+            if( ret == null ) {
+                segment.put( key, value );
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Remove the value for a key.
+     *
+     * @param key the key
+     * @return the removed value, if any
+     */
+    public V remove(
+            long key )
+    {
+        LongHashMap<V> segment = segmentFor( key );
+        synchronized( segment ) {
+            return segment.remove( key );
+        }
+    }
+
+    /**
+     * Remove the value for a key, but only if it is a particular value.
+     *
+     * @param key the key
+     * @param value the value
+     * @return true if the value was removed
+     */
+    public boolean remove(
+            long key,
+            V    value )
+    {
+        LongHashMap<V> segment = segmentFor( key );
+        synchronized( segment ) {
+            if( segment.get( key ) != value ) {
+                return false;
+            }
+            segment.remove( key );
+            return true;
+        }
+    }
+
+    /**
+     * Obtain the number of mappings. If the map is modified concurrently,
+     * this is an approximation.
+     *
+     * @return the number of mappings
+     */
+    public int size()
+    {
+        int ret = 0;
+        for( LongHashMap<V> segment : theSegments ) {
+            synchronized( segment ) {
+                ret += segment.size();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Determine whether there are no mappings.
+     *
+     * @return true if there are no mappings
+     */
+    public boolean isEmpty()
+    {
+        for( LongHashMap<V> segment : theSegments ) {
+            synchronized( segment ) {
+                if( !segment.isEmpty() ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all mappings.
+     */
+    public void clear()
+    {
+        for( LongHashMap<V> segment : theSegments ) {
+            synchronized( segment ) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Obtain a copy of the current keys. If the map is modified concurrently, the
+     * copy is consistent per segment only.
+     *
+     * @return the keys
+     */
+    public long [] keys()
+    {
+        long [][] perSegment = new long[ theSegments.length ][];
+        int       total      = 0;
+
+        for( int i=0 ; i<theSegments.length ; ++i ) {
+            synchronized( theSegments[i] ) {
+                perSegment[i] = theSegments[i].keys();
+            }
+            total += perSegment[i].length;
+        }
+        long [] ret = new long[ total ];
+        int     j   = 0;
+        for( long [] current : perSegment ) {
+            System.arraycopy( current, 0, ret, j, current.length );
+            j += current.length;
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain a copy of the current values. If the map is modified concurrently, the
+     * copy is consistent per segment only.
+     *
+     * @return the values
+     */
+    public ArrayList<V> values()
+    {
+        ArrayList<V> ret = new ArrayList<V>();
+        for( LongHashMap<V> segment : theSegments ) {
+            synchronized( segment ) {
+                ret.addAll( segment.values() );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append( '{' );
+        String sep = "";
+        for( LongHashMap<V> segment : theSegments ) {
+            synchronized( segment ) {
+                if( !segment.isEmpty() ) {
+                    String s = segment.toString();
+                    buf.append( sep ).append( s, 1, s.length()-1 );
+                    sep = ", ";
+                }
+            }
+        }
+        buf.append( '}' );
+        return buf.toString();
+    }
+
+    /**
+     * Find the segment responsible for a key. This uses different bits of the hash code
+     * than the segment itself does to find the slot.
+     *
+     * @param key the key
+     * @return the segment
+     */
+    protected LongHashMap<V> segmentFor(
+            long key )
+    {
+        return theSegments[ ( LongHashMap.hash( key ) >>> 24 ) & theSegmentMask ];
+    }
+
+    /**
+     * The segments.
+     */
+    protected final LongHashMap<V> [] theSegments;
+
+    /**
+     * The number of segments minus one, used to find segments.
+     */
+    protected final int theSegmentMask;
+
+    /**
+     * The default concurrency level.
+     */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+}
@@ -0,0 +1,334 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * <p>Records the distribution of non-negative values, such as latencies or sizes, with low overhead.
+ * Values are counted in buckets whose width grows with the value: each power of two is split
+ * into eight buckets, so percentiles are accurate to within 12.5%, and the whole range of long
+ * fits into fewer than 500 buckets.</p>
+ * <p>Recording does not lock and does not allocate, so it is cheap even if many Threads record
+ * concurrently. Reading is not atomic with respect to concurrent recording.</p>
+ */
+public class Histogram
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @param unit the unit of the recorded values, for dumping only
+     * @return the created Histogram
+     */
+    public static Histogram create(
+            String unit )
+    {
+        return new Histogram( unit );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param unit the unit of the recorded values, for dumping only
+     */
+    protected Histogram(
+            String unit )
+    {
+        theUnit = unit;
+    }
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    public void record(
+            long value )
+    {
+        if( value < 0 ) {
+            value = 0;
+        }
+        theCounts.incrementAndGet( bucketOf( value ));
+        theCount.increment();
+        theSum.add( value );
+
+        long current;
+        while( value < ( current = theMin.get() ) && !theMin.compareAndSet( current, value )) {}
+        while( value > ( current = theMax.get() ) && !theMax.compareAndSet( current, value )) {}
+    }
+
+    /**
+     * Obtain the number of recorded values.
+     *
+     * @return the number of values
+     */
+    public long getCount()
+    {
+        return theCount.sum();
+    }
+
+    /**
+     * Obtain the smallest recorded value. Returns 0 if no value has been recorded.
+     *
+     * @return the smallest value
+     */
+    public long getMin()
+    {
+        long ret = theMin.get();
+        return ret == Long.MAX_VALUE ? 0L : ret;
+    }
+
+    /**
+     * Obtain the largest recorded value. Returns 0 if no value has been recorded.
+     *
+     * @return the largest value
+     */
+    public long getMax()
+    {
+        return theMax.get();
+    }
+
+    /**
+     * Obtain the average of the recorded values. Returns 0 if no value has been recorded.
+     *
+     * @return the average
+     */
+    public double getMean()
+    {
+        long count = theCount.sum();
+        return count == 0 ? 0. : ((double) theSum.sum()) / count;
+    }
+
+    /**
+     * Obtain an approximation of the value below or at which a fraction of the recorded
+     * values lie. Returns 0 if no value has been recorded.
+     *
+     * @param fraction the fraction, e.g. 0.99 for the 99th percentile
+     * @return the value
+     */
+    public long getPercentile(
+            double fraction )
+    {
+        if( fraction < 0. || fraction > 1. ) {
+            throw new IllegalArgumentException( "Fraction must be between 0 and 1: " + fraction );
+        }
+        long total = 0L;
+        for( int i=0 ; i<BUCKETS ; ++i ) {
+            total += theCounts.get( i );
+        }
+        if( total == 0L ) {
+            return 0L;
+        }
+        long rank = Math.max( 1L, (long) Math.ceil( fraction * total ));
+        long seen = 0L;
+        for( int i=0 ; i<BUCKETS ; ++i ) {
+            seen += theCounts.get( i );
+            if( seen >= rank ) {
+                long ret = Math.min( upperBoundOf( i ), getMax() );
+                return Math.max( ret, getMin() );
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Obtain the number of recorded values per bucket, for those buckets that have any.
+     * Each entry is the inclusive upper bound of the bucket and the number of values in it.
+     *
+     * @return the non-empty buckets, in increasing order of their bounds
+     */
+    public long [][] getBuckets()
+    {
+        int count = 0;
+        long [] snapshot = new long[ BUCKETS ];
+        for( int i=0 ; i<BUCKETS ; ++i ) {
+            snapshot[i] = theCounts.get( i );
+            if( snapshot[i] > 0 ) {
+                ++count;
+            }
+        }
+        long [][] ret = new long[ count ][];
+        count = 0;
+        for( int i=0 ; i<BUCKETS ; ++i ) {
+            if( snapshot[i] > 0 ) {
+                ret[ count++ ] = new long[] { upperBoundOf( i ), snapshot[i] };
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain the unit of the recorded values.
+     *
+     * @return the unit
+     */
+    public String getUnit()
+    {
+        return theUnit;
+    }
+
+    /**
+     * Reset to no recorded values. This is not atomic with respect to concurrent recording.
+     */
+    public void reset()
+    {
+        for( int i=0 ; i<BUCKETS ; ++i ) {
+            theCounts.set( i, 0L );
+        }
+        theCount.reset();
+        theSum.reset();
+        theMin.set( Long.MAX_VALUE );
+        theMax.set( 0L );
+    }
+
+    /**
+     * Determine the bucket of a value.
+     *
+     * @param value the value, not negative
+     * @return the index of the bucket
+     */
+    protected static int bucketOf(
+            long value )
+    {
+        if( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( value ); // at least SUB_BUCKET_BITS
+        int sub      = (int) ( value >>> ( exponent - SUB_BUCKET_BITS )) & ( SUB_BUCKETS - 1 );
+
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Determine the largest value that falls into a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the largest value
+     */
+    protected static long upperBoundOf(
+            int bucket )
+    {
+        if( bucket < SUB_BUCKETS ) {
+            return bucket;
+        }
+        int  exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int  sub      = bucket % SUB_BUCKETS;
+        long width    = 1L << ( exponent - SUB_BUCKET_BITS );
+        long lower    = ( SUB_BUCKETS + sub ) * width;
+
+        return lower + ( width - 1 );
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "unit",
+                    "count",
+                    "min",
+                    "mean",
+                    "p50",
+                    "p90",
+                    "p99",
+                    "p999",
+                    "max"
+                },
+                new Object[] {
+                    theUnit,
+                    getCount(),
+                    getMin(),
+                    getMean(),
+                    getPercentile( 0.5 ),
+                    getPercentile( 0.9 ),
+                    getPercentile( 0.99 ),
+                    getPercentile( 0.999 ),
+                    getMax()
+                } );
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount()
+                + " min=" + getMin()
+                + " p50=" + getPercentile( 0.5 )
+                + " p99=" + getPercentile( 0.99 )
+                + " max=" + getMax()
+                + " " + theUnit;
+    }
+
+    /**
+     * The unit of the recorded values, for dumping only.
+     */
+    protected final String theUnit;
+
+    /**
+     * The number of values per bucket.
+     */
+    protected final AtomicLongArray theCounts = new AtomicLongArray( BUCKETS );
+
+    /**
+     * The number of recorded values.
+     */
+    protected final LongAdder theCount = new LongAdder();
+
+    /**
+     * The sum of the recorded values.
+     */
+    protected final LongAdder theSum = new LongAdder();
+
+    /**
+     * The smallest recorded value, or Long.MAX_VALUE if none.
+     */
+    protected final AtomicLong theMin = new AtomicLong( Long.MAX_VALUE );
+
+    /**
+     * The largest recorded value, or 0 if none.
+     */
+    protected final AtomicLong theMax = new AtomicLong( 0L );
+
+    /**
+     * The number of bits that determine the bucket within a power of two.
+     */
+    protected static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of buckets per power of two.
+     */
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The total number of buckets.
+     */
+    protected static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+}
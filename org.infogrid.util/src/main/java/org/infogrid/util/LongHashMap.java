@@ -0,0 +1,377 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.ArrayList;
+
+/**
+ * A hash map whose keys are primitive <code>long</code>s. It uses open addressing
+ * with linear probing in two parallel arrays, so it neither boxes keys nor allocates
+ * an entry object per mapping. This makes it several times more compact than a
+ * <code>HashMap&lt;Long,V&gt;</code>. Values must not be null. This class is not
+ * thread-safe.
+ *
+ * @param <V> the type of value
+ */
+public class LongHashMap<V>
+{
+    /**
+     * Factory method.
+     *
+     * @return the created LongHashMap
+     * @param <V> the type of value
+     */
+    public static <V> LongHashMap<V> create()
+    {
+        return new LongHashMap<V>( DEFAULT_INITIAL_CAPACITY );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param initialCapacity the number of mappings the LongHashMap can hold without growing
+     * @return the created LongHashMap
+     * @param <V> the type of value
+     */
+    public static <V> LongHashMap<V> create(
+            int initialCapacity )
+    {
+        return new LongHashMap<V>( initialCapacity );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param initialCapacity the number of mappings the LongHashMap can hold without growing
+     */
+    protected LongHashMap(
+            int initialCapacity )
+    {
+        if( initialCapacity < 0 ) {
+            throw new IllegalArgumentException( "Negative initial capacity: " + initialCapacity );
+        }
+        allocate( tableSizeFor( initialCapacity ));
+    }
+
+    /**
+     * Obtain the value for a key.
+     *
+     * @param key the key
+     * @return the value, or null if none
+     */
+    @SuppressWarnings(value={"unchecked"})
+    public V get(
+            long key )
+    {
+        int i = indexOf( key );
+        return i >= 0 ? (V) theValues[i] : null;
+    }
+
+    /**
+     * Determine whether there is a value for a key.
+     *
+     * @param key the key
+     * @return true if there is a value
+     */
+    public boolean containsKey(
+            long key )
+    {
+        return indexOf( key ) >= 0;
+    }
+
+    /**
+     * Set the value for a key.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value for the key, if any
+     */
+    @SuppressWarnings(value={"unchecked"})
+    public V put(
+            long key,
+            V    value )
+    {
+        if( value == null ) {
+            throw new NullPointerException( "Must not provide null value" );
+        }
+        int i = hash( key ) & theMask;
+        while( true ) {
+            Object current = theValues[i];
+            if( current == null ) {
+                break;
+            }
+            if( theKeys[i] == key ) {
+                theValues[i] = value;
+                return (V) current;
+            }
+            i = ( i+1 ) & theMask;
+        }
+        theKeys[i]   = key;
+        theValues[i] = value;
+
+        if( ++theSize > theThreshold ) {
+            resize( theValues.length * 2 );
+        }
+        return null;
+    }
+
+    /**
+     * Remove the value for a key.
+     *
+     * @param key the key
+     * @return the removed value, if any
+     */
+    @SuppressWarnings(value={"unchecked"})
+    public V remove(
+            long key )
+    {
+        int i = indexOf( key );
+        if( i < 0 ) {
+            return null;
+        }
+        V ret = (V) theValues[i];
+
+        // shift back subsequent entries of the same probe sequence, so no tombstones are needed
+        int j = i;
+        while( true ) {
+            j = ( j+1 ) & theMask;
+            if( theValues[j] == null ) {
+                break;
+            }
+            int home = hash( theKeys[j] ) & theMask;
+            boolean stays = ( i <= j ) ? ( i < home && home <= j ) : ( i < home || home <= j );
+            if( !stays ) {
+                theKeys[i]   = theKeys[j];
+                theValues[i] = theValues[j];
+                i = j;
+            }
+        }
+        theKeys[i]   = 0L;
+        theValues[i] = null;
+        --theSize;
+
+        return ret;
+    }
+
+    /**
+     * Obtain the number of mappings.
+     *
+     * @return the number of mappings
+     */
+    public int size()
+    {
+        return theSize;
+    }
+
+    /**
+     * Determine whether there are no mappings.
+     *
+     * @return true if there are no mappings
+     */
+    public boolean isEmpty()
+    {
+        return theSize == 0;
+    }
+
+    /**
+     * Remove all mappings.
+     */
+    public void clear()
+    {
+        for( int i=0 ; i<theValues.length ; ++i ) {
+            theKeys[i]   = 0L;
+            theValues[i] = null;
+        }
+        theSize = 0;
+    }
+
+    /**
+     * Obtain a copy of the current keys.
+     *
+     * @return the keys
+     */
+    public long [] keys()
+    {
+        long [] ret = new long[ theSize ];
+        int     j   = 0;
+        for( int i=0 ; i<theValues.length ; ++i ) {
+            if( theValues[i] != null ) {
+                ret[j++] = theKeys[i];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain a copy of the current values.
+     *
+     * @return the values
+     */
+    @SuppressWarnings(value={"unchecked"})
+    public ArrayList<V> values()
+    {
+        ArrayList<V> ret = new ArrayList<V>( theSize );
+        for( int i=0 ; i<theValues.length ; ++i ) {
+            if( theValues[i] != null ) {
+                ret.add( (V) theValues[i] );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append( '{' );
+        String sep = "";
+        for( int i=0 ; i<theValues.length ; ++i ) {
+            if( theValues[i] != null ) {
+                buf.append( sep ).append( theKeys[i] ).append( '=' ).append( theValues[i] );
+                sep = ", ";
+            }
+        }
+        buf.append( '}' );
+        return buf.toString();
+    }
+
+    /**
+     * Find the slot of a key.
+     *
+     * @param key the key
+     * @return the index of the slot, or -1 if the key is not present
+     */
+    protected int indexOf(
+            long key )
+    {
+        int i = hash( key ) & theMask;
+        while( theValues[i] != null ) {
+            if( theKeys[i] == key ) {
+                return i;
+            }
+            i = ( i+1 ) & theMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Grow the tables and re-insert all mappings.
+     *
+     * @param newLength the new length of the tables, a power of two
+     */
+    protected void resize(
+            int newLength )
+    {
+        long []   oldKeys   = theKeys;
+        Object [] oldValues = theValues;
+
+        allocate( newLength );
+
+        for( int i=0 ; i<oldValues.length ; ++i ) {
+            if( oldValues[i] != null ) {
+                int j = hash( oldKeys[i] ) & theMask;
+                while( theValues[j] != null ) {
+                    j = ( j+1 ) & theMask;
+                }
+                theKeys[j]   = oldKeys[i];
+                theValues[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Allocate empty tables.
+     *
+     * @param length the length of the tables, a power of two
+     */
+    private void allocate(
+            int length )
+    {
+        theKeys      = new long[ length ];
+        theValues    = new Object[ length ];
+        theMask      = length - 1;
+        theThreshold = (int) ( length * LOAD_FACTOR );
+    }
+
+    /**
+     * Determine the table length for a number of mappings.
+     *
+     * @param capacity the number of mappings
+     * @return the table length, a power of two
+     */
+    protected static int tableSizeFor(
+            int capacity )
+    {
+        int ret = 2;
+        while( ret * LOAD_FACTOR < capacity ) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+
+    /**
+     * Spread the bits of a key, so that sequential keys do not cluster.
+     *
+     * @param key the key
+     * @return the hash code
+     */
+    protected static int hash(
+            long key )
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ( h ^ ( h >>> 32 ));
+    }
+
+    /**
+     * The keys, indexed by slot.
+     */
+    protected long [] theKeys;
+
+    /**
+     * The values, indexed by slot. A null value indicates an empty slot.
+     */
+    protected Object [] theValues;
+
+    /**
+     * The length of the tables minus one, used to compute slots.
+     */
+    protected int theMask;
+
+    /**
+     * The number of mappings.
+     */
+    protected int theSize;
+
+    /**
+     * The number of mappings beyond which the tables grow.
+     */
+    protected int theThreshold;
+
+    /**
+     * The default initial capacity.
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum fraction of occupied slots.
+     */
+    protected static final float LOAD_FACTOR = 0.7f;
+}
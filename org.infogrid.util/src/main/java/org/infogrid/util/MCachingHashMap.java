@@ -21,6 +21,8 @@ import java.util.Map;
 
 /**
  * A degenerate implementation of {@link CachingMap} that uses a memory-only <code>HashMap</code>.
+ * As values never leave this map unless removed by the client, it only counts hits and misses
+ * in its {@link CacheStatistics}.
  * 
  * @param <K> the type of key
  * @param <V> the type of value
@@ -29,7 +31,8 @@ public class MCachingHashMap<K,V>
         extends
             HashMap<K,V>
         implements
-            CachingMap<K,V>
+            CachingMap<K,V>,
+            HasCacheStatistics
 {
     private static final long serialVersionUID = 1L; // helps with serialization
 
@@ -132,6 +135,26 @@ public class MCachingHashMap<K,V>
         super( initialCapacity, loadFactor );
     }
 
+    /**
+     * Obtain a value.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or <tt>null</tt>
+     */
+    @Override
+    public V get(
+            Object key )
+    {
+        V ret = super.get( key );
+
+        if( ret != null ) {
+            getCacheStatistics().recordHit();
+        } else {
+            getCacheStatistics().recordMiss();
+        }
+        return ret;
+    }
+
     /**
      * Add a value.
      *
@@ -372,6 +395,27 @@ public class MCachingHashMap<K,V>
         theListeners.remove( oldListener );
     }
 
+    /**
+     * Obtain the statistics collected by this cache.
+     *
+     * @return the CacheStatistics
+     */
+    public CacheStatistics getCacheStatistics()
+    {
+        CacheStatistics ret = theStatistics;
+        if( ret == null ) {
+            // after deserialization
+            ret = CacheStatistics.create( this );
+            theStatistics = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * The statistics collected by this cache.
+     */
+    private transient CacheStatistics theStatistics = CacheStatistics.create( this );
+
     /**
       * The listeners (if any).
       */
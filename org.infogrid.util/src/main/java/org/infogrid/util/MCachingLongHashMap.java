@@ -0,0 +1,421 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A memory-only implementation of {@link CachingMap} for <code>Long</code> keys, backed
+ * by a {@link LongHashMap}. It can be used as the storage of a {@link MSmartFactory} with
+ * many <code>Long</code>-keyed values at a fraction of the memory of {@link MCachingHashMap}.
+ * Callers that have primitive keys should use the <code>long</code> variants of the
+ * methods to avoid boxing. Unlike <code>java.util.HashMap</code>, this does not
+ * support null values, and {@link #keySet}, {@link #values} and {@link #entrySet}
+ * return copies instead of views.
+ *
+ * @param <V> the type of value
+ */
+public class MCachingLongHashMap<V>
+        extends
+            AbstractCachingMap<Long,V>
+        implements
+            HasCacheStatistics
+{
+    /**
+     * Factory method.
+     *
+     * @return the created MCachingLongHashMap
+     * @param <V> the type of value
+     */
+    public static <V> MCachingLongHashMap<V> create()
+    {
+        return new MCachingLongHashMap<V>( DEFAULT_INITIAL_CAPACITY );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param initialCapacity the initial capacity of the MCachingLongHashMap
+     * @return the created MCachingLongHashMap
+     * @param <V> the type of value
+     */
+    public static <V> MCachingLongHashMap<V> create(
+            int initialCapacity )
+    {
+        return new MCachingLongHashMap<V>( initialCapacity );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity the initial capacity of the MCachingLongHashMap
+     */
+    protected MCachingLongHashMap(
+            int initialCapacity )
+    {
+        theDelegate = LongHashMap.create( initialCapacity );
+    }
+
+    /**
+     * Obtain a value.
+     *
+     * @param key the key
+     * @return the value, or null
+     */
+    public V get(
+            long key )
+    {
+        V ret = theDelegate.get( key );
+
+        if( ret != null ) {
+            theStatistics.recordHit();
+        } else {
+            theStatistics.recordMiss();
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain a value.
+     *
+     * @param key the key
+     * @return the value, or null
+     */
+    public V get(
+            Object key )
+    {
+        if( key instanceof Long ) {
+            return get( ((Long) key).longValue() );
+        }
+        theStatistics.recordMiss();
+        return null;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value for the key, if any
+     */
+    public V put(
+            long key,
+            V    value )
+    {
+        V ret = theDelegate.put( key, value );
+
+        if( ret != null ) {
+            fireValueRemoved( key );
+        }
+        fireValueAdded( key, value );
+
+        return ret;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value for the key, if any
+     */
+    public V put(
+            Long key,
+            V    value )
+    {
+        return put( key.longValue(), value );
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     * This is the same operation as <code>put</code>, but does not return the previous
+     * value.
+     *
+     * @param key key with which the specified value is to be associated.
+     * @param value value to be associated with the specified key.
+     */
+    public void putIgnorePrevious(
+            Long key,
+            V    value )
+    {
+        put( key.longValue(), value );
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map.
+     *
+     * @param t Mappings to be stored in this map.
+     */
+    public void putAll(
+            Map<? extends Long,? extends V> t )
+    {
+        for( Map.Entry<? extends Long,? extends V> current : t.entrySet() ) {
+            put( current.getKey().longValue(), current.getValue() );
+        }
+    }
+
+    /**
+     * Remove a value.
+     *
+     * @param key the key
+     * @return the removed value, if any
+     */
+    public V remove(
+            long key )
+    {
+        V ret = theDelegate.remove( key );
+
+        if( ret != null ) {
+            fireValueRemoved( key );
+        }
+        return ret;
+    }
+
+    /**
+     * Remove a value.
+     *
+     * @param key the key
+     * @return the removed value, if any
+     */
+    public V remove(
+            Object key )
+    {
+        if( key instanceof Long ) {
+            return remove( ((Long) key).longValue() );
+        }
+        return null;
+    }
+
+    /**
+     * Determine whether there is a value for a key.
+     *
+     * @param key the key
+     * @return true if there is a value
+     */
+    public boolean containsKey(
+            long key )
+    {
+        return theDelegate.containsKey( key );
+    }
+
+    /**
+     * Determine whether there is a value for a key.
+     *
+     * @param key the key
+     * @return true if there is a value
+     */
+    public boolean containsKey(
+            Object key )
+    {
+        if( key instanceof Long ) {
+            return theDelegate.containsKey( ((Long) key).longValue() );
+        }
+        return false;
+    }
+
+    /**
+     * Determine whether a value is contained. This is a linear search.
+     *
+     * @param value the value
+     * @return true if it is contained
+     */
+    public boolean containsValue(
+            Object value )
+    {
+        if( value == null ) {
+            return false;
+        }
+        for( V current : theDelegate.values() ) {
+            if( value.equals( current )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Obtain the number of mappings.
+     *
+     * @return the number of mappings
+     */
+    public int size()
+    {
+        return theDelegate.size();
+    }
+
+    /**
+     * Determine whether there are no mappings.
+     *
+     * @return true if there are no mappings
+     */
+    public boolean isEmpty()
+    {
+        return theDelegate.isEmpty();
+    }
+
+    /**
+     * Remove all mappings.
+     */
+    public void clear()
+    {
+        theDelegate.clear();
+    }
+
+    /**
+     * Obtain a copy of the current keys.
+     *
+     * @return the keys
+     */
+    public long [] keys()
+    {
+        return theDelegate.keys();
+    }
+
+    /**
+     * Obtain a copy of the set of keys. Unlike <code>java.util.Map</code>, this is not a view.
+     *
+     * @return the keys
+     */
+    public Set<Long> keySet()
+    {
+        long []       keys = theDelegate.keys();
+        HashSet<Long> ret  = new HashSet<Long>( keys.length * 4 / 3 + 1 );
+        for( long current : keys ) {
+            ret.add( current );
+        }
+        return ret;
+    }
+
+    /**
+     * Obtain a copy of the values. Unlike <code>java.util.Map</code>, this is not a view.
+     *
+     * @return the values
+     */
+    public Collection<V> values()
+    {
+        return theDelegate.values();
+    }
+
+    /**
+     * Obtain a copy of the mappings. Unlike <code>java.util.Map</code>, this is not a view.
+     *
+     * @return the mappings
+     */
+    public Set<Map.Entry<Long,V>> entrySet()
+    {
+        long []                    keys = theDelegate.keys();
+        HashSet<Map.Entry<Long,V>> ret  = new HashSet<Map.Entry<Long,V>>( keys.length * 4 / 3 + 1 );
+        for( long current : keys ) {
+            ret.add( new AbstractMap.SimpleImmutableEntry<Long,V>( current, theDelegate.get( current )));
+        }
+        return ret;
+    }
+
+    /**
+     * Clear the local cache.
+     */
+    public void clearLocalCache()
+    {
+        // do nothing, we have memory only
+    }
+
+    /**
+     * Determine whether this CachingMap is persistent.
+     *
+     * @return true if it is persistent
+     */
+    public boolean isPersistent()
+    {
+        return false;
+    }
+
+    /**
+     * Obtain a CursorIterator on the keys of this Map.
+     *
+     * @param keyArrayComponentType the class using which arrays of keys are allocated
+     * @param valueArrayComponentType the class using which arrays of values are allocated
+     * @return the CursorIterator
+     */
+    public CursorIterator<Long> keysIterator(
+            Class<Long> keyArrayComponentType,
+            Class<V>    valueArrayComponentType )
+    {
+        return MapCursorIterator.<Long,V>createForKeys( this, keyArrayComponentType, valueArrayComponentType );
+    }
+
+    /**
+     * Obtain a CursorIterator on the values of this Map.
+     *
+     * @param keyArrayComponentType the class using which arrays of keys are allocated
+     * @param valueArrayComponentType the class using which arrays of values are allocated
+     * @return the CursorIterator
+     */
+    public CursorIterator<V> valuesIterator(
+            Class<Long> keyArrayComponentType,
+            Class<V>    valueArrayComponentType )
+    {
+        return MapCursorIterator.<Long,V>createForValues( this, keyArrayComponentType, valueArrayComponentType );
+    }
+
+    /**
+     * Invoked only by objects held in this CachingMap, this enables
+     * the held objects to indicate to the CachingMap that they have been updated.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void valueUpdated(
+            Long key,
+            V    value )
+    {
+        // no op
+    }
+
+    /**
+     * Obtain the statistics collected by this cache.
+     *
+     * @return the CacheStatistics
+     */
+    public CacheStatistics getCacheStatistics()
+    {
+        return theStatistics;
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + theDelegate.toString();
+    }
+
+    /**
+     * The underlying storage.
+     */
+    protected final LongHashMap<V> theDelegate;
+
+    /**
+     * The statistics collected by this cache.
+     */
+    protected final CacheStatistics theStatistics = CacheStatistics.create( this );
+}
@@ -16,6 +16,9 @@ package org.infogrid.util;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
@@ -26,6 +29,8 @@ import org.infogrid.util.logging.Log;
  * objects in memory. The {@link #obtainFor} method in this
  * class assumes that object creation by the delegate {@link Factory} is fast. If it is not,
  * use {@link PatientSmartFactory PatientSmartFactory} instead of this class.
+ * If the delegate Factory is a {@link BatchFactory}, {@link #obtainForAll} creates
+ * all missing values with a single invocation of the delegate.
  * 
  * @param <K> the type of key
  * @param <V> the type of value
@@ -36,6 +41,7 @@ public class MSmartFactory<K,V,A>
             AbstractSmartFactory<K,V,A>
         implements
             SmartFactory<K,V,A>,
+            HasCacheStatistics,
             CanBeDumped
 {
     private static final Log log = Log.getLogInstance( MSmartFactory.class ); // our own, private logger
@@ -185,11 +191,18 @@ public class MSmartFactory<K,V,A>
 
         synchronized( theKeyValueMap ) {
             ret = theKeyValueMap.get( key );
-            if( ret == null && theDelegateFactory != null ) {
-                weAreCreating = true;
-                ret = theDelegateFactory.obtainFor( key, argument );
-                
-                theKeyValueMap.put( key, ret );
+            if( ret != null ) {
+                theStatistics.recordHit();
+
+            } else {
+                theStatistics.recordMiss();
+
+                if( theDelegateFactory != null ) {
+                    weAreCreating = true;
+                    ret = createWithDelegate( key, argument );
+
+                    theKeyValueMap.put( key, ret );
+                }
             }
             if( ret instanceof FactoryCreatedObject ) {
                 FactoryCreatedObject<K,V,A> realRet = (FactoryCreatedObject<K,V,A>) ret;
@@ -204,6 +217,164 @@ public class MSmartFactory<K,V,A>
         return ret;
     }
 
+    /**
+     * Bulk factory method. Create new, or obtain already existing values for all
+     * provided keys. The already existing values are found in a single pass while holding
+     * the lock on the storage. The missing values are created by a single invocation of
+     * the delegate Factory if it is a {@link BatchFactory}, or one invocation per missing key
+     * otherwise, and are then all inserted into the storage before the lock is released.
+     * Only values for keys that were missing are accepted from the delegate Factory; others
+     * it may return are ignored.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys;
+     *         keys for which no value could be found or created map to null
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    @Override
+    @SuppressWarnings(value={"unchecked"})
+    public Map<K,V> obtainForAll(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException
+    {
+        if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "obtainForAll", keys, argument );
+        }
+
+        Map<K,V> ret     = new LinkedHashMap<K,V>( keys.size() * 4 / 3 + 1 );
+        Map<K,V> created = null;
+
+        synchronized( theKeyValueMap ) {
+            LinkedHashSet<K> missing = new LinkedHashSet<K>();
+            for( K key : keys ) {
+                if( ret.containsKey( key )) {
+                    continue; // duplicate key
+                }
+                V found = theKeyValueMap.get( key );
+                ret.put( key, found ); // insert even if null, so the sequence is preserved
+                if( found != null ) {
+                    theStatistics.recordHit();
+                } else {
+                    theStatistics.recordMiss();
+                    missing.add( key );
+                }
+            }
+
+            if( !missing.isEmpty() && theDelegateFactory != null ) {
+                Map<K,V> delegateCreated = createAllWithDelegate( missing, argument );
+
+                created = new LinkedHashMap<K,V>( delegateCreated.size() * 4 / 3 + 1 );
+                for( Map.Entry<K,V> current : delegateCreated.entrySet() ) {
+                    K key   = current.getKey();
+                    V value = current.getValue();
+
+                    if( value == null || !missing.remove( key )) {
+                        continue; // not created, or not asked for: do not overwrite what we have
+                    }
+                    theKeyValueMap.put( key, value );
+                    ret.put( key, value );
+                    created.put( key, value );
+                }
+            }
+            for( V current : ret.values() ) {
+                if( current instanceof FactoryCreatedObject ) {
+                    FactoryCreatedObject<K,V,A> realCurrent = (FactoryCreatedObject<K,V,A>) current;
+                    if( realCurrent.getFactory() == null ) {
+                        realCurrent.setFactory( this );
+                    }
+                }
+            }
+        }
+        if( created != null ) {
+            for( Map.Entry<K,V> current : created.entrySet() ) {
+                createdHook( current.getKey(), current.getValue(), argument );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Create the values for the provided keys using the delegate Factory. This uses a
+     * single invocation if the delegate Factory is a {@link BatchFactory}. Keys for
+     * which the delegate Factory does not create a value are absent from the returned Map.
+     *
+     * @param keys the keys for which values shall be created
+     * @param argument the argument to pass through to the delegate Factory
+     * @return the created values, keyed by their keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    @SuppressWarnings(value={"unchecked"})
+    protected Map<K,V> createAllWithDelegate(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException
+    {
+        Map<K,V> ret;
+        if( theDelegateFactory instanceof BatchFactory ) {
+            long start = System.nanoTime();
+            try {
+                ret = ((BatchFactory<K,V,A>) theDelegateFactory).obtainForAll( keys, argument );
+
+            } catch( FactoryException ex ) {
+                theStatistics.recordLoadFailure( System.nanoTime() - start );
+                throw ex;
+
+            } catch( RuntimeException ex ) {
+                theStatistics.recordLoadFailure( System.nanoTime() - start );
+                throw ex;
+            }
+            if( ret == null ) {
+                ret = new LinkedHashMap<K,V>();
+            }
+            theStatistics.recordLoads( ret.size(), System.nanoTime() - start );
+        } else {
+            ret = new LinkedHashMap<K,V>( keys.size() * 4 / 3 + 1 );
+            for( K key : keys ) {
+                V value = createWithDelegate( key, argument );
+                if( value != null ) {
+                    ret.put( key, value );
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Create the value for the provided key using the delegate Factory, and record
+     * the time it took in the CacheStatistics.
+     *
+     * @param key the key for which a value shall be created
+     * @param argument the argument to pass through to the delegate Factory
+     * @return the created value
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    protected V createWithDelegate(
+            K key,
+            A argument )
+        throws
+            FactoryException
+    {
+        long    start   = System.nanoTime();
+        boolean success = false;
+        try {
+            V ret = theDelegateFactory.obtainFor( key, argument );
+            success = ret != null;
+            return ret;
+
+        } finally {
+            if( success ) {
+                theStatistics.recordLoad( System.nanoTime() - start );
+            } else {
+                theStatistics.recordLoadFailure( System.nanoTime() - start );
+            }
+        }
+    }
+
     /**
      * Factory method. This method will only be successful if the SmartFactory does not have
      * an object with the key yet; otherwise it throws an ObjectExistsAlreadyFactoryException.
@@ -232,7 +403,7 @@ public class MSmartFactory<K,V,A>
             ret = theKeyValueMap.get( key );
             if( ret == null && theDelegateFactory != null ) {
                 weAreCreating = true;
-                ret = theDelegateFactory.obtainFor( key, argument );
+                ret = createWithDelegate( key, argument );
                 
                 theKeyValueMap.put( key, ret );
             } else {
@@ -425,6 +596,18 @@ public class MSmartFactory<K,V,A>
         return theKeyValueMap;
     }
 
+    /**
+     * Obtain the statistics collected by this SmartFactory. Hits and misses are
+     * counted by {@link #obtainFor(Object,Object) obtainFor} and {@link #obtainForAll(Collection,Object) obtainForAll},
+     * and loads are invocations of the delegate Factory.
+     *
+     * @return the CacheStatistics
+     */
+    public CacheStatistics getCacheStatistics()
+    {
+        return theStatistics;
+    }
+
     /**
      * Dump this object.
      *
@@ -436,11 +619,13 @@ public class MSmartFactory<K,V,A>
         d.dump( this,
                 new String[] {
                     "theDelegateFactory",
-                    "theKeyValueMap"
+                    "theKeyValueMap",
+                    "theStatistics"
                 },
                 new Object[] {
                     theDelegateFactory,
-                    theKeyValueMap
+                    theKeyValueMap,
+                    theStatistics
                 } );
     }
 
@@ -453,4 +638,9 @@ public class MSmartFactory<K,V,A>
       * Our current values, keyed by our keys.
       */
     protected final CachingMap<K,V> theKeyValueMap;
+
+    /**
+     * The statistics collected by this SmartFactory.
+     */
+    protected final CacheStatistics theStatistics = CacheStatistics.create( this );
 }
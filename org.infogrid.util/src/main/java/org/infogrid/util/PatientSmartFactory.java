@@ -14,8 +14,10 @@
 
 package org.infogrid.util;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
 import org.infogrid.util.logging.Log;
@@ -28,6 +30,9 @@ import org.infogrid.util.logging.Log;
  * 
  * <p>It performs the actual object creation by delegating to another {@link Factory}.</p>
  *
+ * <p>Threads waiting for an ongoing creation wait on a latch, not on a monitor, so a waiting
+ *    virtual Thread does not pin its carrier Thread.</p>
+ *
  * <p>This currently blocks while objects are removed. This could potentially be made to
  *    be more friendly to Threads.</p>
  * 
@@ -55,7 +60,7 @@ public class PatientSmartFactory<K,V,A>
     {
         super( delegateFactory, storage );
 
-        theOngoingObjectCreations = new HashMap<K,Object>(); // FIXME? We don't know the right size here
+        theOngoingObjectCreations = new HashMap<K,CountDownLatch>(); // FIXME? We don't know the right size here
     }
 
     /**
@@ -80,50 +85,49 @@ public class PatientSmartFactory<K,V,A>
 
         V ret;
 
-        boolean weAreCreating       = false;
-        Object  creationSyncObject  = null;
+        boolean        weAreCreating = false;
+        CountDownLatch creation      = null;
 
         synchronized( theKeyValueMap ) {
             ret = theKeyValueMap.get( key );
-            if( ret == null ) {
-                creationSyncObject = theOngoingObjectCreations.get( key );
-                if( creationSyncObject == null ) {
+            if( ret != null ) {
+                theStatistics.recordHit();
+            } else {
+                theStatistics.recordMiss();
+                creation = theOngoingObjectCreations.get( key );
+                if( creation == null ) {
                     weAreCreating = true;
-                    creationSyncObject = new Object();
-                    theOngoingObjectCreations.put( key, creationSyncObject );
+                    creation = new CountDownLatch( 1 );
+                    theOngoingObjectCreations.put( key, creation );
                 }
             }
         }
 
         if( ret == null ) {
             if( weAreCreating ) {
-                synchronized( creationSyncObject ) {
+                try {
+                    ret = createWithDelegate( key, argument );
 
-                    try {
-                        ret = theDelegateFactory.obtainFor( key, argument );
+                } finally {
+                    synchronized( theKeyValueMap ) {
                         if( ret != null ) {
-                            synchronized( theKeyValueMap ) {
-                                theKeyValueMap.put( key, ret );
-                            }
+                            theKeyValueMap.put( key, ret );
                         }
-                    } finally {
                         theOngoingObjectCreations.remove( key );
-                        creationSyncObject.notifyAll();
                     }
+                    creation.countDown();
                 }
             } else {
-                synchronized( creationSyncObject ) {
-                    try {
-                        if( theOngoingObjectCreations.get( key ) != null ) {
-                            creationSyncObject.wait();
-                        }
+                try {
+                    creation.await();
 
-                    } catch( InterruptedException ex ) {
-                        log.error( ex );
-                        return null;
-                    }
+                } catch( InterruptedException ex ) {
+                    log.error( ex );
+                    return null;
+                }
+                synchronized( theKeyValueMap ) {
+                    ret = theKeyValueMap.get( key );
                 }
-                ret = theKeyValueMap.get( key );
             }
         }
         if( ret instanceof FactoryCreatedObject ) {
@@ -135,6 +139,28 @@ public class PatientSmartFactory<K,V,A>
         return ret;
     }
     
+    /**
+     * Bulk factory method. Unlike MSmartFactory, this does not hold the lock on the storage
+     * while creating values: it returns to invoking {@link #obtainFor(Object,Object) obtainFor}
+     * for each key, so that concurrent Threads obtaining the same values do not create them twice,
+     * and Threads obtaining other values are not blocked while the delegate Factory is working.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    @Override
+    public Map<K,V> obtainForAll(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException
+    {
+        return obtainForEach( keys, argument );
+    }
+
     /**
      * Dump this object.
      *
@@ -148,19 +174,21 @@ public class PatientSmartFactory<K,V,A>
                 new String[] {
                     "theDelegateFactory",
                     "theKeyValueMap.size",
-                    "theOngoingObjectCreations.size"
+                    "theOngoingObjectCreations.size",
+                    "theStatistics"
                 },
                 new Object[] {
                     theDelegateFactory,
                     theKeyValueMap.size(),
-                    theOngoingObjectCreations.size()
+                    theOngoingObjectCreations.size(),
+                    theStatistics
                 } );
     }
 
     /**
      * The currently ongoing creations of value. This is important
      * to avoid to create a value twice if two concurrent Threads
-     * ask for the same value.
+     * ask for the same value. Guarded by theKeyValueMap.
      */
-    private Map<K,Object> theOngoingObjectCreations;
+    private Map<K,CountDownLatch> theOngoingObjectCreations;
 }
@@ -0,0 +1,787 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>A {@link MSmartFactory} whose values expire after a certain time, but which are recreated
+ *    in the background before or shortly after they expire, so that clients rarely have to wait
+ *    for the delegate {@link Factory}.</p>
+ *
+ * <p>The lifecycle of a value created by this SmartFactory is as follows:</p>
+ * <ul>
+ *  <li>Until <code>expireAfter</code> milliseconds after its creation, the value is fresh and
+ *      returned as is.</li>
+ *  <li>At <code>expireAfter - refreshWindow</code> milliseconds after its creation, the value
+ *      is recreated in the background (&quot;refresh-ahead&quot;), but only if it has been
+ *      obtained since it was created. Values that nobody asks for are left to expire.</li>
+ *  <li>Once expired, the value is still returned for up to <code>maxStaleness</code>
+ *      milliseconds (&quot;stale-while-revalidate&quot;), while a background recreation is
+ *      started.</li>
+ *  <li>After that, the value is discarded and recreated on the calling Thread. Values that
+ *      nobody asks for, or whose background recreation failed, are discarded at that time
+ *      in the background.</li>
+ * </ul>
+ * <p>This applies to {@link #obtainFor obtainFor} and {@link #obtainForAll obtainForAll} alike.</p>
+ * <p>Values that were inserted with {@link #put put} never expire. {@link #get get} does not
+ *    consider expiration, and does not count as obtaining the value. Background recreations
+ *    are performed on the provided <code>ScheduledExecutorService</code>, using the argument
+ *    that was passed in when the value was last created. Subclasses overriding
+ *    {@link #createdHook createdHook} must invoke the overridden method.</p>
+ *
+ * @param <K> the type of key
+ * @param <V> the type of value
+ * @param <A> the type of argument
+ */
+public class RefreshAheadSmartFactory<K,V,A>
+        extends
+            MSmartFactory<K,V,A>
+        implements
+            CanBeDumped
+{
+    private static final Log log = Log.getLogInstance( RefreshAheadSmartFactory.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param delegateFactory the Factory that knows how to instantiate values
+     * @param storage the storage to use
+     * @param exec the ScheduledExecutorService on which to recreate values in the background
+     * @param expireAfter the number of milliseconds after creation after which a value expires
+     * @param refreshWindow the number of milliseconds before expiration at which a value is recreated in the background
+     * @param maxStaleness the number of milliseconds after expiration during which the expired value is still returned
+     * @return the created RefreshAheadSmartFactory
+     * @param <K> the type of key
+     * @param <V> the type of value
+     * @param <A> the type of argument
+     */
+    public static <K,V,A> RefreshAheadSmartFactory<K,V,A> create(
+            Factory<K,V,A>           delegateFactory,
+            CachingMap<K,V>          storage,
+            ScheduledExecutorService exec,
+            long                     expireAfter,
+            long                     refreshWindow,
+            long                     maxStaleness )
+    {
+        return new RefreshAheadSmartFactory<K,V,A>( delegateFactory, storage, exec, expireAfter, refreshWindow, maxStaleness );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegateFactory the Factory that knows how to instantiate values
+     * @param storage the storage to use
+     * @param exec the ScheduledExecutorService on which to recreate values in the background
+     * @param expireAfter the number of milliseconds after creation after which a value expires
+     * @param refreshWindow the number of milliseconds before expiration at which a value is recreated in the background
+     * @param maxStaleness the number of milliseconds after expiration during which the expired value is still returned
+     */
+    protected RefreshAheadSmartFactory(
+            Factory<K,V,A>           delegateFactory,
+            CachingMap<K,V>          storage,
+            ScheduledExecutorService exec,
+            long                     expireAfter,
+            long                     refreshWindow,
+            long                     maxStaleness )
+    {
+        super( delegateFactory, storage );
+
+        if( refreshWindow > expireAfter ) {
+            throw new IllegalArgumentException( "refreshWindow " + refreshWindow + " must not be larger than expireAfter " + expireAfter );
+        }
+        theExecutorService = exec;
+        theExpireAfter     = expireAfter;
+        theRefreshWindow   = refreshWindow;
+        theMaxStaleness    = maxStaleness;
+
+        theStamps = new HashMap<K,Stamp>();
+
+        storage.addDirectCachingMapListener( new AbstractCachingMapListener() {
+                @Override
+                public void mapElementExpired(
+                        CachingMapEvent.Expired event )
+                {
+                    // the storage lost the value, e.g. because it was garbage-collected
+                    synchronized( theKeyValueMap ) {
+                        Stamp s = theStamps.remove( event.getKey() );
+                        if( s != null ) {
+                            s.cancel();
+                        }
+                    }
+                }
+        });
+    }
+
+    /**
+     * Create a new, or obtain an already existing value for a provided key.
+     * Expired values are returned for a while longer while they are being recreated.
+     *
+     * @param key the key for which we want to obtain a value
+     * @param argument optional argument to pass through to the createFor method
+     * @return the found or created value for this key
+     * @throws FactoryException catch-all Exception
+     */
+    @Override
+    public V obtainFor(
+            K key,
+            A argument )
+        throws
+            FactoryException
+    {
+        if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "obtainFor", key, argument );
+        }
+
+        ArrayList<RefreshTask> refreshes = new ArrayList<RefreshTask>( 1 );
+        V                      found;
+
+        synchronized( theKeyValueMap ) {
+            found = findUnexpired( key, refreshes );
+        }
+        startRefreshes( refreshes );
+
+        if( found != null ) {
+            return found;
+        }
+        return super.obtainFor( key, argument );
+    }
+
+    /**
+     * Bulk factory method. Create new, or obtain already existing values for all
+     * provided keys. Expiration is handled as in {@link #obtainFor obtainFor}: expired
+     * values are returned for a while longer while they are being recreated, and values
+     * that have been expired for too long are created again together with the missing ones.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys;
+     *         keys for which no value could be found or created map to null
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    @Override
+    public Map<K,V> obtainForAll(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException
+    {
+        if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "obtainForAll", keys, argument );
+        }
+
+        ArrayList<RefreshTask> refreshes = new ArrayList<RefreshTask>();
+        HashMap<K,V>           found     = new HashMap<K,V>();
+        ArrayList<K>           remaining = new ArrayList<K>();
+
+        synchronized( theKeyValueMap ) {
+            for( K key : keys ) {
+                if( found.containsKey( key )) {
+                    continue; // duplicate key
+                }
+                V current = findUnexpired( key, refreshes );
+                if( current != null ) {
+                    found.put( key, current );
+                } else {
+                    remaining.add( key );
+                }
+            }
+        }
+        startRefreshes( refreshes );
+
+        Map<K,V>           obtained = remaining.isEmpty() ? null : super.obtainForAll( remaining, argument );
+        LinkedHashMap<K,V> ret      = new LinkedHashMap<K,V>( keys.size() * 4 / 3 + 1 );
+        for( K key : keys ) {
+            if( ret.containsKey( key )) {
+                continue;
+            }
+            V current = found.get( key );
+            if( current == null && obtained != null ) {
+                current = obtained.get( key );
+            }
+            ret.put( key, current );
+        }
+        return ret;
+    }
+
+    /**
+     * Find the value for a key that was created by this SmartFactory, considering its expiration.
+     * Fresh and stale values are returned; for stale values, a background recreation is added
+     * to the provided list unless one is ongoing already. Values that have been expired for too
+     * long are removed. The caller must hold the lock on theKeyValueMap.
+     *
+     * @param key the key
+     * @param refreshes the background recreations that the caller must start after releasing the lock
+     * @return the value, or null if it has to be obtained the regular way
+     */
+    protected V findUnexpired(
+            K                 key,
+            List<RefreshTask> refreshes )
+    {
+        Stamp s = theStamps.get( key );
+        if( s == null ) {
+            return null; // never created by us, or put
+        }
+        V    found = theKeyValueMap.get( key );
+        long age   = System.currentTimeMillis() - s.theCreated;
+
+        if( found == null ) {
+            theStamps.remove( key );
+            s.cancel();
+            return null;
+
+        } else if( age <= theExpireAfter ) {
+            s.theAccessed = true;
+            theStatistics.recordHit();
+            return found;
+
+        } else if( age <= theExpireAfter + theMaxStaleness ) {
+            s.theAccessed = true;
+            theStatistics.recordHit();
+            theStaleHitCount.incrementAndGet();
+            if( !s.theRefreshing ) {
+                s.theRefreshing = true;
+                refreshes.add( new RefreshTask( key, s, false ));
+            }
+            return found;
+
+        } else {
+            theStamps.remove( key );
+            s.cancel();
+            theKeyValueMap.remove( key );
+            theStatistics.recordEviction( CacheStatistics.EvictionCause.EXPIRED );
+            return null;
+        }
+    }
+
+    /**
+     * Start background recreations of stale values.
+     *
+     * @param refreshes the background recreations
+     */
+    protected void startRefreshes(
+            List<RefreshTask> refreshes )
+    {
+        for( RefreshTask current : refreshes ) {
+            try {
+                theExecutorService.execute( current );
+
+            } catch( RejectedExecutionException ex ) {
+                if( !theExecutorService.isShutdown() ) {
+                    log.warn( this + ": could not refresh " + current.theKey + " with ExecutorService " + theExecutorService, ex );
+                }
+                synchronized( theKeyValueMap ) {
+                    current.theStamp.theRefreshing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a key-value pair that was previously created. This cancels any
+     * outstanding background recreation of the value.
+     *
+     * @param key the key of the key-value pair to be removed
+     * @param cleanupCode the cleanup code to run, if any
+     * @return the value of the key-value pair to be removed, if found
+     */
+    @Override
+    public V remove(
+            K                 key,
+            Invocable<V,Void> cleanupCode )
+    {
+        synchronized( theKeyValueMap ) {
+            Stamp s = theStamps.remove( key );
+            if( s != null ) {
+                s.cancel();
+            }
+            return super.remove( key, cleanupCode );
+        }
+    }
+
+    /**
+     * Add a new key and a new value without going through the obtain method. The
+     * value never expires, and any outstanding background recreation of a value
+     * previously created for the same key is cancelled.
+     *
+     * @param key the key
+     * @param value the value for the key
+     * @return the old value at this key, if any
+     */
+    @Override
+    public V put(
+            K key,
+            V value )
+    {
+        synchronized( theKeyValueMap ) {
+            Stamp s = theStamps.remove( key );
+            if( s != null ) {
+                s.cancel();
+            }
+            return super.put( key, value );
+        }
+    }
+
+    /**
+     * Record the creation time of a newly created value, and schedule its refresh-ahead.
+     *
+     * @param key the key of the newly created value
+     * @param value the newly created value
+     * @param argument the argument into the creation of the newly created value
+     */
+    @Override
+    protected void createdHook(
+            K key,
+            V value,
+            A argument )
+    {
+        if( value == null ) {
+            return;
+        }
+        Stamp s = new Stamp( argument );
+        synchronized( theKeyValueMap ) {
+            Stamp old = theStamps.put( key, s );
+            if( old != null ) {
+                old.cancel();
+            }
+        }
+        try {
+            s.theFuture = theExecutorService.schedule(
+                    new RefreshTask( key, s, true ),
+                    theExpireAfter - theRefreshWindow,
+                    TimeUnit.MILLISECONDS );
+
+        } catch( RejectedExecutionException ex ) {
+            if( !theExecutorService.isShutdown() ) {
+                log.warn( this + ": could not schedule refresh of " + key + " with ExecutorService " + theExecutorService, ex );
+            }
+        }
+    }
+
+    /**
+     * Recreate a value in the background. Invoked by the RefreshTask.
+     *
+     * @param key the key of the value
+     * @param s the Stamp of the value at the time the RefreshTask was created
+     * @param mustBeAccessed if true, only recreate the value if it has been obtained since its creation
+     */
+    @SuppressWarnings(value={"unchecked"})
+    protected void refresh(
+            K       key,
+            Stamp   s,
+            boolean mustBeAccessed )
+    {
+        synchronized( theKeyValueMap ) {
+            if( theStamps.get( key ) != s ) {
+                return; // removed, put or recreated in the meantime
+            }
+            if( mustBeAccessed ) {
+                if( s.theRefreshing ) {
+                    return;
+                }
+                if( !s.theAccessed ) {
+                    scheduleExpiry( key, s ); // left to expire
+                    return;
+                }
+                s.theRefreshing = true;
+            }
+        }
+
+        A argument = (A) s.theArgument;
+        V value    = null;
+        try {
+            value = createWithDelegate( key, argument );
+
+        } catch( Throwable t ) {
+            log.warn( this + ": failed to refresh " + key, t );
+        }
+
+        synchronized( theKeyValueMap ) {
+            s.theRefreshing = false;
+            if( theStamps.get( key ) != s ) {
+                return; // removed, put or recreated in the meantime: not a failure
+            }
+            if( value == null ) {
+                theRefreshFailureCount.incrementAndGet();
+                scheduleExpiry( key, s ); // the current value will be discarded unless obtained again
+                return;
+            }
+            theKeyValueMap.put( key, value );
+
+            if( value instanceof FactoryCreatedObject ) {
+                FactoryCreatedObject<K,V,A> realValue = (FactoryCreatedObject<K,V,A>) value;
+                if( realValue.getFactory() == null ) {
+                    realValue.setFactory( this );
+                }
+            }
+        }
+        theRefreshCount.incrementAndGet();
+
+        createdHook( key, value, argument );
+    }
+
+    /**
+     * Schedule the removal of a value at the time it can no longer be returned. Invoked
+     * when no background recreation is going to replace it.
+     *
+     * @param key the key of the value
+     * @param s the Stamp of the value
+     */
+    protected void scheduleExpiry(
+            K     key,
+            Stamp s )
+    {
+        long delay = s.theCreated + theExpireAfter + theMaxStaleness - System.currentTimeMillis() + 1;
+        try {
+            s.theFuture = theExecutorService.schedule(
+                    new ExpireTask( key, s ),
+                    Math.max( delay, 0L ),
+                    TimeUnit.MILLISECONDS );
+
+        } catch( RejectedExecutionException ex ) {
+            if( !theExecutorService.isShutdown() ) {
+                log.warn( this + ": could not schedule expiration of " + key + " with ExecutorService " + theExecutorService, ex );
+            }
+        }
+    }
+
+    /**
+     * Remove a value that has been expired for too long, unless it has been recreated, or
+     * is being recreated, in the meantime. Invoked by the ExpireTask.
+     *
+     * @param key the key of the value
+     * @param s the Stamp of the value at the time the ExpireTask was created
+     */
+    protected void expire(
+            K     key,
+            Stamp s )
+    {
+        synchronized( theKeyValueMap ) {
+            if( theStamps.get( key ) != s || s.theRefreshing ) {
+                return;
+            }
+            if( System.currentTimeMillis() - s.theCreated <= theExpireAfter + theMaxStaleness ) {
+                scheduleExpiry( key, s ); // too early, e.g. because of clock adjustments
+                return;
+            }
+            theStamps.remove( key );
+            if( theKeyValueMap.remove( key ) != null ) {
+                theStatistics.recordEviction( CacheStatistics.EvictionCause.EXPIRED );
+            }
+        }
+    }
+
+    /**
+     * Obtain the number of milliseconds after creation after which a value expires.
+     *
+     * @return the number of milliseconds
+     */
+    public long getExpireAfter()
+    {
+        return theExpireAfter;
+    }
+
+    /**
+     * Obtain the number of milliseconds before expiration at which a value is recreated in the background.
+     *
+     * @return the number of milliseconds
+     */
+    public long getRefreshWindow()
+    {
+        return theRefreshWindow;
+    }
+
+    /**
+     * Obtain the number of milliseconds after expiration during which the expired value is still returned.
+     *
+     * @return the number of milliseconds
+     */
+    public long getMaxStaleness()
+    {
+        return theMaxStaleness;
+    }
+
+    /**
+     * Obtain the number of values that have been recreated in the background so far.
+     *
+     * @return the number of values
+     */
+    public long getRefreshCount()
+    {
+        return theRefreshCount.get();
+    }
+
+    /**
+     * Obtain the number of background recreations that have failed so far.
+     *
+     * @return the number of failures
+     */
+    public long getRefreshFailureCount()
+    {
+        return theRefreshFailureCount.get();
+    }
+
+    /**
+     * Obtain the number of times an expired value has been returned so far.
+     *
+     * @return the number of times
+     */
+    public long getStaleHitCount()
+    {
+        return theStaleHitCount.get();
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    @Override
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "theDelegateFactory",
+                    "theKeyValueMap",
+                    "theExpireAfter",
+                    "theRefreshWindow",
+                    "theMaxStaleness",
+                    "theRefreshCount",
+                    "theRefreshFailureCount",
+                    "theStaleHitCount",
+                    "theStatistics"
+                },
+                new Object[] {
+                    theDelegateFactory,
+                    theKeyValueMap,
+                    theExpireAfter,
+                    theRefreshWindow,
+                    theMaxStaleness,
+                    theRefreshCount.get(),
+                    theRefreshFailureCount.get(),
+                    theStaleHitCount.get(),
+                    theStatistics
+                } );
+    }
+
+    /**
+     * The means by which to recreate values in the background.
+     */
+    protected final ScheduledExecutorService theExecutorService;
+
+    /**
+     * The number of milliseconds after creation after which a value expires.
+     */
+    protected final long theExpireAfter;
+
+    /**
+     * The number of milliseconds before expiration at which a value is recreated in the background.
+     */
+    protected final long theRefreshWindow;
+
+    /**
+     * The number of milliseconds after expiration during which the expired value is still returned.
+     */
+    protected final long theMaxStaleness;
+
+    /**
+     * The creation information of the current values, keyed by their keys. Guarded by theKeyValueMap.
+     */
+    protected final HashMap<K,Stamp> theStamps;
+
+    /**
+     * Number of successful background recreations.
+     */
+    protected final AtomicLong theRefreshCount = new AtomicLong();
+
+    /**
+     * Number of failed background recreations.
+     */
+    protected final AtomicLong theRefreshFailureCount = new AtomicLong();
+
+    /**
+     * Number of times an expired value has been returned.
+     */
+    protected final AtomicLong theStaleHitCount = new AtomicLong();
+
+    /**
+     * Captures when and how a value was created. Except for theFuture, fields are
+     * guarded by theKeyValueMap.
+     */
+    protected static class Stamp
+    {
+        /**
+         * Constructor.
+         *
+         * @param argument the argument used to create the value
+         */
+        protected Stamp(
+                Object argument )
+        {
+            theCreated  = System.currentTimeMillis();
+            theArgument = argument;
+        }
+
+        /**
+         * Cancel the scheduled refresh-ahead or expiration, if any.
+         */
+        protected void cancel()
+        {
+            ScheduledFuture<?> f = theFuture;
+            if( f != null ) {
+                f.cancel( false );
+            }
+        }
+
+        /**
+         * The time, in milliseconds of the local clock, when the value was created.
+         */
+        protected final long theCreated;
+
+        /**
+         * The argument that was used to create the value.
+         */
+        protected final Object theArgument;
+
+        /**
+         * True if the value has been obtained since its creation.
+         */
+        protected boolean theAccessed;
+
+        /**
+         * True if a background recreation is currently ongoing.
+         */
+        protected boolean theRefreshing;
+
+        /**
+         * The scheduled refresh-ahead or expiration, if any.
+         */
+        protected volatile ScheduledFuture<?> theFuture;
+    }
+
+    /**
+     * Recreates a value in the background.
+     */
+    protected class RefreshTask
+            implements
+                Runnable
+    {
+        /**
+         * Constructor.
+         *
+         * @param key the key of the value
+         * @param s the Stamp of the value at the time of creation of this RefreshTask
+         * @param mustBeAccessed if true, only recreate the value if it has been obtained since its creation
+         */
+        protected RefreshTask(
+                K       key,
+                Stamp   s,
+                boolean mustBeAccessed )
+        {
+            theKey            = key;
+            theStamp          = s;
+            theMustBeAccessed = mustBeAccessed;
+        }
+
+        /**
+         * Run the task.
+         */
+        public void run()
+        {
+            try {
+                refresh( theKey, theStamp, theMustBeAccessed );
+
+            } catch( Throwable t ) {
+                log.error( t );
+            }
+        }
+
+        /**
+         * The key of the value.
+         */
+        protected final K theKey;
+
+        /**
+         * The Stamp of the value at the time of creation of this RefreshTask.
+         */
+        protected final Stamp theStamp;
+
+        /**
+         * If true, only recreate the value if it has been obtained since its creation.
+         */
+        protected final boolean theMustBeAccessed;
+    }
+
+    /**
+     * Removes a value that has been expired for too long in the background.
+     */
+    protected class ExpireTask
+            implements
+                Runnable
+    {
+        /**
+         * Constructor.
+         *
+         * @param key the key of the value
+         * @param s the Stamp of the value at the time of creation of this ExpireTask
+         */
+        protected ExpireTask(
+                K     key,
+                Stamp s )
+        {
+            theKey   = key;
+            theStamp = s;
+        }
+
+        /**
+         * Run the task.
+         */
+        public void run()
+        {
+            try {
+                expire( theKey, theStamp );
+
+            } catch( Throwable t ) {
+                log.error( t );
+            }
+        }
+
+        /**
+         * The key of the value.
+         */
+        protected final K theKey;
+
+        /**
+         * The Stamp of the value at the time of creation of this ExpireTask.
+         */
+        protected final Stamp theStamp;
+    }
+}
@@ -14,8 +14,16 @@
 
 package org.infogrid.util;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
 import org.infogrid.util.logging.Log;
@@ -39,7 +47,14 @@ import org.infogrid.util.logging.Log;
  * </ol>
  * <p>The purpose of the <code>beginTransaction</code> and <code>endTransaction</code> calls is
  * largely to make debugging easier and fail faster in case of programming errors.</p>
- * <p>FIXME? There is a chance this can be implemented more efficiently.</p>
+ * <p>Alternatively, a {@link Transaction} that is not associated with any thread can be obtained
+ * from <code>createTransaction</code>. Its queries are added through the Transaction itself, and
+ * instead of joining, the caller may register for completion with <code>whenComplete</code> or
+ * <code>toCompletableFuture</code>. This allows a single thread to aggregate the results of
+ * many transactions without blocking.</p>
+ * <p>Each key is indexed to the transaction that owns it, so depositing or looking up a result
+ * takes constant time and only the lock of that transaction, regardless of how many
+ * transactions are open at the same time.</p>
  *
  * @param <K> the type of key
  * @param <R> the type of return value
@@ -100,24 +115,26 @@ public class ReturnSynchronizer<K,R>
     /**
      * Start a new transaction on this thread.
      *
+     * @return the Transaction, which is also found by the methods that take a Thread
      * @throws ReturnSynchronizerException.TransactionOpenAlready thrown if a transaction is already active on this Thread.
      */
-    public void beginTransaction()
+    public Transaction beginTransaction()
         throws
             ReturnSynchronizerException.TransactionOpenAlready
     {
         Thread t = Thread.currentThread();
 
-        beginTransaction( t );
+        return beginTransaction( t );
     }
 
     /**
      * Start a new transaction on a given thread.
      *
      * @param thread the Thread
+     * @return the Transaction, which is also found by the methods that take a Thread
      * @throws ReturnSynchronizerException.TransactionOpenAlready thrown if a transaction is already active on this Thread.
      */
-    public void beginTransaction(
+    public Transaction beginTransaction(
             Thread thread )
         throws
             ReturnSynchronizerException.TransactionOpenAlready
@@ -126,14 +143,33 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "beginTransaction", thread );
         }
 
-        synchronized( this ) {
-            CS<K,R> found = threadToMonitorTable.get( thread );
-            if( found != null ) {
-                throw new ReturnSynchronizerException.TransactionOpenAlready( this, thread );
-            }
-            CS<K,R> created = new CS<K,R>();
-            threadToMonitorTable.put( thread, created );
+        Transaction created = new Transaction( thread );
+        Transaction found   = threadToMonitorTable.putIfAbsent( thread, created );
+        if( found != null ) {
+            throw new ReturnSynchronizerException.TransactionOpenAlready( this, thread );
+        }
+        theOpenTransactions.add( created );
+
+        return created;
+    }
+
+    /**
+     * Start a new transaction that is not associated with any thread. Any number of
+     * these may be open at the same time; they are only reachable through the returned
+     * Transaction and the keys of their queries.
+     *
+     * @return the Transaction
+     */
+    public Transaction createTransaction()
+    {
+        if( log.isTraceEnabled() ) {
+            log.traceMethodCallEntry( this, "createTransaction" );
         }
+
+        Transaction ret = new Transaction( null );
+        theOpenTransactions.add( ret );
+
+        return ret;
     }
 
     /**
@@ -165,12 +201,23 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "endTransaction", thread );
         }
 
-        synchronized( this ) {
-            CS<K,R> found = threadToMonitorTable.remove( thread );
-            if( found == null ) {
-                throw new ReturnSynchronizerException.NoTransactionOpen( this, thread );
-            }
+        Transaction found = threadToMonitorTable.get( thread );
+        if( found == null ) {
+            throw new ReturnSynchronizerException.NoTransactionOpen( this, thread );
         }
+        found.endTransaction();
+    }
+
+    /**
+     * Obtain the transaction open on a given thread, if any.
+     *
+     * @param thread the Thread
+     * @return the Transaction, or null
+     */
+    public Transaction getTransaction(
+            Thread thread )
+    {
+        return threadToMonitorTable.get( thread );
     }
 
     /**
@@ -210,28 +257,20 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "addOpenQuery", keyForQuery, thread );
         }
 
-        synchronized( this ) {
-            CS<K,R> semaphore = threadToMonitorTable.get( thread );
-            if( semaphore == null ) {
-                throw new ReturnSynchronizerException.NoTransactionOpen( this, thread );
-            }
-            // out of an abundance of caution we do the following check:
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                if( current.hasQuery( keyForQuery ) != null ) {
-                    throw new ReturnSynchronizerException.DuplicateKey( this, keyForQuery );
-                }
-            }
-            semaphore.addOpenQuery( keyForQuery );
+        Transaction semaphore = threadToMonitorTable.get( thread );
+        if( semaphore == null ) {
+            throw new ReturnSynchronizerException.NoTransactionOpen( this, thread );
         }
+        addOpenQuery( semaphore, keyForQuery ); // may throw
     }
 
     /**
      * <p>Add one more outstanding query to a transaction. The transaction is identified not
      * by thread, but indirectly by the thread associated with an existing query.</p>
-     * 
+     *
      * <p>This is useful if an entity produces only part of a response and triggers the
      * production of another part of the response.</p>
-     * 
+     *
      * @param existingKeyForQuery the key identifying the existing query
      * @param newKeyForQuery the key of the query to be added
      * @throws ReturnSynchronizerException.DuplicateKey thrown if this key is already associated with a query
@@ -246,12 +285,34 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "addFurtherOpenQueryToOpenQuery", existingKeyForQuery, newKeyForQuery );
         }
 
-        synchronized( this ) {
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                if( current.hasQuery( existingKeyForQuery ) != null ) {
-                    current.addOpenQuery( newKeyForQuery ); // may throw
-                }
+        Transaction semaphore = keyToMonitorTable.get( existingKeyForQuery );
+        if( semaphore != null ) {
+            addOpenQuery( semaphore, newKeyForQuery ); // may throw
+        }
+    }
+
+    /**
+     * Add one more outstanding query to a transaction, and index its key.
+     *
+     * @param semaphore the monitor of the transaction
+     * @param keyForQuery the key identifying the query
+     * @throws ReturnSynchronizerException.DuplicateKey thrown if this key is already associated with a query
+     */
+    protected void addOpenQuery(
+            Transaction semaphore,
+            K           keyForQuery )
+        throws
+            ReturnSynchronizerException.DuplicateKey
+    {
+        semaphore.theLock.lock(); // so a result cannot arrive before the transaction knows the query
+        try {
+            Transaction already = keyToMonitorTable.putIfAbsent( keyForQuery, semaphore );
+            if( already != null ) {
+                throw new ReturnSynchronizerException.DuplicateKey( this, keyForQuery );
             }
+            semaphore.openQuery( keyForQuery );
+        } finally {
+            semaphore.theLock.unlock();
         }
     }
 
@@ -277,15 +338,11 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "queryHasCompleted", keyForQuery, result );
         }
 
-        synchronized( this ) {
-            boolean ret = false;
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                if( current.hasQuery( keyForQuery ) != null ) {
-                    current.depositQueryResult( keyForQuery, result );
-                }
-            }
-            return ret;
+        Transaction semaphore = keyToMonitorTable.get( keyForQuery );
+        if( semaphore == null ) {
+            return false;
         }
+        return semaphore.depositQueryResult( keyForQuery, result );
     }
 
     /**
@@ -296,7 +353,6 @@ public class ReturnSynchronizer<K,R>
      * @throws ReturnSynchronizerException.QueryIncomplete thrown if the query has not been completed yet
      * @throws ReturnSynchronizerException.UnknownKey thrown if the key was not known for this query
      */
-    @SuppressWarnings("unchecked")
     public R getResultFor(
             K keyForQuery )
         throws
@@ -307,20 +363,11 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "getResultFor", keyForQuery );
         }
 
-        synchronized( this ) {
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                Object found = current.hasQuery( keyForQuery );
-                if( found == null ) {
-                    continue; // perhaps another semaphore has it
-                }
-                if( found == current ) {
-                    throw new ReturnSynchronizerException.QueryIncomplete( this, keyForQuery );
-                } else {
-                    return (R) found;
-                }
-            }
+        Transaction semaphore = keyToMonitorTable.get( keyForQuery );
+        if( semaphore == null ) {
+            throw new ReturnSynchronizerException.UnknownKey( this, keyForQuery );
         }
-        throw new ReturnSynchronizerException.UnknownKey( this, keyForQuery );
+        return semaphore.getResultFor( keyForQuery );
     }
 
     /**
@@ -330,7 +377,7 @@ public class ReturnSynchronizer<K,R>
      * @return true if the query is complete
      * @throws ReturnSynchronizerException.UnknownKey thrown if the key was not known for this query
      */
-    public synchronized boolean isQueryComplete(
+    public boolean isQueryComplete(
             Object keyForQuery )
         throws
             ReturnSynchronizerException.UnknownKey
@@ -339,20 +386,15 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "isQueryComplete", keyForQuery );
         }
 
-        synchronized( this ) {
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                if( current.theResults == null ) {
-                    continue;
-                }
-                Object found = current.theResults.get( keyForQuery );
-                if( found == null ) {
-                    continue;
-                }
-                if( found != current ) {
-                    return true;
-                } else {
-                    return false;
+        Transaction semaphore = keyToMonitorTable.get( keyForQuery );
+        if( semaphore != null ) {
+            semaphore.theLock.lock();
+            try {
+                if( semaphore.hasQuery( keyForQuery )) {
+                    return semaphore.theResults.get( keyForQuery ) != semaphore;
                 }
+            } finally {
+                semaphore.theLock.unlock();
             }
         }
         throw new ReturnSynchronizerException.UnknownKey( this, keyForQuery );
@@ -371,20 +413,15 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "hasOpenQuery", keyForQuery );
         }
 
-        synchronized( this ) {
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                if( current.theResults == null ) {
-                    continue;
-                }
-                Object found = current.theResults.get( keyForQuery );
-                if( found == null ) {
-                    continue;
-                }
-                if( found == current ) {
-                    return true;
-                } else {
-                    return false;
+        Transaction semaphore = keyToMonitorTable.get( keyForQuery );
+        if( semaphore != null ) {
+            semaphore.theLock.lock();
+            try {
+                if( semaphore.hasQuery( keyForQuery )) {
+                    return semaphore.theResults.get( keyForQuery ) == semaphore;
                 }
+            } finally {
+                semaphore.theLock.unlock();
             }
         }
         return false;
@@ -415,10 +452,8 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "areAllQueriesCompleteForThread", t );
         }
 
-        synchronized( this ) {
-            CS<K,R> found = threadToMonitorTable.get( t );
-            return found == null;
-        }
+        Transaction found = threadToMonitorTable.get( t );
+        return found == null;
     }
 
     /**
@@ -432,14 +467,7 @@ public class ReturnSynchronizer<K,R>
             log.traceMethodCallEntry( this, "areAllQueriesComplete" );
         }
 
-        synchronized( this ) {
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                if( current != null ) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return theOpenTransactions.isEmpty();
     }
 
     /**
@@ -479,21 +507,11 @@ public class ReturnSynchronizer<K,R>
 
         Thread thread = Thread.currentThread();
         try {
-            CS semaphore;
-            synchronized( this ) {
-                semaphore = threadToMonitorTable.get( thread );
-            }
+            Transaction semaphore = threadToMonitorTable.get( thread );
             if( semaphore == null ) {
                 throw new ReturnSynchronizerException.NoTransactionOpen( this, thread );
             }
-
-            boolean ret;
-            if( timeout >= 0L ) {
-                ret = semaphore.join( timeout );
-            } else {
-                ret = false;
-            }
-            return ret;
+            return semaphore.join( timeout );
 
         } finally {
             if( log.isTraceEnabled() ) {
@@ -503,7 +521,8 @@ public class ReturnSynchronizer<K,R>
     }
 
     /**
-     * If this is invoked, a disabling fatal error has occurred. All waiting threads are released.
+     * If this is invoked, a disabling fatal error has occurred. All waiting threads are released,
+     * and the CompletableFutures of all open transactions complete exceptionally.
      *
      * @param ex the Throwable indicating the disabling error
      */
@@ -513,10 +532,8 @@ public class ReturnSynchronizer<K,R>
         if( log.isTraceEnabled() ) {
             log.traceMethodCallEntry( this, "disablingError", ex );
         }
-        synchronized( this ) {
-            for( CS<K,R> current : threadToMonitorTable.values() ) {
-                current.abandon();
-            }
+        for( Transaction current : theOpenTransactions ) {
+            current.abandon( ex );
         }
     }
 
@@ -531,11 +548,15 @@ public class ReturnSynchronizer<K,R>
         d.dump( this,
                 new String[] {
                     "name",
-                    "threadToMonitorTable"
+                    "threadToMonitorTable",
+                    "keyToMonitorTable",
+                    "openTransactions"
                 },
                 new Object[] {
                     theName,
-                    threadToMonitorTable
+                    threadToMonitorTable,
+                    keyToMonitorTable,
+                    theOpenTransactions
                 });
     }
 
@@ -569,59 +590,249 @@ public class ReturnSynchronizer<K,R>
     /**
      * This table maps waiting Threads to their monitors.
      */
-    protected HashMap<Thread,CS<K,R>> threadToMonitorTable = new HashMap<Thread,CS<K,R>>();
+    protected final ConcurrentHashMap<Thread,Transaction> threadToMonitorTable = new ConcurrentHashMap<Thread,Transaction>();
 
     /**
-     * This is some version of a counting semaphore.
-     *
-     * @param <K> the type of key
-     * @param <R> the type of return value
+     * This table maps the keys of all queries, open or complete, to the monitors of their transactions.
+     */
+    protected final ConcurrentHashMap<Object,Transaction> keyToMonitorTable = new ConcurrentHashMap<Object,Transaction>();
+
+    /**
+     * All transactions that have been begun or created, but not ended yet, whether or not
+     * they are associated with a Thread.
+     */
+    protected final Set<Transaction> theOpenTransactions = Collections.newSetFromMap( new ConcurrentHashMap<Transaction,Boolean>() );
+
+    /**
+     * A transaction: a set of queries whose results are collected together. This is some
+     * version of a counting semaphore. A Transaction may be associated with the Thread that
+     * began it, but its methods may be invoked from any Thread. It uses a ReentrantLock
+     * instead of its monitor, so a virtual Thread waiting in <code>join</code> does not
+     * pin its carrier Thread.
      */
-    protected class CS<K,R>
+    public class Transaction
             implements
                 CanBeDumped
     {
         /**
-         * Wait until our value has been decremented to zero, or we timed out.
+         * Constructor, for subclasses only.
+         *
+         * @param thread the Thread the transaction is associated with, if any
+         */
+        protected Transaction(
+                Thread thread )
+        {
+            theThread = thread;
+        }
+
+        /**
+         * Obtain the ReturnSynchronizer this Transaction belongs to.
+         *
+         * @return the ReturnSynchronizer
+         */
+        public ReturnSynchronizer<K,R> getReturnSynchronizer()
+        {
+            return ReturnSynchronizer.this;
+        }
+
+        /**
+         * Obtain the Thread this Transaction is associated with, if any.
+         *
+         * @return the Thread, or null
+         */
+        public Thread getThread()
+        {
+            return theThread;
+        }
+
+        /**
+         * Add one more outstanding query to this transaction.
+         *
+         * @param keyForQuery the key identifying the query
+         * @throws ReturnSynchronizerException.DuplicateKey thrown if this key is already associated with a query
+         */
+        public void addOpenQuery(
+                K keyForQuery )
+            throws
+                ReturnSynchronizerException.DuplicateKey
+        {
+            if( log.isTraceEnabled() ) {
+                log.traceMethodCallEntry( this, "addOpenQuery", keyForQuery );
+            }
+            ReturnSynchronizer.this.addOpenQuery( this, keyForQuery );
+        }
+
+        /**
+         * Suspend the calling Thread until all the queries of this transaction have produced results,
+         * or the timeout has occurred.
          *
-         * @param timeout the timeout
-         * @return true if our value has been decremented and we didn't time out
+         * @param timeout the timeout in milliseconds. If 0L, wait forever. If negative, don't wait.
+         * @return true if all queries have produced results and we didn't time out
          * @throws InterruptedException if this Thread was interrupted externally
          */
-        public synchronized boolean join(
+        public boolean join(
                 long timeout )
             throws
                 InterruptedException
         {
-            if( theResults == null || theResults.isEmpty() ) {
-                return true;
+            theLock.lock();
+            try {
+                if( timeout > 0L ) {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos( timeout );
+                    while( counter > 0 && !isAbandoned && remaining > 0L ) {
+                        remaining = theDone.awaitNanos( remaining );
+                    }
+                } else if( timeout == 0L ) {
+                    while( counter > 0 && !isAbandoned ) {
+                        theDone.await();
+                    }
+                }
+                return counter <= 0;
+
+            } finally {
+                theLock.unlock();
+            }
+        }
+
+        /**
+         * Determine whether all queries of this transaction have produced results.
+         *
+         * @return true if all queries are complete
+         */
+        public boolean isComplete()
+        {
+            theLock.lock();
+            try {
+                return counter <= 0;
+            } finally {
+                theLock.unlock();
             }
+        }
 
-            wait( timeout );
+        /**
+         * Obtain the result of a certain query of this transaction.
+         *
+         * @param keyForQuery the key identifying the query
+         * @return the result of the query
+         * @throws ReturnSynchronizerException.QueryIncomplete thrown if the query has not been completed yet
+         * @throws ReturnSynchronizerException.UnknownKey thrown if the key was not known for this transaction
+         */
+        @SuppressWarnings("unchecked")
+        public R getResultFor(
+                K keyForQuery )
+            throws
+                ReturnSynchronizerException.QueryIncomplete,
+                ReturnSynchronizerException.UnknownKey
+        {
+            theLock.lock();
+            try {
+                if( !hasQuery( keyForQuery )) {
+                    throw new ReturnSynchronizerException.UnknownKey( ReturnSynchronizer.this, keyForQuery );
+                }
+                Object found = theResults.get( keyForQuery );
+                if( found == this ) {
+                    throw new ReturnSynchronizerException.QueryIncomplete( ReturnSynchronizer.this, keyForQuery );
+                }
+                return (R) found;
 
-            if( counter <= 0 ) {
-                return true;
-            } else {
-                return false;
+            } finally {
+                theLock.unlock();
             }
         }
 
         /**
-         * Add one more outstanding query for a given thread.
+         * <p>Obtain a CompletableFuture that completes with the results of all queries of this
+         * transaction, by key, once all of them have produced results. It completes exceptionally
+         * with <code>ReturnSynchronizerException.Disabled</code> if the ReturnSynchronizer
+         * encounters a disabling error first.</p>
+         *
+         * <p>Like <code>join</code>, this should be invoked after all queries have been added:
+         * if all queries known at the time are complete already, the CompletableFuture completes
+         * right away. The transaction still needs to be ended.</p>
+         *
+         * @return the CompletableFuture
+         */
+        public CompletableFuture<Map<K,R>> toCompletableFuture()
+        {
+            CompletableFuture<Map<K,R>> ret;
+            theLock.lock();
+            try {
+                if( theFuture == null ) {
+                    theFuture = new CompletableFuture<Map<K,R>>();
+                }
+                ret = theFuture;
+            } finally {
+                theLock.unlock();
+            }
+            completeFutureIfDone();
+
+            return ret;
+        }
+
+        /**
+         * Perform an action once all queries of this transaction have produced results, or
+         * the ReturnSynchronizer has encountered a disabling error. The same considerations
+         * apply as for <code>toCompletableFuture</code>.
+         *
+         * @param action the action, invoked with the results by key, or with the disabling error
+         * @return the CompletableFuture that completes after the action has been performed
+         */
+        public CompletableFuture<Map<K,R>> whenComplete(
+                BiConsumer<? super Map<K,R>,? super Throwable> action )
+        {
+            return toCompletableFuture().whenComplete( action );
+        }
+
+        /**
+         * End this transaction, and forget about its queries.
+         */
+        public void endTransaction()
+        {
+            if( log.isTraceEnabled() ) {
+                log.traceMethodCallEntry( this, "endTransaction" );
+            }
+            if( theThread != null ) {
+                threadToMonitorTable.remove( theThread, this );
+            }
+            theOpenTransactions.remove( this );
+            unindex();
+        }
+
+        /**
+         * Add one more outstanding query to this transaction. The caller must have
+         * indexed the key already.
          *
          * @param keyForQuery the key identifying the query
          */
-        public void addOpenQuery(
+        protected void openQuery(
                 K keyForQuery )
         {
-            if( theResults == null ) {
-                theResults = new HashMap<K,Object>();
+            theLock.lock();
+            try {
+                if( theResults == null ) {
+                    theResults = new HashMap<K,Object>();
+                }
+                theResults.put( keyForQuery, this ); // maker for "open query"
+                ++counter;
+            } finally {
+                theLock.unlock();
             }
-            Object already = theResults.put( keyForQuery, this ); // maker for "open query"
-            ++counter;
-            
-            if( already != null ) {
-                log.error( "Have object already: " + already );
+        }
+
+        /**
+         * Remove the keys of this transaction from the index.
+         */
+        protected void unindex()
+        {
+            theLock.lock();
+            try {
+                if( theResults != null ) {
+                    for( K current : theResults.keySet() ) {
+                        keyToMonitorTable.remove( current, this );
+                    }
+                }
+            } finally {
+                theLock.unlock();
             }
         }
 
@@ -637,57 +848,106 @@ public class ReturnSynchronizer<K,R>
          * @throws ReturnSynchronizerException.DuplicateResult thrown if a result was previously deposited for this query
          */
         @SuppressWarnings("unchecked")
-        public synchronized boolean depositQueryResult(
+        public boolean depositQueryResult(
                 K keyForQuery,
                 R result )
             throws
                 ReturnSynchronizerException.DuplicateResult
         {
-            if( theResults == null ) {
-                return false;
-            }
-            Object found = theResults.get( keyForQuery );
-            if( found == null ) {
-                return false;
-            }
-            if( found == this ) {
+            theLock.lock();
+            try {
+                if( theResults == null || !theResults.containsKey( keyForQuery )) {
+                    return false;
+                }
+                Object found = theResults.get( keyForQuery );
+                if( found != this ) {
+                    throw new ReturnSynchronizerException.DuplicateResult( ReturnSynchronizer.this, keyForQuery, (R) found, result );
+                }
                 theResults.put( keyForQuery, result );
 
                 --counter;
-                if( counter <= 0 ) {
-                    synchronized( this ) {
-                        notifyAll();
-                    }
+                if( counter > 0 ) {
+                    return true;
                 }
-                return true;
-            } else {
-                throw new ReturnSynchronizerException.DuplicateResult( ReturnSynchronizer.this, keyForQuery, (R) found, result );
+                theDone.signalAll();
+
+            } finally {
+                theLock.unlock();
             }
+            completeFutureIfDone(); // outside of the lock, as it runs the dependent actions
+
+            return true;
         }
 
         /**
          * Determine whether this transaction has a query with the given key.
          * They query may still be open, and have been answered already.
+         * The caller must hold theLock.
          *
          * @param keyForQuery the key identifying the query
-         * @return non-null if a query with this key exists.
+         * @return true if a query with this key exists.
          */
-        public Object hasQuery(
-                K keyForQuery )
+        public boolean hasQuery(
+                Object keyForQuery )
         {
-            if( theResults == null ) {
-                return null;
-            }
-            Object found = theResults.get( keyForQuery );
-            return found;
+            return theResults != null && theResults.containsKey( keyForQuery );
         }
 
         /**
          * Abandon the monitor.
+         *
+         * @param ex the Throwable indicating the disabling error, if any
+         */
+        public void abandon(
+                Throwable ex )
+        {
+            theLock.lock();
+            try {
+                isAbandoned     = true;
+                theAbandonCause = ex;
+                theDone.signalAll();
+            } finally {
+                theLock.unlock();
+            }
+            completeFutureIfDone();
+        }
+
+        /**
+         * Complete the CompletableFuture, if one has been requested and the transaction is done.
+         * Must not be invoked while holding theLock.
          */
-        public synchronized void abandon()
+        @SuppressWarnings("unchecked")
+        protected void completeFutureIfDone()
         {
-            this.notifyAll();
+            CompletableFuture<Map<K,R>> future;
+            Map<K,R>                    results = null;
+            Throwable                   cause   = null;
+
+            theLock.lock();
+            try {
+                future = theFuture;
+                if( future == null || future.isDone() ) {
+                    return;
+                }
+                if( counter <= 0 ) {
+                    if( theResults != null ) {
+                        results = Collections.unmodifiableMap( new HashMap<K,R>( (Map<K,R>) (Map<K,?>) theResults ));
+                    } else {
+                        results = Collections.emptyMap();
+                    }
+                } else if( isAbandoned ) {
+                    cause = new ReturnSynchronizerException.Disabled( ReturnSynchronizer.this, theAbandonCause );
+                } else {
+                    return;
+                }
+            } finally {
+                theLock.unlock();
+            }
+            if( cause != null ) {
+                future.completeExceptionally( cause );
+            } else {
+                future.complete( results );
+            }
         }
 
         /**
@@ -700,15 +960,32 @@ public class ReturnSynchronizer<K,R>
         {
             d.dump( this,
                     new String[] {
+                        "thread",
                         "counter",
                         "results"
                     },
                     new Object[] {
+                        theThread,
                         counter,
                         theResults
                     });
         }
 
+        /**
+         * The Thread this transaction is associated with, if any.
+         */
+        protected final Thread theThread;
+
+        /**
+         * Guards the state of this transaction.
+         */
+        protected final ReentrantLock theLock = new ReentrantLock();
+
+        /**
+         * Signalled when all queries have produced results, or the transaction has been abandoned.
+         */
+        protected final Condition theDone = theLock.newCondition();
+
         /**
          * Our counter.
          */
@@ -718,5 +995,20 @@ public class ReturnSynchronizer<K,R>
          * The results table associated with this semaphore.
          */
         protected Map<K,Object> theResults;
+
+        /**
+         * Set when a disabling error has released the waiting thread.
+         */
+        protected boolean isAbandoned;
+
+        /**
+         * The disabling error that released the waiting thread, if any.
+         */
+        protected Throwable theAbandonCause;
+
+        /**
+         * The CompletableFuture handed out by toCompletableFuture, if any.
+         */
+        protected CompletableFuture<Map<K,R>> theFuture;
     }
 }
@@ -34,6 +34,21 @@ public abstract class ReturnSynchronizerException
         theSource = source;
     }
 
+    /**
+     * Private constructor for subclasses only, with a cause.
+     *
+     * @param source the ReturnSynchronizer in which this exception occurred
+     * @param cause the cause of this exception, if any
+     */
+    protected ReturnSynchronizerException(
+            ReturnSynchronizer<?,?> source,
+            Throwable               cause )
+    {
+        super( null, cause );
+
+        theSource = source;
+    }
+
     /**
      * Obtain the ReturnSynchronizer in which this exception occurred.
      *
@@ -134,6 +149,30 @@ public abstract class ReturnSynchronizerException
         }
     }
 
+    /**
+     * Completes the CompletableFutures of the transactions that were open when the
+     * ReturnSynchronizer encountered a disabling error.
+     */
+    public static class Disabled
+            extends
+                ReturnSynchronizerException
+    {
+        private static final long serialVersionUID = 1L; // helps with serialization
+
+       /**
+         * Constructor.
+         *
+         * @param source the ReturnSynchronizer in which this exception occurred
+         * @param cause the disabling error, if any
+         */
+        public Disabled(
+                ReturnSynchronizer<?,?> source,
+                Throwable               cause )
+        {
+            super( source, cause );
+        }
+    }
+
     /**
      * Thrown when an operation is executed that requires that a
      * query be complete, but which isn't.
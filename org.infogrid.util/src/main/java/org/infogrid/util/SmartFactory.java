@@ -14,6 +14,9 @@
 
 package org.infogrid.util;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * This interface is implemented by objects that support the smart factory pattern.
  * This has many methods that are almost the same as <code>java.util.Map</code>.
@@ -61,4 +64,35 @@ public interface SmartFactory<K,V,A>
         throws
             ObjectExistsAlreadyFactoryException,
             FactoryException;
+
+    /**
+     * Bulk factory method. Create new, or obtain already existing values for all
+     * provided keys. Implementations may resolve all keys in a single pass, and
+     * create the missing values with a single invocation of their delegate
+     * {@link BatchFactory}, if any.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @param argument any argument-style information required for object creation, if any;
+     *        the same argument applies to all keys
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys;
+     *         keys for which no value could be found or created map to null
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    public abstract Map<K,V> obtainForAll(
+            Collection<K> keys,
+            A             argument )
+        throws
+            FactoryException;
+
+    /**
+     * Bulk factory method. This is equivalent to specifying a null argument.
+     *
+     * @param keys the keys for which we want to obtain values
+     * @return the found or created values, keyed by their keys, in the sequence of the provided keys
+     * @throws FactoryException catch-all Exception, consider its cause
+     */
+    public abstract Map<K,V> obtainForAll(
+            Collection<K> keys )
+        throws
+            FactoryException;
 }
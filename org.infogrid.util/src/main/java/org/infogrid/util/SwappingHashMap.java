@@ -19,6 +19,7 @@ import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,6 +36,12 @@ import org.infogrid.util.logging.Log;
  * other place (outside of the scope of this class) a previously deallocated value.
  * In the comments to this class, and in some of the method calls, this other place
  * is called "storage".
+ *
+ * <p>By default, the References cleared by the garbage collector are cleaned up at the
+ * beginning of most operations on this SwappingHashMap. As this may take substantial time
+ * after a garbage collection, the amount of work per operation can be limited with
+ * {@link #setMaxInlineCleanup setMaxInlineCleanup}, and the cleanup can be moved to a
+ * background Thread entirely with {@link #cleanupInBackground(SwappingHashMapCleaner) cleanupInBackground}.</p>
  * 
  * @param <K> the type of key
  * @param <V> the type of value
@@ -42,6 +49,8 @@ import org.infogrid.util.logging.Log;
 public abstract class SwappingHashMap<K,V>
         extends
             AbstractCachingMap<K,V>
+        implements
+            HasCacheStatistics
 {
     private static final Log log = Log.getLogInstance( SwappingHashMap.class ); // our own, private logger
 
@@ -68,12 +77,50 @@ public abstract class SwappingHashMap<K,V>
             V value );
 
     /**
-     * Clean up deleted references.
+     * Clean up deleted references, up to the maximum number set with {@link #setMaxInlineCleanup}.
+     * This is invoked at the beginning of most operations, while holding the lock on this object.
      */
-    @SuppressWarnings(value={"unchecked"})
     protected void cleanup()
     {
-        while( true ) {
+        int max = theMaxInlineCleanup;
+        if( max == 0 ) {
+            return;
+        }
+        fireValuesCleanedUp( drainQueue( max ));
+    }
+
+    /**
+     * Clean up deleted references from a background Thread. Unlike {@link #cleanup},
+     * this notifies listeners after the lock on this object has been released.
+     *
+     * @param max the maximum number of References to clean up, or a negative number for all
+     * @return the number of entries that were removed
+     */
+    public int cleanupInBackground(
+            int max )
+    {
+        ArrayList<K> cleaned;
+        synchronized( this ) {
+            cleaned = drainQueue( max );
+        }
+        fireValuesCleanedUp( cleaned );
+
+        return cleaned != null ? cleaned.size() : 0;
+    }
+
+    /**
+     * Remove the entries whose References have been cleared by the garbage collector.
+     * This must be invoked while holding the lock on this object.
+     *
+     * @param max the maximum number of References to process, or a negative number for all
+     * @return the keys of the removed entries, or null if none
+     */
+    @SuppressWarnings(value={"unchecked"})
+    protected ArrayList<K> drainQueue(
+            int max )
+    {
+        ArrayList<K> ret = null;
+        for( int i=0 ; max < 0 || i < max ; ++i ) {
             Reference<? extends V> current = theQueue.poll();
             if( current == null ) {
                 break;
@@ -82,16 +129,81 @@ public abstract class SwappingHashMap<K,V>
             // we know that this queue only contains things that implement this interface, so this cast is safe
             EntryReference<K> realCurrent = (EntryReference<K>) current;
             K key = realCurrent.getKey();
+
+            if( theDelegate.get( key ) != current ) {
+                continue; // the entry has been replaced or removed in the meantime
+            }
             theDelegate.remove( key );
 
-            if( log.isDebugEnabled() ) {
-                log.debug( this + ".cleanup() of object with key " + key );
+            theStatistics.recordEviction( CacheStatistics.EvictionCause.COLLECTED );
+
+            if( ret == null ) {
+                ret = new ArrayList<K>();
             }
-            
+            ret.add( key );
+        }
+        return ret;
+    }
+
+    /**
+     * Notify listeners about entries that have been cleaned up.
+     *
+     * @param keys the keys of the cleaned-up entries, or null
+     */
+    protected void fireValuesCleanedUp(
+            ArrayList<K> keys )
+    {
+        if( keys == null ) {
+            return;
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug( this + ".cleanup() of objects with keys " + keys );
+        }
+        for( K key : keys ) {
             fireValueCleanedUp( key );
         }
     }
 
+    /**
+     * Set the maximum number of cleared References to clean up at the beginning of
+     * each operation. A negative number means all of them, which is the default.
+     * Zero means no cleanup during operations, which is only appropriate if the cleanup
+     * is performed in the background.
+     *
+     * @param newValue the new value
+     * @see #cleanupInBackground(SwappingHashMapCleaner)
+     */
+    public void setMaxInlineCleanup(
+            int newValue )
+    {
+        theMaxInlineCleanup = newValue;
+    }
+
+    /**
+     * Obtain the maximum number of cleared References to clean up at the beginning of
+     * each operation.
+     *
+     * @return the maximum number, or a negative number for all
+     */
+    public int getMaxInlineCleanup()
+    {
+        return theMaxInlineCleanup;
+    }
+
+    /**
+     * Stop cleaning up cleared References during operations, and let the provided
+     * SwappingHashMapCleaner do it in the background instead. As a result, {@link #size}
+     * may include entries whose values have been garbage-collected but not cleaned up yet.
+     *
+     * @param cleaner the SwappingHashMapCleaner
+     */
+    public void cleanupInBackground(
+            SwappingHashMapCleaner cleaner )
+    {
+        theMaxInlineCleanup = 0;
+        cleaner.add( this );
+    }
+
     /**
      * Returns the number of key-value mappings in this SwappingHashMap. This class returns the
      * size of the cache because it does not have a store; however, subclasses might
@@ -188,9 +300,16 @@ public abstract class SwappingHashMap<K,V>
         Reference<V> found = theDelegate.get( key );
         V ret = found != null ? found.get() : null;
         
-        if( ret == null ) {
+        if( ret != null ) {
+            theStatistics.recordHit();
+
+        } else {
+            theStatistics.recordMiss();
+
+            long start = System.nanoTime();
             ret = loadValueFromStorage( key );
             if( ret != null ) {
+                theStatistics.recordLoad( System.nanoTime() - start );
                 theDelegate.put( (K) key, createReference( (K) key, ret ));
             }
             theSwappingListeners.fireEvent( new Pair<K,V>( (K) key, ret ), 0 ); // this is here, not in the method, in order to allow for easy subclassing
@@ -420,6 +539,16 @@ public abstract class SwappingHashMap<K,V>
         return theDelegate;
     }
 
+    /**
+     * Obtain the statistics collected by this cache.
+     *
+     * @return the CacheStatistics
+     */
+    public CacheStatistics getCacheStatistics()
+    {
+        return theStatistics;
+    }
+
     /**
      * Add a listener for SwappingHashMap events.
      *
@@ -479,6 +608,17 @@ public abstract class SwappingHashMap<K,V>
      */
     protected ReferenceQueue<V> theQueue = new ReferenceQueue<V>();
 
+    /**
+     * The maximum number of cleared References to clean up at the beginning of each
+     * operation. Negative means all.
+     */
+    protected volatile int theMaxInlineCleanup = -1;
+
+    /**
+     * The statistics collected by this cache.
+     */
+    protected final CacheStatistics theStatistics = CacheStatistics.create( this );
+
     /**
      * Listeners of this SwappingHashMap.
      */
@@ -0,0 +1,187 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import org.infogrid.util.logging.Log;
+
+/**
+ * Cleans up the References cleared by the garbage collector in a set of
+ * {@link SwappingHashMap SwappingHashMaps} on a background daemon Thread, so that
+ * the Threads using the SwappingHashMaps do not have to. A limited amount of work
+ * is performed per SwappingHashMap per run, so large cleanups are spread out over
+ * several runs instead of blocking the SwappingHashMap for a long time.
+ * SwappingHashMaps are held through WeakReferences.
+ */
+public class SwappingHashMapCleaner
+        implements
+            Runnable
+{
+    private static final Log log = Log.getLogInstance( SwappingHashMapCleaner.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param name the name of the background Thread
+     * @param interval the time, in milliseconds, between runs
+     * @param maxPerRun the maximum number of References to clean up per SwappingHashMap per run
+     * @return the created SwappingHashMapCleaner
+     */
+    public static SwappingHashMapCleaner create(
+            String name,
+            long   interval,
+            int    maxPerRun )
+    {
+        return new SwappingHashMapCleaner( name, interval, maxPerRun );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param name the name of the background Thread
+     * @param interval the time, in milliseconds, between runs
+     * @param maxPerRun the maximum number of References to clean up per SwappingHashMap per run
+     */
+    protected SwappingHashMapCleaner(
+            String name,
+            long   interval,
+            int    maxPerRun )
+    {
+        theName      = name;
+        theInterval  = interval;
+        theMaxPerRun = maxPerRun;
+    }
+
+    /**
+     * Obtain the default SwappingHashMapCleaner.
+     *
+     * @return the SwappingHashMapCleaner
+     */
+    public static SwappingHashMapCleaner getSingleton()
+    {
+        return theSingleton;
+    }
+
+    /**
+     * Add a SwappingHashMap to clean up. This starts the background Thread if needed.
+     * Usually invoked by {@link SwappingHashMap#cleanupInBackground(SwappingHashMapCleaner)}.
+     *
+     * @param map the SwappingHashMap
+     */
+    public synchronized void add(
+            SwappingHashMap<?,?> map )
+    {
+        theMaps.add( new WeakReference<SwappingHashMap<?,?>>( map ));
+
+        if( theThread == null ) {
+            theThread = new Thread( this, theName );
+            theThread.setDaemon( true );
+            theThread.start();
+        }
+    }
+
+    /**
+     * Stop the background Thread. SwappingHashMaps added later restart it.
+     */
+    public synchronized void stop()
+    {
+        if( theThread != null ) {
+            theThread.interrupt();
+            theThread = null;
+        }
+    }
+
+    /**
+     * Obtain the number of SwappingHashMaps currently being cleaned up.
+     *
+     * @return the number of SwappingHashMaps
+     */
+    public synchronized int size()
+    {
+        return theMaps.size();
+    }
+
+    /**
+     * Run the background Thread.
+     */
+    public void run()
+    {
+        Thread myThread = Thread.currentThread();
+        try {
+            while( true ) {
+                Thread.sleep( theInterval );
+
+                ArrayList<SwappingHashMap<?,?>> maps = new ArrayList<SwappingHashMap<?,?>>();
+                synchronized( this ) {
+                    if( theThread != myThread ) {
+                        break;
+                    }
+                    Iterator<WeakReference<SwappingHashMap<?,?>>> iter = theMaps.iterator();
+                    while( iter.hasNext() ) {
+                        SwappingHashMap<?,?> current = iter.next().get();
+                        if( current == null ) {
+                            iter.remove();
+                        } else {
+                            maps.add( current );
+                        }
+                    }
+                }
+                for( SwappingHashMap<?,?> current : maps ) {
+                    try {
+                        current.cleanupInBackground( theMaxPerRun );
+
+                    } catch( Throwable t ) {
+                        log.error( t );
+                    }
+                }
+            }
+        } catch( InterruptedException ex ) {
+            // stopped
+        }
+    }
+
+    /**
+     * Name of the background Thread.
+     */
+    protected final String theName;
+
+    /**
+     * The time, in milliseconds, between runs.
+     */
+    protected final long theInterval;
+
+    /**
+     * The maximum number of References to clean up per SwappingHashMap per run.
+     */
+    protected final int theMaxPerRun;
+
+    /**
+     * The SwappingHashMaps to clean up.
+     */
+    protected final ArrayList<WeakReference<SwappingHashMap<?,?>>> theMaps = new ArrayList<WeakReference<SwappingHashMap<?,?>>>();
+
+    /**
+     * The background Thread, if running.
+     */
+    protected Thread theThread;
+
+    /**
+     * The default instance.
+     */
+    private static final SwappingHashMapCleaner theSingleton = new SwappingHashMapCleaner( "SwappingHashMapCleaner", 100L, 1000 );
+}
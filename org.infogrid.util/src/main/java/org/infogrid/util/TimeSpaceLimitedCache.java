@@ -24,7 +24,8 @@ import java.util.*;
  */
 public class TimeSpaceLimitedCache<K,V>
     implements
-        Map<K,V>
+        Map<K,V>,
+        HasCacheStatistics
 {
     /**
      * Constructor.
@@ -122,9 +123,11 @@ public class TimeSpaceLimitedCache<K,V>
             entry = filterExpired( entry );
         }
         if( entry != null ) {
+            theStatistics.recordHit();
             touch( entry );
             return entry.getValue();
         } else {
+            theStatistics.recordMiss();
             return null;
         }
     }
@@ -150,6 +153,7 @@ public class TimeSpaceLimitedCache<K,V>
         if( size() >= theMaxSize ) {
             CacheEntry<K,V> oldest = theList.remove( theMaxSize-1 );
             theMap.remove( oldest.getKey() );
+            theStatistics.recordEviction( CacheStatistics.EvictionCause.SIZE );
         }
 
         // now add
@@ -270,6 +274,7 @@ public class TimeSpaceLimitedCache<K,V>
             if( current.isExpired() ) {
                 theMap.remove( current.getKey() );
                 theList.remove( i );
+                theStatistics.recordEviction( CacheStatistics.EvictionCause.EXPIRED );
             }
         }
     }
@@ -287,6 +292,16 @@ public class TimeSpaceLimitedCache<K,V>
         theList.add( 0, current );
     }
 
+    /**
+     * Obtain the statistics collected by this cache.
+     *
+     * @return the CacheStatistics
+     */
+    public CacheStatistics getCacheStatistics()
+    {
+        return theStatistics;
+    }
+
     /**
      * The maximum number of elements in this Cache at any point in time.
      */
@@ -297,6 +312,11 @@ public class TimeSpaceLimitedCache<K,V>
      */
     protected long theMaxAge;
 
+    /**
+     * The statistics collected by this cache.
+     */
+    protected final CacheStatistics theStatistics = CacheStatistics.create( this );
+
     /**
      * This maps keys to CacheEntry objects.
      */
@@ -0,0 +1,193 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.util;
+
+import java.util.concurrent.TimeUnit;
+import org.infogrid.util.logging.CanBeDumped;
+import org.infogrid.util.logging.Dumper;
+
+/**
+ * <p>A token-bucket rate limiter. Tokens accrue at a constant rate, up to a maximum burst;
+ * each permitted operation consumes one or more tokens.</p>
+ * <p>A caller that needs more tokens than are available reserves them anyway, and then
+ * waits outside of any lock until they would have accrued. So the lock is only held for
+ * a few arithmetic operations, and callers are served in the order in which they arrive.</p>
+ */
+public class TokenBucket
+        implements
+            CanBeDumped
+{
+    /**
+     * Factory method.
+     *
+     * @param ratePerSecond the number of tokens that accrue per second
+     * @param burst the maximum number of tokens that can accrue
+     * @return the created TokenBucket
+     */
+    public static TokenBucket create(
+            double ratePerSecond,
+            int    burst )
+    {
+        if( ratePerSecond <= 0. ) {
+            throw new IllegalArgumentException( "Rate must be positive: " + ratePerSecond );
+        }
+        if( burst < 1 ) {
+            throw new IllegalArgumentException( "Burst must be at least 1: " + burst );
+        }
+        return new TokenBucket( ratePerSecond, burst );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param ratePerSecond the number of tokens that accrue per second
+     * @param burst the maximum number of tokens that can accrue
+     */
+    protected TokenBucket(
+            double ratePerSecond,
+            int    burst )
+    {
+        theRatePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos( 1L );
+        theBurst       = burst;
+        theTokens      = burst;
+        theLastRefill  = System.nanoTime();
+    }
+
+    /**
+     * Obtain the number of tokens that accrue per second.
+     *
+     * @return the rate
+     */
+    public double getRatePerSecond()
+    {
+        return theRatePerNano * TimeUnit.SECONDS.toNanos( 1L );
+    }
+
+    /**
+     * Obtain the maximum number of tokens that can accrue.
+     *
+     * @return the burst
+     */
+    public int getBurst()
+    {
+        return theBurst;
+    }
+
+    /**
+     * Obtain tokens, waiting until they are available if needed.
+     *
+     * @param n the number of tokens
+     * @throws InterruptedException thrown if interrupted while waiting. The tokens remain consumed.
+     */
+    public void acquire(
+            int n )
+        throws
+            InterruptedException
+    {
+        long wait = reserve( n );
+        if( wait > 0L ) {
+            TimeUnit.NANOSECONDS.sleep( wait );
+        }
+    }
+
+    /**
+     * Obtain tokens only if they are available right away.
+     *
+     * @param n the number of tokens
+     * @return true if the tokens were obtained
+     */
+    public synchronized boolean tryAcquire(
+            int n )
+    {
+        refill( System.nanoTime() );
+        if( theTokens >= n ) {
+            theTokens -= n;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Consume tokens, going into debt if needed, and determine how long the caller has to
+     * wait until the tokens would have accrued.
+     *
+     * @param n the number of tokens
+     * @return the time to wait, in nanoseconds
+     */
+    public synchronized long reserve(
+            int n )
+    {
+        refill( System.nanoTime() );
+        theTokens -= n;
+        if( theTokens >= 0. ) {
+            return 0L;
+        }
+        return (long) Math.ceil( -theTokens / theRatePerNano );
+    }
+
+    /**
+     * Add the tokens that have accrued since the last refill. The caller must hold the lock.
+     *
+     * @param now the current time, in System.nanoTime() format
+     */
+    protected void refill(
+            long now )
+    {
+        theTokens     = Math.min( theBurst, theTokens + ( now - theLastRefill ) * theRatePerNano );
+        theLastRefill = now;
+    }
+
+    /**
+     * Dump this object.
+     *
+     * @param d the Dumper to dump to
+     */
+    public void dump(
+            Dumper d )
+    {
+        d.dump( this,
+                new String[] {
+                    "ratePerSecond",
+                    "burst",
+                    "tokens"
+                },
+                new Object[] {
+                    getRatePerSecond(),
+                    theBurst,
+                    theTokens
+                });
+    }
+
+    /**
+     * The number of tokens that accrue per nanosecond.
+     */
+    protected final double theRatePerNano;
+
+    /**
+     * The maximum number of tokens that can accrue.
+     */
+    protected final int theBurst;
+
+    /**
+     * The number of tokens currently available. Negative if callers have reserved tokens
+     * that have not accrued yet.
+     */
+    protected double theTokens;
+
+    /**
+     * The time of the last refill, in System.nanoTime() format.
+     */
+    protected long theLastRefill;
+}
@@ -0,0 +1,260 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.infogrid.util.Base64;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the Base64 codec against the reference implementation in the JDK, for all
+ * variants and all kinds of input and output.
+ */
+public class Base64Test1
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        Random random = new Random( 42L );
+
+        for( int i=0 ; i<500 ; ++i ) {
+            int     len  = i < 100 ? i : random.nextInt( 20000 );
+            byte [] data = new byte[ len ];
+            random.nextBytes( data );
+
+            check( "standard", Base64.getEncoder(),    Base64.getDecoder(),     java.util.Base64.getEncoder(),     java.util.Base64.getDecoder(),     data, random );
+            check( "url",      Base64.getUrlEncoder(), Base64.getUrlDecoder(),  java.util.Base64.getUrlEncoder(),  java.util.Base64.getUrlDecoder(),  data, random );
+            check( "mime",     Base64.getMimeEncoder(), Base64.getMimeDecoder(), java.util.Base64.getMimeEncoder(), java.util.Base64.getMimeDecoder(), data, random );
+            check( "mime-8",
+                    Base64.getMimeEncoder( 10, "\n" ),
+                    Base64.getMimeDecoder(),
+                    java.util.Base64.getMimeEncoder( 10, new byte[] { '\n' } ),
+                    java.util.Base64.getMimeDecoder(),
+                    data,
+                    random );
+            check( "nopad",
+                    Base64.getEncoder().withoutPadding(),
+                    Base64.getDecoder(),
+                    java.util.Base64.getEncoder().withoutPadding(),
+                    java.util.Base64.getDecoder(),
+                    data,
+                    random );
+
+            // the helpers
+            String legacy         = Base64.base64encode( data );
+            String expectedLegacy = java.util.Base64.getMimeEncoder( 76, new byte[] { '\n' } ).encodeToString( data );
+            if( len > 0 && len % 57 == 0 ) {
+                expectedLegacy += "\n"; // sun.misc terminated every full line
+            }
+            Assert.assertEquals( "wrong legacy encoding", expectedLegacy, legacy );
+            Assert.assertEquals( "wrong no-CR encoding", java.util.Base64.getEncoder().encodeToString( data ), Base64.base64encodeNoCr( data ));
+            Assert.assertArrayEquals( "wrong legacy decoding", data, Base64.base64decode( legacy ));
+        }
+
+        log.info( "Testing line ends of the legacy encoding" );
+
+        Assert.assertEquals( "wrong legacy encoding of nothing", "", Base64.base64encode( new byte[0] ));
+        Assert.assertEquals( "wrong legacy encoding of a short line", 76, Base64.base64encode( new byte[56] ).length() );
+        Assert.assertEquals( "no line feed after one full line", 77, Base64.base64encode( new byte[57] ).length() );
+        Assert.assertTrue( "no line feed after one full line", Base64.base64encode( new byte[57] ).endsWith( "\n" ));
+        Assert.assertEquals( "wrong legacy encoding of more than one line", 81, Base64.base64encode( new byte[58] ).length() );
+        Assert.assertTrue( "no line feed after two full lines", Base64.base64encode( new byte[114] ).endsWith( "\n" ));
+        Assert.assertEquals( "wrong number of line feeds after two full lines", 154, Base64.base64encode( new byte[114] ).length() );
+        Assert.assertArrayEquals( "wrong legacy round trip", new byte[57], Base64.base64decode( Base64.base64encode( new byte[57] )));
+
+        log.info( "Testing invalid input" );
+
+        String [] invalid = { "A", "AB=C", "ABC=D", "A===", "AB=", "AB!C", "ABCD=", "AB\nCD" };
+        for( String current : invalid ) {
+            try {
+                Base64.getDecoder().decode( current );
+                Assert.fail( "no exception for " + current );
+            } catch( IllegalArgumentException ex ) {
+                // expected
+            }
+            try {
+                readAll( Base64.getDecoder().wrap( new ByteArrayInputStream( current.getBytes( StandardCharsets.ISO_8859_1 ))), 3 );
+                Assert.fail( "no exception from stream for " + current );
+            } catch( IOException ex ) {
+                // expected
+            }
+        }
+        Assert.assertArrayEquals( "missing padding not accepted", new byte[] { 'a', 'b' }, Base64.getDecoder().decode( "YWI" ));
+        Assert.assertArrayEquals( "garbage not skipped", new byte[] { 'a', 'b' }, Base64.getMimeDecoder().decode( "Y Wé\r\n€I=" ));
+        Assert.assertArrayEquals( "legacy decoding of invalid input", new byte[0], Base64.base64decode( "Y" ));
+
+        StringBuilder spaced = new StringBuilder( "Y" );
+        for( int i=0 ; i<10000 ; ++i ) {
+            spaced.append( ' ' );
+        }
+        spaced.append( "WI=" );
+        Assert.assertArrayEquals( "long gap not skipped", new byte[] { 'a', 'b' }, Base64.getMimeDecoder().decode( spaced ));
+        Assert.assertArrayEquals( "long gap not skipped in stream", new byte[] { 'a', 'b' }, readAll( Base64.getMimeDecoder().wrap( new ByteArrayInputStream( spaced.toString().getBytes( StandardCharsets.ISO_8859_1 ))), 7 ));
+
+        log.info( "Comparing speed" );
+
+        byte [] big = new byte[ 1 << 20 ];
+        random.nextBytes( big );
+        byte [] encoded = new byte[ Base64.getEncoder().encodedLength( big.length ) ];
+        byte [] decoded = new byte[ big.length ];
+
+        long ours      = Long.MAX_VALUE;
+        long reference = Long.MAX_VALUE;
+        for( int round=0 ; round<20 ; ++round ) {
+            long start = System.nanoTime();
+            Base64.getEncoder().encode( big, 0, big.length, encoded, 0 );
+            Base64.getDecoder().decode( encoded, 0, encoded.length, decoded, 0 );
+            ours = Math.min( ours, System.nanoTime() - start );
+
+            start = System.nanoTime();
+            java.util.Base64.getEncoder().encode( big, encoded );
+            java.util.Base64.getDecoder().decode( encoded, decoded );
+            reference = Math.min( reference, System.nanoTime() - start );
+        }
+        log.info( "Round trip of 1MB: ours " + ours / 1000 + "us, JDK " + reference / 1000 + "us" );
+        Assert.assertArrayEquals( "wrong round trip", big, decoded );
+    }
+
+    /**
+     * Check one variant on one piece of data, with all kinds of input and output.
+     *
+     * @param name name of the variant, for error messages
+     * @param encoder the Encoder to test
+     * @param decoder the Decoder to test
+     * @param refEncoder the reference Encoder
+     * @param refDecoder the reference Decoder
+     * @param data the data
+     * @param random source of randomness for offsets and chunk sizes
+     * @throws IOException thrown if a stream failed
+     */
+    protected void check(
+            String                   name,
+            Base64.Encoder           encoder,
+            Base64.Decoder           decoder,
+            java.util.Base64.Encoder refEncoder,
+            java.util.Base64.Decoder refDecoder,
+            byte []                  data,
+            Random                   random )
+        throws
+            IOException
+    {
+        String  msg      = name + ", length " + data.length;
+        byte [] expected = refEncoder.encode( data );
+
+        // arrays
+        byte [] encoded = encoder.encode( data );
+        Assert.assertArrayEquals( "wrong encoding: " + msg, expected, encoded );
+        Assert.assertEquals( "wrong encoded length: " + msg, expected.length, encoder.encodedLength( data.length ));
+        Assert.assertArrayEquals( "wrong decoding: " + msg, data, decoder.decode( encoded ));
+        Assert.assertArrayEquals( "wrong reference decoding: " + msg, data, refDecoder.decode( encoded ));
+
+        String encodedString = encoder.encodeToString( data );
+        Assert.assertEquals( "wrong String encoding: " + msg, new String( expected, StandardCharsets.ISO_8859_1 ), encodedString );
+        Assert.assertArrayEquals( "wrong String decoding: " + msg, data, decoder.decode( encodedString ));
+
+        // array ranges
+        int     off     = random.nextInt( 10 );
+        byte [] padded  = new byte[ off + data.length + 5 ];
+        System.arraycopy( data, 0, padded, off, data.length );
+        byte [] dst     = new byte[ off + expected.length + 5 ];
+        int     written = encoder.encode( padded, off, data.length, dst, off );
+        Assert.assertEquals( "wrong range length: " + msg, expected.length, written );
+        Assert.assertArrayEquals( "wrong range encoding: " + msg, expected, Arrays.copyOfRange( dst, off, off + written ));
+
+        byte [] back = new byte[ off + data.length + 5 ];
+        Assert.assertEquals( "wrong range decoded length: " + msg, data.length, decoder.decode( dst, off, written, back, off ));
+        Assert.assertArrayEquals( "wrong range decoding: " + msg, data, Arrays.copyOfRange( back, off, off + data.length ));
+
+        // heap and direct ByteBuffers
+        for( boolean direct : new boolean[] { false, true } ) {
+            ByteBuffer src = direct ? ByteBuffer.allocateDirect( data.length ) : ByteBuffer.allocate( data.length );
+            src.put( data ).flip();
+            ByteBuffer enc = direct ? ByteBuffer.allocateDirect( expected.length + 3 ) : ByteBuffer.allocate( expected.length + 3 );
+            encoder.encode( src, enc );
+            Assert.assertFalse( "src not consumed: " + msg, src.hasRemaining() );
+            enc.flip();
+            Assert.assertEquals( "wrong buffer encoded length: " + msg, expected.length, enc.remaining() );
+
+            ByteBuffer dec = direct ? ByteBuffer.allocateDirect( data.length + 3 ) : ByteBuffer.allocate( data.length + 3 );
+            decoder.decode( enc, dec );
+            dec.flip();
+            byte [] result = new byte[ dec.remaining() ];
+            dec.get( result );
+            Assert.assertArrayEquals( "wrong buffer round trip: " + msg + ", direct " + direct, data, result );
+        }
+
+        // Appendable
+        StringBuilder appended = new StringBuilder( "x" );
+        encoder.encode( data, 0, data.length, appended );
+        Assert.assertEquals( "wrong appended encoding: " + msg, "x" + encodedString, appended.toString() );
+
+        // streams, written and read in odd pieces
+        ByteArrayOutputStream collected = new ByteArrayOutputStream();
+        OutputStream          out       = encoder.wrap( collected );
+        int                   pos       = 0;
+        while( pos < data.length ) {
+            int n = Math.min( data.length - pos, random.nextInt( 3000 ) + 1 );
+            if( n == 1 ) {
+                out.write( data[pos] );
+            } else {
+                out.write( data, pos, n );
+            }
+            pos += n;
+        }
+        out.close();
+        Assert.assertArrayEquals( "wrong stream encoding: " + msg, expected, collected.toByteArray() );
+
+        InputStream in = decoder.wrap( new ByteArrayInputStream( expected ));
+        Assert.assertArrayEquals( "wrong stream decoding: " + msg, data, readAll( in, random.nextInt( 100 ) + 1 ));
+    }
+
+    /**
+     * Read an InputStream to the end, in pieces.
+     *
+     * @param in the InputStream
+     * @param piece the maximum number of bytes to read at a time
+     * @return the bytes read
+     * @throws IOException thrown if reading failed
+     */
+    protected byte [] readAll(
+            InputStream in,
+            int         piece )
+        throws
+            IOException
+    {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte []               buf = new byte[ piece ];
+        int                   n;
+        while( ( n = in.read( buf, 0, piece )) >= 0 ) {
+            ret.write( buf, 0, n );
+        }
+        return ret.toByteArray();
+    }
+
+    private static final Log log = Log.getLogInstance( Base64Test1.class ); // our own, private logger
+}
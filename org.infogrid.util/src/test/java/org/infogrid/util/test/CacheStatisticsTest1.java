@@ -0,0 +1,131 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import org.infogrid.util.AbstractFactory;
+import org.infogrid.util.CacheStatistics;
+import org.infogrid.util.CacheStatisticsRegistry;
+import org.infogrid.util.Factory;
+import org.infogrid.util.FactoryException;
+import org.infogrid.util.MCachingHashMap;
+import org.infogrid.util.MSmartFactory;
+import org.infogrid.util.TimeSpaceLimitedCache;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.ToStringDumper;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the CacheStatistics of MSmartFactory, MCachingHashMap and TimeSpaceLimitedCache,
+ * and dumping them through the CacheStatisticsRegistry.
+ */
+public class CacheStatisticsTest1
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        Factory<String,Integer,Integer> delegateFactory = new AbstractFactory<String,Integer,Integer>() {
+            public Integer obtainFor(
+                    String  key,
+                    Integer argument )
+                throws
+                    FactoryException
+            {
+                if( argument == null ) {
+                    return null;
+                }
+                return argument * argument;
+            }
+        };
+
+        MCachingHashMap<String,Integer>       storage     = MCachingHashMap.create();
+        MSmartFactory<String,Integer,Integer> testFactory = MSmartFactory.create( delegateFactory, storage );
+
+        CacheStatisticsRegistry registry = CacheStatisticsRegistry.create();
+        registry.register( "test-factory", testFactory );
+        registry.register( "test-storage", storage );
+
+        //
+
+        log.info( "Creating and obtaining objects" );
+
+        int n1 = 10;
+        for( int i=0 ; i<n1 ; ++i ) {
+            testFactory.obtainFor( "key-" + String.valueOf( i ), i );
+        }
+        for( int i=0 ; i<n1 ; i+=2 ) {
+            testFactory.obtainFor( "key-" + String.valueOf( i ), i );
+        }
+        testFactory.obtainFor( "key-null" ); // delegate creates nothing
+
+        CacheStatistics factoryStats = testFactory.getCacheStatistics();
+        Assert.assertEquals( "wrong number of hits",          n1/2, factoryStats.getHitCount() );
+        Assert.assertEquals( "wrong number of misses",        n1+1, factoryStats.getMissCount() );
+        Assert.assertEquals( "wrong number of loads",         n1,   factoryStats.getLoadCount() );
+        Assert.assertEquals( "wrong number of load failures", 1,    factoryStats.getLoadFailureCount() );
+        Assert.assertEquals( "wrong size",                    n1+1, factoryStats.getSize() );
+
+        CacheStatistics storageStats = storage.getCacheStatistics();
+        Assert.assertEquals( "wrong number of storage hits",   n1/2, storageStats.getHitCount() );
+        Assert.assertEquals( "wrong number of storage misses", n1+1, storageStats.getMissCount() );
+
+        //
+
+        log.info( "Evicting from a TimeSpaceLimitedCache" );
+
+        int n2 = 5;
+        TimeSpaceLimitedCache<String,Integer> cache = new TimeSpaceLimitedCache<String,Integer>( n2, 100000L );
+        registry.register( "test-cache", cache );
+
+        for( int i=0 ; i<2*n2 ; ++i ) {
+            cache.put( "key-" + String.valueOf( i ), i );
+        }
+        cache.get( "key-0" );
+        cache.get( "key-" + String.valueOf( 2*n2-1 ));
+
+        CacheStatistics cacheStats = cache.getCacheStatistics();
+        Assert.assertEquals( "wrong number of cache hits",   1,  cacheStats.getHitCount() );
+        Assert.assertEquals( "wrong number of cache misses", 1,  cacheStats.getMissCount() );
+        Assert.assertEquals( "wrong number of evictions",    n2, cacheStats.getEvictionCount( CacheStatistics.EvictionCause.SIZE ));
+        Assert.assertEquals( "wrong number of evictions",    0,  cacheStats.getEvictionCount( CacheStatistics.EvictionCause.EXPIRED ));
+        Assert.assertEquals( "wrong size",                   n2, cacheStats.getSize() );
+
+        //
+
+        log.info( "Dumping" );
+
+        ToStringDumper d = ToStringDumper.create();
+        d.dump( registry );
+        String dumped = d.getBuffer();
+
+        log.debug( dumped );
+
+        Assert.assertTrue( "factory not dumped", dumped.contains( "test-factory" ));
+        Assert.assertTrue( "storage not dumped", dumped.contains( "test-storage" ));
+        Assert.assertTrue( "cache not dumped",   dumped.contains( "test-cache" ));
+        Assert.assertTrue( "counters not dumped", dumped.contains( "hitRatio" ));
+
+        registry.unregister( "test-cache" );
+        Assert.assertNull( "still registered", registry.get( "test-cache" ));
+        Assert.assertSame( "not registered", testFactory, registry.get( "test-factory" ));
+    }
+
+    private static final Log log = Log.getLogInstance( CacheStatisticsTest1.class ); // our own, private logger
+}
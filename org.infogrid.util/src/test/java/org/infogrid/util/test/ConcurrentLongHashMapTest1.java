@@ -0,0 +1,126 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.infogrid.util.ConcurrentLongHashMap;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests ConcurrentLongHashMap against a HashMap, and with several threads at the same time.
+ */
+public class ConcurrentLongHashMapTest1
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "Random operations compared to HashMap" );
+
+        ConcurrentLongHashMap<String> testMap = ConcurrentLongHashMap.create( 4 );
+        HashMap<Long,String>          compare = new HashMap<Long,String>();
+        Random                        random  = new Random( 1234L );
+
+        for( int i=0 ; i<100000 ; ++i ) {
+            long key = random.nextInt( 2000 ) - 1000L; // includes 0 and negative keys
+            switch( random.nextInt( 4 )) {
+                case 0:
+                    Assert.assertEquals( "wrong put", compare.put( key, "v" + i ), testMap.put( key, "v" + i ));
+                    break;
+                case 1:
+                    Assert.assertEquals( "wrong remove", compare.remove( key ), testMap.remove( key ));
+                    break;
+                case 2:
+                    Assert.assertEquals( "wrong get", compare.get( key ), testMap.get( key ));
+                    break;
+                case 3:
+                    String found = compare.get( key );
+                    if( found == null ) {
+                        compare.put( key, "w" + i );
+                    }
+                    Assert.assertEquals( "wrong putIfAbsent", found, testMap.putIfAbsent( key, "w" + i ));
+                    break;
+            }
+        }
+        Assert.assertEquals( "wrong size", compare.size(), testMap.size() );
+        for( Map.Entry<Long,String> current : compare.entrySet() ) {
+            Assert.assertEquals( "wrong value", current.getValue(), testMap.get( current.getKey() ));
+        }
+        Assert.assertEquals( "wrong number of keys", compare.size(), testMap.keys().length );
+        Assert.assertEquals( "wrong number of values", compare.size(), testMap.values().size() );
+
+        testMap.clear();
+        Assert.assertTrue( "not empty", testMap.isEmpty() );
+
+        //
+
+        log.info( "Concurrent threads" );
+
+        final ConcurrentLongHashMap<Long> concurrentMap = ConcurrentLongHashMap.create();
+
+        Thread [] threads = new Thread[ THREADS ];
+        for( int t=0 ; t<THREADS ; ++t ) {
+            final long base = t * (long) N;
+            threads[t] = new Thread( "thread-" + t ) {
+                    @Override
+                    public void run()
+                    {
+                        for( long i=0 ; i<N ; ++i ) {
+                            concurrentMap.put( base + i, base + i );
+                        }
+                        for( long i=0 ; i<N ; i+=2 ) {
+                            if( !concurrentMap.remove( base + i, concurrentMap.get( base + i ))) {
+                                throw new IllegalStateException( "could not remove " + ( base + i ));
+                            }
+                        }
+                    }
+            };
+            threads[t].start();
+        }
+        for( Thread current : threads ) {
+            current.join();
+        }
+
+        Assert.assertEquals( "wrong size after concurrent operations", THREADS * N / 2, concurrentMap.size() );
+        for( long i=0 ; i<THREADS * (long) N ; ++i ) {
+            Long found = concurrentMap.get( i );
+            if( i % 2 == 0 ) {
+                Assert.assertNull( "found removed value", found );
+            } else {
+                Assert.assertEquals( "wrong value", Long.valueOf( i ), found );
+            }
+        }
+    }
+
+    /**
+     * The number of threads.
+     */
+    protected static final int THREADS = 8;
+
+    /**
+     * The number of keys per thread.
+     */
+    protected static final int N = 20000;
+
+    private static final Log log = Log.getLogInstance( ConcurrentLongHashMapTest1.class ); // our own, private logger
+}
@@ -0,0 +1,93 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.util.Random;
+import org.infogrid.util.Histogram;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the accuracy of Histogram.
+ */
+public class HistogramTest1
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        Histogram h = Histogram.create( "usec" );
+
+        Assert.assertEquals( "not empty", 0L, h.getCount() );
+        Assert.assertEquals( "wrong empty percentile", 0L, h.getPercentile( 0.5 ));
+
+        for( long i=1 ; i<=1000 ; ++i ) {
+            h.record( i );
+        }
+        log.info( h );
+
+        Assert.assertEquals( "wrong count", 1000L, h.getCount() );
+        Assert.assertEquals( "wrong min",   1L,    h.getMin() );
+        Assert.assertEquals( "wrong max",   1000L, h.getMax() );
+        Assert.assertEquals( "wrong mean",  500.5, h.getMean(), 0.001 );
+
+        checkPercentile( h, 0.5,  500L );
+        checkPercentile( h, 0.9,  900L );
+        checkPercentile( h, 0.99, 990L );
+        Assert.assertEquals( "wrong p100", 1000L, h.getPercentile( 1. ));
+
+        log.info( "Testing the whole range" );
+
+        Random random = new Random( 42L );
+        for( int i=0 ; i<10000 ; ++i ) {
+            long value = random.nextLong() >>> ( 1 + random.nextInt( 63 ));
+            h.reset();
+            h.record( value );
+            long p = h.getPercentile( 0.5 );
+            Assert.assertEquals( "single value not exact: " + value, value, p ); // clamped by min and max
+        }
+
+        h.reset();
+        h.record( Long.MAX_VALUE );
+        h.record( 0L );
+        h.record( -5L );
+        Assert.assertEquals( "wrong min after negative", 0L, h.getMin() );
+        Assert.assertEquals( "wrong number of buckets", 2, h.getBuckets().length );
+        Assert.assertEquals( "wrong top bucket", Long.MAX_VALUE, h.getBuckets()[1][0] );
+    }
+
+    /**
+     * Check that a percentile is within the error bound.
+     *
+     * @param h the Histogram
+     * @param fraction the percentile
+     * @param expected the exact value
+     */
+    protected void checkPercentile(
+            Histogram h,
+            double    fraction,
+            long      expected )
+    {
+        long actual = h.getPercentile( fraction );
+        Assert.assertTrue(
+                "wrong percentile " + fraction + ": " + actual + " vs. " + expected,
+                actual >= expected && actual <= expected * 1.125 );
+    }
+
+    private static final Log log = Log.getLogInstance( HistogramTest1.class ); // our own, private logger
+}
@@ -0,0 +1,96 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.infogrid.util.LongHashMap;
+import org.infogrid.util.MCachingLongHashMap;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests LongHashMap against a HashMap, and the events of MCachingLongHashMap.
+ */
+public class LongHashMapTest1
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "Random operations compared to HashMap" );
+
+        LongHashMap<String> testMap = LongHashMap.create( 4 );
+        HashMap<Long,String> compare = new HashMap<Long,String>();
+        Random               random  = new Random( 1234L );
+
+        for( int i=0 ; i<100000 ; ++i ) {
+            long key = random.nextInt( 2000 ) - 1000L; // includes 0 and negative keys
+            switch( random.nextInt( 3 )) {
+                case 0:
+                    Assert.assertEquals( "wrong put", compare.put( key, "v" + i ), testMap.put( key, "v" + i ));
+                    break;
+                case 1:
+                    Assert.assertEquals( "wrong remove", compare.remove( key ), testMap.remove( key ));
+                    break;
+                case 2:
+                    Assert.assertEquals( "wrong get", compare.get( key ), testMap.get( key ));
+                    break;
+            }
+            Assert.assertEquals( "wrong size", compare.size(), testMap.size() );
+        }
+        for( Map.Entry<Long,String> current : compare.entrySet() ) {
+            Assert.assertEquals( "wrong value", current.getValue(), testMap.get( current.getKey() ));
+        }
+        Assert.assertEquals( "wrong number of keys", compare.size(), testMap.keys().length );
+
+        testMap.clear();
+        Assert.assertTrue( "not empty", testMap.isEmpty() );
+
+        //
+
+        log.info( "Events of MCachingLongHashMap" );
+
+        MCachingLongHashMap<String> cachingMap = MCachingLongHashMap.create();
+        SwappingHashMapTestListener listener   = new SwappingHashMapTestListener();
+        cachingMap.addDirectCachingMapListener( listener );
+
+        int n = 10;
+        for( long i=0 ; i<n ; ++i ) {
+            cachingMap.put( i, "a" + i );
+        }
+        cachingMap.put( Long.valueOf( 0L ), "b0" );
+        cachingMap.remove( 1L );
+        cachingMap.remove( "not a long" );
+
+        Assert.assertEquals( "wrong size", n-1, cachingMap.size() );
+        Assert.assertEquals( "wrong number of added events", n+1, listener.theAddedEvents.size() );
+        Assert.assertEquals( "wrong number of removed events", 2, listener.theRemovedEvents.size() );
+        Assert.assertEquals( "wrong value", "b0", cachingMap.get( Long.valueOf( 0L )));
+        Assert.assertNull( "found removed value", cachingMap.get( 1L ));
+        Assert.assertEquals( "wrong number of keys", n-1, cachingMap.keySet().size() );
+        Assert.assertEquals( "wrong number of entries", n-1, cachingMap.entrySet().size() );
+        Assert.assertEquals( "wrong number of hits", 1, cachingMap.getCacheStatistics().getHitCount() );
+        Assert.assertEquals( "wrong number of misses", 1, cachingMap.getCacheStatistics().getMissCount() );
+    }
+
+    private static final Log log = Log.getLogInstance( LongHashMapTest1.class ); // our own, private logger
+}
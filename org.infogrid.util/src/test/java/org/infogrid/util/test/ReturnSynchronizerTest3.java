@@ -0,0 +1,185 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.infogrid.util.ReturnSynchronizer;
+import org.infogrid.util.ReturnSynchronizerException;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests ReturnSynchronizer transactions that are not associated with a Thread.
+ */
+public class ReturnSynchronizerTest3
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        final ReturnSynchronizer<Object,Object> sync = ReturnSynchronizer.create();
+
+        log.info( "Many transactions on one thread" );
+
+        final AtomicInteger callbacks = new AtomicInteger();
+
+        List<CompletableFuture<Map<Object,Object>>> futures = new ArrayList<CompletableFuture<Map<Object,Object>>>( N_TRANSACTIONS );
+        for( int i=0 ; i<N_TRANSACTIONS ; ++i ) {
+            final ReturnSynchronizer<Object,Object>.Transaction tx = sync.createTransaction();
+            for( int j=0 ; j<N_QUERIES ; ++j ) {
+                tx.addOpenQuery( "key-" + i + "-" + j );
+            }
+            futures.add( tx.whenComplete( new BiConsumer<Map<Object,Object>,Throwable>() {
+                    public void accept(
+                            Map<Object,Object> results,
+                            Throwable          t )
+                    {
+                        callbacks.incrementAndGet();
+                        tx.endTransaction();
+                    }
+            }));
+        }
+        Assert.assertEquals( "callback too early", 0, callbacks.get() );
+
+        Thread [] producers = new Thread[ N_PRODUCERS ];
+        for( int p=0 ; p<N_PRODUCERS ; ++p ) {
+            final int first = p;
+            producers[p] = new Thread( "producer-" + p ) {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            for( int i=first ; i<N_TRANSACTIONS ; i += N_PRODUCERS ) {
+                                for( int j=0 ; j<N_QUERIES ; ++j ) {
+                                    sync.depositQueryResult( "key-" + i + "-" + j, "result-" + i + "-" + j );
+                                }
+                            }
+                        } catch( ReturnSynchronizerException ex ) {
+                            log.error( ex );
+                        }
+                    }
+            };
+            producers[p].start();
+        }
+
+        for( int i=0 ; i<N_TRANSACTIONS ; ++i ) {
+            Map<Object,Object> results = futures.get( i ).get( 10L, TimeUnit.SECONDS );
+
+            Assert.assertEquals( "wrong number of results", N_QUERIES, results.size() );
+            for( int j=0 ; j<N_QUERIES ; ++j ) {
+                Assert.assertEquals( "wrong result", "result-" + i + "-" + j, results.get( "key-" + i + "-" + j ));
+            }
+        }
+        for( Thread current : producers ) {
+            current.join();
+        }
+        Assert.assertEquals( "wrong number of callbacks", N_TRANSACTIONS, callbacks.get() );
+        Assert.assertTrue( "transactions not ended", sync.areAllQueriesComplete() );
+
+        log.info( "Completion requested after the fact" );
+
+        ReturnSynchronizer<Object,Object>.Transaction tx = sync.createTransaction();
+        tx.addOpenQuery( "late" );
+        sync.depositQueryResult( "late", "late-result" );
+
+        Assert.assertTrue( "not complete", tx.isComplete() );
+        Assert.assertEquals( "wrong result", "late-result", tx.toCompletableFuture().get( 0L, TimeUnit.MILLISECONDS ).get( "late" ));
+        tx.endTransaction();
+
+        log.info( "Thread-bound transaction joined on another thread" );
+
+        final ReturnSynchronizer<Object,Object>.Transaction bound = sync.beginTransaction();
+        bound.addOpenQuery( "bound" );
+
+        final boolean [] joined = new boolean[1];
+        Thread joiner = new Thread( "joiner" ) {
+                @Override
+                public void run()
+                {
+                    try {
+                        joined[0] = bound.join( 10000L );
+                    } catch( InterruptedException ex ) {
+                        log.error( ex );
+                    }
+                }
+        };
+        joiner.start();
+        sync.depositQueryResult( "bound", "bound-result" );
+        joiner.join();
+
+        Assert.assertTrue( "join failed", joined[0] );
+        Assert.assertEquals( "wrong result", "bound-result", sync.getResultFor( "bound" ));
+        sync.endTransaction();
+        Assert.assertNull( "still bound", sync.getTransaction( Thread.currentThread() ));
+
+        log.info( "Disabling error" );
+
+        tx = sync.createTransaction();
+        tx.addOpenQuery( "never" );
+
+        CompletableFuture<Map<Object,Object>> future = tx.toCompletableFuture();
+        RuntimeException cause = new RuntimeException( "test" );
+        sync.disablingError( cause );
+
+        try {
+            future.get( 1000L, TimeUnit.MILLISECONDS );
+            Assert.fail( "should have completed exceptionally" );
+
+        } catch( ExecutionException ex ) {
+            Assert.assertTrue( "wrong exception", ex.getCause() instanceof ReturnSynchronizerException.Disabled );
+            Assert.assertSame( "wrong cause", cause, ex.getCause().getCause() );
+        }
+        tx.endTransaction();
+    }
+
+    /**
+     * return our log
+     */
+    @Override
+    protected Log getLog()
+    {
+        return log;
+    }
+
+    /**
+     * The number of transactions.
+     */
+    protected static final int N_TRANSACTIONS = 1000;
+
+    /**
+     * The number of queries per transaction.
+     */
+    protected static final int N_QUERIES = 10;
+
+    /**
+     * The number of Threads producing results.
+     */
+    protected static final int N_PRODUCERS = 4;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( ReturnSynchronizerTest3.class );
+}
@@ -0,0 +1,172 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.infogrid.util.AbstractFactory;
+import org.infogrid.util.BatchFactory;
+import org.infogrid.util.MSmartFactory;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bulk obtainForAll method of the MSmartFactory with a BatchFactory delegate.
+ */
+public class SmartFactoryTest5
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        TestBatchFactory delegateFactory = new TestBatchFactory();
+
+        MSmartFactory<String,Integer,Integer> testFactory = MSmartFactory.createDirect( delegateFactory );
+
+        SwappingHashMapTestListener listener = new SwappingHashMapTestListener();
+        testFactory.getStorage().addDirectCachingMapListener( listener );
+
+        //
+
+        log.info( "Creating a few objects one at a time" );
+
+        int n1 = 5;
+
+        for( int i=0 ; i<n1 ; ++i ) {
+            testFactory.obtainFor( "key-" + String.valueOf( i ), 2 );
+        }
+        Assert.assertEquals( "wrong number of single invocations", n1, delegateFactory.theSingleCount );
+        Assert.assertEquals( "wrong number of batch invocations", 0, delegateFactory.theBatchCount );
+        Assert.assertEquals( "wrong number of added events", n1, listener.theAddedEvents.size() );
+        listener.clear();
+
+        //
+
+        log.info( "Obtaining many objects at once, some of which exist already" );
+
+        int n2 = 20;
+
+        ArrayList<String> keys = new ArrayList<String>();
+        for( int i=n2-1 ; i>=0 ; --i ) {
+            keys.add( "key-" + String.valueOf( i ));
+        }
+        keys.add( "key-0" ); // duplicate
+
+        Map<String,Integer> found = testFactory.obtainForAll( keys, 3 );
+
+        Assert.assertEquals( "wrong number of single invocations", n1, delegateFactory.theSingleCount );
+        Assert.assertEquals( "wrong number of batch invocations", 1, delegateFactory.theBatchCount );
+        Assert.assertEquals( "wrong number of keys in batch", n2-n1, delegateFactory.theLastBatchSize );
+        Assert.assertEquals( "wrong number of added events", n2-n1, listener.theAddedEvents.size() );
+        Assert.assertEquals( "wrong size of testFactory", n2, testFactory.size() );
+        Assert.assertEquals( "wrong size of result", n2, found.size() );
+
+        int index = n2-1;
+        for( Map.Entry<String,Integer> current : found.entrySet() ) {
+            Assert.assertEquals( "wrong sequence", "key-" + String.valueOf( index ), current.getKey() );
+            Assert.assertEquals( "wrong value", index < n1 ? 2 : 3, current.getValue().intValue() );
+            Assert.assertSame( "not the stored value", testFactory.get( current.getKey() ), current.getValue() );
+            --index;
+        }
+        listener.clear();
+
+        //
+
+        log.info( "Obtaining existing objects at once" );
+
+        found = testFactory.obtainForAll( keys );
+
+        Assert.assertEquals( "wrong number of batch invocations", 1, delegateFactory.theBatchCount );
+        Assert.assertEquals( "wrong number of added events", 0, listener.theAddedEvents.size() );
+        Assert.assertEquals( "wrong size of result", n2, found.size() );
+        listener.clear();
+
+        //
+
+        log.info( "Ignoring values the batch factory was not asked for" );
+
+        delegateFactory.theMisbehaves = true;
+
+        ArrayList<String> moreKeys = new ArrayList<String>();
+        moreKeys.add( "key-0" );
+        moreKeys.add( "key-new" );
+        moreKeys.add( "key-none" );
+
+        found = testFactory.obtainForAll( moreKeys, 4 );
+
+        Assert.assertEquals( "wrong number of keys in batch", 2, delegateFactory.theLastBatchSize );
+        Assert.assertEquals( "wrong number of added events", 1, listener.theAddedEvents.size() );
+        Assert.assertEquals( "wrong size of testFactory", n2+1, testFactory.size() );
+        Assert.assertEquals( "cached value overwritten", 2, testFactory.get( "key-0" ).intValue() );
+        Assert.assertEquals( "wrong new value", 4, testFactory.get( "key-new" ).intValue() );
+        Assert.assertNull( "unrequested key stored", testFactory.get( "key-extra" ));
+        Assert.assertFalse( "unrequested key returned", found.containsKey( "key-extra" ));
+        Assert.assertEquals( "wrong size of result", 3, found.size() );
+        Assert.assertNull( "value for uncreated key", found.get( "key-none" ));
+        Assert.assertNull( "uncreated key stored", testFactory.get( "key-none" ));
+    }
+
+    private static final Log log = Log.getLogInstance( SmartFactoryTest5.class ); // our own, private logger
+
+    /**
+     * Counts invocations. Values are the argument.
+     */
+    static class TestBatchFactory
+            extends
+                AbstractFactory<String,Integer,Integer>
+            implements
+                BatchFactory<String,Integer,Integer>
+    {
+        public Integer obtainFor(
+                String  key,
+                Integer argument )
+        {
+            ++theSingleCount;
+            return Integer.valueOf( argument );
+        }
+
+        public Map<String,Integer> obtainForAll(
+                Collection<String> keys,
+                Integer            argument )
+        {
+            ++theBatchCount;
+            theLastBatchSize = keys.size();
+
+            HashMap<String,Integer> ret = new HashMap<String,Integer>();
+            for( String key : keys ) {
+                if( !theMisbehaves || !"key-none".equals( key )) {
+                    ret.put( key, Integer.valueOf( argument ));
+                }
+            }
+            if( theMisbehaves ) {
+                ret.put( "key-extra", argument );
+                ret.put( "key-0",     argument );
+            }
+            return ret;
+        }
+
+        boolean theMisbehaves;
+        int theSingleCount;
+        int theBatchCount;
+        int theLastBatchSize;
+    }
+}
@@ -0,0 +1,357 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.util.AbstractFactory;
+import org.infogrid.util.Factory;
+import org.infogrid.util.MCachingHashMap;
+import org.infogrid.util.RefreshAheadSmartFactory;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the refresh-ahead and stale-while-revalidate behavior of the RefreshAheadSmartFactory.
+ */
+public class SmartFactoryTest6
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        final AtomicInteger counter = new AtomicInteger();
+
+        Factory<String,Integer,Integer> delegateFactory = new AbstractFactory<String,Integer,Integer>() {
+            public Integer obtainFor(
+                    String  key,
+                    Integer argument )
+            {
+                return counter.incrementAndGet();
+            }
+        };
+
+        ScheduledExecutorService exec = new ScheduledThreadPoolExecutor( 1 );
+
+        RefreshAheadSmartFactory<String,Integer,Integer> testFactory = RefreshAheadSmartFactory.create(
+                delegateFactory,
+                MCachingHashMap.<String,Integer>create(),
+                exec,
+                1000L,   // expireAfter
+                500L,    // refreshWindow
+                2000L ); // maxStaleness
+
+        String key = "key";
+
+        //
+
+        log.info( "Creating and accessing a value, which is refreshed ahead" );
+
+        long start = System.currentTimeMillis();
+
+        Assert.assertEquals( "wrong initial value", 1, testFactory.obtainFor( key ).intValue() );
+        Thread.sleep( 200L );
+        Assert.assertEquals( "not the cached value", 1, testFactory.obtainFor( key ).intValue() );
+
+        sleepUntil( start + 800L );
+
+        Assert.assertEquals( "wrong number of refreshes", 1, testFactory.getRefreshCount() );
+        Assert.assertEquals( "not refreshed", 2, testFactory.get( key ).intValue() ); // get does not count as access
+
+        //
+
+        log.info( "Not accessing the value, which is not refreshed ahead, but served stale" );
+
+        Thread.sleep( 500L ); // let go by the next refresh-ahead, at about start + 1000
+        Assert.assertEquals( "wrong number of refreshes", 1, testFactory.getRefreshCount() );
+
+        testFactory.remove( key );
+        start = System.currentTimeMillis();
+        Assert.assertEquals( "wrong value", 3, testFactory.obtainFor( key ).intValue() );
+
+        sleepUntil( start + 1500L );
+
+        Assert.assertEquals( "wrong number of refreshes", 1, testFactory.getRefreshCount() );
+        Assert.assertEquals( "not the stale value", 3, testFactory.obtainFor( key ).intValue() );
+        Assert.assertEquals( "wrong number of stale hits", 1, testFactory.getStaleHitCount() );
+
+        Thread.sleep( 200L );
+
+        Assert.assertEquals( "wrong number of refreshes", 2, testFactory.getRefreshCount() );
+        Assert.assertEquals( "not revalidated", 4, testFactory.obtainFor( key ).intValue() );
+
+        //
+
+        log.info( "Letting the value become too stale" );
+
+        testFactory.remove( key );
+        start = System.currentTimeMillis();
+        Assert.assertEquals( "wrong value", 5, testFactory.obtainFor( key ).intValue() );
+
+        sleepUntil( start + 3500L );
+
+        Assert.assertEquals( "not recreated", 6, testFactory.obtainFor( key ).intValue() );
+        Assert.assertEquals( "wrong number of refreshes", 2, testFactory.getRefreshCount() );
+        Assert.assertEquals( "wrong number of stale hits", 1, testFactory.getStaleHitCount() );
+
+        exec.shutdown();
+    }
+
+    @Test
+    public void putValuesDoNotExpire()
+        throws
+            Exception
+    {
+        final AtomicInteger counter = new AtomicInteger();
+
+        Factory<String,Integer,Integer> delegateFactory = new AbstractFactory<String,Integer,Integer>() {
+            public Integer obtainFor(
+                    String  key,
+                    Integer argument )
+            {
+                return counter.incrementAndGet();
+            }
+        };
+
+        ScheduledExecutorService exec = new ScheduledThreadPoolExecutor( 1 );
+
+        RefreshAheadSmartFactory<String,Integer,Integer> testFactory = RefreshAheadSmartFactory.create(
+                delegateFactory,
+                MCachingHashMap.<String,Integer>create(),
+                exec,
+                400L,   // expireAfter
+                200L,   // refreshWindow
+                200L ); // maxStaleness
+
+        String key = "key";
+
+        //
+
+        log.info( "Putting a value over a created one" );
+
+        Assert.assertEquals( "wrong initial value", 1, testFactory.obtainFor( key ).intValue() );
+        Assert.assertEquals( "wrong old value", 1, testFactory.put( key, 100 ).intValue() );
+
+        Thread.sleep( 300L );
+        Assert.assertEquals( "put value not returned", 100, testFactory.obtainFor( key ).intValue() );
+
+        Thread.sleep( 800L ); // well past refresh-ahead, expiration and max staleness of the created value
+
+        Assert.assertEquals( "put value expired", 100, testFactory.obtainFor( key ).intValue() );
+        Assert.assertEquals( "put value refreshed", 0, testFactory.getRefreshCount() );
+        Assert.assertEquals( "put value served stale", 0, testFactory.getStaleHitCount() );
+        Assert.assertEquals( "delegate invoked", 1, counter.get() );
+
+        exec.shutdown();
+    }
+
+    @Test
+    public void supersededRefreshIsNoFailure()
+        throws
+            Exception
+    {
+        final AtomicInteger  counter = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        Factory<String,Integer,Integer> delegateFactory = new AbstractFactory<String,Integer,Integer>() {
+            public Integer obtainFor(
+                    String  key,
+                    Integer argument )
+            {
+                int ret = counter.incrementAndGet();
+                if( ret == 2 ) {
+                    // the refresh
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch( InterruptedException ex ) {
+                        // ignore
+                    }
+                }
+                return ret;
+            }
+        };
+
+        ScheduledExecutorService exec = new ScheduledThreadPoolExecutor( 1 );
+
+        RefreshAheadSmartFactory<String,Integer,Integer> testFactory = RefreshAheadSmartFactory.create(
+                delegateFactory,
+                MCachingHashMap.<String,Integer>create(),
+                exec,
+                400L,   // expireAfter
+                200L,   // refreshWindow
+                200L ); // maxStaleness
+
+        String key = "key";
+
+        //
+
+        log.info( "Removing a value while it is being refreshed" );
+
+        Assert.assertEquals( "wrong initial value", 1, testFactory.obtainFor( key ).intValue() );
+        Assert.assertEquals( "not the cached value", 1, testFactory.obtainFor( key ).intValue() );
+
+        entered.await();
+        testFactory.remove( key );
+        release.countDown();
+
+        exec.shutdown();
+        exec.awaitTermination( 1000L, TimeUnit.MILLISECONDS );
+
+        Assert.assertEquals( "wrong number of refreshes", 0, testFactory.getRefreshCount() );
+        Assert.assertEquals( "superseded refresh counted as failure", 0, testFactory.getRefreshFailureCount() );
+        Assert.assertNull( "removed value came back", testFactory.get( key ));
+    }
+
+    @Test
+    public void unaccessedValuesAreEvicted()
+        throws
+            Exception
+    {
+        final AtomicInteger counter = new AtomicInteger();
+
+        Factory<String,Integer,Integer> delegateFactory = new AbstractFactory<String,Integer,Integer>() {
+            public Integer obtainFor(
+                    String  key,
+                    Integer argument )
+            {
+                return counter.incrementAndGet();
+            }
+        };
+
+        ScheduledExecutorService exec = new ScheduledThreadPoolExecutor( 1 );
+
+        RefreshAheadSmartFactory<String,Integer,Integer> testFactory = RefreshAheadSmartFactory.create(
+                delegateFactory,
+                MCachingHashMap.<String,Integer>create(),
+                exec,
+                200L,   // expireAfter
+                100L,   // refreshWindow
+                100L ); // maxStaleness
+
+        //
+
+        log.info( "Creating values that nobody obtains again" );
+
+        for( int i=0 ; i<10 ; ++i ) {
+            testFactory.obtainFor( "key-" + i );
+        }
+        Assert.assertEquals( "wrong size", 10, testFactory.size() );
+
+        Thread.sleep( 600L ); // well past expiration and max staleness
+
+        Assert.assertEquals( "unaccessed values not evicted", 0, testFactory.size() );
+        Assert.assertEquals( "unaccessed values refreshed", 0, testFactory.getRefreshCount() );
+        Assert.assertEquals( "delegate invoked", 10, counter.get() );
+
+        exec.shutdown();
+    }
+
+    @Test
+    public void obtainForAllExpires()
+        throws
+            Exception
+    {
+        final AtomicInteger counter = new AtomicInteger();
+
+        Factory<String,Integer,Integer> delegateFactory = new AbstractFactory<String,Integer,Integer>() {
+            public Integer obtainFor(
+                    String  key,
+                    Integer argument )
+            {
+                return counter.incrementAndGet();
+            }
+        };
+
+        ScheduledExecutorService exec = new ScheduledThreadPoolExecutor( 1 );
+
+        RefreshAheadSmartFactory<String,Integer,Integer> testFactory = RefreshAheadSmartFactory.create(
+                delegateFactory,
+                MCachingHashMap.<String,Integer>create(),
+                exec,
+                400L,   // expireAfter
+                200L,   // refreshWindow
+                400L ); // maxStaleness
+
+        ArrayList<String> keys = new ArrayList<String>();
+        keys.add( "a" );
+        keys.add( "b" );
+
+        //
+
+        log.info( "Obtaining stale values in bulk" );
+
+        long start = System.currentTimeMillis();
+
+        Map<String,Integer> found = testFactory.obtainForAll( keys );
+        Assert.assertEquals( "wrong value", 1, found.get( "a" ).intValue() );
+        Assert.assertEquals( "wrong value", 2, found.get( "b" ).intValue() );
+
+        sleepUntil( start + 600L );
+
+        found = testFactory.obtainForAll( keys );
+        Assert.assertEquals( "not the stale value", 1, found.get( "a" ).intValue() );
+        Assert.assertEquals( "not the stale value", 2, found.get( "b" ).intValue() );
+        Assert.assertEquals( "wrong number of stale hits", 2, testFactory.getStaleHitCount() );
+
+        Thread.sleep( 200L );
+
+        Assert.assertEquals( "not revalidated", 2, testFactory.getRefreshCount() );
+        Assert.assertEquals( "wrong number of created values", 4, counter.get() );
+
+        //
+
+        log.info( "Letting the values become too stale" );
+
+        sleepUntil( start + 1800L ); // well past expiration and max staleness of the revalidated values
+
+        found = testFactory.obtainForAll( keys );
+        Assert.assertEquals( "too stale value returned", 5, found.get( "a" ).intValue() );
+        Assert.assertEquals( "too stale value returned", 6, found.get( "b" ).intValue() );
+        Assert.assertEquals( "wrong number of stale hits", 2, testFactory.getStaleHitCount() );
+
+        exec.shutdown();
+    }
+
+    /**
+     * Sleep until a certain time.
+     *
+     * @param time the time, in milliseconds of the local clock
+     * @throws InterruptedException should not happen
+     */
+    protected void sleepUntil(
+            long time )
+        throws
+            InterruptedException
+    {
+        long delta = time - System.currentTimeMillis();
+        if( delta > 0 ) {
+            Thread.sleep( delta );
+        }
+    }
+
+    private static final Log log = Log.getLogInstance( SmartFactoryTest6.class ); // our own, private logger
+}
@@ -0,0 +1,97 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.util.test;
+
+import org.infogrid.util.MSwappingHashMap;
+import org.infogrid.util.SwappingHashMapCleaner;
+import org.infogrid.util.logging.Log;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests amortized and background cleanup of garbage-collected values in a SwappingHashMap.
+ */
+public class SwappingHashMapTest1
+        extends
+            AbstractTest
+{
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        int n = 20;
+
+        //
+
+        log.info( "Amortized cleanup" );
+
+        MSwappingHashMap<String,Object,Void> map1 = MSwappingHashMap.createWeak();
+        SwappingHashMapTestListener listener1 = new SwappingHashMapTestListener();
+        map1.addDirectCachingMapListener( listener1 );
+        map1.setMaxInlineCleanup( 3 );
+
+        for( int i=0 ; i<n ; ++i ) {
+            map1.put( "key-" + String.valueOf( i ), new Object() );
+        }
+        listener1.clear(); // the added events reference the values
+        collectGarbage();
+
+        Assert.assertEquals( "wrong number of expired events", 0, listener1.theExpiredEvents.size() );
+
+        map1.get( "key-0" );
+        Assert.assertEquals( "wrong number of expired events", 3, listener1.theExpiredEvents.size() );
+
+        map1.get( "key-1" );
+        Assert.assertEquals( "wrong number of expired events", 6, listener1.theExpiredEvents.size() );
+
+        map1.setMaxInlineCleanup( -1 );
+        Assert.assertEquals( "wrong size", 0, map1.size() );
+        Assert.assertEquals( "wrong number of expired events", n, listener1.theExpiredEvents.size() );
+
+        //
+
+        log.info( "Background cleanup" );
+
+        SwappingHashMapCleaner cleaner = SwappingHashMapCleaner.create( "SwappingHashMapTest1", 50L, 7 );
+
+        MSwappingHashMap<String,Object,Void> map2 = MSwappingHashMap.createWeak();
+        SwappingHashMapTestListener listener2 = new SwappingHashMapTestListener();
+        map2.addDirectCachingMapListener( listener2 );
+        map2.cleanupInBackground( cleaner );
+
+        Object [] keep = new Object[ n ];
+        for( int i=0 ; i<n ; ++i ) {
+            keep[i] = new Object();
+            map2.put( "key-" + String.valueOf( i ), keep[i] );
+        }
+        for( int i=0 ; i<n ; i+=2 ) {
+            keep[i] = null;
+        }
+        listener2.clear(); // the added events reference the values
+        collectGarbage();
+        Thread.sleep( 500L );
+
+        Assert.assertEquals( "wrong number of expired events", n/2, listener2.theExpiredEvents.size() );
+        Assert.assertEquals( "wrong size", n/2, map2.size() );
+        Assert.assertEquals( "wrong eviction count", n/2, map2.getCacheStatistics().getEvictionCount() );
+
+        cleaner.stop();
+        Assert.assertNotNull( "keep the values reachable", keep );
+    }
+
+    private static final Log log = Log.getLogInstance( SwappingHashMapTest1.class ); // our own, private logger
+}